@@ -15,6 +15,8 @@
  */
 package com.example.android.opengl;
 
+import com.uncorkedstudios.android.view.recordablesurfaceview.ProgramCache;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -43,35 +45,43 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
     private final float[] mProjectionMatrix = new float[16];
     private final float[] mViewMatrix = new float[16];
     private final float[] mRotationMatrix = new float[16];
+    private final float[] mTriangleMatrix = new float[16];
 
     private float mAngle;
 
+    private final ProgramCache mProgramCache;
+
+    public MyGLRenderer(ProgramCache programCache) {
+        mProgramCache = programCache;
+    }
+
     @Override
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
 
         // Set the background frame color
         GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 
-        mTriangle = new Triangle();
-        mSquare   = new Square();
+        mTriangle = new Triangle(mProgramCache);
+        mSquare   = new Square(mProgramCache);
     }
 
     @Override
     public void onDrawFrame(GL10 unused) {
-        float[] scratch = new float[16];
-
-        // Draw background color
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        prepareFrame();
+        drawFrame();
+    }
 
+    /**
+     * Computes the per-frame matrices. When drawing the same frame more than once (for
+     * example on screen and into a recording), only call this for the first draw.
+     */
+    public void prepareFrame() {
         // Set the camera position (View matrix)
         Matrix.setLookAtM(mViewMatrix, 0, 0, 0, -3, 0f, 0f, 0f, 0f, 1.0f, 0.0f);
 
         // Calculate the projection and view transformation
         Matrix.multiplyMM(mMVPMatrix, 0, mProjectionMatrix, 0, mViewMatrix, 0);
 
-        // Draw square
-        mSquare.draw(mMVPMatrix);
-
         // Create a rotation for the triangle
 
         // Use the following code to generate constant rotation.
@@ -84,10 +94,21 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         // Combine the rotation matrix with the projection and camera view
         // Note that the mMVPMatrix factor *must be first* in order
         // for the matrix multiplication product to be correct.
-        Matrix.multiplyMM(scratch, 0, mMVPMatrix, 0, mRotationMatrix, 0);
+        Matrix.multiplyMM(mTriangleMatrix, 0, mMVPMatrix, 0, mRotationMatrix, 0);
+    }
+
+    /**
+     * Issues the GL calls for the frame last prepared by {@link #prepareFrame()}.
+     */
+    public void drawFrame() {
+        // Draw background color
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        // Draw square
+        mSquare.draw(mMVPMatrix);
 
         // Draw triangle
-        mTriangle.draw(scratch);
+        mTriangle.draw(mTriangleMatrix);
     }
 
     @Override
@@ -15,26 +15,34 @@
  */
 package com.example.android.opengl;
 
+import com.uncorkedstudios.android.view.recordablesurfaceview.PassAwareRendererCallbacks;
+import com.uncorkedstudios.android.view.recordablesurfaceview.ProgramCache;
 import com.uncorkedstudios.android.view.recordablesurfaceview.RecordableSurfaceView;
+import com.uncorkedstudios.android.view.recordablesurfaceview.RenderPass;
 
 import android.content.Context;
 import android.opengl.GLSurfaceView;
 import android.view.MotionEvent;
 
+import java.io.File;
+
 /**
  * A view container where OpenGL ES graphics can be drawn on screen.
  * This view can also be used to capture touch events, such as a user
  * interacting with drawn objects.
  */
-public class MyGLSurfaceView extends RecordableSurfaceView implements RecordableSurfaceView.RendererCallbacks {
+public class MyGLSurfaceView extends RecordableSurfaceView implements PassAwareRendererCallbacks {
 
     private final MyGLRenderer mRenderer;
 
+    private final PassBenchmark mPassBenchmark = new PassBenchmark();
+
     public MyGLSurfaceView(Context context) {
         super(context);
 
         // Set the Renderer for drawing on the GLSurfaceView
-        mRenderer = new MyGLRenderer();
+        mRenderer = new MyGLRenderer(
+                new ProgramCache(new File(context.getCacheDir(), "programs")));
         setRendererCallbacks(this);
     }
 
@@ -105,4 +113,17 @@ public class MyGLSurfaceView extends RecordableSurfaceView implements Recordable
     public void onDrawFrame() {
         mRenderer.onDrawFrame(null);
     }
+
+    @Override
+    public void onDrawFrame(RenderPass pass) {
+        // the recording pass reuses the matrices computed for the display pass
+        if (pass.isFrameStatePrepared()) {
+            mPassBenchmark.onSkipped();
+        } else {
+            long start = System.nanoTime();
+            mRenderer.prepareFrame();
+            mPassBenchmark.onPrepared(System.nanoTime() - start);
+        }
+        mRenderer.drawFrame();
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.opengl;
+
+import android.util.Log;
+
+/**
+ * Measures how much per-frame CPU work {@link MyGLSurfaceView} saves by preparing each frame
+ * once instead of once per pass, and logs a summary every few hundred frames.
+ * <p>
+ * Compares the time spent in {@link MyGLRenderer#prepareFrame()} against the time the skipped
+ * calls would have taken at the same average cost. Watch logcat for the "PassBenchmark" tag
+ * while recording.
+ */
+class PassBenchmark {
+
+    private static final String TAG = "PassBenchmark";
+
+    private static final int REPORT_INTERVAL = 300;
+
+    private long mPrepareNanos;
+
+    private int mPrepares;
+
+    private int mSkipped;
+
+    private int mPasses;
+
+    /**
+     * Records a pass that prepared the frame.
+     *
+     * @param nanos time spent preparing
+     */
+    void onPrepared(long nanos) {
+        mPrepareNanos += nanos;
+        mPrepares++;
+        onPass();
+    }
+
+    /**
+     * Records a pass that reused the prepared frame.
+     */
+    void onSkipped() {
+        mSkipped++;
+        onPass();
+    }
+
+    private void onPass() {
+        if (++mPasses < REPORT_INTERVAL) {
+            return;
+        }
+        double averageMicros = mPrepares > 0 ? mPrepareNanos / 1000.0 / mPrepares : 0;
+        Log.i(TAG, String.format("%d passes: prepare %.1f us avg, %d skipped, saved %.1f us"
+                        + " (%.0f%% of prepare time)",
+                mPasses, averageMicros, mSkipped, averageMicros * mSkipped,
+                100.0 * mSkipped / (mPrepares + mSkipped)));
+        mPrepareNanos = 0;
+        mPrepares = 0;
+        mSkipped = 0;
+        mPasses = 0;
+    }
+}
@@ -20,6 +20,8 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 
+import com.uncorkedstudios.android.view.recordablesurfaceview.ProgramCache;
+
 import android.opengl.GLES20;
 
 /**
@@ -69,8 +71,10 @@ public class Square {
 
     /**
      * Sets up the drawing object data for use in an OpenGL ES context.
+     *
+     * @param programCache creates the shape's program
      */
-    public Square() {
+    public Square(ProgramCache programCache) {
         // initialize vertex byte buffer for shape coordinates
         ByteBuffer bb = ByteBuffer.allocateDirect(
         // (# of coordinate values * 4 bytes per float)
@@ -90,17 +94,8 @@ public class Square {
         drawListBuffer.position(0);
 
         // prepare shaders and OpenGL program
-        int vertexShader = MyGLRenderer.loadShader(
-                GLES20.GL_VERTEX_SHADER,
-                vertexShaderCode);
-        int fragmentShader = MyGLRenderer.loadShader(
-                GLES20.GL_FRAGMENT_SHADER,
-                fragmentShaderCode);
-
-        mProgram = GLES20.glCreateProgram();             // create empty OpenGL Program
-        GLES20.glAttachShader(mProgram, vertexShader);   // add the vertex shader to program
-        GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment shader to program
-        GLES20.glLinkProgram(mProgram);                  // create OpenGL program executables
+        // linked from a cached binary after the first run
+        mProgram = programCache.getProgram(vertexShaderCode, fragmentShaderCode);
     }
 
     /**
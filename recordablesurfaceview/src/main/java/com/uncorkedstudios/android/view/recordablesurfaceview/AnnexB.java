@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for H.264/HEVC elementary streams in Annex B format (NAL units separated by start
+ * codes), as produced by {@link android.media.MediaCodec} encoders.
+ */
+final class AnnexB {
+
+    private AnnexB() {
+    }
+
+    /**
+     * @return the length of the start code at <code>index</code> (3 or 4), or 0 if there is
+     * none
+     */
+    static int startCodeLength(ByteBuffer data, int index) {
+        int limit = data.limit();
+        if (index + 3 <= limit && data.get(index) == 0 && data.get(index + 1) == 0) {
+            if (data.get(index + 2) == 1) {
+                return 3;
+            }
+            if (index + 4 <= limit && data.get(index + 2) == 0 && data.get(index + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the next start code at or after <code>from</code>.
+     *
+     * @return its index, or <code>end</code> if there is none
+     */
+    static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 3 <= end; i++) {
+            // a start code needs two zero bytes, so skip ahead quickly on non-zero bytes
+            if ((data.get(i + 2) & 0xFF) > 1) {
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i > from && data.get(i - 1) == 0 ? i - 1 : i;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioPlaybackCaptureConfiguration;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Captures PCM from an {@link AudioRecord} (microphone or app playback capture), optionally
+ * mixes in app-supplied PCM from a {@link PcmRingBuffer}, and encodes it to AAC for the
+ * {@link CodecRecorder}.
+ * <p>
+ * Everything runs on one audio thread. Presentation timestamps are derived from the number of
+ * samples queued, so the audio clock is the sample clock.
+ */
+class AudioPipeline implements Runnable {
+
+    private static final String TAG = AudioPipeline.class.getSimpleName();
+
+    private static final int SAMPLES_PER_FRAME = 1024;
+
+    private static final long TIMEOUT_US = 10000;
+
+    // bounds the wait for end of stream to about a second
+    private static final int MAX_EOS_WAITS = 100;
+
+    private final CodecRecorder mRecorder;
+
+    private final MediaCodec mCodec;
+
+    private final AudioRecord mAudioRecord;
+
+    private final PcmRingBuffer mAppAudio;
+
+    private final AvSyncMonitor mAvSyncMonitor;
+
+    private final float mAppAudioGain;
+
+    private final int mSampleRate;
+
+    private final int mChannelCount;
+
+    private final short[] mFrame;
+
+    private final short[] mMixScratch;
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    // short views of the codec's input buffers by index, so queueing a frame does not allocate
+    private ShortBuffer[] mInputViews = new ShortBuffer[0];
+
+    private ByteBuffer[] mInputViewSources = new ByteBuffer[0];
+
+    private Thread mThread;
+
+    private volatile boolean mRunning = false;
+
+    private long mStartTimeUs;
+
+    private long mStartTimeNs;
+
+    private long mSamplesQueued = 0;
+
+    private int mTrackIndex = -1;
+
+    AudioPipeline(RecorderConfig config, CodecRecorder recorder) throws IOException {
+        mRecorder = recorder;
+        mSampleRate = config.getAudioSampleRate();
+        mChannelCount = config.getAudioChannelCount();
+        mAppAudioGain = config.getAppAudioGain();
+        mFrame = new short[SAMPLES_PER_FRAME * mChannelCount];
+        mMixScratch = new short[SAMPLES_PER_FRAME * mChannelCount];
+
+        // one second of app audio is plenty to absorb scheduling jitter on either side
+        mAppAudio = config.isAppAudioMixing()
+                ? new PcmRingBuffer(mSampleRate * mChannelCount) : null;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                mSampleRate, mChannelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getAudioBitRate());
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mFrame.length * 2);
+
+        mAudioRecord = createAudioRecord(config);
+
+        // app-only audio is paced by the system clock, so it cannot drift from video
+        mAvSyncMonitor = mAudioRecord != null
+                ? new AvSyncMonitor(mSampleRate, config.getAvSyncCorrection()) : null;
+
+        try {
+            mCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (IOException | RuntimeException e) {
+            if (mAudioRecord != null) {
+                mAudioRecord.release();
+            }
+            throw e;
+        }
+    }
+
+    private AudioRecord createAudioRecord(RecorderConfig config) throws IOException {
+        int channelMask = mChannelCount == 2
+                ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int bufferSize = Math.max(AudioRecord.getMinBufferSize(mSampleRate, channelMask,
+                AudioFormat.ENCODING_PCM_16BIT), mFrame.length * 2 * 4);
+
+        AudioRecord record;
+        switch (config.getAudioSource()) {
+            case RecorderConfig.AUDIO_SOURCE_MIC:
+                record = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate, channelMask,
+                        AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+                break;
+            case RecorderConfig.AUDIO_SOURCE_PLAYBACK_CAPTURE:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                    throw new IOException("Playback capture requires API 29");
+                }
+                if (config.getMediaProjection() == null) {
+                    throw new IOException("Playback capture requires a MediaProjection");
+                }
+                AudioPlaybackCaptureConfiguration capture =
+                        new AudioPlaybackCaptureConfiguration.Builder(config.getMediaProjection())
+                                .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
+                                .addMatchingUsage(AudioAttributes.USAGE_GAME)
+                                .addMatchingUsage(AudioAttributes.USAGE_UNKNOWN)
+                                .build();
+                record = new AudioRecord.Builder()
+                        .setAudioFormat(new AudioFormat.Builder()
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .setSampleRate(mSampleRate)
+                                .setChannelMask(channelMask)
+                                .build())
+                        .setBufferSizeInBytes(bufferSize)
+                        .setAudioPlaybackCaptureConfig(capture)
+                        .build();
+                break;
+            default:
+                return null;
+        }
+
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            throw new IOException("Could not initialize AudioRecord");
+        }
+        return record;
+    }
+
+    /**
+     * Starts capture and encoding.
+     *
+     * @param startTimeNs the recording start time on the {@link System#nanoTime()} clock
+     */
+    void start(long startTimeNs) {
+        mStartTimeNs = startTimeNs;
+        mStartTimeUs = startTimeNs / 1000;
+        if (mAvSyncMonitor != null) {
+            mAvSyncMonitor.start(startTimeNs);
+        }
+        mCodec.start();
+        if (mAudioRecord != null) {
+            mAudioRecord.startRecording();
+        }
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops capture, flushes the encoder and waits for the audio thread to finish.
+     */
+    void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /**
+     * Releases resources of a pipeline that was never started.
+     */
+    void release() {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+        }
+        mCodec.release();
+    }
+
+    /**
+     * @return the drift monitor, or null if audio is not captured from a device
+     */
+    AvSyncMonitor getAvSyncMonitor() {
+        return mAvSyncMonitor;
+    }
+
+    /**
+     * Producer side of the app audio ring buffer. Must only be called from one thread.
+     *
+     * @return the number of samples accepted, which is 0 if app audio mixing is disabled
+     */
+    int writeAppAudio(short[] pcm, int offset, int length) {
+        if (mAppAudio == null) {
+            return 0;
+        }
+        return mAppAudio.write(pcm, offset, length);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (mRunning) {
+                int count = mAudioRecord != null ? readCapture() : waitForAppFrame();
+                if (count <= 0) {
+                    continue;
+                }
+
+                if (mAppAudio != null) {
+                    int mixed = mAppAudio.read(mMixScratch, 0, count);
+                    PcmMixer.mix(mFrame, 0, mMixScratch, 0, mixed, mAppAudioGain);
+                }
+
+                int action = mAvSyncMonitor != null
+                        ? mAvSyncMonitor.onAudioFrame(System.nanoTime(), count / mChannelCount)
+                        : AvSyncMonitor.ACTION_QUEUE;
+                if (action != AvSyncMonitor.ACTION_DROP) {
+                    queue(count, false);
+                }
+                if (action == AvSyncMonitor.ACTION_DUPLICATE) {
+                    queue(count, false);
+                }
+                drain(false);
+            }
+            queue(0, true);
+            drain(true);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Audio encoding failed", e);
+        } finally {
+            if (mAudioRecord != null) {
+                mAudioRecord.stop();
+                mAudioRecord.release();
+            }
+            mCodec.stop();
+            mCodec.release();
+        }
+    }
+
+    private int readCapture() {
+        int read = mAudioRecord.read(mFrame, 0, mFrame.length);
+        if (read < 0) {
+            Log.w(TAG, "AudioRecord read error " + read);
+        }
+        return read;
+    }
+
+    /**
+     * Without a capture source the app's PCM is the only input, so frames are paced by the wall
+     * clock and padded with silence when the app falls behind.
+     */
+    private int waitForAppFrame() {
+        long frames = mSamplesQueued + SAMPLES_PER_FRAME;
+        long dueNs = mStartTimeNs + frames * 1000000000L / mSampleRate;
+        long sleepMs = (dueNs - System.nanoTime()) / 1000000L;
+        if (sleepMs > 0) {
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                return 0;
+            }
+        }
+        Arrays.fill(mFrame, (short) 0);
+        return mFrame.length;
+    }
+
+    private void queue(int sampleCount, boolean endOfStream) {
+        long ptsUs = mStartTimeUs + mSamplesQueued * 1000000L / mSampleRate;
+        int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        if (index >= 0) {
+            ByteBuffer input = mCodec.getInputBuffer(index);
+            input.clear();
+            inputView(index, input).put(mFrame, 0, sampleCount);
+            mCodec.queueInputBuffer(index, 0, sampleCount * 2, ptsUs,
+                    endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+        } else if (!endOfStream) {
+            Log.w(TAG, "Audio encoder full, dropping " + sampleCount + " samples");
+        }
+        // advance the clock even for dropped frames so audio stays aligned with wall time
+        mSamplesQueued += sampleCount / mChannelCount;
+    }
+
+    /**
+     * @return a cleared short view of the input buffer, reused while the codec hands out the
+     * same buffer for the index
+     */
+    private ShortBuffer inputView(int index, ByteBuffer input) {
+        if (index >= mInputViews.length) {
+            mInputViews = Arrays.copyOf(mInputViews, index + 1);
+            mInputViewSources = Arrays.copyOf(mInputViewSources, index + 1);
+        }
+        if (mInputViewSources[index] != input) {
+            input.order(ByteOrder.nativeOrder());
+            mInputViews[index] = input.asShortBuffer();
+            mInputViewSources[index] = input;
+        }
+        ShortBuffer view = mInputViews[index];
+        view.clear();
+        return view;
+    }
+
+    private void drain(boolean endOfStream) {
+        int idle = 0;
+        while (true) {
+            int index = mCodec.dequeueOutputBuffer(mBufferInfo, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream || ++idle > MAX_EOS_WAITS) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mTrackIndex = mRecorder.addTrack(mCodec.getOutputFormat());
+            } else if (index >= 0) {
+                ByteBuffer output = mCodec.getOutputBuffer(index);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    mBufferInfo.size = 0;
+                }
+                if (mBufferInfo.size > 0 && mTrackIndex >= 0) {
+                    // audio produced before the video track exists is dropped rather than
+                    // stalling capture
+                    mRecorder.writeSampleData(mTrackIndex, output, mBufferInfo, false);
+                }
+                mCodec.releaseOutputBuffer(index, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Measures drift between the audio sample clock and the system clock that stamps video frames,
+ * and decides how to correct it.
+ * <p>
+ * Audio presentation timestamps are derived from the number of samples written, while video
+ * frames are stamped with {@link System#nanoTime()}. An audio device whose clock runs slightly
+ * fast or slow therefore makes the two tracks slide apart over a long recording. The monitor
+ * compares the audio output timeline with elapsed wall time on every audio frame, smooths the
+ * difference and, depending on the correction mode, either
+ * <ul>
+ * <li>shifts video timestamps to follow the audio clock
+ * ({@link #CORRECTION_VIDEO_TIMESTAMPS}), slewing a bounded amount per frame, or</li>
+ * <li>drops or duplicates whole audio frames ({@link #CORRECTION_AUDIO_FRAMES}) once the drift
+ * exceeds a threshold, no more often than a minimum interval.</li>
+ * </ul>
+ * The constant capture latency present when recording starts is measured during a short warm-up
+ * and excluded, so only the drift that accumulates afterwards is reported and corrected.
+ * <p>
+ * {@link #onAudioFrame(long, int)} is called from the audio thread,
+ * {@link #getVideoTimestampNs(long)} from the render thread, and the getters from any thread.
+ */
+public class AvSyncMonitor {
+
+    /**
+     * Measure drift only.
+     */
+    public static final int CORRECTION_NONE = 0;
+
+    /**
+     * Follow the audio clock by adjusting video presentation timestamps.
+     */
+    public static final int CORRECTION_VIDEO_TIMESTAMPS = 1;
+
+    /**
+     * Follow the system clock by dropping or duplicating audio frames.
+     */
+    public static final int CORRECTION_AUDIO_FRAMES = 2;
+
+    /**
+     * Encode the audio frame once.
+     */
+    public static final int ACTION_QUEUE = 0;
+
+    /**
+     * Do not encode the audio frame.
+     */
+    public static final int ACTION_DROP = 1;
+
+    /**
+     * Encode the audio frame twice.
+     */
+    public static final int ACTION_DUPLICATE = 2;
+
+    private static final long WARM_UP_US = 2000000L;
+
+    // exponential smoothing factor for the per-frame drift samples
+    private static final double SMOOTHING = 1.0 / 64.0;
+
+    private final int mSampleRate;
+
+    private final int mMode;
+
+    private long mThresholdUs = 40000L;
+
+    private long mMinCorrectionIntervalUs = 1000000L;
+
+    private long mMaxSlewUsPerFrame = 500L;
+
+    private long mMaxVideoOffsetUs = 500000L;
+
+    private long mStartNs;
+
+    private long mOutputFrames = 0;
+
+    private boolean mWarmedUp = false;
+
+    private double mBaselineUs = 0;
+
+    private double mSmoothedUs = 0;
+
+    private long mLastCorrectionUs = 0;
+
+    private volatile long mDriftUs = 0;
+
+    private volatile double mDriftPpm = 0;
+
+    private volatile long mDroppedFrames = 0;
+
+    private volatile long mDuplicatedFrames = 0;
+
+    private volatile long mVideoOffsetUs = 0;
+
+    /**
+     * @param sampleRate the audio sample rate in Hz
+     * @param mode       one of the <code>CORRECTION_</code> constants
+     */
+    public AvSyncMonitor(int sampleRate, int mode) {
+        mSampleRate = sampleRate;
+        mMode = mode;
+    }
+
+    /**
+     * @param thresholdUs             drift above which audio frames are dropped or duplicated
+     * @param minCorrectionIntervalUs minimum time between two audio frame corrections
+     */
+    public AvSyncMonitor setAudioCorrectionBounds(long thresholdUs, long minCorrectionIntervalUs) {
+        mThresholdUs = thresholdUs;
+        mMinCorrectionIntervalUs = minCorrectionIntervalUs;
+        return this;
+    }
+
+    /**
+     * @param maxSlewUsPerFrame largest change of the video offset between two frames
+     * @param maxOffsetUs       largest total video offset
+     */
+    public AvSyncMonitor setVideoCorrectionBounds(long maxSlewUsPerFrame, long maxOffsetUs) {
+        mMaxSlewUsPerFrame = maxSlewUsPerFrame;
+        mMaxVideoOffsetUs = maxOffsetUs;
+        return this;
+    }
+
+    /**
+     * @param startNs the recording start on the {@link System#nanoTime()} clock
+     */
+    public void start(long startNs) {
+        mStartNs = startNs;
+        mOutputFrames = 0;
+        mWarmedUp = false;
+        mBaselineUs = 0;
+        mSmoothedUs = 0;
+        mLastCorrectionUs = 0;
+        mDriftUs = 0;
+        mDriftPpm = 0;
+        mDroppedFrames = 0;
+        mDuplicatedFrames = 0;
+        mVideoOffsetUs = 0;
+    }
+
+    /**
+     * Reports a captured audio frame and returns what to do with it.
+     *
+     * @param wallNs the time the frame was read, on the {@link System#nanoTime()} clock
+     * @param frames number of sample frames (samples per channel) in it
+     * @return one of the <code>ACTION_</code> constants
+     */
+    public int onAudioFrame(long wallNs, int frames) {
+        long elapsedUs = (wallNs - mStartNs) / 1000L;
+        // the frame just read ends at the current output position plus its own length
+        long audioUs = (mOutputFrames + frames) * 1000000L / mSampleRate;
+        double rawUs = audioUs - elapsedUs;
+
+        if (!mWarmedUp) {
+            mSmoothedUs = mSmoothedUs == 0 ? rawUs : mSmoothedUs + (rawUs - mSmoothedUs) * 0.1;
+            if (elapsedUs >= WARM_UP_US) {
+                mBaselineUs = mSmoothedUs;
+                mSmoothedUs = 0;
+                mWarmedUp = true;
+            }
+            mOutputFrames += frames;
+            return ACTION_QUEUE;
+        }
+
+        mSmoothedUs += (rawUs - mBaselineUs - mSmoothedUs) * SMOOTHING;
+        long drift = Math.round(mSmoothedUs);
+        mDriftUs = drift;
+        long measuredUs = elapsedUs - WARM_UP_US;
+        if (measuredUs > 0) {
+            // drift introduced by our own corrections is not clock skew
+            long correctedUs = (mDuplicatedFrames - mDroppedFrames) * frames * 1000000L
+                    / mSampleRate;
+            mDriftPpm = (drift - correctedUs) * 1e6 / measuredUs;
+        }
+
+        int action = ACTION_QUEUE;
+        if (mMode == CORRECTION_AUDIO_FRAMES && Math.abs(drift) > mThresholdUs
+                && elapsedUs - mLastCorrectionUs >= mMinCorrectionIntervalUs) {
+            mLastCorrectionUs = elapsedUs;
+            long frameUs = frames * 1000000L / mSampleRate;
+            if (drift > 0) {
+                action = ACTION_DROP;
+                mDroppedFrames++;
+                mSmoothedUs -= frameUs;
+            } else {
+                action = ACTION_DUPLICATE;
+                mDuplicatedFrames++;
+                mSmoothedUs += frameUs;
+            }
+        }
+
+        if (action == ACTION_QUEUE) {
+            mOutputFrames += frames;
+        } else if (action == ACTION_DUPLICATE) {
+            mOutputFrames += 2L * frames;
+        }
+        return action;
+    }
+
+    /**
+     * Maps a video frame time onto the audio clock. Only shifts timestamps in
+     * {@link #CORRECTION_VIDEO_TIMESTAMPS} mode. Must be called from a single thread.
+     *
+     * @param wallNs the frame time on the {@link System#nanoTime()} clock
+     * @return the presentation time to stamp the frame with, in nanoseconds
+     */
+    public long getVideoTimestampNs(long wallNs) {
+        if (mMode != CORRECTION_VIDEO_TIMESTAMPS) {
+            return wallNs;
+        }
+        long target = Math.max(-mMaxVideoOffsetUs, Math.min(mMaxVideoOffsetUs, mDriftUs));
+        long offset = mVideoOffsetUs;
+        long step = Math.max(-mMaxSlewUsPerFrame, Math.min(mMaxSlewUsPerFrame, target - offset));
+        offset += step;
+        mVideoOffsetUs = offset;
+        return wallNs + offset * 1000L;
+    }
+
+    /**
+     * @return the current smoothed drift of the audio timeline relative to the system clock, in
+     * microseconds. Positive values mean audio runs ahead
+     */
+    public long getDriftUs() {
+        return mDriftUs;
+    }
+
+    /**
+     * @return the estimated audio clock skew in parts per million, excluding corrections
+     */
+    public double getDriftPpm() {
+        return mDriftPpm;
+    }
+
+    /**
+     * @return the offset currently applied to video timestamps, in microseconds
+     */
+    public long getVideoOffsetUs() {
+        return mVideoOffsetUs;
+    }
+
+    /**
+     * @return the number of audio frames dropped to correct drift
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return the number of audio frames duplicated to correct drift
+     */
+    public long getDuplicatedFrames() {
+        return mDuplicatedFrames;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * A single decision made by a {@link BackpressureMonitor}, intended for telemetry.
+ */
+public class BackpressureEvent {
+
+    /**
+     * A frame was not sent to the encoder.
+     */
+    public static final int TYPE_FRAME_SKIPPED = 0;
+
+    /**
+     * The escalation level changed. See {@link #getLevel()}.
+     */
+    public static final int TYPE_LEVEL_CHANGED = 1;
+
+    /**
+     * The requested encoder bitrate changed. See {@link #getBitrate()}.
+     */
+    public static final int TYPE_BITRATE_CHANGED = 2;
+
+    /**
+     * The recording frame rate cap changed. See {@link #getFrameRate()}.
+     */
+    public static final int TYPE_FRAME_RATE_CHANGED = 3;
+
+    /**
+     * The decision was caused by swap time or queue depth crossing a threshold.
+     */
+    public static final int REASON_PRESSURE = 0;
+
+    /**
+     * The frame was dropped to honour the degraded frame rate cap.
+     */
+    public static final int REASON_FRAME_RATE_CAP = 1;
+
+    /**
+     * The decision undoes an earlier degradation after a calm period.
+     */
+    public static final int REASON_RECOVERY = 2;
+
+    private final int mType;
+
+    private final int mReason;
+
+    private final long mTimestampNs;
+
+    private final int mLevel;
+
+    private final long mSwapDurationNs;
+
+    private final int mQueueDepth;
+
+    private final int mBitrate;
+
+    private final int mFrameRate;
+
+    private final boolean mApplied;
+
+    BackpressureEvent(int type, int reason, long timestampNs, int level, long swapDurationNs,
+                      int queueDepth, int bitrate, int frameRate, boolean applied) {
+        mType = type;
+        mReason = reason;
+        mTimestampNs = timestampNs;
+        mLevel = level;
+        mSwapDurationNs = swapDurationNs;
+        mQueueDepth = queueDepth;
+        mBitrate = bitrate;
+        mFrameRate = frameRate;
+        mApplied = applied;
+    }
+
+    /**
+     * @return one of the <code>TYPE_</code> constants
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return one of the <code>REASON_</code> constants
+     */
+    public int getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the decision was made
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    /**
+     * @return the monitor level after the decision
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return the media surface swap time that triggered the decision, or 0 if not applicable
+     */
+    public long getSwapDurationNs() {
+        return mSwapDurationNs;
+    }
+
+    /**
+     * @return the last reported encoder queue depth, or -1 if unknown
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return the requested encoder bitrate after the decision
+     */
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * @return the effective recording frame rate after the decision
+     */
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @return true if bitrate changes reach the encoder, false if the current encoder does not
+     * support runtime parameter changes
+     */
+    public boolean isApplied() {
+        return mApplied;
+    }
+
+    @Override
+    public String toString() {
+        return "BackpressureEvent{type=" + mType + ", reason=" + mReason + ", level=" + mLevel
+                + ", swapNs=" + mSwapDurationNs + ", queueDepth=" + mQueueDepth
+                + ", bitrate=" + mBitrate + ", fps=" + mFrameRate + "}";
+    }
+}
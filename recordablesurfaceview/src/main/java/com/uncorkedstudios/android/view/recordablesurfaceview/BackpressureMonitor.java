@@ -0,0 +1,393 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.Arrays;
+
+/**
+ * Watches how long it takes to hand frames to the video encoder and decides when the recording
+ * pass should back off so the on-screen preview stays smooth.
+ * <p>
+ * Pressure is detected from the time spent in <code>eglSwapBuffers</code> on the media surface
+ * and, when the encoder reports it, the number of frames queued inside the encoder. The
+ * response escalates in two steps:
+ * <ol>
+ * <li>{@link #LEVEL_SKIPPING}: the frame after a pressured frame is not sent to the encoder.</li>
+ * <li>{@link #LEVEL_DEGRADED}: the encoder bitrate is lowered through the {@link EncoderControl}
+ * (if one is attached) and the recording frame rate is capped by decimation.</li>
+ * </ol>
+ * After enough calm frames the monitor steps back down one level at a time. Every decision is
+ * reported to the {@link Listener} as a {@link BackpressureEvent}.
+ * <p>
+ * All methods except {@link #reportQueueDepth(int)} are expected to be called from the render
+ * thread.
+ */
+public class BackpressureMonitor {
+
+    /**
+     * Frames are passed to the encoder untouched.
+     */
+    public static final int LEVEL_NORMAL = 0;
+
+    /**
+     * Frames following a pressured frame are skipped.
+     */
+    public static final int LEVEL_SKIPPING = 1;
+
+    /**
+     * Bitrate and frame rate are lowered in addition to skipping.
+     */
+    public static final int LEVEL_DEGRADED = 2;
+
+    /**
+     * Receives every decision made by the monitor. Called on the render thread.
+     */
+    public interface Listener {
+
+        void onBackpressureEvent(BackpressureEvent event);
+    }
+
+    /**
+     * Runtime hook into the encoder. Implemented by encoders that support changing parameters
+     * while running, e.g. through {@link android.media.MediaCodec#setParameters}.
+     */
+    public interface EncoderControl {
+
+        /**
+         * @param bitsPerSecond the new target video bitrate
+         */
+        void setVideoBitrate(int bitsPerSecond);
+    }
+
+    /**
+     * Configurable thresholds for the monitor. Defaults are tuned for a 30 fps recording.
+     */
+    public static class Thresholds {
+
+        private long mSwapTimeNs = 12_000_000L;
+
+        private int mQueueDepth = 4;
+
+        private int mPressuredFramesToDegrade = 15;
+
+        private int mDegradeWindowFrames = 60;
+
+        private int mCalmFramesToRecover = 90;
+
+        private float mBitrateStepFactor = 0.7f;
+
+        private int mMinBitrate = 1_000_000;
+
+        private int mDegradedFrameRate = 20;
+
+        /**
+         * @param nanos swap time on the media surface above which a frame counts as pressured
+         */
+        public Thresholds setSwapTimeNs(long nanos) {
+            mSwapTimeNs = nanos;
+            return this;
+        }
+
+        /**
+         * @param frames encoder queue depth above which a frame counts as pressured
+         */
+        public Thresholds setQueueDepth(int frames) {
+            mQueueDepth = frames;
+            return this;
+        }
+
+        /**
+         * @param frames   number of pressured frames within the window that escalates to
+         *                 {@link #LEVEL_DEGRADED}
+         * @param window   size of the sliding window in frames
+         */
+        public Thresholds setDegradeAfter(int frames, int window) {
+            mPressuredFramesToDegrade = frames;
+            mDegradeWindowFrames = window;
+            return this;
+        }
+
+        /**
+         * @param frames consecutive calm frames required before stepping back down a level
+         */
+        public Thresholds setCalmFramesToRecover(int frames) {
+            mCalmFramesToRecover = frames;
+            return this;
+        }
+
+        /**
+         * @param factor     multiplier applied to the bitrate on each degrade step (0..1)
+         * @param minBitrate the bitrate is never lowered below this value
+         */
+        public Thresholds setBitrateStep(float factor, int minBitrate) {
+            mBitrateStepFactor = factor;
+            mMinBitrate = minBitrate;
+            return this;
+        }
+
+        /**
+         * @param fps the frame rate cap applied while {@link #LEVEL_DEGRADED}
+         */
+        public Thresholds setDegradedFrameRate(int fps) {
+            mDegradedFrameRate = fps;
+            return this;
+        }
+    }
+
+    private final Thresholds mThresholds;
+
+    private Listener mListener;
+
+    private EncoderControl mEncoderControl;
+
+    private volatile int mQueueDepth = -1;
+
+    private int mLevel = LEVEL_NORMAL;
+
+    private boolean mSkipNext = false;
+
+    private int mCalmFrames = 0;
+
+    // ring of recent pressure flags used to count pressured frames in the degrade window
+    private boolean[] mWindow;
+
+    private int mWindowPos = 0;
+
+    private int mWindowPressured = 0;
+
+    private int mBaseBitrate = 0;
+
+    private int mBitrate = 0;
+
+    private int mBaseFrameRate = 0;
+
+    private long mMinFrameIntervalNs = 0;
+
+    private long mLastSubmittedNs = 0;
+
+    private long mSkippedFrames = 0;
+
+    /**
+     * Creates a monitor with default {@link Thresholds}.
+     */
+    public BackpressureMonitor() {
+        this(new Thresholds());
+    }
+
+    /**
+     * @param thresholds the thresholds to apply
+     */
+    public BackpressureMonitor(Thresholds thresholds) {
+        mThresholds = thresholds;
+        mWindow = new boolean[Math.max(1, thresholds.mDegradeWindowFrames)];
+    }
+
+    /**
+     * @param listener receives every decision, or null
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param control the encoder hook used to lower bitrate, or null if the encoder does not
+     *                support runtime changes
+     */
+    public void setEncoderControl(EncoderControl control) {
+        mEncoderControl = control;
+    }
+
+    /**
+     * Clears all state for a new recording.
+     *
+     * @param bitrate   the configured video bitrate
+     * @param frameRate the configured video frame rate
+     */
+    public void reset(int bitrate, int frameRate) {
+        mBaseBitrate = bitrate;
+        mBitrate = bitrate;
+        mBaseFrameRate = frameRate;
+        mMinFrameIntervalNs = 0;
+        mLastSubmittedNs = 0;
+        mLevel = LEVEL_NORMAL;
+        mSkipNext = false;
+        mCalmFrames = 0;
+        mSkippedFrames = 0;
+        mQueueDepth = -1;
+        mWindow = new boolean[Math.max(1, mThresholds.mDegradeWindowFrames)];
+        mWindowPos = 0;
+        mWindowPressured = 0;
+    }
+
+    /**
+     * Reports the number of frames currently queued inside the encoder. May be called from the
+     * encoder's output thread.
+     *
+     * @param frames the queue depth, or a negative value if unknown
+     */
+    public void reportQueueDepth(int frames) {
+        mQueueDepth = frames;
+    }
+
+    /**
+     * Asks whether the frame about to be drawn into the media surface should be dropped.
+     *
+     * @param nowNs the current time from {@link System#nanoTime()}
+     * @return true to skip the recording pass for this frame
+     */
+    public boolean shouldSkipFrame(long nowNs) {
+        boolean skip = false;
+        int reason = BackpressureEvent.REASON_PRESSURE;
+
+        if (mSkipNext) {
+            mSkipNext = false;
+            skip = true;
+        } else if (mMinFrameIntervalNs > 0 && mLastSubmittedNs != 0
+                && nowNs - mLastSubmittedNs < mMinFrameIntervalNs) {
+            skip = true;
+            reason = BackpressureEvent.REASON_FRAME_RATE_CAP;
+        }
+
+        if (skip) {
+            mSkippedFrames++;
+            emit(BackpressureEvent.TYPE_FRAME_SKIPPED, reason, nowNs, 0);
+        }
+        return skip;
+    }
+
+    /**
+     * Reports a frame that was sent to the encoder.
+     *
+     * @param nowNs          the time the swap finished, from {@link System#nanoTime()}
+     * @param swapDurationNs the time spent in <code>eglSwapBuffers</code> on the media surface
+     */
+    public void onFrameSubmitted(long nowNs, long swapDurationNs) {
+        mLastSubmittedNs = nowNs;
+
+        int depth = mQueueDepth;
+        boolean pressured = swapDurationNs > mThresholds.mSwapTimeNs
+                || (depth >= 0 && depth > mThresholds.mQueueDepth);
+
+        if (mWindow[mWindowPos]) {
+            mWindowPressured--;
+        }
+        mWindow[mWindowPos] = pressured;
+        if (pressured) {
+            mWindowPressured++;
+        }
+        mWindowPos = (mWindowPos + 1) % mWindow.length;
+
+        if (pressured) {
+            mCalmFrames = 0;
+            if (mLevel == LEVEL_NORMAL) {
+                setLevel(LEVEL_SKIPPING, nowNs, swapDurationNs);
+            }
+            if (mLevel == LEVEL_SKIPPING
+                    && mWindowPressured >= mThresholds.mPressuredFramesToDegrade) {
+                setLevel(LEVEL_DEGRADED, nowNs, swapDurationNs);
+            } else if (mLevel == LEVEL_DEGRADED
+                    && mWindowPressured >= mThresholds.mPressuredFramesToDegrade) {
+                // still saturated after degrading: take another bitrate step down
+                degradeBitrate(nowNs, swapDurationNs);
+            }
+            mSkipNext = true;
+        } else if (mLevel != LEVEL_NORMAL && ++mCalmFrames >= mThresholds.mCalmFramesToRecover) {
+            mCalmFrames = 0;
+            setLevel(mLevel - 1, nowNs, swapDurationNs);
+        }
+    }
+
+    /**
+     * @return the current escalation level
+     * @see #LEVEL_NORMAL
+     * @see #LEVEL_SKIPPING
+     * @see #LEVEL_DEGRADED
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return the number of frames skipped since the last {@link #reset(int, int)}
+     */
+    public long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * @return the bitrate currently requested from the encoder
+     */
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    private void setLevel(int level, long nowNs, long swapDurationNs) {
+        int previous = mLevel;
+        mLevel = level;
+        emit(BackpressureEvent.TYPE_LEVEL_CHANGED, level > previous
+                        ? BackpressureEvent.REASON_PRESSURE : BackpressureEvent.REASON_RECOVERY,
+                nowNs, swapDurationNs);
+
+        if (level == LEVEL_DEGRADED && previous < LEVEL_DEGRADED) {
+            degradeBitrate(nowNs, swapDurationNs);
+            int fps = Math.min(mThresholds.mDegradedFrameRate,
+                    mBaseFrameRate > 0 ? mBaseFrameRate : mThresholds.mDegradedFrameRate);
+            mMinFrameIntervalNs = fps > 0 ? 1_000_000_000L / fps : 0;
+            emit(BackpressureEvent.TYPE_FRAME_RATE_CHANGED, BackpressureEvent.REASON_PRESSURE,
+                    nowNs, swapDurationNs);
+        } else if (level < LEVEL_DEGRADED && previous == LEVEL_DEGRADED) {
+            mMinFrameIntervalNs = 0;
+            emit(BackpressureEvent.TYPE_FRAME_RATE_CHANGED, BackpressureEvent.REASON_RECOVERY,
+                    nowNs, swapDurationNs);
+            if (mBitrate != mBaseBitrate) {
+                applyBitrate(mBaseBitrate, BackpressureEvent.REASON_RECOVERY, nowNs,
+                        swapDurationNs);
+            }
+        }
+    }
+
+    private void degradeBitrate(long nowNs, long swapDurationNs) {
+        if (mBitrate <= 0) {
+            return;
+        }
+        int next = Math.max(mThresholds.mMinBitrate,
+                (int) (mBitrate * mThresholds.mBitrateStepFactor));
+        if (next != mBitrate) {
+            applyBitrate(next, BackpressureEvent.REASON_PRESSURE, nowNs, swapDurationNs);
+        }
+        // start a fresh window so one burst only costs one step
+        Arrays.fill(mWindow, false);
+        mWindowPressured = 0;
+    }
+
+    private void applyBitrate(int bitrate, int reason, long nowNs, long swapDurationNs) {
+        mBitrate = bitrate;
+        if (mEncoderControl != null) {
+            mEncoderControl.setVideoBitrate(bitrate);
+        }
+        emit(BackpressureEvent.TYPE_BITRATE_CHANGED, reason, nowNs, swapDurationNs);
+    }
+
+    private void emit(int type, int reason, long nowNs, long swapDurationNs) {
+        Listener listener = mListener;
+        if (listener != null) {
+            int fps = mMinFrameIntervalNs > 0
+                    ? (int) (1_000_000_000L / mMinFrameIntervalNs) : mBaseFrameRate;
+            listener.onBackpressureEvent(new BackpressureEvent(type, reason, nowNs, mLevel,
+                    swapDurationNs, mQueueDepth, mBitrate, fps,
+                    mEncoderControl != null));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.graphics.Bitmap;
+
+/**
+ * A static image, such as a watermark. Uploaded once, and again only after
+ * {@link #setBitmap(Bitmap)}.
+ */
+public class BitmapOverlayLayer extends OverlayLayer {
+
+    private volatile Bitmap mBitmap;
+
+    /**
+     * @param bitmap the image; must not be recycled while the layer is in use
+     */
+    public BitmapOverlayLayer(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    public BitmapOverlayLayer setBitmap(Bitmap bitmap) {
+        mBitmap = bitmap;
+        invalidate();
+        return this;
+    }
+
+    @Override
+    protected Bitmap rasterize() {
+        return mBitmap;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Decouples how often frames are captured from the rate they play back at, for time-lapse
+ * (capture slower than playback) and slow motion (capture faster than playback).
+ * <p>
+ * The mapper decides which rendered frames are captured and rewrites their timestamps so the
+ * recording plays at the playback rate. Time-lapse frames are captured on a fixed schedule and
+ * stamped by index, giving an exactly constant output rate; high frame rate frames are stamped by
+ * scaling their real capture time, since the render loop cannot hit an exact schedule.
+ * <p>
+ * Pure Java; all methods take the current time, so they can be driven by a fake clock. Not
+ * thread safe.
+ *
+ * @see RecorderConfig#setCaptureRate(double)
+ */
+public class CaptureRateMapper {
+
+    // the render loop polls at about 60 Hz; capture up to half a poll early instead of a poll late
+    private static final long MAX_TOLERANCE_NS = 8000000L;
+
+    private final double mCaptureRate;
+
+    private final int mPlaybackRate;
+
+    private final long mCaptureIntervalNs;
+
+    private final long mToleranceNs;
+
+    private boolean mStarted = false;
+
+    private long mFirstCaptureNs;
+
+    private long mNextCaptureNs;
+
+    private long mCapturedFrames = 0;
+
+    /**
+     * @param captureRate  frames captured per second of real time
+     * @param playbackRate frames per second of the recording
+     */
+    public CaptureRateMapper(double captureRate, int playbackRate) {
+        if (captureRate <= 0 || playbackRate <= 0) {
+            throw new IllegalArgumentException("Rates must be positive");
+        }
+        mCaptureRate = captureRate;
+        mPlaybackRate = playbackRate;
+        mCaptureIntervalNs = Math.round(1e9 / captureRate);
+        mToleranceNs = Math.min(mCaptureIntervalNs / 4, MAX_TOLERANCE_NS);
+    }
+
+    /**
+     * @return true if fewer frames are captured than played back
+     */
+    public boolean isTimeLapse() {
+        return mCaptureRate < mPlaybackRate;
+    }
+
+    /**
+     * @return true if more frames are captured than played back
+     */
+    public boolean isHighFrameRate() {
+        return mCaptureRate > mPlaybackRate;
+    }
+
+    /**
+     * @return how much faster than real time the recording plays, e.g. 150 for one frame every 5
+     * seconds played at 30 fps, or 0.25 for 120 fps played at 30 fps
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public double getSpeedFactor() {
+        return mPlaybackRate / mCaptureRate;
+    }
+
+    public long getCaptureIntervalNs() {
+        return mCaptureIntervalNs;
+    }
+
+    /**
+     * @param nowNs the current time
+     * @return true if a frame rendered now should be captured
+     */
+    public boolean shouldCapture(long nowNs) {
+        return !mStarted || nowNs >= mNextCaptureNs - mToleranceNs;
+    }
+
+    /**
+     * Records that a frame was captured and returns its presentation time in the recording.
+     *
+     * @param captureNs when the frame was captured
+     * @return the remapped presentation time, in the same time base as <code>captureNs</code>
+     */
+    public long onCaptured(long captureNs) {
+        if (!mStarted) {
+            mStarted = true;
+            mFirstCaptureNs = captureNs;
+            mNextCaptureNs = captureNs;
+        }
+        long presentationNs;
+        if (isTimeLapse()) {
+            presentationNs = mFirstCaptureNs + mCapturedFrames * 1000000000L / mPlaybackRate;
+        } else {
+            presentationNs = mFirstCaptureNs
+                    + Math.round((captureNs - mFirstCaptureNs) * mCaptureRate / mPlaybackRate);
+        }
+        mCapturedFrames++;
+
+        mNextCaptureNs += mCaptureIntervalNs;
+        if (mNextCaptureNs - mToleranceNs <= captureNs) {
+            // missed one or more ticks, e.g. while paused: resume the schedule from now
+            mNextCaptureNs = captureNs + mCaptureIntervalNs;
+        }
+        return presentationNs;
+    }
+
+    /**
+     * @return the number of frames captured since the last reset
+     */
+    public long getCapturedFrames() {
+        return mCapturedFrames;
+    }
+
+    /**
+     * Starts a new recording: the next frame is captured and becomes time zero.
+     */
+    public void reset() {
+        mStarted = false;
+        mCapturedFrames = 0;
+    }
+}
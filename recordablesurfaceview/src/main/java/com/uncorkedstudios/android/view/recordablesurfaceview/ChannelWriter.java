@@ -0,0 +1,403 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential file writer that coalesces small writes into large, aligned
+ * {@link FileChannel} writes performed on a dedicated I/O thread.
+ * <p>
+ * Callers copy data into a fixed pool of direct chunk buffers. Full chunks are queued to the
+ * I/O thread, which writes each one at a chunk-aligned file offset, preallocates file space
+ * ahead of the write position and syncs according to the fsync policy. The caller only blocks
+ * when every chunk in the pool is waiting on storage, which bounds memory use.
+ * <p>
+ * Not thread safe: one producer thread writes, the internal thread performs the I/O. Errors on
+ * the I/O thread are rethrown from the next call on the producer side.
+ */
+public class ChannelWriter implements Closeable {
+
+    /**
+     * Never fsync. Data reaches storage whenever the kernel flushes it.
+     */
+    public static final int FSYNC_NONE = 0;
+
+    /**
+     * Fsync once when the writer is closed.
+     */
+    public static final int FSYNC_ON_CLOSE = 1;
+
+    /**
+     * Fsync each time {@link Options#setFsyncIntervalBytes(long) a number of bytes} has been
+     * written, and on close.
+     */
+    public static final int FSYNC_PERIODIC = 2;
+
+    /**
+     * Reserves file space ahead of the write position.
+     */
+    public interface Preallocator {
+
+        /**
+         * Makes sure the byte range is backed by allocated storage.
+         */
+        void allocate(long offset, long length) throws IOException;
+    }
+
+    /**
+     * Tuning for a {@link ChannelWriter}.
+     */
+    public static class Options {
+
+        private int mChunkSize = 1 << 20;
+
+        private int mChunkCount = 4;
+
+        private long mPreallocateBytes = 16L << 20;
+
+        private int mFsyncPolicy = FSYNC_ON_CLOSE;
+
+        private long mFsyncIntervalBytes = 32L << 20;
+
+        /**
+         * @param bytes size of each write; rounded up to a multiple of 64 KiB. Defaults to 1 MiB
+         * @param count number of chunks in the pool. Defaults to 4
+         */
+        public Options setChunks(int bytes, int count) {
+            mChunkSize = Math.max(1, (bytes + 0xFFFF) >>> 16) << 16;
+            mChunkCount = Math.max(2, count);
+            return this;
+        }
+
+        /**
+         * @param bytes how far ahead of the write position to reserve file space, or 0 to
+         *              disable preallocation. Defaults to 16 MiB
+         */
+        public Options setPreallocateBytes(long bytes) {
+            mPreallocateBytes = bytes;
+            return this;
+        }
+
+        /**
+         * @param policy one of the <code>FSYNC_</code> constants. Defaults to
+         *               {@link #FSYNC_ON_CLOSE}
+         */
+        public Options setFsyncPolicy(int policy) {
+            mFsyncPolicy = policy;
+            return this;
+        }
+
+        /**
+         * @param bytes bytes between syncs for {@link #FSYNC_PERIODIC}. Defaults to 32 MiB
+         */
+        public Options setFsyncIntervalBytes(long bytes) {
+            mFsyncIntervalBytes = bytes;
+            return this;
+        }
+
+        public int getFsyncPolicy() {
+            return mFsyncPolicy;
+        }
+    }
+
+    private final FileChannel mChannel;
+
+    private final Preallocator mPreallocator;
+
+    private final Options mOptions;
+
+    private final BlockingQueue<Chunk> mFree;
+
+    private final BlockingQueue<Chunk> mPending;
+
+    private final Thread mThread;
+
+    // tells the I/O thread to exit; never written
+    private final Chunk mShutdownMarker = new Chunk(null);
+
+    private final Object mIdleLock = new Object();
+
+    private Chunk mCurrent;
+
+    private long mPosition;
+
+    private int mInFlight = 0;
+
+    private volatile IOException mError;
+
+    private volatile boolean mClosed = false;
+
+    private long mAllocatedEnd;
+
+    private long mUnsyncedBytes = 0;
+
+    private volatile long mWriteCount = 0;
+
+    private volatile long mMaxWriteLatencyNs = 0;
+
+    private volatile long mTotalWriteLatencyNs = 0;
+
+    /**
+     * @param channel     the channel to write to, positioned at 0
+     * @param preallocator reserves file space, or null to rely on the file system
+     * @param options     tuning options
+     */
+    public ChannelWriter(FileChannel channel, Preallocator preallocator, Options options) {
+        mChannel = channel;
+        mPreallocator = preallocator;
+        mOptions = options;
+        mFree = new ArrayBlockingQueue<>(options.mChunkCount);
+        mPending = new ArrayBlockingQueue<>(options.mChunkCount + 1);
+        for (int i = 0; i < options.mChunkCount; i++) {
+            mFree.add(new Chunk(ByteBuffer.allocateDirect(options.mChunkSize)));
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ioLoop();
+            }
+        }, ChannelWriter.class.getSimpleName());
+        mThread.start();
+    }
+
+    /**
+     * @return the number of bytes written so far, i.e. the file offset of the next byte
+     */
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * Appends the remaining bytes of <code>src</code>, advancing its position.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        checkError();
+        while (src.hasRemaining()) {
+            if (mCurrent == null) {
+                mCurrent = takeFree();
+                mCurrent.mOffset = mPosition;
+            }
+            ByteBuffer buffer = mCurrent.mBuffer;
+            int count = Math.min(src.remaining(), buffer.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + count);
+            buffer.put(src);
+            src.limit(limit);
+            mPosition += count;
+            if (!buffer.hasRemaining()) {
+                submitCurrent();
+            }
+        }
+    }
+
+    /**
+     * Overwrites already written bytes, e.g. to patch a header. Waits for queued writes first.
+     *
+     * @param position file offset to write at; must be below {@link #position()}
+     */
+    public void writeAt(long position, ByteBuffer src) throws IOException {
+        flush();
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+    }
+
+    /**
+     * Writes out buffered data and waits until the I/O thread is idle.
+     */
+    public void flush() throws IOException {
+        checkError();
+        if (mCurrent != null && mCurrent.mBuffer.position() > 0) {
+            submitCurrent();
+        }
+        synchronized (mIdleLock) {
+            while (mInFlight > 0 && mError == null) {
+                try {
+                    mIdleLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        checkError();
+    }
+
+    /**
+     * Flushes, syncs according to the fsync policy, trims preallocated space past the end of
+     * the data and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            flush();
+            if (mChannel.size() > mPosition) {
+                mChannel.truncate(mPosition);
+            }
+            if (mOptions.mFsyncPolicy != FSYNC_NONE) {
+                mChannel.force(true);
+            }
+        } finally {
+            mClosed = true;
+            mPending.offer(mShutdownMarker);
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mChannel.close();
+        }
+    }
+
+    /**
+     * @return the number of chunk writes performed
+     */
+    public long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * @return the longest single chunk write, in nanoseconds
+     */
+    public long getMaxWriteLatencyNs() {
+        return mMaxWriteLatencyNs;
+    }
+
+    /**
+     * @return the mean chunk write latency, in nanoseconds
+     */
+    public long getMeanWriteLatencyNs() {
+        long count = mWriteCount;
+        return count > 0 ? mTotalWriteLatencyNs / count : 0;
+    }
+
+    private Chunk takeFree() throws IOException {
+        try {
+            Chunk chunk;
+            // wake periodically so an I/O error does not leave the producer waiting forever
+            while ((chunk = mFree.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkError();
+            }
+            chunk.mBuffer.clear();
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void submitCurrent() {
+        Chunk chunk = mCurrent;
+        mCurrent = null;
+        chunk.mBuffer.flip();
+        synchronized (mIdleLock) {
+            mInFlight++;
+        }
+        mPending.offer(chunk);
+    }
+
+    private void ioLoop() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = mPending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (chunk == mShutdownMarker) {
+                return;
+            }
+            try {
+                if (mError == null) {
+                    writeChunk(chunk.mBuffer, chunk.mOffset);
+                }
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                mFree.offer(chunk);
+                synchronized (mIdleLock) {
+                    mInFlight--;
+                    mIdleLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writeChunk(ByteBuffer chunk, long offset) throws IOException {
+        long end = offset + chunk.remaining();
+        if (mPreallocator != null && mOptions.mPreallocateBytes > 0 && end > mAllocatedEnd) {
+            long from = Math.max(mAllocatedEnd, offset);
+            long length = end - from + mOptions.mPreallocateBytes;
+            mPreallocator.allocate(from, length);
+            mAllocatedEnd = from + length;
+        }
+
+        long start = System.nanoTime();
+        long position = offset;
+        while (chunk.hasRemaining()) {
+            position += mChannel.write(chunk, position);
+        }
+        long latency = System.nanoTime() - start;
+
+        mWriteCount++;
+        mTotalWriteLatencyNs += latency;
+        if (latency > mMaxWriteLatencyNs) {
+            mMaxWriteLatencyNs = latency;
+        }
+
+        if (mOptions.mFsyncPolicy == FSYNC_PERIODIC) {
+            mUnsyncedBytes += end - offset;
+            if (mUnsyncedBytes >= mOptions.mFsyncIntervalBytes) {
+                mChannel.force(false);
+                mUnsyncedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * A pooled buffer and the file offset its first byte belongs at.
+     */
+    private static final class Chunk {
+
+        final ByteBuffer mBuffer;
+
+        long mOffset;
+
+        Chunk(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+    }
+
+    private void checkError() throws IOException {
+        IOException error = mError;
+        if (error != null) {
+            throw new IOException("Write failed", error);
+        }
+        if (mClosed) {
+            throw new IOException("Writer is closed");
+        }
+    }
+}
@@ -0,0 +1,714 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MediaCodec} based recorder used by
+ * {@link RecordableSurfaceView#initRecorder(RecorderConfig)}.
+ * <p>
+ * The video encoder reads from the view's persistent input surface, exactly like the
+ * {@link android.media.MediaRecorder} path, and is drained on its own thread. Audio, if any, is
+ * handled by an {@link AudioPipeline}. The muxer is started once every expected track has
+ * reported its output format.
+ * <p>
+ * H.264 recordings are written by the library's {@link Mp4Muxer} through a
+ * {@link ChannelWriter}; other formats fall back to the platform {@link MediaMuxer}. Stream
+ * outputs are written as fragmented MP4 by {@link FragmentedMp4Muxer}.
+ * <p>
+ * Encoded video is also delivered to any {@link EncodedFrameSink}s without copying; an output
+ * buffer returns to the encoder once the muxer and every sink have released it.
+ */
+class CodecRecorder implements BackpressureMonitor.EncoderControl, EncodedFrame.Owner {
+
+    private static final String TAG = CodecRecorder.class.getSimpleName();
+
+    private static final long TIMEOUT_US = 10000;
+
+    private static final int MAX_EOS_WAITS = 100;
+
+    // how long stop() waits for sinks to release frames before tearing down the encoder
+    private static final long SINK_RELEASE_TIMEOUT_MS = 1000;
+
+    private final MediaCodec mVideoCodec;
+
+    private final YuvEncoderInput mBufferInput;
+
+    private final SampleMuxer mMuxer;
+
+    private final AudioPipeline mAudioPipeline;
+
+    private final List<EncodedFrameSink> mSinks;
+
+    private final Object mSinkLock = new Object();
+
+    private int mFramesHeld = 0;
+
+    private long mFramesDelivered = 0;
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private final Object mMuxerLock = new Object();
+
+    private final int mTracksExpected;
+
+    private int mTracksAdded = 0;
+
+    private boolean mMuxerStarted = false;
+
+    private int mVideoTrack = -1;
+
+    private long mSamplesWritten = 0;
+
+    private boolean mWriteFailed = false;
+
+    private final AtomicInteger mFramesInFlight = new AtomicInteger(0);
+
+    private final Object mInFlightLock = new Object();
+
+    private volatile BackpressureMonitor mBackpressureMonitor;
+
+    private Thread mDrainThread;
+
+    private volatile boolean mStopping = false;
+
+    private boolean mStarted = false;
+
+    private final KeyframeIndex.Writer mKeyframeIndex;
+
+    private volatile boolean mKeyframeIndexFailed = false;
+
+    private boolean mIndexedFirstFrame = false;
+
+    private final int mThumbnailWidth;
+
+    private final int mThumbnailHeight;
+
+    private final long mThumbnailIntervalNs;
+
+    private long mNextThumbnailNs = 0;
+
+    CodecRecorder(RecorderConfig config, Surface inputSurface) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(config.getVideoMimeType(),
+                config.getWidth(), config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getVideoBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getIFrameInterval());
+        if (config.hasCaptureRateMapping()) {
+            if (config.getAudioSource() != RecorderConfig.AUDIO_SOURCE_NONE) {
+                throw new IllegalArgumentException("Audio cannot be recorded when the capture"
+                        + " rate differs from the frame rate");
+            }
+            // the view remaps timestamps itself; these only tune the encoder
+            format.setFloat(MediaFormat.KEY_CAPTURE_RATE, (float) config.getCaptureRate());
+            if (config.getCaptureRate() > config.getFrameRate()) {
+                format.setInteger(MediaFormat.KEY_OPERATING_RATE,
+                        (int) Math.ceil(config.getCaptureRate()));
+            }
+        }
+        if (config.getRepeatPreviousFrameAfterUs() > 0) {
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER,
+                    config.getRepeatPreviousFrameAfterUs());
+        }
+
+        MediaCodec videoCodec = null;
+        YuvEncoderInput bufferInput = null;
+        SampleMuxer muxer = null;
+        AudioPipeline audioPipeline = null;
+        KeyframeIndex.Writer keyframeIndex = null;
+        try {
+            if (config.getVideoInput() != RecorderConfig.VIDEO_INPUT_BUFFER) {
+                try {
+                    videoCodec = MediaCodec.createEncoderByType(config.getVideoMimeType());
+                    videoCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    videoCodec.setInputSurface(inputSurface);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    if (config.getVideoInput() == RecorderConfig.VIDEO_INPUT_SURFACE) {
+                        throw e;
+                    }
+                    Log.w(TAG, "Encoder rejected surface input, using ByteBuffer input", e);
+                    if (videoCodec != null) {
+                        videoCodec.release();
+                        videoCodec = null;
+                    }
+                }
+            }
+            if (videoCodec == null) {
+                videoCodec = MediaCodec.createEncoderByType(config.getVideoMimeType());
+                int colorFormat = YuvEncoderInput.chooseColorFormat(videoCodec,
+                        config.getVideoMimeType());
+                bufferInput = new YuvEncoderInput(this, videoCodec, colorFormat,
+                        config.getWidth(), config.getHeight());
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+                videoCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+
+            muxer = config.hasOutput() ? createMuxer(config) : null;
+
+            if (muxer != null && config.getAudioSource() != RecorderConfig.AUDIO_SOURCE_NONE) {
+                audioPipeline = new AudioPipeline(config, this);
+            }
+            if (config.getKeyframeIndexFile() != null) {
+                keyframeIndex = new KeyframeIndex.Writer(config.getKeyframeIndexFile(),
+                        config.getThumbnailWidth(), config.getThumbnailHeight());
+            }
+        } catch (IOException | RuntimeException e) {
+            if (videoCodec != null) {
+                videoCodec.release();
+            }
+            if (muxer != null) {
+                muxer.release();
+            }
+            if (audioPipeline != null) {
+                audioPipeline.release();
+            }
+            throw e;
+        }
+
+        mVideoCodec = videoCodec;
+        mBufferInput = bufferInput;
+        mMuxer = muxer;
+        mAudioPipeline = audioPipeline;
+        mTracksExpected = audioPipeline != null ? 2 : 1;
+        mSinks = new ArrayList<>(config.getEncodedFrameSinks());
+        mKeyframeIndex = keyframeIndex;
+        boolean thumbnails = keyframeIndex != null && config.getThumbnailWidth() > 0
+                && config.getThumbnailHeight() > 0;
+        mThumbnailWidth = config.getThumbnailWidth();
+        mThumbnailHeight = config.getThumbnailHeight();
+        mThumbnailIntervalNs = !thumbnails ? 0
+                : Math.max(1, config.getIFrameInterval()) * 1000000000L;
+    }
+
+    private static SampleMuxer createMuxer(RecorderConfig config) throws IOException {
+        if (config.getOutputChannel() != null) {
+            if (!Mp4Track.isSupported(config.getVideoMimeType())) {
+                throw new IOException("Stream output supports H.264 only");
+            }
+            return new FragmentedMp4Muxer(config.getOutputChannel(),
+                    config.getFragmentDurationUs(), config.getOrientationHint());
+        }
+        if (config.isUsePlatformMuxer() || !Mp4Track.isSupported(config.getVideoMimeType())) {
+            MediaMuxer muxer;
+            if (config.getOutputFile() != null) {
+                muxer = new MediaMuxer(config.getOutputFile().getPath(),
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                muxer = new MediaMuxer(config.getOutputFileDescriptor(),
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            } else {
+                throw new IOException("Platform muxer requires API 26 to write to a descriptor");
+            }
+            return new PlatformMuxer(muxer, config.getOrientationHint());
+        }
+
+        FileChannel channel;
+        FileChannel readChannel;
+        FileDescriptor fd;
+        if (config.getOutputFile() != null) {
+            RandomAccessFile file = new RandomAccessFile(config.getOutputFile(), "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            readChannel = channel;
+            fd = file.getFD();
+        } else {
+            // the caller's descriptor stays open; the writer and the muxer close duplicates
+            fd = dup(config.getOutputFileDescriptor());
+            channel = new FileOutputStream(fd).getChannel();
+            readChannel = null;
+            try {
+                channel.truncate(0);
+                // the descriptor must be open for reading if moov outgrows its reservation
+                readChannel = config.isFaststart()
+                        ? new FileInputStream(dup(fd)).getChannel() : null;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        ChannelWriter writer = new ChannelWriter(channel, new FallocatePreallocator(fd),
+                config.getWriterOptions());
+        if (!config.isFaststart()) {
+            return new Mp4Muxer(writer, config.getOrientationHint());
+        }
+        int audioSampleRate = config.getAudioSource() != RecorderConfig.AUDIO_SOURCE_NONE
+                ? config.getAudioSampleRate() : 0;
+        long reserve = Mp4Muxer.estimateMoovSize(config.getExpectedDurationMs(),
+                config.getFrameRate(), audioSampleRate);
+        return new Mp4Muxer(writer, readChannel, reserve, config.getOrientationHint());
+    }
+
+    private static FileDescriptor dup(FileDescriptor fd) throws IOException {
+        try {
+            return Os.dup(fd);
+        } catch (ErrnoException e) {
+            throw new IOException("Could not duplicate the output descriptor", e);
+        }
+    }
+
+    /**
+     * @return where the render thread reads converted frames into when the encoder takes
+     * ByteBuffer input, or null if frames go through the input surface
+     */
+    YuvEncoderInput getBufferInput() {
+        return mBufferInput;
+    }
+
+    void setBackpressureMonitor(BackpressureMonitor monitor) {
+        mBackpressureMonitor = monitor;
+    }
+
+    /**
+     * Starts the encoders. Frames drawn into the input surface after this call are recorded.
+     *
+     * @throws IllegalStateException if an encoder fails to start
+     */
+    void start() {
+        long startTimeNs = System.nanoTime();
+        mVideoCodec.start();
+        if (mBufferInput != null) {
+            mBufferInput.onCodecStarted();
+        }
+        mStarted = true;
+        mDrainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainVideo();
+            }
+        }, TAG);
+        mDrainThread.start();
+        if (mAudioPipeline != null) {
+            mAudioPipeline.start(startTimeNs);
+        }
+    }
+
+    /**
+     * Flushes both encoders and finalizes the file.
+     *
+     * @return true if a playable file was written
+     */
+    boolean stop() {
+        boolean success = true;
+        mStopping = true;
+        if (mBufferInput != null) {
+            success = mBufferInput.signalEndOfStream();
+        } else {
+            try {
+                mVideoCodec.signalEndOfInputStream();
+            } catch (IllegalStateException e) {
+                success = false;
+            }
+        }
+        if (mAudioPipeline != null) {
+            mAudioPipeline.stop();
+        }
+        synchronized (mMuxerLock) {
+            mMuxerLock.notifyAll();
+        }
+        if (mDrainThread != null) {
+            try {
+                mDrainThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        awaitSinkReleases();
+        if (mMuxer == null) {
+            release();
+            return success && mFramesDelivered > 0;
+        }
+        synchronized (mMuxerLock) {
+            try {
+                if (mMuxerStarted && mSamplesWritten > 0) {
+                    mMuxer.stop();
+                } else {
+                    success = false;
+                }
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Could not finalize recording", e);
+                success = false;
+            }
+            success &= !mWriteFailed;
+        }
+        closeKeyframeIndex(mMuxer instanceof Mp4Muxer
+                ? ((Mp4Muxer) mMuxer).getMediaDataShift() : 0);
+        release();
+        return success;
+    }
+
+    /**
+     * Releases all resources. Safe to call on a recorder that was never started.
+     */
+    void release() {
+        if (!mStarted && mAudioPipeline != null) {
+            mAudioPipeline.release();
+        }
+        mVideoCodec.release();
+        if (mMuxer != null) {
+            mMuxer.release();
+        }
+        closeKeyframeIndex(0);
+    }
+
+    private void closeKeyframeIndex(long offsetShift) {
+        if (mKeyframeIndex != null) {
+            try {
+                mKeyframeIndex.close(offsetShift);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not finalize key frame index", e);
+            }
+        }
+    }
+
+    /**
+     * Called on the render thread for each recorded frame.
+     *
+     * @return true if a thumbnail should be captured from this frame
+     */
+    boolean isThumbnailDue(long frameTimeNs) {
+        if (mThumbnailIntervalNs == 0 || mKeyframeIndexFailed
+                || frameTimeNs < mNextThumbnailNs) {
+            return false;
+        }
+        mNextThumbnailNs = frameTimeNs + mThumbnailIntervalNs;
+        return true;
+    }
+
+    int getThumbnailWidth() {
+        return mThumbnailWidth;
+    }
+
+    int getThumbnailHeight() {
+        return mThumbnailHeight;
+    }
+
+    /**
+     * Adds a thumbnail read back on the render thread to the key frame index.
+     *
+     * @param presentationTimeNs the presentation time the frame was submitted with
+     * @param pixels             RGBA pixels of the configured thumbnail size, bottom row first
+     */
+    void addThumbnail(long presentationTimeNs, ByteBuffer pixels) {
+        if (mKeyframeIndexFailed) {
+            return;
+        }
+        try {
+            mKeyframeIndex.addThumbnail(presentationTimeNs / 1000, pixels, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write thumbnail, key frame index disabled", e);
+            mKeyframeIndexFailed = true;
+        }
+    }
+
+    /**
+     * Records a video sample in the key frame index.
+     *
+     * @param offset where the sample was written, or -1 if not known
+     */
+    private void indexSample(MediaCodec.BufferInfo info, long offset, int size) {
+        if (mKeyframeIndex == null || mKeyframeIndexFailed) {
+            return;
+        }
+        if (!mIndexedFirstFrame) {
+            mIndexedFirstFrame = true;
+            mKeyframeIndex.setTimeBaseUs(info.presentationTimeUs);
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+            return;
+        }
+        try {
+            mKeyframeIndex.addKeyframe(info.presentationTimeUs, offset, size);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write key frame index", e);
+            mKeyframeIndexFailed = true;
+        }
+    }
+
+    /**
+     * Called on the render thread after a frame has been swapped into the input surface.
+     */
+    void onFrameSubmitted() {
+        int inFlight = mFramesInFlight.incrementAndGet();
+        BackpressureMonitor monitor = mBackpressureMonitor;
+        if (monitor != null) {
+            monitor.reportQueueDepth(inFlight);
+        }
+    }
+
+    /**
+     * Blocks until the encoder holds at most <code>maxFrames</code> submitted frames that have
+     * not come out yet. Used to render offline exactly as fast as the encoder consumes frames.
+     *
+     * @param maxFrames  the queue depth to wait for
+     * @param timeoutMs  how long to wait at most
+     * @return false if the encoder did not catch up in time
+     */
+    boolean awaitFramesInFlight(int maxFrames, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mInFlightLock) {
+            while (mFramesInFlight.get() > maxFrames) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !mDrainThread.isAlive()) {
+                    return false;
+                }
+                mInFlightLock.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Producer side of the app audio mix.
+     *
+     * @return the number of samples accepted
+     */
+    int writeAppAudio(short[] pcm, int offset, int length) {
+        return mAudioPipeline != null ? mAudioPipeline.writeAppAudio(pcm, offset, length) : 0;
+    }
+
+    @Override
+    public void setVideoBitrate(int bitsPerSecond) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitsPerSecond);
+        try {
+            mVideoCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not change bitrate", e);
+        }
+    }
+
+    /**
+     * @return the A/V drift monitor, or null if audio is not captured from a device
+     */
+    AvSyncMonitor getAvSyncMonitor() {
+        return mAudioPipeline != null ? mAudioPipeline.getAvSyncMonitor() : null;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        try {
+            mVideoCodec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException e) {
+            // the encoder was already torn down; the buffer went with it
+        }
+        synchronized (mSinkLock) {
+            mFramesHeld--;
+            mSinkLock.notifyAll();
+        }
+    }
+
+    private void awaitSinkReleases() {
+        long deadline = System.currentTimeMillis() + SINK_RELEASE_TIMEOUT_MS;
+        synchronized (mSinkLock) {
+            long remaining;
+            while (mFramesHeld > 0
+                    && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    mSinkLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (mFramesHeld > 0) {
+                Log.w(TAG, mFramesHeld + " encoded frames not released by sinks");
+            }
+        }
+    }
+
+    int addTrack(MediaFormat format) {
+        synchronized (mMuxerLock) {
+            int track = mMuxer.addTrack(format);
+            if (++mTracksAdded == mTracksExpected) {
+                try {
+                    mMuxer.start();
+                    mMuxerStarted = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not start muxer", e);
+                    mWriteFailed = true;
+                }
+                mMuxerLock.notifyAll();
+            }
+            return track;
+        }
+    }
+
+    /**
+     * Writes an encoded sample once the muxer is running.
+     *
+     * @param wait if true, blocks until the muxer has started; otherwise samples that arrive
+     *             before then are dropped
+     */
+    void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info,
+                         boolean wait) {
+        synchronized (mMuxerLock) {
+            while (wait && !mMuxerStarted && !mStopping && !mWriteFailed) {
+                try {
+                    mMuxerLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (mMuxerStarted && !mWriteFailed) {
+                try {
+                    mMuxer.writeSampleData(track, buffer, info);
+                    mSamplesWritten++;
+                    if (track == mVideoTrack) {
+                        if (mMuxer instanceof Mp4Muxer) {
+                            Mp4Muxer muxer = (Mp4Muxer) mMuxer;
+                            indexSample(info, muxer.getLastSampleOffset(),
+                                    muxer.getLastSampleSize());
+                        } else {
+                            indexSample(info, -1, info.size);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write sample", e);
+                    mWriteFailed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands an encoder output buffer to the muxer and the sinks, releasing it back to the
+     * encoder once all of them are done.
+     */
+    private void deliverFrame(int index, ByteBuffer output) {
+        if (mMuxer == null) {
+            indexSample(mBufferInfo, -1, mBufferInfo.size);
+        }
+        if (mSinks.isEmpty()) {
+            writeSampleData(mVideoTrack, output, mBufferInfo, true);
+            mVideoCodec.releaseOutputBuffer(index, false);
+            return;
+        }
+
+        // sinks get their own view: the muxer moves position and limit of the codec buffer
+        ByteBuffer view = output.duplicate();
+        view.limit(mBufferInfo.offset + mBufferInfo.size);
+        view.position(mBufferInfo.offset);
+        view = view.slice().asReadOnlyBuffer();
+
+        synchronized (mSinkLock) {
+            mFramesHeld++;
+        }
+        EncodedFrame.Buffer buffer = new EncodedFrame.Buffer(this, index, mSinks.size() + 1);
+        if (mMuxer != null) {
+            writeSampleData(mVideoTrack, output, mBufferInfo, true);
+        }
+        long presentationTimeUs = mBufferInfo.presentationTimeUs;
+        int flags = mBufferInfo.flags;
+        for (EncodedFrameSink sink : mSinks) {
+            sink.onEncodedFrame(new EncodedFrame(buffer, view.duplicate(), presentationTimeUs,
+                    flags));
+        }
+        mFramesDelivered++;
+        buffer.release();
+    }
+
+    /**
+     * Takes an encoded frame off the in-flight count. Frames the encoder repeats on its own
+     * were never counted in, so the count stops at zero instead of going negative.
+     *
+     * @return the frames still in flight
+     */
+    private int countFrameOut() {
+        while (true) {
+            int inFlight = mFramesInFlight.get();
+            int next = Math.max(0, inFlight - 1);
+            if (mFramesInFlight.compareAndSet(inFlight, next)) {
+                return next;
+            }
+        }
+    }
+
+    private void drainVideo() {
+        int idle = 0;
+        while (true) {
+            int index;
+            try {
+                index = mVideoCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_US);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Video encoder failed", e);
+                return;
+            }
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (mStopping && ++idle > MAX_EOS_WAITS) {
+                    Log.w(TAG, "Timed out waiting for end of video stream");
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = mVideoCodec.getOutputFormat();
+                if (mMuxer != null) {
+                    mVideoTrack = addTrack(format);
+                }
+                for (EncodedFrameSink sink : mSinks) {
+                    sink.onCodecConfig(format);
+                }
+            } else if (index >= 0) {
+                ByteBuffer output = mVideoCodec.getOutputBuffer(index);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    mBufferInfo.size = 0;
+                }
+                boolean endOfStream =
+                        (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (mBufferInfo.size > 0) {
+                    int inFlight = countFrameOut();
+                    synchronized (mInFlightLock) {
+                        mInFlightLock.notifyAll();
+                    }
+                    BackpressureMonitor monitor = mBackpressureMonitor;
+                    if (monitor != null) {
+                        monitor.reportQueueDepth(inFlight);
+                    }
+                    deliverFrame(index, output);
+                } else {
+                    mVideoCodec.releaseOutputBuffer(index, false);
+                }
+                if (endOfStream) {
+                    for (EncodedFrameSink sink : mSinks) {
+                        sink.onEndOfStream();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
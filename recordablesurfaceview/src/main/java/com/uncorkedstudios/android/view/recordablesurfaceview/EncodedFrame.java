@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded access unit handed to an {@link EncodedFrameSink}, backed directly by the
+ * encoder's output buffer.
+ *
+ * @see EncodedFrameSink
+ */
+public final class EncodedFrame {
+
+    /**
+     * Returns an encoder output buffer once its last reference is released.
+     */
+    interface Owner {
+
+        void releaseOutputBuffer(int index);
+    }
+
+    /**
+     * Reference count shared by all consumers of one encoder output buffer.
+     */
+    static final class Buffer {
+
+        private final Owner mOwner;
+
+        private final int mIndex;
+
+        private final AtomicInteger mReferences;
+
+        Buffer(Owner owner, int index, int references) {
+            mOwner = owner;
+            mIndex = index;
+            mReferences = new AtomicInteger(references);
+        }
+
+        void release() {
+            if (mReferences.decrementAndGet() == 0) {
+                mOwner.releaseOutputBuffer(mIndex);
+            }
+        }
+    }
+
+    private final Buffer mBuffer;
+
+    private final ByteBuffer mData;
+
+    private final long mPresentationTimeUs;
+
+    private final int mFlags;
+
+    private final AtomicBoolean mReleased = new AtomicBoolean(false);
+
+    EncodedFrame(Buffer buffer, ByteBuffer data, long presentationTimeUs, int flags) {
+        mBuffer = buffer;
+        mData = data;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+    }
+
+    /**
+     * @return a read-only view of the encoded data, positioned at its first byte. Invalid after
+     * {@link #release()}
+     */
+    public ByteBuffer getData() {
+        return mData;
+    }
+
+    /**
+     * @return the presentation time in microseconds
+     */
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    /**
+     * @return the {@link MediaCodec} buffer flags
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return true if this frame can be decoded on its own
+     */
+    public boolean isKeyFrame() {
+        return (mFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * Gives this consumer's reference back. Safe to call from any thread; calls after the first
+     * are ignored.
+     */
+    public void release() {
+        if (mReleased.compareAndSet(false, true)) {
+            mBuffer.release();
+        }
+    }
+}
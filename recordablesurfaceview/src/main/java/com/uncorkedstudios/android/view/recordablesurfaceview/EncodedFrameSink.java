@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaFormat;
+
+/**
+ * Receives encoded video straight from the encoder, e.g. to feed an RTP or WebRTC style
+ * transport. Registered with {@link RecorderConfig#addEncodedFrameSink(EncodedFrameSink)},
+ * alongside a file or stream output or instead of one.
+ * <p>
+ * <strong>Ordering:</strong> all callbacks are made on the encoder's output thread, one at a
+ * time. {@link #onCodecConfig(MediaFormat)} comes first, frames follow in decode order, and
+ * {@link #onEndOfStream()} comes last, once per recording.
+ * <p>
+ * <strong>Zero copy and release:</strong> {@link EncodedFrame#getData()} is a read-only view
+ * of the encoder's own output buffer. The buffer goes back to the encoder only after every
+ * consumer has called {@link EncodedFrame#release()}, so sinks must release each frame exactly
+ * once, as soon as they are done with it, and must not touch the data afterwards.
+ * <p>
+ * <strong>Back-pressure:</strong> the encoder has a small, fixed number of output buffers.
+ * Holding frames stalls the encoder, which in turn makes the recording pass on the render
+ * thread slower; a {@link BackpressureMonitor} will then start skipping frames. Sinks that
+ * queue frames for a slow network should copy the data and release immediately, or drop.
+ * Callbacks must not block for long, as they delay delivery to the other consumers.
+ */
+public interface EncodedFrameSink {
+
+    /**
+     * Called when the encoder's output format is known. For H.264 the format carries the SPS
+     * and PPS as <code>csd-0</code> and <code>csd-1</code>; for HEVC <code>csd-0</code> holds
+     * VPS, SPS and PPS. All are in Annex B format.
+     *
+     * @param format the encoder output format
+     */
+    void onCodecConfig(MediaFormat format);
+
+    /**
+     * Called for each encoded access unit, in Annex B format.
+     *
+     * @param frame the frame; must be released exactly once
+     */
+    void onEncodedFrame(EncodedFrame frame);
+
+    /**
+     * Called after the last frame. Frames still held at this point must be released promptly;
+     * the encoder is torn down after a short grace period, invalidating their data.
+     */
+    void onEndOfStream();
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * Reserves file space with <code>posix_fallocate</code>, so that the file system allocates
+ * extents ahead of the writer instead of on every write.
+ * <p>
+ * File systems that do not support it are detected on the first call, after which
+ * preallocation is skipped.
+ */
+class FallocatePreallocator implements ChannelWriter.Preallocator {
+
+    private static final String TAG = FallocatePreallocator.class.getSimpleName();
+
+    private final FileDescriptor mFileDescriptor;
+
+    private boolean mSupported = true;
+
+    FallocatePreallocator(FileDescriptor fileDescriptor) {
+        mFileDescriptor = fileDescriptor;
+    }
+
+    @Override
+    public void allocate(long offset, long length) throws IOException {
+        if (!mSupported) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(mFileDescriptor, offset, length);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Preallocation unavailable, continuing without it", e);
+            mSupported = false;
+        }
+    }
+}
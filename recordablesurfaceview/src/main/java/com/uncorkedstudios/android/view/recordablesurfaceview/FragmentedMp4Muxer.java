@@ -0,0 +1,424 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fragmented MP4 writer for non-seekable outputs such as pipes, sockets and upload streams.
+ * <p>
+ * An init segment (<code>ftyp</code> + <code>moov</code> with <code>mvex</code>) is written
+ * when the muxer starts, followed by self-contained <code>moof</code> + <code>mdat</code> pairs,
+ * so a consumer can play or upload the file while it is still being recorded. When a video
+ * track is present, a fragment is cut at the first key frame after the fragment duration has
+ * elapsed, so every fragment starts decodable.
+ * <p>
+ * Encoder buffers must go back to the codec promptly, so samples are copied once into
+ * per-track fragment buffers and the fragment is then written with a single gathering write,
+ * without further copies. With a fragment duration of 0, every sample is written as its own
+ * fragment as soon as the next sample of its track gives its duration.
+ * <p>
+ * The channel is not closed by {@link #stop()}; the caller owns it.
+ */
+class FragmentedMp4Muxer implements SampleMuxer {
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final WritableByteChannel mChannel;
+
+    private final long mFragmentDurationUs;
+
+    private final int mOrientationHint;
+
+    private final List<Mp4Track> mTracks = new ArrayList<>();
+
+    private final List<Fragment> mFragments = new ArrayList<>();
+
+    private final Mp4BoxWriter mBoxes = new Mp4BoxWriter(4096);
+
+    // moof plus one payload per track, reused for every gathering write
+    private ByteBuffer[] mGather = new ByteBuffer[1];
+
+    private int mGatherCount = 0;
+
+    private int mVideoTrack = -1;
+
+    private int mSequence = 0;
+
+    private long mFragmentStartUs = -1;
+
+    private long mStreamStartUs = -1;
+
+    /**
+     * @param channel            destination of the stream
+     * @param fragmentDurationUs target fragment length; 0 writes each sample as a fragment
+     * @param orientationHint    rotation of the video track (0, 90, 180 or 270)
+     */
+    FragmentedMp4Muxer(WritableByteChannel channel, long fragmentDurationUs,
+                       int orientationHint) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+        mOrientationHint = orientationHint;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return addTrack(Mp4Track.fromFormat(mTracks.size() + 1, format));
+    }
+
+    /**
+     * @param track a track whose id is one more than the number of tracks added so far
+     */
+    int addTrack(Mp4Track track) {
+        mTracks.add(track);
+        mFragments.add(new Fragment());
+        if (track.isVideo() && mVideoTrack < 0) {
+            mVideoTrack = mTracks.size() - 1;
+        }
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mBoxes.reset();
+        int ftyp = mBoxes.start("ftyp");
+        mBoxes.fourcc("iso5").u32(0x200);
+        mBoxes.fourcc("iso5").fourcc("iso6").fourcc("avc1").fourcc("mp41");
+        mBoxes.end(ftyp);
+
+        int moov = mBoxes.start("moov");
+        Mp4Muxer.writeMvhd(mBoxes, 0, mTracks.size() + 1);
+        for (Mp4Track track : mTracks) {
+            track.writeEmptyTrak(mBoxes, mOrientationHint);
+        }
+        int mvex = mBoxes.start("mvex");
+        for (Mp4Track track : mTracks) {
+            int trex = mBoxes.startFull("trex", 0, 0);
+            mBoxes.u32(track.getTrackId()).u32(1).u32(0).u32(0).u32(0);
+            mBoxes.end(trex);
+        }
+        mBoxes.end(mvex);
+        mBoxes.end(moov);
+
+        writeFully(mBoxes.asBuffer());
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        writeSample(track, buffer, info.offset, info.size, info.presentationTimeUs,
+                (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    /**
+     * {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)} with the fields of the
+     * buffer info passed separately.
+     */
+    void writeSample(int track, ByteBuffer buffer, int offset, int size, long timeUs,
+                     boolean keyFrame) throws IOException {
+        Mp4Track mp4Track = mTracks.get(track);
+        Fragment fragment = mFragments.get(track);
+        boolean sync = !mp4Track.isVideo() || keyFrame;
+
+        if (mStreamStartUs < 0) {
+            // decode times of all tracks count from the first sample, keeping them in sync
+            mStreamStartUs = timeUs;
+        }
+
+        buffer.limit(offset + size);
+        buffer.position(offset);
+
+        if (mFragmentDurationUs <= 0) {
+            // the pending sample's duration is known now
+            if (fragment.mSampleCount > 0) {
+                fragment.mEndTimeUs = timeUs;
+                flush(track);
+            }
+        } else {
+            boolean cutPoint = mVideoTrack < 0 || (track == mVideoTrack && sync);
+            if (cutPoint && mFragmentStartUs >= 0
+                    && timeUs - mFragmentStartUs >= mFragmentDurationUs) {
+                fragment.mEndTimeUs = timeUs;
+                flush(-1);
+            }
+            if (mFragmentStartUs < 0) {
+                mFragmentStartUs = timeUs;
+            }
+        }
+
+        int stored = mp4Track.isVideo() ? lengthPrefixedSize(buffer) : buffer.remaining();
+        ByteBuffer payload = fragment.reserve(stored);
+        if (mp4Track.isVideo()) {
+            copyLengthPrefixed(buffer, payload);
+        } else {
+            payload.put(buffer);
+        }
+        fragment.addSample(stored, timeUs, sync);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        flush(-1);
+    }
+
+    @Override
+    public void release() {
+        mFragments.clear();
+    }
+
+    /**
+     * Writes pending samples as one <code>moof</code> + <code>mdat</code>.
+     *
+     * @param track the only track to write, or -1 for all
+     */
+    private void flush(int track) throws IOException {
+        long payloadSize = 0;
+        for (int t = 0; t < mFragments.size(); t++) {
+            if (isFlushed(t, track)) {
+                payloadSize += mFragments.get(t).mPayload.position();
+            }
+        }
+        if (payloadSize == 0) {
+            return;
+        }
+
+        writeMoof(payloadSize, track);
+
+        if (mGather.length < mFragments.size() + 1) {
+            mGather = new ByteBuffer[mFragments.size() + 1];
+        }
+        mGatherCount = 0;
+        mGather[mGatherCount++] = mBoxes.asBuffer();
+        for (int t = 0; t < mFragments.size(); t++) {
+            if (isFlushed(t, track)) {
+                Fragment fragment = mFragments.get(t);
+                fragment.mPayload.flip();
+                mGather[mGatherCount++] = fragment.mPayload;
+            }
+        }
+        gatherWrite();
+
+        for (int t = 0; t < mFragments.size(); t++) {
+            if (isFlushed(t, track)) {
+                mFragments.get(t).clear();
+            }
+        }
+        Arrays.fill(mGather, null);
+        if (track < 0) {
+            mFragmentStartUs = -1;
+        }
+    }
+
+    private boolean isFlushed(int t, int track) {
+        return (track < 0 || t == track) && mFragments.get(t).mSampleCount > 0;
+    }
+
+    /**
+     * Builds <code>moof</code> and the <code>mdat</code> header into {@link #mBoxes}.
+     */
+    private void writeMoof(long payloadSize, int onlyTrack) {
+        mBoxes.reset();
+        int moof = mBoxes.start("moof");
+        int mfhd = mBoxes.startFull("mfhd", 0, 0);
+        mBoxes.u32(++mSequence);
+        mBoxes.end(mfhd);
+
+        int[] dataOffsetFields = new int[mFragments.size()];
+        for (int t = 0; t < mFragments.size(); t++) {
+            Fragment fragment = mFragments.get(t);
+            if (!isFlushed(t, onlyTrack)) {
+                dataOffsetFields[t] = -1;
+                continue;
+            }
+            Mp4Track track = mTracks.get(t);
+            int traf = mBoxes.start("traf");
+            // default-base-is-moof: data offsets are relative to the start of this moof
+            int tfhd = mBoxes.startFull("tfhd", 0, 0x020000);
+            mBoxes.u32(track.getTrackId());
+            mBoxes.end(tfhd);
+            int tfdt = mBoxes.startFull("tfdt", 1, 0);
+            mBoxes.u64(decodeTime(track, fragment.mTimesUs[0]));
+            mBoxes.end(tfdt);
+            // data offset, sample duration, size and flags present
+            int trun = mBoxes.startFull("trun", 0, 0x000701);
+            mBoxes.u32(fragment.mSampleCount);
+            dataOffsetFields[t] = mBoxes.size();
+            mBoxes.u32(0);
+            for (int i = 0; i < fragment.mSampleCount; i++) {
+                long duration = i + 1 < fragment.mSampleCount
+                        ? decodeTime(track, fragment.mTimesUs[i + 1])
+                        - decodeTime(track, fragment.mTimesUs[i])
+                        : fragment.lastDuration(track, this);
+                mBoxes.u32(Math.max(0, duration));
+                mBoxes.u32(fragment.mSizes[i]);
+                mBoxes.u32(fragment.mSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            mBoxes.end(trun);
+            mBoxes.end(traf);
+        }
+        mBoxes.end(moof);
+
+        // each track's samples follow the previous track's inside the single mdat
+        long dataOffset = mBoxes.size() + 8;
+        for (int t = 0; t < mFragments.size(); t++) {
+            if (dataOffsetFields[t] >= 0) {
+                mBoxes.setU32(dataOffsetFields[t], dataOffset);
+                dataOffset += mFragments.get(t).mPayload.position();
+            }
+        }
+        mBoxes.u32(8 + payloadSize).fourcc("mdat");
+    }
+
+    private long decodeTime(Mp4Track track, long timeUs) {
+        return track.toTimescale(Math.max(0, timeUs - mStreamStartUs));
+    }
+
+    private int lengthPrefixedSize(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int nal = start + AnnexB.startCodeLength(buffer, start);
+        if (nal == start) {
+            return 4 + end - start;
+        }
+        int size = 0;
+        while (nal < end) {
+            int next = AnnexB.findStartCode(buffer, nal, end);
+            size += 4 + next - nal;
+            if (next == end) {
+                break;
+            }
+            nal = next + AnnexB.startCodeLength(buffer, next);
+        }
+        return size;
+    }
+
+    private void copyLengthPrefixed(ByteBuffer buffer, ByteBuffer payload) {
+        int start = buffer.position();
+        int end = buffer.limit();
+        int nal = start + AnnexB.startCodeLength(buffer, start);
+        if (nal == start) {
+            payload.putInt(end - start).put(buffer);
+            return;
+        }
+        while (nal < end) {
+            int next = AnnexB.findStartCode(buffer, nal, end);
+            payload.putInt(next - nal);
+            buffer.limit(next).position(nal);
+            payload.put(buffer);
+            buffer.limit(end);
+            if (next == end) {
+                break;
+            }
+            nal = next + AnnexB.startCodeLength(buffer, next);
+        }
+    }
+
+    private void gatherWrite() throws IOException {
+        if (mChannel instanceof GatheringByteChannel) {
+            GatheringByteChannel channel = (GatheringByteChannel) mChannel;
+            long remaining = 0;
+            for (int i = 0; i < mGatherCount; i++) {
+                remaining += mGather[i].remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(mGather, 0, mGatherCount);
+            }
+        } else {
+            for (int i = 0; i < mGatherCount; i++) {
+                writeFully(mGather[i]);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Samples of one track waiting for the next fragment.
+     */
+    private static final class Fragment {
+
+        ByteBuffer mPayload = ByteBuffer.allocateDirect(256 * 1024);
+
+        int mSampleCount = 0;
+
+        int[] mSizes = new int[64];
+
+        long[] mTimesUs = new long[64];
+
+        boolean[] mSync = new boolean[64];
+
+        // time of the sample following the last one, once known
+        long mEndTimeUs = -1;
+
+        ByteBuffer reserve(int size) {
+            if (mPayload.remaining() < size) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(
+                        Math.max(mPayload.capacity() * 2, mPayload.position() + size));
+                mPayload.flip();
+                grown.put(mPayload);
+                mPayload = grown;
+            }
+            return mPayload;
+        }
+
+        void addSample(int size, long timeUs, boolean sync) {
+            if (mSampleCount == mSizes.length) {
+                mSizes = Arrays.copyOf(mSizes, mSampleCount * 2);
+                mTimesUs = Arrays.copyOf(mTimesUs, mSampleCount * 2);
+                mSync = Arrays.copyOf(mSync, mSampleCount * 2);
+            }
+            mSizes[mSampleCount] = size;
+            mTimesUs[mSampleCount] = timeUs;
+            mSync[mSampleCount] = sync;
+            mSampleCount++;
+        }
+
+        /**
+         * Runs up to the next sample when it is known; otherwise, e.g. at the end of the
+         * stream, the duration of the sample before is reused.
+         */
+        long lastDuration(Mp4Track track, FragmentedMp4Muxer muxer) {
+            long last = muxer.decodeTime(track, mTimesUs[mSampleCount - 1]);
+            if (mEndTimeUs >= 0) {
+                return muxer.decodeTime(track, mEndTimeUs) - last;
+            }
+            if (mSampleCount < 2) {
+                return track.defaultSampleDuration();
+            }
+            return last - muxer.decodeTime(track, mTimesUs[mSampleCount - 2]);
+        }
+
+        void clear() {
+            mPayload.clear();
+            mSampleCount = 0;
+            mEndTimeUs = -1;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Keeps the recording at a constant frame rate while the view renders only on demand
+ * ({@link RecordableSurfaceView#RENDERMODE_WHEN_DIRTY}), by re-submitting a cached copy of the
+ * last recorded frame whenever no new frame arrived within one frame interval.
+ * <p>
+ * This class only decides when to repeat; the view keeps the cached frame and draws it. The
+ * decision uses a {@link Clock} so it can be driven by a fake clock.
+ *
+ * @see RecordableSurfaceView#setFrameRepeatPolicy(FrameRepeatPolicy)
+ */
+public class FrameRepeatPolicy {
+
+    /**
+     * Source of monotonic time.
+     */
+    public interface Clock {
+
+        long nanoTime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final Clock mClock;
+
+    private final long mIntervalNs;
+
+    private final long mToleranceNs;
+
+    private boolean mHasFrame = false;
+
+    private long mNextDueNs;
+
+    private long mRepeatedFrames = 0;
+
+    /**
+     * @param frameRate the frame rate to keep the recording at
+     */
+    public FrameRepeatPolicy(int frameRate) {
+        this(frameRate, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param frameRate the frame rate to keep the recording at
+     * @param clock     the time source
+     */
+    public FrameRepeatPolicy(int frameRate, Clock clock) {
+        mClock = clock;
+        mIntervalNs = 1000000000L / frameRate;
+        // the render loop polls at about 60 Hz, so allow a repeat slightly early rather than
+        // most of a poll late
+        mToleranceNs = mIntervalNs / 4;
+    }
+
+    /**
+     * Records that a newly rendered frame has been submitted to the encoder.
+     */
+    public void onFrameSubmitted() {
+        mNextDueNs = mClock.nanoTime() + mIntervalNs;
+        mHasFrame = true;
+    }
+
+    /**
+     * @return true if nothing has been submitted for a frame interval and the last frame should be
+     * repeated now
+     */
+    public boolean shouldRepeat() {
+        return mHasFrame && mClock.nanoTime() >= mNextDueNs - mToleranceNs;
+    }
+
+    /**
+     * Records that the last frame has been repeated.
+     */
+    public void onFrameRepeated() {
+        long now = mClock.nanoTime();
+        mRepeatedFrames++;
+        // repeats stay on the schedule, so an early or late poll does not accumulate
+        mNextDueNs += mIntervalNs;
+        if (mNextDueNs - mToleranceNs <= now) {
+            // fell behind by more than a frame, e.g. the render thread stalled: don't burst
+            mNextDueNs = now + mIntervalNs;
+        }
+    }
+
+    /**
+     * Forgets the cached frame, e.g. when a recording stops.
+     */
+    public void reset() {
+        mHasFrame = false;
+    }
+
+    /**
+     * @return the number of repeated frames since construction
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getRepeatedFrames() {
+        return mRepeatedFrames;
+    }
+
+    long getIntervalNs() {
+        return mIntervalNs;
+    }
+}
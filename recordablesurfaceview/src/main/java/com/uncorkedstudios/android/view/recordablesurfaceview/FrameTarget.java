@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where {@link RawFrameCapture} puts the pixels it reads back.
+ */
+interface FrameTarget {
+
+    /**
+     * @return width of the rectangle to read, in RGBA pixels
+     */
+    int getWidth();
+
+    /**
+     * @return height of the rectangle to read
+     */
+    int getHeight();
+
+    /**
+     * @return bytes per frame, width * height * 4
+     */
+    int getFrameSize();
+
+    /**
+     * @return a buffer of at least {@link #getFrameSize()} bytes from its position, to fill
+     * before the matching {@link #commitFrame(long)} or {@link #abortFrame()}
+     */
+    ByteBuffer beginFrame();
+
+    void commitFrame(long timestampNs);
+
+    void abortFrame();
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A compact sidecar index of a recording's key frames and thumbnails, written while recording
+ * (see {@link RecorderConfig#setKeyframeIndex(File, int, int)}) so scrubbers and seek bars never
+ * have to open the video.
+ * <p>
+ * File layout, all integers big endian:
+ * <pre>
+ * header, 32 bytes
+ *   0  int  magic 0x52534B49 ("RSKI")
+ *   4  int  version (1)
+ *   8  int  thumbnail width, 0 without thumbnails
+ *   12 int  thumbnail height
+ *   16 long time base in microseconds, subtracted from every record's time
+ *   24 long byte offset shift, added to every key frame's offset
+ * records, until the end of the file
+ *   'K' long time, long byte offset of the sample (-1 if unknown), int sample size
+ *   'T' long time, width * height * 4 bytes of RGBA, top row first
+ * </pre>
+ * Time base and offset shift are filled in when the writer is closed. An index whose recording
+ * was interrupted is still readable; a truncated last record is ignored.
+ * <p>
+ * Pure Java; the reader runs on any thread.
+ */
+public class KeyframeIndex {
+
+    public static final int MAGIC = 0x52534B49;
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+
+    private static final byte RECORD_KEYFRAME = 'K';
+
+    private static final byte RECORD_THUMBNAIL = 'T';
+
+    private static final int KEYFRAME_RECORD_SIZE = 1 + 8 + 8 + 4;
+
+    private final File mFile;
+
+    private final int mThumbnailWidth;
+
+    private final int mThumbnailHeight;
+
+    private final int mKeyframeCount;
+
+    private final long[] mKeyframeTimesUs;
+
+    private final long[] mKeyframeOffsets;
+
+    private final int[] mKeyframeSizes;
+
+    private final int mThumbnailCount;
+
+    private final long[] mThumbnailTimesUs;
+
+    private final long[] mThumbnailPositions;
+
+    private KeyframeIndex(File file, int thumbnailWidth, int thumbnailHeight, int keyframeCount,
+            long[] keyframeTimesUs, long[] keyframeOffsets, int[] keyframeSizes,
+            int thumbnailCount, long[] thumbnailTimesUs, long[] thumbnailPositions) {
+        mFile = file;
+        mThumbnailWidth = thumbnailWidth;
+        mThumbnailHeight = thumbnailHeight;
+        mKeyframeCount = keyframeCount;
+        mKeyframeTimesUs = keyframeTimesUs;
+        mKeyframeOffsets = keyframeOffsets;
+        mKeyframeSizes = keyframeSizes;
+        mThumbnailCount = thumbnailCount;
+        mThumbnailTimesUs = thumbnailTimesUs;
+        mThumbnailPositions = thumbnailPositions;
+    }
+
+    /**
+     * Loads the key frame table and the thumbnail positions. Thumbnail pixels stay on disk
+     * until {@link #readThumbnail(int, ByteBuffer)}.
+     *
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static KeyframeIndex read(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long size = channel.size();
+            buffer.limit(HEADER_SIZE);
+            readFully(channel, buffer, 0);
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a key frame index: " + file);
+            }
+            int thumbnailWidth = buffer.getInt(8);
+            int thumbnailHeight = buffer.getInt(12);
+            long timeBaseUs = buffer.getLong(16);
+            long offsetShift = buffer.getLong(24);
+            long thumbnailBytes = (long) thumbnailWidth * thumbnailHeight * 4;
+
+            int keyframes = 0;
+            long[] times = new long[64];
+            long[] offsets = new long[64];
+            int[] sizes = new int[64];
+            int thumbnails = 0;
+            long[] thumbnailTimes = new long[16];
+            long[] thumbnailPositions = new long[16];
+
+            long position = HEADER_SIZE;
+            buffer.clear().limit(0);
+            long bufferStart = position;
+            while (true) {
+                // keep at least one full key frame record, or a thumbnail record's header, ahead
+                if (buffer.remaining() < KEYFRAME_RECORD_SIZE) {
+                    bufferStart = position;
+                    buffer.clear();
+                    readFully(channel, buffer, position);
+                    if (buffer.remaining() < 9) {
+                        break;
+                    }
+                }
+                byte type = buffer.get();
+                long timeUs = buffer.getLong() - timeBaseUs;
+                if (type == RECORD_KEYFRAME) {
+                    if (buffer.remaining() < 12) {
+                        break;
+                    }
+                    if (keyframes == times.length) {
+                        times = Arrays.copyOf(times, keyframes * 2);
+                        offsets = Arrays.copyOf(offsets, keyframes * 2);
+                        sizes = Arrays.copyOf(sizes, keyframes * 2);
+                    }
+                    long offset = buffer.getLong();
+                    times[keyframes] = timeUs;
+                    offsets[keyframes] = offset >= 0 ? offset + offsetShift : -1;
+                    sizes[keyframes] = buffer.getInt();
+                    keyframes++;
+                    position += KEYFRAME_RECORD_SIZE;
+                } else if (type == RECORD_THUMBNAIL) {
+                    long pixels = position + 9;
+                    if (thumbnailBytes == 0 || pixels + thumbnailBytes > size) {
+                        break;
+                    }
+                    if (thumbnails == thumbnailTimes.length) {
+                        thumbnailTimes = Arrays.copyOf(thumbnailTimes, thumbnails * 2);
+                        thumbnailPositions = Arrays.copyOf(thumbnailPositions, thumbnails * 2);
+                    }
+                    thumbnailTimes[thumbnails] = timeUs;
+                    thumbnailPositions[thumbnails] = pixels;
+                    thumbnails++;
+                    position = pixels + thumbnailBytes;
+                    // skip the pixels: drop the buffer if they run past it
+                    long skip = position - bufferStart;
+                    if (skip <= buffer.limit()) {
+                        buffer.position((int) skip);
+                    } else {
+                        buffer.limit(0);
+                    }
+                } else {
+                    throw new IOException("Corrupt key frame index at " + position);
+                }
+            }
+            return new KeyframeIndex(file, thumbnailWidth, thumbnailHeight, keyframes, times,
+                    offsets, sizes, thumbnails, thumbnailTimes, thumbnailPositions);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    public int getKeyframeCount() {
+        return mKeyframeCount;
+    }
+
+    /**
+     * @return the key frame's time in microseconds from the first video frame
+     */
+    public long getKeyframeTimeUs(int index) {
+        return mKeyframeTimesUs[index];
+    }
+
+    /**
+     * @return the key frame's byte offset in the recording, or -1 if the muxer did not report
+     * offsets
+     */
+    public long getKeyframeOffset(int index) {
+        return mKeyframeOffsets[index];
+    }
+
+    public int getKeyframeSize(int index) {
+        return mKeyframeSizes[index];
+    }
+
+    /**
+     * @return the last key frame at or before <code>timeUs</code>, i.e. where decoding must
+     * start to show that time, or -1 if there is none
+     */
+    public int findKeyframe(long timeUs) {
+        return floor(mKeyframeTimesUs, mKeyframeCount, timeUs);
+    }
+
+    public int getThumbnailCount() {
+        return mThumbnailCount;
+    }
+
+    public int getThumbnailWidth() {
+        return mThumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return mThumbnailHeight;
+    }
+
+    /**
+     * @return the thumbnail's time in microseconds from the first video frame
+     */
+    public long getThumbnailTimeUs(int index) {
+        return mThumbnailTimesUs[index];
+    }
+
+    /**
+     * @return the last thumbnail at or before <code>timeUs</code>, the first one if all are
+     * later, or -1 if there are none
+     */
+    public int findThumbnail(long timeUs) {
+        int index = floor(mThumbnailTimesUs, mThumbnailCount, timeUs);
+        return index < 0 && mThumbnailCount > 0 ? 0 : index;
+    }
+
+    /**
+     * Reads a thumbnail's RGBA pixels, top row first, e.g. for
+     * <code>Bitmap.copyPixelsFromBuffer</code>.
+     *
+     * @param dst receives width * height * 4 bytes at its position, which it advances
+     */
+    public void readThumbnail(int index, ByteBuffer dst) throws IOException {
+        int length = mThumbnailWidth * mThumbnailHeight * 4;
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("Buffer too small for a thumbnail");
+        }
+        ByteBuffer target = dst.duplicate();
+        target.limit(target.position() + length);
+        try (FileChannel channel = new RandomAccessFile(mFile, "r").getChannel()) {
+            long position = mThumbnailPositions[index];
+            while (target.hasRemaining()) {
+                if (channel.read(target, position + target.position() - dst.position()) < 0) {
+                    throw new IOException("Thumbnail " + index + " is truncated");
+                }
+            }
+        }
+        dst.position(dst.position() + length);
+    }
+
+    private static int floor(long[] times, int count, long timeUs) {
+        int index = Arrays.binarySearch(times, 0, count, timeUs);
+        if (index >= 0) {
+            // the first of equal times
+            while (index > 0 && times[index - 1] == timeUs) {
+                index--;
+            }
+            return index;
+        }
+        return -index - 2;
+    }
+
+    /**
+     * Appends records to an index file. Thread safe: key frames typically arrive from the
+     * encoder thread and thumbnails from the render thread.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileChannel mChannel;
+
+        private final int mThumbnailWidth;
+
+        private final int mThumbnailHeight;
+
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(32 * 1024);
+
+        private long mFlushed = HEADER_SIZE;
+
+        private long mTimeBaseUs = Long.MIN_VALUE;
+
+        private boolean mClosed = false;
+
+        /**
+         * Creates (or truncates) an index file.
+         *
+         * @param thumbnailWidth  width of the thumbnails that will be added, or 0 for none
+         * @param thumbnailHeight height of the thumbnails
+         */
+        public Writer(File file, int thumbnailWidth, int thumbnailHeight) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            mChannel = raf.getChannel();
+            mThumbnailWidth = thumbnailWidth;
+            mThumbnailHeight = thumbnailHeight;
+            writeHeader(0, 0);
+        }
+
+        /**
+         * Sets the time subtracted from all record times, typically the first video frame's
+         * presentation time. Defaults to the first key frame's time.
+         */
+        public synchronized void setTimeBaseUs(long timeUs) {
+            mTimeBaseUs = timeUs;
+        }
+
+        /**
+         * @param timeUs     presentation time of the key frame
+         * @param byteOffset offset of the sample in the recording, or -1 if unknown
+         * @param size       size of the sample in bytes
+         */
+        public synchronized void addKeyframe(long timeUs, long byteOffset, int size)
+                throws IOException {
+            if (mTimeBaseUs == Long.MIN_VALUE) {
+                mTimeBaseUs = timeUs;
+            }
+            ensure(KEYFRAME_RECORD_SIZE);
+            mBuffer.put(RECORD_KEYFRAME).putLong(timeUs).putLong(byteOffset).putInt(size);
+        }
+
+        /**
+         * @param timeUs   presentation time of the frame the thumbnail shows
+         * @param pixels   width * height * 4 bytes of RGBA from its position on
+         * @param bottomUp true if rows are stored bottom row first, as read back from GL
+         */
+        public synchronized void addThumbnail(long timeUs, ByteBuffer pixels, boolean bottomUp)
+                throws IOException {
+            int stride = mThumbnailWidth * 4;
+            if (stride == 0 || pixels.remaining() < stride * mThumbnailHeight) {
+                throw new IllegalArgumentException("Thumbnail does not match the index size");
+            }
+            ensure(9);
+            mBuffer.put(RECORD_THUMBNAIL).putLong(timeUs);
+            ByteBuffer row = pixels.duplicate();
+            int start = pixels.position();
+            for (int y = 0; y < mThumbnailHeight; y++) {
+                int source = bottomUp ? mThumbnailHeight - 1 - y : y;
+                row.limit(start + (source + 1) * stride);
+                row.position(start + source * stride);
+                ensure(stride);
+                mBuffer.put(row);
+            }
+        }
+
+        /**
+         * Writes the header fields that are only known at the end and closes the file.
+         *
+         * @param offsetShift added to every key frame's byte offset, e.g. when the media data
+         *                    was moved to make room for a faststart moov box
+         */
+        public synchronized void close(long offsetShift) throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                flush();
+                writeHeader(mTimeBaseUs == Long.MIN_VALUE ? 0 : mTimeBaseUs, offsetShift);
+            } finally {
+                mChannel.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            close(0);
+        }
+
+        private void writeHeader(long timeBaseUs, long offsetShift) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(mThumbnailWidth)
+                    .putInt(mThumbnailHeight).putLong(timeBaseUs).putLong(offsetShift).flip();
+            while (header.hasRemaining()) {
+                mChannel.write(header, header.position());
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (mClosed) {
+                throw new IOException("Index writer is closed");
+            }
+            if (mBuffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mFlushed += mChannel.write(mBuffer, mFlushed);
+            }
+            mBuffer.clear();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ring of raw frames in a memory-mapped file, written by one producer and readable zero-copy by
+ * any number of consumers, in this process or another one mapping the same file.
+ * <p>
+ * File layout, all integers little endian:
+ * <pre>
+ * header, 64 bytes
+ *   0  int  magic 0x52534652 ("RSFR")
+ *   4  int  version (1)
+ *   8  int  data offset: byte offset of slot 0
+ *   12 int  slot count
+ *   16 int  slot size in bytes
+ *   20 int  width
+ *   24 int  height
+ *   28 int  stride: bytes per row
+ *   32 int  pixel format, {@link #PIXEL_FORMAT_RGBA_8888}
+ *   36 int  flags, {@link #FLAG_BOTTOM_UP}
+ *   40 long frames written; frame n lives in slot n % slot count
+ * index, 32 bytes per slot, from byte 64
+ *   0  long sequence of the frame in the slot, or -1 while empty or being written
+ *   8  long timestamp in nanoseconds
+ *   16 int  length in bytes
+ * data, from the data offset (page aligned), one slot after another
+ * </pre>
+ * The writer marks a slot -1, fills it, stores its timestamp and length, then its sequence, and
+ * only then advances the frames written counter. A reader takes a frame's sequence from the
+ * counter, checks the slot holds that sequence, consumes the data, and checks the sequence
+ * again: if it changed, the writer lapped the reader and the data must be discarded.
+ * <p>
+ * Ordering of the mapped stores relies on the volatile accesses around them acting as fences,
+ * as they do on the Android and HotSpot runtimes.
+ */
+public class MappedFrameRing implements Closeable, FrameTarget {
+
+    public static final int MAGIC = 0x52534652;
+
+    public static final int VERSION = 1;
+
+    public static final int PIXEL_FORMAT_RGBA_8888 = 1;
+
+    /**
+     * Rows are stored bottom row first, as read back from GL.
+     */
+    public static final int FLAG_BOTTOM_UP = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int INDEX_ENTRY_SIZE = 32;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final int OFFSET_DATA = 8;
+
+    private static final int OFFSET_SLOT_COUNT = 12;
+
+    private static final int OFFSET_SLOT_SIZE = 16;
+
+    private static final int OFFSET_WIDTH = 20;
+
+    private static final int OFFSET_HEIGHT = 24;
+
+    private static final int OFFSET_STRIDE = 28;
+
+    private static final int OFFSET_PIXEL_FORMAT = 32;
+
+    private static final int OFFSET_FLAGS = 36;
+
+    private static final int OFFSET_FRAMES_WRITTEN = 40;
+
+    private static final int ENTRY_SEQUENCE = 0;
+
+    private static final int ENTRY_TIMESTAMP = 8;
+
+    private static final int ENTRY_LENGTH = 16;
+
+    private final FileChannel mChannel;
+
+    private final MappedByteBuffer mMap;
+
+    private final int mSlotCount;
+
+    private final int mSlotSize;
+
+    private final int mDataOffset;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mStride;
+
+    // volatile accesses order the plain stores into the mapping
+    private final AtomicLong mFramesWritten = new AtomicLong(0);
+
+    private boolean mWriting = false;
+
+    private MappedFrameRing(FileChannel channel, MappedByteBuffer map, int slotCount,
+            int slotSize, int dataOffset, int width, int height, int stride) {
+        mChannel = channel;
+        mMap = map;
+        mSlotCount = slotCount;
+        mSlotSize = slotSize;
+        mDataOffset = dataOffset;
+        mWidth = width;
+        mHeight = height;
+        mStride = stride;
+    }
+
+    /**
+     * Creates (or truncates) a ring file for RGBA frames read back from GL.
+     *
+     * @param file      the file to map
+     * @param width     frame width in pixels
+     * @param height    frame height in pixels
+     * @param slotCount number of frames the ring holds
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static MappedFrameRing create(File file, int width, int height, int slotCount)
+            throws IOException {
+        if (width <= 0 || height <= 0 || slotCount <= 0) {
+            throw new IllegalArgumentException("Invalid ring dimensions");
+        }
+        int stride = width * 4;
+        long slotSize = (long) stride * height;
+        long dataOffset = align(HEADER_SIZE + (long) slotCount * INDEX_ENTRY_SIZE);
+        long fileSize = dataOffset + align(slotSize) * slotCount;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring of " + fileSize + " bytes is too large");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        try {
+            raf.setLength(0);
+            raf.setLength(fileSize);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(OFFSET_DATA, (int) dataOffset);
+            map.putInt(OFFSET_SLOT_COUNT, slotCount);
+            map.putInt(OFFSET_SLOT_SIZE, (int) align(slotSize));
+            map.putInt(OFFSET_WIDTH, width);
+            map.putInt(OFFSET_HEIGHT, height);
+            map.putInt(OFFSET_STRIDE, stride);
+            map.putInt(OFFSET_PIXEL_FORMAT, PIXEL_FORMAT_RGBA_8888);
+            map.putInt(OFFSET_FLAGS, FLAG_BOTTOM_UP);
+            map.putLong(OFFSET_FRAMES_WRITTEN, 0);
+            for (int i = 0; i < slotCount; i++) {
+                map.putLong(HEADER_SIZE + i * INDEX_ENTRY_SIZE + ENTRY_SEQUENCE, -1);
+            }
+            return new MappedFrameRing(channel, map, slotCount, (int) align(slotSize),
+                    (int) dataOffset, width, height, stride);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Claims the next slot and returns a view of it to fill, e.g. with <code>glReadPixels</code>.
+     * The view is positioned at 0 with its limit at the frame size.
+     *
+     * @return a direct buffer backed by the mapped file
+     * @throws IllegalStateException if the previous frame was not committed
+     */
+    public ByteBuffer beginFrame() {
+        if (mWriting) {
+            throw new IllegalStateException("Previous frame not committed");
+        }
+        mWriting = true;
+        long sequence = mFramesWritten.get();
+        int slot = (int) (sequence % mSlotCount);
+        mMap.putLong(entryOffset(slot) + ENTRY_SEQUENCE, -1);
+        // make the slot's invalidation visible before its data changes
+        mFramesWritten.set(sequence);
+
+        ByteBuffer view = mMap.duplicate();
+        view.limit(mDataOffset + slot * mSlotSize + getFrameSize());
+        view.position(mDataOffset + slot * mSlotSize);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Publishes the frame filled since {@link #beginFrame()}.
+     *
+     * @param timestampNs the frame's capture time
+     */
+    public void commitFrame(long timestampNs) {
+        if (!mWriting) {
+            throw new IllegalStateException("No frame begun");
+        }
+        long sequence = mFramesWritten.get();
+        int entry = entryOffset((int) (sequence % mSlotCount));
+        mMap.putLong(entry + ENTRY_TIMESTAMP, timestampNs);
+        mMap.putInt(entry + ENTRY_LENGTH, getFrameSize());
+        // the volatile store orders the data and entry before the sequence and the counter
+        mFramesWritten.set(sequence);
+        mMap.putLong(entry + ENTRY_SEQUENCE, sequence);
+        mFramesWritten.set(sequence + 1);
+        mMap.putLong(OFFSET_FRAMES_WRITTEN, sequence + 1);
+        mWriting = false;
+    }
+
+    /**
+     * Abandons the frame begun with {@link #beginFrame()}; its slot stays marked empty.
+     */
+    public void abortFrame() {
+        mWriting = false;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    public int getFrameSize() {
+        return mStride * mHeight;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getFramesWritten() {
+        return mFramesWritten.get();
+    }
+
+    /**
+     * Flushes the mapping to the file and closes it. The mapping itself is released once
+     * unreachable.
+     */
+    @Override
+    public void close() throws IOException {
+        mMap.force();
+        mChannel.close();
+    }
+
+    private static int entryOffset(int slot) {
+        return HEADER_SIZE + slot * INDEX_ENTRY_SIZE;
+    }
+
+    private static long align(long size) {
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Reads frames from a ring file written by a {@link MappedFrameRing}, in this or another
+     * process.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel mChannel;
+
+        private final MappedByteBuffer mMap;
+
+        private final int mSlotCount;
+
+        private final int mSlotSize;
+
+        private final int mDataOffset;
+
+        private final AtomicLong mFence = new AtomicLong();
+
+        /**
+         * @param file a ring file
+         * @throws IOException if the file cannot be mapped or is not a ring file
+         */
+        public Reader(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            mChannel = raf.getChannel();
+            try {
+                mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+                mMap.order(ByteOrder.LITTLE_ENDIAN);
+                if (mMap.getInt(0) != MAGIC || mMap.getInt(4) != VERSION) {
+                    throw new IOException("Not a frame ring file: " + file);
+                }
+                mSlotCount = mMap.getInt(OFFSET_SLOT_COUNT);
+                mSlotSize = mMap.getInt(OFFSET_SLOT_SIZE);
+                mDataOffset = mMap.getInt(OFFSET_DATA);
+            } catch (IOException | RuntimeException e) {
+                mChannel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the number of frames committed so far; the latest is this minus one
+         */
+        public long getFramesWritten() {
+            long written = mMap.getLong(OFFSET_FRAMES_WRITTEN);
+            mFence.get();
+            return written;
+        }
+
+        /**
+         * @return the oldest frame that may still be in the ring
+         */
+        public long getOldestAvailable() {
+            return Math.max(0, getFramesWritten() - mSlotCount);
+        }
+
+        /**
+         * Returns a read-only view of a frame without copying it. The contents are only
+         * trustworthy if {@link #isValid(long)} still returns true after they were consumed.
+         *
+         * @param sequence the frame number
+         * @return the frame, or null if it is not (or no longer) in the ring
+         */
+        public ByteBuffer frame(long sequence) {
+            if (!isValid(sequence)) {
+                return null;
+            }
+            int slot = (int) (sequence % mSlotCount);
+            int length = mMap.getInt(entryOffset(slot) + ENTRY_LENGTH);
+            ByteBuffer view = mMap.duplicate();
+            view.limit(mDataOffset + slot * mSlotSize + length);
+            view.position(mDataOffset + slot * mSlotSize);
+            return view.slice().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * @return the capture time of a frame; check {@link #isValid(long)} afterwards
+         */
+        public long getTimestampNs(long sequence) {
+            return mMap.getLong(entryOffset((int) (sequence % mSlotCount)) + ENTRY_TIMESTAMP);
+        }
+
+        /**
+         * @return true if the frame is committed and has not been overwritten
+         */
+        public boolean isValid(long sequence) {
+            mFence.get();
+            return sequence >= 0 && mMap.getLong(
+                    entryOffset((int) (sequence % mSlotCount)) + ENTRY_SEQUENCE) == sequence;
+        }
+
+        public int getWidth() {
+            return mMap.getInt(OFFSET_WIDTH);
+        }
+
+        public int getHeight() {
+            return mMap.getInt(OFFSET_HEIGHT);
+        }
+
+        public int getStride() {
+            return mMap.getInt(OFFSET_STRIDE);
+        }
+
+        public int getFlags() {
+            return mMap.getInt(OFFSET_FLAGS);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.EGLSurface;
+import android.view.Surface;
+
+/**
+ * An additional output, such as the surface of a {@link android.app.Presentation} or a
+ * {@link android.hardware.display.VirtualDisplay}, that receives a copy of each frame shown on
+ * screen. The copy is a GPU blit of the displayed frame, not a second render.
+ * <p>
+ * Each output can have its own {@link RecordingTransform} to place the frame in the output's
+ * size and its own frame rate cap. Outputs never wait for vsync.
+ * <p>
+ * Outputs are presented on the render thread right after the view's own frame has been
+ * swapped, so the view's current frame is never held up. A consumer that holds on to all of
+ * its buffers, e.g. an {@link android.media.ImageReader} with every image acquired, still
+ * blocks that swap and delays the view's next frame. An output found slow this way is skipped
+ * for a few frames, backing off further while it stays slow, which limits but cannot prevent
+ * such stalls.
+ *
+ * @see RecordableSurfaceView#addMirrorOutput(MirrorOutput)
+ */
+public class MirrorOutput {
+
+    // a swap taking longer than this means the consumer is holding on to its buffers
+    private static final long SLOW_SWAP_NS = 4000000L;
+
+    private static final int MAX_BACKOFF_FRAMES = 8;
+
+    private final Surface mSurface;
+
+    private volatile RecordingTransform mTransform;
+
+    private volatile long mMinIntervalNs = 0;
+
+    // owned by the render thread
+    EGLSurface mEGLSurface;
+
+    boolean mDue = false;
+
+    private volatile boolean mFailed = false;
+
+    private long mLastPresentedNs = 0;
+
+    private int mBackoffFrames = 0;
+
+    private int mSkipFrames = 0;
+
+    private volatile long mPresentedFrames = 0;
+
+    private volatile long mCappedFrames = 0;
+
+    private volatile long mDroppedFrames = 0;
+
+    /**
+     * @param surface the surface to draw into; it stays owned by the caller
+     */
+    public MirrorOutput(Surface surface) {
+        if (surface == null) {
+            throw new IllegalArgumentException("Surface must not be null");
+        }
+        mSurface = surface;
+    }
+
+    public Surface getSurface() {
+        return mSurface;
+    }
+
+    /**
+     * Sets how the view's frame is placed in the output when their sizes or aspect ratios
+     * differ. Without a transform the frame is stretched over the whole output.
+     *
+     * @param transform the transform, or null to stretch
+     * @return this output
+     */
+    public MirrorOutput setTransform(RecordingTransform transform) {
+        mTransform = transform;
+        return this;
+    }
+
+    public RecordingTransform getTransform() {
+        return mTransform;
+    }
+
+    /**
+     * Caps how often this output receives a frame, for example to save bandwidth on a
+     * wireless display.
+     *
+     * @param framesPerSecond the highest frame rate, or 0 for every displayed frame
+     * @return this output
+     */
+    public MirrorOutput setMaxFrameRate(float framesPerSecond) {
+        if (framesPerSecond < 0) {
+            throw new IllegalArgumentException("Frame rate must not be negative");
+        }
+        mMinIntervalNs = framesPerSecond > 0 ? (long) (1e9 / framesPerSecond) : 0;
+        return this;
+    }
+
+    /**
+     * @return frames drawn into the output
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getPresentedFrames() {
+        return mPresentedFrames;
+    }
+
+    /**
+     * @return displayed frames not drawn into the output because of the frame rate cap
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getCappedFrames() {
+        return mCappedFrames;
+    }
+
+    /**
+     * @return displayed frames not drawn into the output because its consumer was slow
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * @return true if the output could not be drawn into, e.g. because its surface was
+     * released; it then receives no more frames
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Decides whether the output gets the frame displayed now. Called once per displayed frame.
+     */
+    boolean isDue(long nowNs) {
+        if (mFailed) {
+            return false;
+        }
+        if (mSkipFrames > 0) {
+            mSkipFrames--;
+            mDroppedFrames++;
+            return false;
+        }
+        long interval = mMinIntervalNs;
+        // the render loop runs at about the display rate, so allow a frame slightly early
+        // rather than most of a frame late
+        if (interval > 0 && mLastPresentedNs != 0
+                && nowNs - mLastPresentedNs < interval - interval / 4) {
+            mCappedFrames++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a frame drawn into the output and how long its swap took.
+     */
+    void onPresented(long nowNs, long swapNs) {
+        mLastPresentedNs = nowNs;
+        mPresentedFrames++;
+        if (swapNs > SLOW_SWAP_NS) {
+            mBackoffFrames = Math.min(Math.max(1, mBackoffFrames * 2), MAX_BACKOFF_FRAMES);
+            mSkipFrames = mBackoffFrames;
+        } else {
+            mBackoffFrames = 0;
+        }
+    }
+
+    void onFailed() {
+        mFailed = true;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads ISO base media (MP4) boxes held in memory, the counterpart of {@link Mp4BoxWriter}.
+ * <p>
+ * Boxes are passed around as buffers positioned at their first byte and limited to their last,
+ * header included. All values are read big endian.
+ */
+final class Mp4BoxReader {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private Mp4BoxReader() {
+    }
+
+    /**
+     * Finds the first child of <code>box</code> with the given type.
+     *
+     * @return the child, or null if there is none
+     * @throws IOException if a child's size runs past its parent
+     */
+    static ByteBuffer find(ByteBuffer box, String type) throws IOException {
+        ByteBuffer children = payload(box);
+        while (children.remaining() >= 8) {
+            ByteBuffer child = next(children);
+            if (type(child).equals(type)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Follows a path of nested box types, e.g. <code>"mdia", "minf", "stbl"</code>.
+     *
+     * @return the innermost box, or null if any box on the path is missing
+     */
+    static ByteBuffer findPath(ByteBuffer box, String... types) throws IOException {
+        ByteBuffer current = box;
+        for (String type : types) {
+            current = find(current, type);
+            if (current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Returns the box at the position of <code>buffer</code> and advances past it.
+     *
+     * @throws IOException if the box's size runs past the buffer
+     */
+    static ByteBuffer next(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        long size = buffer.getInt(start) & 0xFFFFFFFFL;
+        if (size == 1) {
+            size = buffer.getLong(start + 8);
+        } else if (size == 0) {
+            size = buffer.remaining();
+        }
+        if (size < 8 || size > buffer.remaining()) {
+            throw new IOException("Invalid box size " + size + " at " + start);
+        }
+        ByteBuffer child = buffer.duplicate();
+        child.limit(start + (int) size);
+        buffer.position(start + (int) size);
+        return child.slice();
+    }
+
+    static String type(ByteBuffer box) {
+        byte[] type = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = box.get(box.position() + 4 + i);
+        }
+        return new String(type, ASCII);
+    }
+
+    /**
+     * @return the bytes after the box header
+     */
+    static ByteBuffer payload(ByteBuffer box) {
+        int header = (box.getInt(box.position()) == 1) ? 16 : 8;
+        ByteBuffer payload = box.duplicate();
+        payload.position(box.position() + header);
+        return payload.slice();
+    }
+
+    /**
+     * @return the bytes after a full box's header, version and flags
+     */
+    static ByteBuffer fullPayload(ByteBuffer box) {
+        ByteBuffer payload = payload(box);
+        payload.position(4);
+        return payload.slice();
+    }
+
+    static int version(ByteBuffer box) {
+        return payload(box).get(0) & 0xFF;
+    }
+
+    static long u32(ByteBuffer buffer) {
+        return buffer.getInt() & 0xFFFFFFFFL;
+    }
+}
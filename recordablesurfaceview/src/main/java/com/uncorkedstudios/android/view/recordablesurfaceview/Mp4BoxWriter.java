@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Builds ISO base media (MP4) boxes into a growable in-memory buffer.
+ * <p>
+ * Boxes are opened with {@link #start(String)} or {@link #startFull(String, int, int)} and
+ * closed with {@link #end(int)}, which back-patches the 32 bit size. All values are written big
+ * endian.
+ */
+class Mp4BoxWriter {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private byte[] mData;
+
+    private int mSize = 0;
+
+    Mp4BoxWriter() {
+        this(1024);
+    }
+
+    Mp4BoxWriter(int initialCapacity) {
+        mData = new byte[initialCapacity];
+    }
+
+    /**
+     * Opens a box.
+     *
+     * @return the offset of the box, to pass to {@link #end(int)}
+     */
+    int start(String type) {
+        int offset = mSize;
+        u32(0);
+        fourcc(type);
+        return offset;
+    }
+
+    /**
+     * Opens a full box (a box with version and flags).
+     */
+    int startFull(String type, int version, int flags) {
+        int offset = start(type);
+        u32((version << 24) | (flags & 0xFFFFFF));
+        return offset;
+    }
+
+    /**
+     * Closes the box opened at <code>offset</code>.
+     */
+    void end(int offset) {
+        int size = mSize - offset;
+        mData[offset] = (byte) (size >>> 24);
+        mData[offset + 1] = (byte) (size >>> 16);
+        mData[offset + 2] = (byte) (size >>> 8);
+        mData[offset + 3] = (byte) size;
+    }
+
+    Mp4BoxWriter u8(int value) {
+        ensure(1);
+        mData[mSize++] = (byte) value;
+        return this;
+    }
+
+    Mp4BoxWriter u16(int value) {
+        ensure(2);
+        mData[mSize++] = (byte) (value >>> 8);
+        mData[mSize++] = (byte) value;
+        return this;
+    }
+
+    Mp4BoxWriter u24(int value) {
+        ensure(3);
+        mData[mSize++] = (byte) (value >>> 16);
+        mData[mSize++] = (byte) (value >>> 8);
+        mData[mSize++] = (byte) value;
+        return this;
+    }
+
+    Mp4BoxWriter u32(long value) {
+        ensure(4);
+        mData[mSize++] = (byte) (value >>> 24);
+        mData[mSize++] = (byte) (value >>> 16);
+        mData[mSize++] = (byte) (value >>> 8);
+        mData[mSize++] = (byte) value;
+        return this;
+    }
+
+    Mp4BoxWriter u64(long value) {
+        u32(value >>> 32);
+        u32(value & 0xFFFFFFFFL);
+        return this;
+    }
+
+    Mp4BoxWriter fourcc(String type) {
+        bytes(type.getBytes(ASCII));
+        return this;
+    }
+
+    Mp4BoxWriter zeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            mData[mSize++] = 0;
+        }
+        return this;
+    }
+
+    Mp4BoxWriter bytes(byte[] data) {
+        return bytes(data, 0, data.length);
+    }
+
+    Mp4BoxWriter bytes(byte[] data, int offset, int length) {
+        ensure(length);
+        System.arraycopy(data, offset, mData, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    Mp4BoxWriter bytes(ByteBuffer data) {
+        int length = data.remaining();
+        ensure(length);
+        data.duplicate().get(mData, mSize, length);
+        mSize += length;
+        return this;
+    }
+
+    /**
+     * Writes a null terminated string.
+     */
+    Mp4BoxWriter string(String value) {
+        bytes(value.getBytes(ASCII));
+        return u8(0);
+    }
+
+    /**
+     * Overwrites a 32 bit value at an absolute offset.
+     */
+    void setU32(int offset, long value) {
+        mData[offset] = (byte) (value >>> 24);
+        mData[offset + 1] = (byte) (value >>> 16);
+        mData[offset + 2] = (byte) (value >>> 8);
+        mData[offset + 3] = (byte) value;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void reset() {
+        mSize = 0;
+    }
+
+    byte[] array() {
+        return mData;
+    }
+
+    /**
+     * @return a buffer wrapping the written bytes without copying
+     */
+    ByteBuffer asBuffer() {
+        return ByteBuffer.wrap(mData, 0, mSize);
+    }
+
+    private void ensure(int extra) {
+        if (mSize + extra > mData.length) {
+            byte[] grown = new byte[Math.max(mData.length * 2, mSize + extra)];
+            System.arraycopy(mData, 0, grown, 0, mSize);
+            mData = grown;
+        }
+    }
+}
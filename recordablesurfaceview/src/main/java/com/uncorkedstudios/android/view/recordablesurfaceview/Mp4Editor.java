@@ -0,0 +1,747 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trims and concatenates MP4 recordings without re-encoding, by rewriting their sample tables
+ * and copying the sample data.
+ * <p>
+ * Each clip is cut at the last key frame at or before its start, so the output decodes without
+ * the frames before it. With {@link #setFrameAccurate(boolean)} the frames between that key
+ * frame and the requested start are still stored, but an edit list hides them, so playback
+ * starts exactly at the requested time in players that honour edit lists.
+ * <p>
+ * Clips must have the same tracks with identical sample descriptions, which is the case for
+ * recordings made by {@link RecordableSurfaceView} with the same {@link RecorderConfig}. Input
+ * is read through memory-mapped windows and written through a {@link ChannelWriter}, so memory
+ * use does not grow with the file size. Fragmented MP4 input is not supported.
+ * <p>
+ * Pure Java; runs on any thread, and off Android.
+ */
+public class Mp4Editor {
+
+    private static final int MAP_WINDOW_SIZE = 16 << 20;
+
+    private final File mOutput;
+
+    private final List<Clip> mClips = new ArrayList<>();
+
+    private boolean mFrameAccurate = false;
+
+    /**
+     * @param output the file to write; it is overwritten
+     */
+    public Mp4Editor(File output) {
+        mOutput = output;
+    }
+
+    /**
+     * Writes the part of <code>input</code> between <code>startUs</code> and <code>endUs</code>
+     * to <code>output</code>.
+     *
+     * @return the duration of the output in microseconds
+     */
+    public static long trim(File input, File output, long startUs, long endUs,
+            boolean frameAccurate) throws IOException {
+        return new Mp4Editor(output)
+                .addClip(input, startUs, endUs)
+                .setFrameAccurate(frameAccurate)
+                .write();
+    }
+
+    /**
+     * Joins complete recordings one after another into <code>output</code>.
+     *
+     * @return the duration of the output in microseconds
+     */
+    public static long concat(List<File> inputs, File output) throws IOException {
+        Mp4Editor editor = new Mp4Editor(output);
+        for (File input : inputs) {
+            editor.addClip(input);
+        }
+        return editor.write();
+    }
+
+    /**
+     * Appends a whole file.
+     */
+    public Mp4Editor addClip(File input) {
+        return addClip(input, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Appends part of a file.
+     *
+     * @param startUs where the clip starts, in microseconds from the start of the input
+     * @param endUs   where the clip ends, or {@link Long#MAX_VALUE} for the end of the input
+     */
+    public Mp4Editor addClip(File input, long startUs, long endUs) {
+        if (startUs < 0 || endUs <= startUs) {
+            throw new IllegalArgumentException("Invalid clip range " + startUs + ".." + endUs);
+        }
+        mClips.add(new Clip(input, startUs, endUs));
+        return this;
+    }
+
+    /**
+     * Starts clips exactly at their start time using edit lists instead of at the preceding key
+     * frame. Off by default.
+     */
+    public Mp4Editor setFrameAccurate(boolean frameAccurate) {
+        mFrameAccurate = frameAccurate;
+        return this;
+    }
+
+    /**
+     * Writes the output file.
+     *
+     * @return the duration of the output in microseconds
+     * @throws IOException              if an input cannot be read or parsed, or the output
+     *                                  cannot be written
+     * @throws IllegalArgumentException if the clips are incompatible or a clip range holds no
+     *                                  samples
+     */
+    public long write() throws IOException {
+        if (mClips.isEmpty()) {
+            throw new IllegalStateException("No clips added");
+        }
+        try {
+            for (Clip clip : mClips) {
+                clip.open();
+            }
+            List<Mp4SampleTable> first = mClips.get(0).mTracks;
+            for (Clip clip : mClips) {
+                checkCompatible(first, clip);
+            }
+
+            List<OutputTrack> tracks = new ArrayList<>();
+            int reference = 0;
+            for (int i = 0; i < first.size(); i++) {
+                tracks.add(new OutputTrack(first.get(i), i + 1));
+                if (first.get(i).isVideo() && !first.get(reference).isVideo()) {
+                    reference = i;
+                }
+            }
+            for (Clip clip : mClips) {
+                clip.select(reference, mFrameAccurate);
+            }
+            return writeFile(tracks);
+        } finally {
+            for (Clip clip : mClips) {
+                clip.close();
+            }
+        }
+    }
+
+    private static void checkCompatible(List<Mp4SampleTable> first, Clip clip) {
+        if (clip.mTracks.size() != first.size()) {
+            throw new IllegalArgumentException(clip.mFile + " has " + clip.mTracks.size()
+                    + " tracks, expected " + first.size());
+        }
+        for (int i = 0; i < first.size(); i++) {
+            if (!first.get(i).isCompatible(clip.mTracks.get(i))) {
+                throw new IllegalArgumentException("Track " + (i + 1) + " of " + clip.mFile
+                        + " differs in type, timescale or sample description");
+            }
+        }
+    }
+
+    private long writeFile(List<OutputTrack> tracks) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mOutput, "rw");
+        file.setLength(0);
+        ChannelWriter writer = new ChannelWriter(file.getChannel(), null,
+                new ChannelWriter.Options());
+        try {
+            Mp4BoxWriter boxes = new Mp4BoxWriter(64);
+            Mp4Muxer.writeFtyp(boxes);
+            writer.write(boxes.asBuffer());
+            long mdatStart = writer.position();
+            boxes.reset();
+            boxes.u32(1).fourcc("mdat").u64(0);
+            writer.write(boxes.asBuffer());
+
+            for (Clip clip : mClips) {
+                copyClip(clip, tracks, writer);
+            }
+            long mdatSize = writer.position() - mdatStart;
+
+            long durationMovie = 0;
+            for (OutputTrack track : tracks) {
+                durationMovie = Math.max(durationMovie, track.movieDuration(mFrameAccurate));
+            }
+            Mp4BoxWriter moov = new Mp4BoxWriter(64 * 1024);
+            int box = moov.start("moov");
+            Mp4Muxer.writeMvhd(moov, durationMovie, tracks.size() + 1);
+            for (OutputTrack track : tracks) {
+                track.writeTrak(moov, mFrameAccurate);
+            }
+            moov.end(box);
+            writer.write(moov.asBuffer());
+
+            ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(mdatSize).flip();
+            writer.writeAt(mdatStart + 8, size);
+            writer.close();
+            return durationMovie * 1000000L / Mp4Muxer.MOVIE_TIMESCALE;
+        } finally {
+            // after a successful close this does nothing
+            writer.close();
+        }
+    }
+
+    /**
+     * Copies the selected samples of a clip in their original file order, which keeps the
+     * tracks interleaved as they were recorded.
+     */
+    private void copyClip(Clip clip, List<OutputTrack> tracks, ChannelWriter writer)
+            throws IOException {
+        int trackCount = tracks.size();
+        int[] next = new int[trackCount];
+        for (int t = 0; t < trackCount; t++) {
+            next[t] = clip.mFirst[t];
+            tracks.get(t).beginClip();
+        }
+        int previousTrack = -1;
+        while (true) {
+            int track = -1;
+            long offset = Long.MAX_VALUE;
+            for (int t = 0; t < trackCount; t++) {
+                if (next[t] < clip.mEnd[t]) {
+                    long sampleOffset = clip.mTracks.get(t).offsets[next[t]];
+                    if (sampleOffset < offset) {
+                        offset = sampleOffset;
+                        track = t;
+                    }
+                }
+            }
+            if (track < 0) {
+                break;
+            }
+            Mp4SampleTable source = clip.mTracks.get(track);
+            int sample = next[track]++;
+            long outputOffset = writer.position();
+            writer.write(clip.read(source.offsets[sample], source.sizes[sample]));
+            tracks.get(track).addSample(source, sample, outputOffset, track != previousTrack);
+            previousTrack = track;
+        }
+        for (int t = 0; t < trackCount; t++) {
+            tracks.get(t).endClip(clip, t, mFrameAccurate);
+        }
+    }
+
+    /**
+     * One input file and the range of it to keep.
+     */
+    private static class Clip {
+
+        final File mFile;
+
+        final long mStartUs;
+
+        final long mEndUs;
+
+        FileChannel mChannel;
+
+        long mFileSize;
+
+        List<Mp4SampleTable> mTracks;
+
+        // per track: first sample to copy, and the sample after the last
+        int[] mFirst;
+
+        int[] mEnd;
+
+        // the cut point at the key frame, where presentation starts, and where the clip ends,
+        // in microseconds of input time
+        long mCutUs;
+
+        long mPresentUs;
+
+        long mClipEndUs;
+
+        private MappedByteBuffer mWindow;
+
+        private long mWindowStart;
+
+        Clip(File file, long startUs, long endUs) {
+            mFile = file;
+            mStartUs = startUs;
+            mEndUs = endUs;
+        }
+
+        void open() throws IOException {
+            mChannel = new RandomAccessFile(mFile, "r").getChannel();
+            mFileSize = mChannel.size();
+            ByteBuffer moov = null;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            long position = 0;
+            while (position + 8 <= mFileSize) {
+                header.clear();
+                mChannel.read(header, position);
+                long size = header.getInt(0) & 0xFFFFFFFFL;
+                String type = new String(header.array(), 4, 4, "US-ASCII");
+                int headerSize = 8;
+                if (size == 1) {
+                    size = header.getLong(8);
+                    headerSize = 16;
+                } else if (size == 0) {
+                    size = mFileSize - position;
+                }
+                if (size < headerSize || position + size > mFileSize) {
+                    throw new IOException("Invalid " + type + " box in " + mFile);
+                }
+                if (type.equals("moov")) {
+                    if (size > Integer.MAX_VALUE) {
+                        throw new IOException("moov box too large in " + mFile);
+                    }
+                    moov = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                } else if (type.equals("moof")) {
+                    throw new IOException("Fragmented MP4 is not supported: " + mFile);
+                }
+                position += size;
+            }
+            if (moov == null) {
+                throw new IOException("No moov box in " + mFile);
+            }
+
+            ByteBuffer mvhd = Mp4BoxReader.find(moov, "mvhd");
+            if (mvhd == null) {
+                throw new IOException("No mvhd box in " + mFile);
+            }
+            ByteBuffer m = Mp4BoxReader.fullPayload(mvhd);
+            int movieTimescale = m.getInt(Mp4BoxReader.version(mvhd) == 1 ? 16 : 8);
+
+            mTracks = new ArrayList<>();
+            ByteBuffer children = Mp4BoxReader.payload(moov);
+            while (children.remaining() >= 8) {
+                ByteBuffer child = Mp4BoxReader.next(children);
+                if (Mp4BoxReader.type(child).equals("trak")) {
+                    mTracks.add(Mp4SampleTable.parse(child, movieTimescale));
+                }
+            }
+            if (mTracks.isEmpty()) {
+                throw new IOException("No tracks in " + mFile);
+            }
+        }
+
+        /**
+         * Chooses the samples to copy from every track.
+         *
+         * @param reference the track whose key frames decide the cut, preferably video
+         */
+        void select(int reference, boolean frameAccurate) {
+            Mp4SampleTable ref = mTracks.get(reference);
+            int key = lastSyncAtOrBefore(ref, mStartUs);
+            if (key < 0) {
+                throw new IllegalArgumentException("No key frame in " + mFile);
+            }
+            mCutUs = ref.presentationTimeUs(key);
+            mPresentUs = frameAccurate ? Math.max(mStartUs, mCutUs) : mCutUs;
+
+            mFirst = new int[mTracks.size()];
+            mEnd = new int[mTracks.size()];
+            mFirst[reference] = key;
+            mEnd[reference] = endIndex(ref, key, Math.min(mEndUs, ref.endTimeUs()));
+            // a frame that starts before the requested end is kept whole
+            int last = mEnd[reference] - 1;
+            mClipEndUs = Math.max(Math.min(mEndUs, ref.endTimeUs()),
+                    ref.presentationTimeUs(last) + ref.durations[last] * 1000000L / ref.timescale);
+            // without frame accuracy the cut still starts at a key frame, so also check that
+            // the requested start lies inside the input
+            if (mClipEndUs <= mPresentUs || last < key || mStartUs >= ref.endTimeUs()) {
+                throw new IllegalArgumentException("Clip " + mStartUs + ".." + mEndUs + " of "
+                        + mFile + " holds no samples");
+            }
+
+            for (int t = 0; t < mTracks.size(); t++) {
+                if (t != reference) {
+                    Mp4SampleTable track = mTracks.get(t);
+                    int first = Math.max(0, lastSyncAtOrBefore(track, mCutUs));
+                    mFirst[t] = first;
+                    mEnd[t] = endIndex(track, first, mClipEndUs);
+                }
+            }
+        }
+
+        /**
+         * @return the index after the last sample from <code>first</code> on that is presented
+         * before <code>endUs</code>, or <code>first</code> if there is none
+         */
+        private static int endIndex(Mp4SampleTable track, int first, long endUs) {
+            for (int i = track.sampleCount - 1; i >= first; i--) {
+                if (track.presentationTimeUs(i) < endUs) {
+                    return i + 1;
+                }
+            }
+            return first;
+        }
+
+        /**
+         * @return the last sync sample presented at or before <code>timeUs</code>, the first
+         * sync sample if all are later, or -1 if there is none
+         */
+        private static int lastSyncAtOrBefore(Mp4SampleTable track, long timeUs) {
+            int found = -1;
+            for (int i = 0; i < track.sampleCount; i++) {
+                if (!track.isSync(i)) {
+                    continue;
+                }
+                if (track.presentationTimeUs(i) <= timeUs || found < 0) {
+                    found = i;
+                }
+                if (track.presentationTimeUs(i) > timeUs) {
+                    break;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return a view of the bytes at <code>offset</code>, from the current mapped window
+         * or a new one
+         */
+        ByteBuffer read(long offset, int size) throws IOException {
+            if (offset < 0 || offset + size > mFileSize) {
+                throw new IOException("Sample at " + offset + " lies outside " + mFile);
+            }
+            if (mWindow == null || offset < mWindowStart
+                    || offset + size > mWindowStart + mWindow.capacity()) {
+                mWindowStart = offset;
+                long length = Math.min(Math.max(MAP_WINDOW_SIZE, size), mFileSize - offset);
+                mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            ByteBuffer view = mWindow.duplicate();
+            int start = (int) (offset - mWindowStart);
+            view.limit(start + size);
+            view.position(start);
+            return view;
+        }
+
+        void close() throws IOException {
+            mWindow = null;
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+    }
+
+    /**
+     * The sample table of one output track, built up clip by clip.
+     */
+    private static class OutputTrack {
+
+        private final Mp4SampleTable mTemplate;
+
+        private final int mTrackId;
+
+        private int mSampleCount = 0;
+
+        private long[] mOffsets = new long[256];
+
+        private int[] mSizes = new int[256];
+
+        private int[] mDurations = new int[256];
+
+        private int[] mCompositionOffsets = new int[256];
+
+        private boolean[] mSync = new boolean[256];
+
+        private boolean mHasCompositionOffsets = false;
+
+        private boolean mHasNonSync = false;
+
+        // chunks as runs of samples contiguous in the output
+        private long[] mChunkOffsets = new long[64];
+
+        private int[] mChunkSamples = new int[64];
+
+        private int mChunkCount = 0;
+
+        private long mMediaTime = 0;
+
+        // edit list: durations in microseconds and media times, -1 for the leading empty edit
+        private long[] mEditDurationsUs = new long[8];
+
+        private long[] mEditMediaTimes = new long[8];
+
+        private int mEditCount = 0;
+
+        private long mLastEditMediaEnd = -1;
+
+        private boolean mHasEmptyEdit = false;
+
+        // time of clips this track had no samples in, still to be accounted for
+        private long mPendingGapUs = 0;
+
+        private int mClipFirstSample;
+
+        private long mClipMediaStart;
+
+        OutputTrack(Mp4SampleTable template, int trackId) {
+            mTemplate = template;
+            mTrackId = trackId;
+        }
+
+        void beginClip() {
+            mClipFirstSample = mSampleCount;
+            mClipMediaStart = mMediaTime;
+        }
+
+        void addSample(Mp4SampleTable source, int sample, long outputOffset,
+                boolean newChunk) {
+            if (mSampleCount == mSizes.length) {
+                int capacity = mSizes.length * 2;
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mSizes = Arrays.copyOf(mSizes, capacity);
+                mDurations = Arrays.copyOf(mDurations, capacity);
+                mCompositionOffsets = Arrays.copyOf(mCompositionOffsets, capacity);
+                mSync = Arrays.copyOf(mSync, capacity);
+            }
+            mOffsets[mSampleCount] = outputOffset;
+            mSizes[mSampleCount] = source.sizes[sample];
+            mDurations[mSampleCount] = source.durations[sample];
+            mCompositionOffsets[mSampleCount] = source.compositionOffset(sample);
+            mSync[mSampleCount] = source.isSync(sample);
+            mHasCompositionOffsets |= source.compositionOffset(sample) != 0;
+            mHasNonSync |= !source.isSync(sample);
+            mMediaTime += source.durations[sample];
+            mSampleCount++;
+
+            if (newChunk || mChunkCount == 0) {
+                if (mChunkCount == mChunkOffsets.length) {
+                    mChunkOffsets = Arrays.copyOf(mChunkOffsets, mChunkCount * 2);
+                    mChunkSamples = Arrays.copyOf(mChunkSamples, mChunkCount * 2);
+                }
+                mChunkOffsets[mChunkCount] = outputOffset;
+                mChunkSamples[mChunkCount] = 0;
+                mChunkCount++;
+            }
+            mChunkSamples[mChunkCount - 1]++;
+        }
+
+        /**
+         * Keeps the track in step with the others across the join and records the clip's edit.
+         * The clip's last sample is stretched or shortened to end with the clip, and time before
+         * the track's first sample in the clip is added to the previous clip's last sample, so
+         * that without an edit list only the start of the file needs an empty edit.
+         */
+        void endClip(Clip clip, int track, boolean frameAccurate) {
+            if (mSampleCount == mClipFirstSample) {
+                mPendingGapUs += clip.mClipEndUs - clip.mPresentUs;
+                return;
+            }
+            Mp4SampleTable source = clip.mTracks.get(track);
+            int timescale = source.timescale;
+            long firstUs = source.presentationTimeUs(clip.mFirst[track]);
+
+            long target = (clip.mClipEndUs - firstUs) * timescale / 1000000L;
+            long beforeLast = mMediaTime - mDurations[mSampleCount - 1] - mClipMediaStart;
+            int last = (int) Math.max(1, target - beforeLast);
+            mMediaTime += last - mDurations[mSampleCount - 1];
+            mDurations[mSampleCount - 1] = last;
+
+            long gapUs = mPendingGapUs + Math.max(0, firstUs - clip.mPresentUs);
+            mPendingGapUs = 0;
+            long gap = gapUs * timescale / 1000000L;
+            // presentation may start inside the first sample, e.g. an audio frame
+            long skipUs = frameAccurate ? Math.max(0, clip.mPresentUs - firstUs) : 0;
+            long mediaFrom = mClipMediaStart + mCompositionOffsets[mClipFirstSample]
+                    + skipUs * timescale / 1000000L;
+            long durationUs = clip.mClipEndUs - firstUs - skipUs;
+            if (gap > 0 && mClipFirstSample == 0) {
+                addEdit(gapUs, -1, -1);
+                mHasEmptyEdit = true;
+            } else if (gap > 0) {
+                mDurations[mClipFirstSample - 1] += gap;
+                mMediaTime += gap;
+                durationUs += gapUs;
+            }
+            addEdit(durationUs, mediaFrom, mMediaTime);
+        }
+
+        /**
+         * Appends an edit, or extends the previous one if the media continues where it ended.
+         */
+        private void addEdit(long durationUs, long mediaTime, long mediaEnd) {
+            if (mediaTime >= 0 && mediaTime == mLastEditMediaEnd) {
+                mEditDurationsUs[mEditCount - 1] += durationUs;
+                mLastEditMediaEnd = mediaEnd;
+                return;
+            }
+            if (mEditCount == mEditDurationsUs.length) {
+                mEditDurationsUs = Arrays.copyOf(mEditDurationsUs, mEditCount * 2);
+                mEditMediaTimes = Arrays.copyOf(mEditMediaTimes, mEditCount * 2);
+            }
+            mEditDurationsUs[mEditCount] = durationUs;
+            mEditMediaTimes[mEditCount] = mediaTime;
+            mEditCount++;
+            mLastEditMediaEnd = mediaEnd;
+        }
+
+        private boolean writesEdits(boolean frameAccurate) {
+            // composition offsets shift presentation, which only an edit can undo
+            return mEditCount > 0 && (frameAccurate || mHasEmptyEdit || mHasCompositionOffsets);
+        }
+
+        long movieDuration(boolean frameAccurate) {
+            if (writesEdits(frameAccurate)) {
+                long duration = 0;
+                for (int i = 0; i < mEditCount; i++) {
+                    duration += toMovie(mEditDurationsUs[i]);
+                }
+                return duration;
+            }
+            return mMediaTime * Mp4Muxer.MOVIE_TIMESCALE / mTemplate.timescale;
+        }
+
+        private static long toMovie(long timeUs) {
+            return (timeUs * Mp4Muxer.MOVIE_TIMESCALE + 500000L) / 1000000L;
+        }
+
+        void writeTrak(Mp4BoxWriter w, boolean frameAccurate) {
+            int trak = w.start("trak");
+
+            int tkhd = w.startFull("tkhd", 0, 0x3);
+            w.u32(0).u32(0).u32(mTrackId).u32(0).u32(movieDuration(frameAccurate));
+            w.zeros(8);
+            w.u16(mTemplate.layer).u16(mTemplate.alternateGroup).u16(mTemplate.volume).u16(0);
+            w.bytes(mTemplate.matrix);
+            w.u32(mTemplate.width).u32(mTemplate.height);
+            w.end(tkhd);
+
+            if (writesEdits(frameAccurate)) {
+                int edts = w.start("edts");
+                int elst = w.startFull("elst", 0, 0);
+                w.u32(mEditCount);
+                for (int i = 0; i < mEditCount; i++) {
+                    w.u32(toMovie(mEditDurationsUs[i])).u32(mEditMediaTimes[i] & 0xFFFFFFFFL)
+                            .u32(0x00010000);
+                }
+                w.end(elst);
+                w.end(edts);
+            }
+
+            int mdia = w.start("mdia");
+            int mdhd = w.startFull("mdhd", 0, 0);
+            w.u32(0).u32(0).u32(mTemplate.timescale).u32(mMediaTime)
+                    .u16(mTemplate.language).u16(0);
+            w.end(mdhd);
+            w.bytes(mTemplate.hdlr);
+            int minf = w.start("minf");
+            w.bytes(mTemplate.mediaHeader);
+            w.bytes(mTemplate.dinf);
+            int stbl = w.start("stbl");
+            w.bytes(mTemplate.stsd);
+            writeSampleTables(w);
+            w.end(stbl);
+            w.end(minf);
+            w.end(mdia);
+            w.end(trak);
+        }
+
+        private void writeSampleTables(Mp4BoxWriter w) {
+            int stts = w.startFull("stts", 0, 0);
+            writeRuns(w, mDurations);
+            w.end(stts);
+
+            if (mHasCompositionOffsets) {
+                int ctts = w.startFull("ctts", 0, 0);
+                writeRuns(w, mCompositionOffsets);
+                w.end(ctts);
+            }
+
+            if (mHasNonSync) {
+                int stss = w.startFull("stss", 0, 0);
+                int countOffset = w.size();
+                w.u32(0);
+                int count = 0;
+                for (int i = 0; i < mSampleCount; i++) {
+                    if (mSync[i]) {
+                        w.u32(i + 1);
+                        count++;
+                    }
+                }
+                w.setU32(countOffset, count);
+                w.end(stss);
+            }
+
+            int stsc = w.startFull("stsc", 0, 0);
+            int countOffset = w.size();
+            w.u32(0);
+            int entries = 0;
+            for (int i = 0; i < mChunkCount; i++) {
+                if (i == 0 || mChunkSamples[i] != mChunkSamples[i - 1]) {
+                    w.u32(i + 1).u32(mChunkSamples[i]).u32(1);
+                    entries++;
+                }
+            }
+            w.setU32(countOffset, entries);
+            w.end(stsc);
+
+            int stsz = w.startFull("stsz", 0, 0);
+            w.u32(0).u32(mSampleCount);
+            for (int i = 0; i < mSampleCount; i++) {
+                w.u32(mSizes[i]);
+            }
+            w.end(stsz);
+
+            boolean large = mChunkCount > 0 && mChunkOffsets[mChunkCount - 1] > 0xFFFFFFFFL;
+            int chunks = w.startFull(large ? "co64" : "stco", 0, 0);
+            w.u32(mChunkCount);
+            for (int i = 0; i < mChunkCount; i++) {
+                if (large) {
+                    w.u64(mChunkOffsets[i]);
+                } else {
+                    w.u32(mChunkOffsets[i]);
+                }
+            }
+            w.end(chunks);
+        }
+
+        /**
+         * Writes a run-length coded table of per-sample values, as used by stts and ctts.
+         */
+        private void writeRuns(Mp4BoxWriter w, int[] values) {
+            int countOffset = w.size();
+            w.u32(0);
+            int entries = 0;
+            int run = 0;
+            for (int i = 0; i < mSampleCount; i++) {
+                if (run > 0 && values[i] != values[i - 1]) {
+                    w.u32(run).u32(values[i - 1] & 0xFFFFFFFFL);
+                    entries++;
+                    run = 0;
+                }
+                run++;
+            }
+            if (run > 0) {
+                w.u32(run).u32(values[mSampleCount - 1] & 0xFFFFFFFFL);
+                entries++;
+            }
+            w.setU32(countOffset, entries);
+        }
+    }
+}
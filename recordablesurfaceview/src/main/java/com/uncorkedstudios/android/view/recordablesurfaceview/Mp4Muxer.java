@@ -0,0 +1,401 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progressive MP4 writer that streams samples through a {@link ChannelWriter}.
+ * <p>
+ * Layout is <code>ftyp</code>, a 64 bit <code>mdat</code> that receives samples as they
+ * arrive, then <code>moov</code> written on {@link #stop()} once the sample tables are known.
+ * H.264 access units are converted from Annex B to length-prefixed NAL units on the way in.
+ * <p>
+ * For faststart output a <code>free</code> box is reserved between <code>ftyp</code> and
+ * <code>mdat</code>, and <code>moov</code> is written into it on stop, so players can start
+ * before the whole file has arrived. If <code>moov</code> outgrew the reservation, the media
+ * data is moved forward once, back to front through a fixed size buffer, to make room.
+ */
+class Mp4Muxer implements SampleMuxer {
+
+    static final int MOVIE_TIMESCALE = 1000;
+
+    private static final int RELOCATE_BUFFER_SIZE = 1 << 20;
+
+    // worst case sample table bytes per sample: stsz, co64, an stts run and an stss entry
+    private static final int MOOV_BYTES_PER_SAMPLE = 24;
+
+    private static final int MOOV_FIXED_BYTES = 4096;
+
+    private final ChannelWriter mWriter;
+
+    private final int mOrientationHint;
+
+    private final FileChannel mReadChannel;
+
+    private final long mReserveBytes;
+
+    private final List<Mp4Track> mTracks = new ArrayList<>();
+
+    private final ByteBuffer mLengthPrefix = ByteBuffer.allocate(4);
+
+    private long mMdatStart = -1;
+
+    private long mFreeStart = -1;
+
+    private long mLastSampleOffset = -1;
+
+    private int mLastSampleSize = 0;
+
+    private long mMediaDataShift = 0;
+
+    private boolean mClosed = false;
+
+    Mp4Muxer(ChannelWriter writer, int orientationHint) {
+        this(writer, null, 0, orientationHint);
+    }
+
+    /**
+     * @param readChannel  reads back the written file should <code>moov</code> not fit the
+     *                     reservation; may be the channel the writer writes to. Closed with
+     *                     the writer
+     * @param reserveBytes space to reserve for <code>moov</code> ahead of the media data, or 0
+     *                     to write <code>moov</code> at the end of the file
+     */
+    Mp4Muxer(ChannelWriter writer, FileChannel readChannel, long reserveBytes,
+            int orientationHint) {
+        mWriter = writer;
+        mReadChannel = readChannel;
+        mReserveBytes = reserveBytes;
+        mOrientationHint = orientationHint;
+    }
+
+    /**
+     * Estimates the <code>moov</code> size of a recording, for reserving faststart space.
+     *
+     * @param durationMs      expected duration
+     * @param frameRate       video frames per second
+     * @param audioSampleRate audio sample rate, or 0 without audio
+     */
+    static long estimateMoovSize(long durationMs, int frameRate, int audioSampleRate) {
+        long samples = durationMs * frameRate / 1000L + 1;
+        if (audioSampleRate > 0) {
+            // one AAC frame per 1024 samples
+            samples += durationMs * audioSampleRate / 1024L / 1000L + 1;
+        }
+        long size = MOOV_FIXED_BYTES + samples * MOOV_BYTES_PER_SAMPLE;
+        return (size + 4095) / 4096 * 4096;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return addTrack(Mp4Track.fromFormat(mTracks.size() + 1, format));
+    }
+
+    /**
+     * @param track a track whose id is one more than the number of tracks added so far
+     */
+    int addTrack(Mp4Track track) {
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        Mp4BoxWriter header = new Mp4BoxWriter(64);
+        writeFtyp(header);
+        mWriter.write(header.asBuffer());
+
+        if (mReserveBytes > 0) {
+            mFreeStart = mWriter.position();
+            header.reset();
+            header.u32(mReserveBytes).fourcc("free");
+            mWriter.write(header.asBuffer());
+            writeZeros(mReserveBytes - 8);
+        }
+
+        mMdatStart = mWriter.position();
+        header.reset();
+        // size 1 means the real size follows as a 64 bit value, patched on stop
+        header.u32(1).fourcc("mdat").u64(0);
+        mWriter.write(header.asBuffer());
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException {
+        writeSample(track, buffer, info.offset, info.size, info.presentationTimeUs,
+                (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    }
+
+    /**
+     * {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)} with the fields of the
+     * buffer info passed separately.
+     */
+    void writeSample(int track, ByteBuffer buffer, int offset, int size, long timeUs,
+            boolean sync) throws IOException {
+        Mp4Track mp4Track = mTracks.get(track);
+        long fileOffset = mWriter.position();
+        int end = offset + size;
+        buffer.limit(end);
+        buffer.position(offset);
+
+        int stored;
+        if (mp4Track.isVideo()) {
+            stored = writeLengthPrefixed(buffer, offset, end);
+        } else {
+            stored = size;
+            mWriter.write(buffer);
+        }
+        mp4Track.addSample(fileOffset, stored, timeUs, sync);
+        mLastSampleOffset = fileOffset;
+        mLastSampleSize = stored;
+    }
+
+    /**
+     * @return file offset of the sample written last, before any move made by {@link #stop()}
+     */
+    long getLastSampleOffset() {
+        return mLastSampleOffset;
+    }
+
+    /**
+     * @return stored size of the sample written last, including length prefixes
+     */
+    int getLastSampleSize() {
+        return mLastSampleSize;
+    }
+
+    /**
+     * @return how far {@link #stop()} moved the media data to fit the moov box in front of it
+     */
+    long getMediaDataShift() {
+        return mMediaDataShift;
+    }
+
+    /**
+     * Writes each NAL unit of an Annex B access unit prefixed with its 4 byte length.
+     *
+     * @return the number of bytes written
+     */
+    private int writeLengthPrefixed(ByteBuffer buffer, int start, int end) throws IOException {
+        int written = 0;
+        int nal = start + AnnexB.startCodeLength(buffer, start);
+        if (nal == start) {
+            // not Annex B; store as a single NAL unit
+            return writeNal(buffer, start, end);
+        }
+        while (nal < end) {
+            int next = AnnexB.findStartCode(buffer, nal, end);
+            written += writeNal(buffer, nal, next);
+            // writeNal narrows the limit; restore it for absolute reads past this NAL unit
+            buffer.limit(end);
+            nal = next + AnnexB.startCodeLength(buffer, next);
+            if (next == end) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    private int writeNal(ByteBuffer buffer, int start, int end) throws IOException {
+        mLengthPrefix.clear();
+        mLengthPrefix.putInt(end - start).flip();
+        mWriter.write(mLengthPrefix);
+        buffer.limit(end);
+        buffer.position(start);
+        mWriter.write(buffer);
+        return 4 + end - start;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (mMdatStart < 0) {
+            throw new IllegalStateException("Muxer was not started");
+        }
+        long mdatEnd = mWriter.position();
+        long mdatSize = mdatEnd - mMdatStart;
+
+        Mp4BoxWriter moov = new Mp4BoxWriter(16 * 1024);
+        long shift = 0;
+        if (mFreeStart < 0) {
+            writeMoov(moov, mTracks, mOrientationHint);
+            mWriter.write(moov.asBuffer());
+        } else {
+            while (true) {
+                moov.reset();
+                writeMoov(moov, mTracks, mOrientationHint);
+                long space = mReserveBytes + shift;
+                // whatever moov leaves of the space must fit a free box header
+                if (moov.size() == space || moov.size() + 8 <= space) {
+                    break;
+                }
+                long grow = moov.size() + 8 - space;
+                for (Mp4Track track : mTracks) {
+                    track.shiftOffsets(grow);
+                }
+                // larger offsets may switch stco to co64, so measure again
+                shift += grow;
+            }
+            if (shift > 0) {
+                relocate(mMdatStart, mdatEnd, shift);
+            }
+            mWriter.writeAt(mFreeStart, moov.asBuffer());
+            long remaining = mReserveBytes + shift - moov.size();
+            if (remaining > 0) {
+                Mp4BoxWriter free = new Mp4BoxWriter(8);
+                free.u32(remaining).fourcc("free");
+                mWriter.writeAt(mFreeStart + moov.size(), free.asBuffer());
+            }
+        }
+
+        ByteBuffer size = ByteBuffer.allocate(8);
+        size.putLong(mdatSize).flip();
+        mWriter.writeAt(mMdatStart + shift + 8, size);
+        mMediaDataShift = shift;
+        mClosed = true;
+        try {
+            mWriter.close();
+        } finally {
+            closeReadChannel();
+        }
+    }
+
+    private void closeReadChannel() throws IOException {
+        // closing the writer's own channel a second time does nothing
+        if (mReadChannel != null) {
+            mReadChannel.close();
+        }
+    }
+
+    /**
+     * Moves the bytes between <code>start</code> and <code>end</code> forward by
+     * <code>shift</code>. The part landing past the current end is appended through the writer,
+     * the rest is moved back to front so no byte is overwritten before it was read.
+     */
+    private void relocate(long start, long end, long shift) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RELOCATE_BUFFER_SIZE);
+        mWriter.flush();
+        if (start + shift > end) {
+            writeZeros(start + shift - end);
+        }
+        long tailStart = Math.max(start, end - shift);
+        for (long position = tailStart; position < end; ) {
+            readFully(buffer, position, Math.min(RELOCATE_BUFFER_SIZE, end - position));
+            position += buffer.remaining();
+            mWriter.write(buffer);
+        }
+        for (long blockEnd = tailStart; blockEnd > start; ) {
+            long blockStart = Math.max(start, blockEnd - RELOCATE_BUFFER_SIZE);
+            readFully(buffer, blockStart, blockEnd - blockStart);
+            mWriter.writeAt(blockStart + shift, buffer);
+            blockEnd = blockStart;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position, long length) throws IOException {
+        buffer.clear();
+        buffer.limit((int) length);
+        while (buffer.hasRemaining()) {
+            int read = mReadChannel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+        }
+        buffer.flip();
+    }
+
+    private void writeZeros(long count) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        while (count > 0) {
+            zeros.clear();
+            zeros.limit((int) Math.min(count, zeros.capacity()));
+            count -= zeros.remaining();
+            mWriter.write(zeros);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!mClosed) {
+            mClosed = true;
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                // nothing useful left to do with a file that was never finalized
+            }
+            try {
+                closeReadChannel();
+            } catch (IOException e) {
+                // likewise
+            }
+        }
+    }
+
+    static void writeFtyp(Mp4BoxWriter w) {
+        int ftyp = w.start("ftyp");
+        w.fourcc("isom").u32(0x200);
+        w.fourcc("isom").fourcc("iso2").fourcc("avc1").fourcc("mp41");
+        w.end(ftyp);
+    }
+
+    /**
+     * Writes a complete <code>moov</code> box for the given tracks.
+     */
+    static void writeMoov(Mp4BoxWriter w, List<Mp4Track> tracks, int orientationHint) {
+        long movieStartUs = Long.MAX_VALUE;
+        for (Mp4Track track : tracks) {
+            if (track.getSampleCount() > 0) {
+                movieStartUs = Math.min(movieStartUs, track.getFirstTimeUs());
+            }
+        }
+
+        long durationMovie = 0;
+        for (Mp4Track track : tracks) {
+            if (track.getSampleCount() > 0) {
+                long offsetUs = track.getFirstTimeUs() - movieStartUs;
+                durationMovie = Math.max(durationMovie,
+                        (offsetUs * MOVIE_TIMESCALE / 1000000L)
+                                + track.duration() * MOVIE_TIMESCALE / track.getTimescale());
+            }
+        }
+
+        int moov = w.start("moov");
+        writeMvhd(w, durationMovie, tracks.size() + 1);
+        for (Mp4Track track : tracks) {
+            long offsetUs = track.getSampleCount() > 0
+                    ? track.getFirstTimeUs() - movieStartUs : 0;
+            track.writeTrak(w, MOVIE_TIMESCALE, offsetUs, orientationHint);
+        }
+        w.end(moov);
+    }
+
+    static void writeMvhd(Mp4BoxWriter w, long durationMovie, int nextTrackId) {
+        int mvhd = w.startFull("mvhd", 0, 0);
+        w.u32(0).u32(0).u32(MOVIE_TIMESCALE).u32(durationMovie);
+        w.u32(0x00010000).u16(0x0100).zeros(10);
+        Mp4Track.writeMatrix(w, 0);
+        w.zeros(24);
+        w.u32(nextTrackId);
+        w.end(mvhd);
+    }
+}
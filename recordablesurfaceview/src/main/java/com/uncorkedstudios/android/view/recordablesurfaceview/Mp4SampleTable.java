@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The sample table of one track of an existing progressive MP4, expanded to one entry per
+ * sample, together with the boxes {@link Mp4Editor} copies unchanged into its output.
+ * <p>
+ * Times are kept in the track's timescale. A sample's presentation time is its decode time plus
+ * its composition offset; the track's edit list maps presentation times to movie time.
+ */
+final class Mp4SampleTable {
+
+    final int trackId;
+
+    final String handler;
+
+    final int timescale;
+
+    final int language;
+
+    // tkhd fields that are copied to the output
+    final int layer;
+
+    final int alternateGroup;
+
+    final int volume;
+
+    final byte[] matrix = new byte[36];
+
+    final long width;
+
+    final long height;
+
+    // raw boxes copied to the output
+    final ByteBuffer hdlr;
+
+    final ByteBuffer mediaHeader;
+
+    final ByteBuffer dinf;
+
+    final ByteBuffer stsd;
+
+    final int sampleCount;
+
+    final long[] offsets;
+
+    final int[] sizes;
+
+    final long[] decodeTimes;
+
+    final int[] durations;
+
+    // null when the track has no ctts
+    final int[] compositionOffsets;
+
+    // null when every sample is a sync sample
+    final boolean[] sync;
+
+    // the track's edit list: an optional leading empty edit, in microseconds, and the media
+    // time the first normal edit starts at
+    final long startOffsetUs;
+
+    final long mediaStartTime;
+
+    private Mp4SampleTable(ByteBuffer trak, int movieTimescale) throws IOException {
+        ByteBuffer tkhd = require(Mp4BoxReader.find(trak, "tkhd"), "tkhd");
+        ByteBuffer mdia = require(Mp4BoxReader.find(trak, "mdia"), "mdia");
+        ByteBuffer mdhd = require(Mp4BoxReader.find(mdia, "mdhd"), "mdhd");
+        hdlr = require(Mp4BoxReader.find(mdia, "hdlr"), "hdlr");
+        ByteBuffer minf = require(Mp4BoxReader.find(mdia, "minf"), "minf");
+        ByteBuffer stbl = require(Mp4BoxReader.find(minf, "stbl"), "stbl");
+        dinf = require(Mp4BoxReader.find(minf, "dinf"), "dinf");
+        stsd = require(Mp4BoxReader.find(stbl, "stsd"), "stsd");
+
+        ByteBuffer header = null;
+        ByteBuffer children = Mp4BoxReader.payload(minf);
+        while (children.remaining() >= 8 && header == null) {
+            ByteBuffer child = Mp4BoxReader.next(children);
+            String type = Mp4BoxReader.type(child);
+            if (!type.equals("dinf") && !type.equals("stbl")) {
+                header = child;
+            }
+        }
+        mediaHeader = require(header, "media header");
+
+        // tkhd: creation, modification, id, reserved, duration, then the common fields
+        ByteBuffer t = Mp4BoxReader.fullPayload(tkhd);
+        boolean tkhdV1 = Mp4BoxReader.version(tkhd) == 1;
+        t.position(tkhdV1 ? 16 : 8);
+        trackId = t.getInt();
+        t.position(t.position() + 4 + (tkhdV1 ? 8 : 4) + 8);
+        layer = t.getShort() & 0xFFFF;
+        alternateGroup = t.getShort() & 0xFFFF;
+        volume = t.getShort() & 0xFFFF;
+        t.getShort();
+        t.get(matrix);
+        width = Mp4BoxReader.u32(t);
+        height = Mp4BoxReader.u32(t);
+
+        ByteBuffer m = Mp4BoxReader.fullPayload(mdhd);
+        m.position(Mp4BoxReader.version(mdhd) == 1 ? 16 : 8);
+        timescale = m.getInt();
+        m.position(m.position() + (Mp4BoxReader.version(mdhd) == 1 ? 8 : 4));
+        language = m.getShort() & 0xFFFF;
+
+        ByteBuffer h = Mp4BoxReader.fullPayload(hdlr);
+        h.position(4);
+        byte[] type = new byte[4];
+        h.get(type);
+        handler = new String(type, "US-ASCII");
+
+        sizes = readSizes(stbl);
+        sampleCount = sizes.length;
+        offsets = readOffsets(stbl, sizes);
+        durations = new int[sampleCount];
+        decodeTimes = new long[sampleCount];
+        readTimes(require(Mp4BoxReader.find(stbl, "stts"), "stts"));
+        compositionOffsets = readCompositionOffsets(Mp4BoxReader.find(stbl, "ctts"));
+        sync = readSync(Mp4BoxReader.find(stbl, "stss"));
+
+        long offsetUs = 0;
+        long mediaStart = 0;
+        ByteBuffer elst = Mp4BoxReader.findPath(trak, "edts", "elst");
+        if (elst != null) {
+            boolean v1 = Mp4BoxReader.version(elst) == 1;
+            ByteBuffer e = Mp4BoxReader.fullPayload(elst);
+            long entries = Mp4BoxReader.u32(e);
+            int normal = 0;
+            for (long i = 0; i < entries; i++) {
+                long duration = v1 ? e.getLong() : Mp4BoxReader.u32(e);
+                long mediaTime = v1 ? e.getLong() : e.getInt();
+                int rate = e.getInt();
+                if (mediaTime == -1 && normal == 0) {
+                    offsetUs += duration * 1000000L / movieTimescale;
+                } else if (normal++ == 0 && rate == 0x00010000) {
+                    mediaStart = mediaTime;
+                } else {
+                    throw new IOException("Unsupported edit list in track " + trackId);
+                }
+            }
+        }
+        startOffsetUs = offsetUs;
+        mediaStartTime = mediaStart;
+    }
+
+    /**
+     * Parses a <code>trak</code> box.
+     *
+     * @throws IOException if a required box is missing or malformed
+     */
+    static Mp4SampleTable parse(ByteBuffer trak, int movieTimescale) throws IOException {
+        try {
+            return new Mp4SampleTable(trak, movieTimescale);
+        } catch (RuntimeException e) {
+            // buffer underflows and bad indices from truncated tables
+            throw new IOException("Malformed track: " + e, e);
+        }
+    }
+
+    private static ByteBuffer require(ByteBuffer box, String name) throws IOException {
+        if (box == null) {
+            throw new IOException("Missing " + name + " box");
+        }
+        return box;
+    }
+
+    private static int[] readSizes(ByteBuffer stbl) throws IOException {
+        ByteBuffer stsz = Mp4BoxReader.find(stbl, "stsz");
+        if (stsz == null) {
+            throw new IOException("Missing stsz box; compact sample sizes are not supported");
+        }
+        ByteBuffer s = Mp4BoxReader.fullPayload(stsz);
+        int fixedSize = s.getInt();
+        int count = s.getInt();
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = fixedSize != 0 ? fixedSize : s.getInt();
+        }
+        return sizes;
+    }
+
+    private static long[] readOffsets(ByteBuffer stbl, int[] sizes) throws IOException {
+        int sampleCount = sizes.length;
+        ByteBuffer stco = Mp4BoxReader.find(stbl, "stco");
+        ByteBuffer co64 = Mp4BoxReader.find(stbl, "co64");
+        if (stco == null && co64 == null) {
+            throw new IOException("Missing chunk offsets");
+        }
+        ByteBuffer c = Mp4BoxReader.fullPayload(stco != null ? stco : co64);
+        int chunkCount = c.getInt();
+        long[] chunkOffsets = new long[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunkOffsets[i] = stco != null ? Mp4BoxReader.u32(c) : c.getLong();
+        }
+
+        ByteBuffer s = Mp4BoxReader.fullPayload(
+                require(Mp4BoxReader.find(stbl, "stsc"), "stsc"));
+        int entries = s.getInt();
+        int[] firstChunks = new int[entries];
+        int[] samplesPerChunk = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            firstChunks[i] = s.getInt();
+            samplesPerChunk[i] = s.getInt();
+            s.getInt();
+        }
+
+        long[] offsets = new long[sampleCount];
+        int sample = 0;
+        for (int entry = 0; entry < entries && sample < sampleCount; entry++) {
+            int lastChunk = entry + 1 < entries ? firstChunks[entry + 1] - 1 : chunkCount;
+            for (int chunk = firstChunks[entry]; chunk <= lastChunk && sample < sampleCount;
+                    chunk++) {
+                long offset = chunkOffsets[chunk - 1];
+                for (int i = 0; i < samplesPerChunk[entry] && sample < sampleCount; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample < sampleCount) {
+            throw new IOException("Chunk table covers " + sample + " of " + sampleCount
+                    + " samples");
+        }
+        return offsets;
+    }
+
+    private void readTimes(ByteBuffer stts) throws IOException {
+        ByteBuffer s = Mp4BoxReader.fullPayload(stts);
+        int entries = s.getInt();
+        int sample = 0;
+        long time = 0;
+        for (int entry = 0; entry < entries; entry++) {
+            int count = s.getInt();
+            int delta = s.getInt();
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                decodeTimes[sample] = time;
+                durations[sample] = delta;
+                time += delta;
+                sample++;
+            }
+        }
+        if (sample < sampleCount) {
+            throw new IOException("Time table covers " + sample + " of " + sampleCount
+                    + " samples");
+        }
+    }
+
+    private int[] readCompositionOffsets(ByteBuffer ctts) {
+        if (ctts == null) {
+            return null;
+        }
+        ByteBuffer c = Mp4BoxReader.fullPayload(ctts);
+        int entries = c.getInt();
+        int[] composition = new int[sampleCount];
+        int sample = 0;
+        for (int entry = 0; entry < entries; entry++) {
+            int count = c.getInt();
+            // version 0 offsets are unsigned but never large enough for the sign to matter
+            int offset = c.getInt();
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                composition[sample++] = offset;
+            }
+        }
+        return composition;
+    }
+
+    private boolean[] readSync(ByteBuffer stss) {
+        if (stss == null) {
+            return null;
+        }
+        ByteBuffer s = Mp4BoxReader.fullPayload(stss);
+        int entries = s.getInt();
+        boolean[] sync = new boolean[sampleCount];
+        for (int i = 0; i < entries; i++) {
+            int sample = s.getInt();
+            if (sample >= 1 && sample <= sampleCount) {
+                sync[sample - 1] = true;
+            }
+        }
+        return sync;
+    }
+
+    boolean isVideo() {
+        return "vide".equals(handler);
+    }
+
+    boolean isSync(int sample) {
+        return sync == null || sync[sample];
+    }
+
+    int compositionOffset(int sample) {
+        return compositionOffsets != null ? compositionOffsets[sample] : 0;
+    }
+
+    /**
+     * @return when the sample is presented, in microseconds from the start of the movie
+     */
+    long presentationTimeUs(int sample) {
+        long mediaTime = decodeTimes[sample] + compositionOffset(sample) - mediaStartTime;
+        return startOffsetUs + mediaTime * 1000000L / timescale;
+    }
+
+    /**
+     * @return the end of the last sample, in microseconds from the start of the movie
+     */
+    long endTimeUs() {
+        if (sampleCount == 0) {
+            return startOffsetUs;
+        }
+        long end = decodeTimes[sampleCount - 1] + durations[sampleCount - 1] - mediaStartTime;
+        return startOffsetUs + end * 1000000L / timescale;
+    }
+
+    /**
+     * @return true if samples of <code>other</code> can follow this track's in one track
+     */
+    boolean isCompatible(Mp4SampleTable other) {
+        return handler.equals(other.handler) && timescale == other.timescale
+                && stsd.equals(other.stsd);
+    }
+}
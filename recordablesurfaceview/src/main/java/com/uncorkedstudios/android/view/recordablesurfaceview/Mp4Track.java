@@ -0,0 +1,459 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * One track of an MP4 written by the library: its sample description, derived from the
+ * encoder's output {@link MediaFormat}, and its sample table.
+ * <p>
+ * Supports H.264 video and AAC audio, which is what the recorder produces by default.
+ */
+class Mp4Track {
+
+    static final int VIDEO_TIMESCALE = 90000;
+
+    private final int mTrackId;
+
+    private final boolean mVideo;
+
+    private final int mTimescale;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private int mSampleRate;
+
+    private int mChannelCount;
+
+    private byte[] mSps;
+
+    private byte[] mPps;
+
+    private byte[] mAudioSpecificConfig;
+
+    private int mSampleCount = 0;
+
+    private int[] mSizes = new int[256];
+
+    private long[] mOffsets = new long[256];
+
+    private long[] mTimesUs = new long[256];
+
+    private int[] mSyncSamples = new int[16];
+
+    private int mSyncCount = 0;
+
+    private Mp4Track(int trackId, boolean video, int timescale) {
+        mTrackId = trackId;
+        mVideo = video;
+        mTimescale = timescale;
+    }
+
+    /**
+     * @return true if the library MP4 writers can describe tracks of this format
+     */
+    static boolean isSupported(String mimeType) {
+        return MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)
+                || MediaFormat.MIMETYPE_AUDIO_AAC.equals(mimeType);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the format is not supported
+     */
+    static Mp4Track fromFormat(int trackId, MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return avc(trackId, format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    stripStartCode(format.getByteBuffer("csd-0")),
+                    stripStartCode(format.getByteBuffer("csd-1")));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return aac(trackId, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    stripStartCode(format.getByteBuffer("csd-0")));
+        }
+        throw new IllegalArgumentException("Unsupported track format " + mime);
+    }
+
+    /**
+     * @param sps sequence parameter set without start code
+     * @param pps picture parameter set without start code
+     */
+    static Mp4Track avc(int trackId, int width, int height, byte[] sps, byte[] pps) {
+        Mp4Track track = new Mp4Track(trackId, true, VIDEO_TIMESCALE);
+        track.mWidth = width;
+        track.mHeight = height;
+        track.mSps = sps;
+        track.mPps = pps;
+        return track;
+    }
+
+    static Mp4Track aac(int trackId, int sampleRate, int channelCount,
+                        byte[] audioSpecificConfig) {
+        Mp4Track track = new Mp4Track(trackId, false, sampleRate);
+        track.mSampleRate = sampleRate;
+        track.mChannelCount = channelCount;
+        track.mAudioSpecificConfig = audioSpecificConfig;
+        return track;
+    }
+
+    private static byte[] stripStartCode(ByteBuffer csd) {
+        if (csd == null) {
+            return new byte[0];
+        }
+        ByteBuffer data = csd.duplicate();
+        data.position(0);
+        int skip = AnnexB.startCodeLength(data, 0);
+        byte[] bytes = new byte[data.limit() - skip];
+        data.position(skip);
+        data.get(bytes);
+        return bytes;
+    }
+
+    int getTrackId() {
+        return mTrackId;
+    }
+
+    boolean isVideo() {
+        return mVideo;
+    }
+
+    int getTimescale() {
+        return mTimescale;
+    }
+
+    int getSampleCount() {
+        return mSampleCount;
+    }
+
+    long getFirstTimeUs() {
+        return mSampleCount > 0 ? mTimesUs[0] : 0;
+    }
+
+    void addSample(long offset, int size, long timeUs, boolean sync) {
+        if (mSampleCount == mSizes.length) {
+            int capacity = mSizes.length * 2;
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mTimesUs = Arrays.copyOf(mTimesUs, capacity);
+        }
+        if (sync && mVideo) {
+            if (mSyncCount == mSyncSamples.length) {
+                mSyncSamples = Arrays.copyOf(mSyncSamples, mSyncCount * 2);
+            }
+            mSyncSamples[mSyncCount++] = mSampleCount + 1;
+        }
+        mSizes[mSampleCount] = size;
+        mOffsets[mSampleCount] = offset;
+        mTimesUs[mSampleCount] = timeUs;
+        mSampleCount++;
+    }
+
+    /**
+     * Moves every sample's file offset, after the media data was moved.
+     */
+    void shiftOffsets(long delta) {
+        for (int i = 0; i < mSampleCount; i++) {
+            mOffsets[i] += delta;
+        }
+    }
+
+    /**
+     * Duration of sample <code>index</code> in track timescale units. The last sample repeats
+     * the previous duration.
+     */
+    long sampleDuration(int index) {
+        if (mSampleCount < 2) {
+            return defaultSampleDuration();
+        }
+        if (index == mSampleCount - 1) {
+            index--;
+        }
+        long delta = toTimescale(mTimesUs[index + 1]) - toTimescale(mTimesUs[index]);
+        return Math.max(0, delta);
+    }
+
+    long defaultSampleDuration() {
+        return mVideo ? mTimescale / 30 : 1024;
+    }
+
+    /**
+     * @return the track duration in its own timescale
+     */
+    long duration() {
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        return toTimescale(mTimesUs[mSampleCount - 1]) - toTimescale(mTimesUs[0])
+                + sampleDuration(mSampleCount - 1);
+    }
+
+    long toTimescale(long timeUs) {
+        return timeUs * mTimescale / 1000000L;
+    }
+
+    /**
+     * Writes the complete <code>trak</code> box including the sample table.
+     *
+     * @param movieTimescale  the <code>mvhd</code> timescale
+     * @param startOffsetUs   how long after the movie start this track begins; written as an
+     *                        empty edit so tracks stay in sync
+     * @param orientationHint rotation applied to video tracks (0, 90, 180 or 270)
+     */
+    void writeTrak(Mp4BoxWriter w, int movieTimescale, long startOffsetUs,
+                   int orientationHint) {
+        long durationMovie = duration() * movieTimescale / mTimescale;
+        long offsetMovie = startOffsetUs * movieTimescale / 1000000L;
+
+        int trak = w.start("trak");
+        writeTkhd(w, durationMovie + offsetMovie, orientationHint);
+
+        if (offsetMovie > 0) {
+            int edts = w.start("edts");
+            int elst = w.startFull("elst", 0, 0);
+            w.u32(2);
+            w.u32(offsetMovie).u32(0xFFFFFFFFL).u32(0x00010000);
+            w.u32(durationMovie).u32(0).u32(0x00010000);
+            w.end(elst);
+            w.end(edts);
+        }
+
+        int mdia = w.start("mdia");
+        writeMdhd(w, duration());
+        writeHdlr(w);
+        int minf = w.start("minf");
+        writeMediaHeader(w);
+        int stbl = w.start("stbl");
+        writeStsd(w);
+        writeStts(w);
+        if (mVideo) {
+            int stss = w.startFull("stss", 0, 0);
+            w.u32(mSyncCount);
+            for (int i = 0; i < mSyncCount; i++) {
+                w.u32(mSyncSamples[i]);
+            }
+            w.end(stss);
+        }
+        // one sample per chunk keeps the tables trivially consistent with interleaved writes
+        int stsc = w.startFull("stsc", 0, 0);
+        w.u32(1).u32(1).u32(1).u32(1);
+        w.end(stsc);
+        int stsz = w.startFull("stsz", 0, 0);
+        w.u32(0).u32(mSampleCount);
+        for (int i = 0; i < mSampleCount; i++) {
+            w.u32(mSizes[i]);
+        }
+        w.end(stsz);
+        writeChunkOffsets(w);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+    }
+
+    /**
+     * Writes a <code>trak</code> with empty sample tables, as used by fragmented files.
+     */
+    void writeEmptyTrak(Mp4BoxWriter w, int orientationHint) {
+        int trak = w.start("trak");
+        writeTkhd(w, 0, orientationHint);
+        int mdia = w.start("mdia");
+        writeMdhd(w, 0);
+        writeHdlr(w);
+        int minf = w.start("minf");
+        writeMediaHeader(w);
+        int stbl = w.start("stbl");
+        writeStsd(w);
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = w.startFull(type, 0, 0);
+            w.u32(0);
+            w.end(box);
+        }
+        int stsz = w.startFull("stsz", 0, 0);
+        w.u32(0).u32(0);
+        w.end(stsz);
+        w.end(stbl);
+        w.end(minf);
+        w.end(mdia);
+        w.end(trak);
+    }
+
+    private void writeTkhd(Mp4BoxWriter w, long durationMovie, int orientationHint) {
+        int tkhd = w.startFull("tkhd", 0, 0x3);
+        w.u32(0).u32(0).u32(mTrackId).u32(0).u32(durationMovie);
+        w.zeros(8);
+        w.u16(0).u16(mVideo ? 0 : 1).u16(mVideo ? 0 : 0x0100).u16(0);
+        writeMatrix(w, mVideo ? orientationHint : 0);
+        w.u32(mVideo ? (long) mWidth << 16 : 0).u32(mVideo ? (long) mHeight << 16 : 0);
+        w.end(tkhd);
+    }
+
+    private void writeMdhd(Mp4BoxWriter w, long duration) {
+        int mdhd = w.startFull("mdhd", 0, 0);
+        // 0x55C4 is the packed ISO 639 code for "und"
+        w.u32(0).u32(0).u32(mTimescale).u32(duration).u16(0x55C4).u16(0);
+        w.end(mdhd);
+    }
+
+    private void writeHdlr(Mp4BoxWriter w) {
+        int hdlr = w.startFull("hdlr", 0, 0);
+        w.u32(0).fourcc(mVideo ? "vide" : "soun").zeros(12);
+        w.string(mVideo ? "VideoHandle" : "SoundHandle");
+        w.end(hdlr);
+    }
+
+    private void writeMediaHeader(Mp4BoxWriter w) {
+        if (mVideo) {
+            int vmhd = w.startFull("vmhd", 0, 1);
+            w.zeros(8);
+            w.end(vmhd);
+        } else {
+            int smhd = w.startFull("smhd", 0, 0);
+            w.zeros(4);
+            w.end(smhd);
+        }
+        int dinf = w.start("dinf");
+        int dref = w.startFull("dref", 0, 0);
+        w.u32(1);
+        int url = w.startFull("url ", 0, 1);
+        w.end(url);
+        w.end(dref);
+        w.end(dinf);
+    }
+
+    /**
+     * Writes the <code>stsd</code> box with the single sample entry of this track.
+     */
+    void writeStsd(Mp4BoxWriter w) {
+        int stsd = w.startFull("stsd", 0, 0);
+        w.u32(1);
+        if (mVideo) {
+            int avc1 = w.start("avc1");
+            w.zeros(6).u16(1);
+            w.zeros(16);
+            w.u16(mWidth).u16(mHeight);
+            w.u32(0x00480000).u32(0x00480000).u32(0).u16(1);
+            w.zeros(32);
+            w.u16(0x0018).u16(0xFFFF);
+            int avcC = w.start("avcC");
+            w.u8(1);
+            w.u8(mSps.length > 1 ? mSps[1] : 0);
+            w.u8(mSps.length > 2 ? mSps[2] : 0);
+            w.u8(mSps.length > 3 ? mSps[3] : 0);
+            w.u8(0xFF);
+            w.u8(0xE1).u16(mSps.length).bytes(mSps);
+            w.u8(1).u16(mPps.length).bytes(mPps);
+            w.end(avcC);
+            w.end(avc1);
+        } else {
+            int mp4a = w.start("mp4a");
+            w.zeros(6).u16(1);
+            w.zeros(8);
+            w.u16(mChannelCount).u16(16).u16(0).u16(0);
+            w.u32((long) mSampleRate << 16);
+            writeEsds(w);
+            w.end(mp4a);
+        }
+        w.end(stsd);
+    }
+
+    private void writeEsds(Mp4BoxWriter w) {
+        int asc = mAudioSpecificConfig.length;
+        int esds = w.startFull("esds", 0, 0);
+        // ES_Descriptor > DecoderConfigDescriptor > DecoderSpecificInfo, SLConfigDescriptor
+        w.u8(0x03).u8(3 + 2 + 13 + 2 + asc + 3);
+        w.u16(mTrackId).u8(0);
+        w.u8(0x04).u8(13 + 2 + asc);
+        w.u8(0x40).u8(0x15).u24(0).u32(0).u32(0);
+        w.u8(0x05).u8(asc).bytes(mAudioSpecificConfig);
+        w.u8(0x06).u8(1).u8(0x02);
+        w.end(esds);
+    }
+
+    private void writeStts(Mp4BoxWriter w) {
+        int stts = w.startFull("stts", 0, 0);
+        int countOffset = w.size();
+        w.u32(0);
+        int entries = 0;
+        int run = 0;
+        long runDelta = -1;
+        for (int i = 0; i < mSampleCount; i++) {
+            long delta = sampleDuration(i);
+            if (delta == runDelta) {
+                run++;
+            } else {
+                if (run > 0) {
+                    w.u32(run).u32(runDelta);
+                    entries++;
+                }
+                run = 1;
+                runDelta = delta;
+            }
+        }
+        if (run > 0) {
+            w.u32(run).u32(runDelta);
+            entries++;
+        }
+        w.setU32(countOffset, entries);
+        w.end(stts);
+    }
+
+    private void writeChunkOffsets(Mp4BoxWriter w) {
+        boolean large = mSampleCount > 0 && mOffsets[mSampleCount - 1] > 0xFFFFFFFFL;
+        int box = w.startFull(large ? "co64" : "stco", 0, 0);
+        w.u32(mSampleCount);
+        for (int i = 0; i < mSampleCount; i++) {
+            if (large) {
+                w.u64(mOffsets[i]);
+            } else {
+                w.u32(mOffsets[i]);
+            }
+        }
+        w.end(box);
+    }
+
+    static void writeMatrix(Mp4BoxWriter w, int degrees) {
+        int a = 0x10000, b = 0, c = 0, d = 0x10000;
+        switch (degrees) {
+            case 90:
+                a = 0;
+                b = 0x10000;
+                c = -0x10000;
+                d = 0;
+                break;
+            case 180:
+                a = -0x10000;
+                d = -0x10000;
+                break;
+            case 270:
+                a = 0;
+                b = -0x10000;
+                c = 0x10000;
+                d = 0;
+                break;
+            default:
+                break;
+        }
+        w.u32(a & 0xFFFFFFFFL).u32(b & 0xFFFFFFFFL).u32(0);
+        w.u32(c & 0xFFFFFFFFL).u32(d & 0xFFFFFFFFL).u32(0);
+        w.u32(0).u32(0).u32(0x40000000);
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * Renders {@link RecordableSurfaceView.RendererCallbacks} straight into the encoder, without a
+ * view or display, as fast as the encoder accepts frames.
+ * <p>
+ * Frames are timestamped from a fixed-step virtual clock at the configured frame rate instead of
+ * the wall clock, so deterministic content exports identically regardless of how long each frame
+ * takes to render. Renderers read the clock from {@link #getFrameTimeNanos()} in
+ * {@link RecordableSurfaceView.RendererCallbacks#onPreDrawFrame()}.
+ * <p>
+ * The GL context is bound to a pbuffer surface while the renderer is set up, so no window is
+ * needed. With {@link #setDrawDisplayPass(boolean)} the renderer is also asked to draw every
+ * frame into that pbuffer first, matching the two draws per frame of a live recording.
+ * <p>
+ * Audio is not recorded; the config must use {@link RecorderConfig#AUDIO_SOURCE_NONE}.
+ */
+public class OfflineExporter {
+
+    private static final String TAG = OfflineExporter.class.getSimpleName();
+
+    // frames the encoder may hold before rendering waits; enough to keep it busy
+    private static final int MAX_FRAMES_IN_FLIGHT = 2;
+
+    private static final long ENCODER_STALL_TIMEOUT_MS = 5000;
+
+    /**
+     * Progress of an export. Called on the export thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param framesRendered  frames submitted to the encoder so far
+         * @param totalFrames     frames in the whole export
+         * @param framesPerSecond throughput since the export started
+         */
+        void onProgress(int framesRendered, int totalFrames, float framesPerSecond);
+
+        /**
+         * The export has finished, failed or was cancelled.
+         *
+         * @param success         true if a complete recording was written
+         * @param framesRendered  frames submitted to the encoder
+         * @param framesPerSecond throughput of the whole export
+         */
+        void onComplete(boolean success, int framesRendered, float framesPerSecond);
+    }
+
+    private final RecorderConfig mConfig;
+
+    private final RecordableSurfaceView.RendererCallbacks mRendererCallbacks;
+
+    private int mFrameCount;
+
+    private Listener mListener;
+
+    private int mProgressInterval = 30;
+
+    private boolean mDrawDisplayPass = false;
+
+    private OverlayCompositor mOverlayCompositor;
+
+    private volatile long mFrameTimeNanos = 0;
+
+    private volatile int mFrameIndex = 0;
+
+    private volatile boolean mCancelled = false;
+
+    private Thread mExportThread;
+
+    /**
+     * @param config    the recording settings; the frame rate sets the virtual clock step
+     * @param callbacks the renderer to export
+     * @throws IllegalArgumentException if the config records audio
+     */
+    public OfflineExporter(RecorderConfig config,
+            RecordableSurfaceView.RendererCallbacks callbacks) {
+        if (config.getAudioSource() != RecorderConfig.AUDIO_SOURCE_NONE) {
+            throw new IllegalArgumentException("Offline export does not record audio");
+        }
+        mConfig = config;
+        mRendererCallbacks = callbacks;
+    }
+
+    /**
+     * @param frames the number of frames to export
+     */
+    public OfflineExporter setFrameCount(int frames) {
+        mFrameCount = frames;
+        return this;
+    }
+
+    /**
+     * Sets the number of frames from a duration at the configured frame rate.
+     *
+     * @param durationMs the length of the export
+     */
+    public OfflineExporter setDurationMs(long durationMs) {
+        mFrameCount = (int) Math.ceil(durationMs * mConfig.getFrameRate() / 1000.0);
+        return this;
+    }
+
+    public OfflineExporter setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @param frames how often {@link Listener#onProgress(int, int, float)} is called
+     */
+    public OfflineExporter setProgressInterval(int frames) {
+        mProgressInterval = Math.max(1, frames);
+        return this;
+    }
+
+    /**
+     * Also draws every frame into the offscreen pbuffer before the encoder pass, for renderers
+     * that rely on being called twice per frame as in a live recording. Off by default, since it
+     * halves throughput.
+     *
+     * @param draw true to draw the extra pass
+     */
+    public OfflineExporter setDrawDisplayPass(boolean draw) {
+        mDrawDisplayPass = draw;
+        return this;
+    }
+
+    /**
+     * Draws overlays over every exported frame, after the renderer.
+     *
+     * @param compositor the compositor to use, or null for none
+     * @see OverlayCompositor
+     */
+    public OfflineExporter setOverlayCompositor(OverlayCompositor compositor) {
+        mOverlayCompositor = compositor;
+        return this;
+    }
+
+    /**
+     * The virtual time of the frame being rendered, starting at 0 and advancing by exactly one
+     * frame interval per frame.
+     *
+     * @return the frame time in nanoseconds
+     */
+    public long getFrameTimeNanos() {
+        return mFrameTimeNanos;
+    }
+
+    /**
+     * @return the index of the frame being rendered
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    /**
+     * Starts exporting on a new thread, which owns the GL context for the duration of the export.
+     *
+     * @throws IllegalStateException if already started or no frame count is set
+     */
+    public synchronized void start() {
+        if (mExportThread != null) {
+            throw new IllegalStateException("Export already started.");
+        }
+        if (mFrameCount <= 0) {
+            throw new IllegalStateException("No frames to export.");
+        }
+        mExportThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                export();
+            }
+        }, TAG);
+        mExportThread.start();
+    }
+
+    /**
+     * Stops the export after the current frame. The partial recording is finalized and
+     * {@link Listener#onComplete(boolean, int, float)} reports failure.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Waits for the export thread to finish.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void join() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mExportThread;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    private void export() {
+        int width = mConfig.getWidth();
+        int height = mConfig.getHeight();
+        int frameRate = mConfig.getFrameRate();
+
+        Surface inputSurface = MediaCodec.createPersistentInputSurface();
+        CodecRecorder recorder;
+        try {
+            recorder = new CodecRecorder(mConfig, inputSurface);
+            if (recorder.getBufferInput() != null) {
+                recorder.release();
+                throw new IOException("Offline export needs an encoder with surface input");
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Could not create encoder", e);
+            inputSurface.release();
+            notifyComplete(false, 0, 0);
+            return;
+        }
+
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        EGL14.eglInitialize(display, version, 0, version, 1);
+        EGLConfig eglConfig = chooseEglConfig(display);
+        EGLContext context = EGL14.eglCreateContext(display, eglConfig, EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        EGLSurface pbuffer = EGL14.eglCreatePbufferSurface(display, eglConfig,
+                new int[]{EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT, height, EGL14.EGL_NONE}, 0);
+        EGLSurface mediaSurface = EGL14.eglCreateWindowSurface(display, eglConfig, inputSurface,
+                new int[]{EGL14.EGL_NONE}, 0);
+        EGL14.eglMakeCurrent(display, pbuffer, pbuffer, context);
+
+        // same order as RecordableSurfaceView's render thread
+        mRendererCallbacks.onSurfaceCreated();
+        GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+        mRendererCallbacks.onContextCreated();
+        GLES20.glViewport(0, 0, width, height);
+        mRendererCallbacks.onSurfaceChanged(width, height);
+
+        RenderPass displayPass = new RenderPass(RenderPass.TARGET_DISPLAY);
+        RenderPass recordingPass = new RenderPass(RenderPass.TARGET_RECORDING);
+        boolean success = true;
+        int rendered = 0;
+        long startNs = System.nanoTime();
+        try {
+            recorder.start();
+            for (int i = 0; i < mFrameCount && !mCancelled; i++) {
+                if (!recorder.awaitFramesInFlight(MAX_FRAMES_IN_FLIGHT,
+                        ENCODER_STALL_TIMEOUT_MS)) {
+                    Log.e(TAG, "Encoder stalled at frame " + i);
+                    success = false;
+                    break;
+                }
+                mFrameIndex = i;
+                mFrameTimeNanos = i * 1000000000L / frameRate;
+                mRendererCallbacks.onPreDrawFrame();
+
+                if (mDrawDisplayPass) {
+                    displayPass.set(width, height, i, false);
+                    displayPass.dispatch(mRendererCallbacks);
+                    EGL14.eglSwapBuffers(display, pbuffer);
+                }
+
+                EGL14.eglMakeCurrent(display, mediaSurface, mediaSurface, context);
+                recordingPass.set(width, height, i, mDrawDisplayPass);
+                recordingPass.dispatch(mRendererCallbacks);
+                if (mOverlayCompositor != null) {
+                    mOverlayCompositor.draw(width, height);
+                }
+                EGLExt.eglPresentationTimeANDROID(display, mediaSurface, mFrameTimeNanos);
+                EGL14.eglSwapBuffers(display, mediaSurface);
+                recorder.onFrameSubmitted();
+                EGL14.eglMakeCurrent(display, pbuffer, pbuffer, context);
+                rendered++;
+
+                if (mListener != null && rendered % mProgressInterval == 0) {
+                    mListener.onProgress(rendered, mFrameCount, framesPerSecond(rendered, startNs));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            success = false;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Could not start encoder", e);
+            success = false;
+        }
+
+        mRendererCallbacks.onSurfaceDestroyed();
+        if (mOverlayCompositor != null) {
+            mOverlayCompositor.releaseGl();
+        }
+        EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(display, mediaSurface);
+        EGL14.eglDestroySurface(display, pbuffer);
+        EGL14.eglDestroyContext(display, context);
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(display);
+
+        success &= recorder.stop() && !mCancelled;
+        inputSurface.release();
+        notifyComplete(success, rendered, framesPerSecond(rendered, startNs));
+    }
+
+    private static EGLConfig chooseEglConfig(EGLDisplay display) {
+        int[] attribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGLExt.EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_DEPTH_SIZE, 16,
+                EGL14.EGL_NONE
+        };
+        int[] configsCount = new int[]{0};
+        EGLConfig[] configs = new EGLConfig[1];
+        EGL14.eglChooseConfig(display, attribs, 0, configs, 0, configs.length, configsCount, 0);
+        return configs[0];
+    }
+
+    private static float framesPerSecond(int frames, long startNs) {
+        long elapsedNs = System.nanoTime() - startNs;
+        return elapsedNs > 0 ? frames * 1e9f / elapsedNs : 0;
+    }
+
+    private void notifyComplete(boolean success, int frames, float framesPerSecond) {
+        if (mListener != null) {
+            mListener.onComplete(success, frames, framesPerSecond);
+        }
+    }
+}
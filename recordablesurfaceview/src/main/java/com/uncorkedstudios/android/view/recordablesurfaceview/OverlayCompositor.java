@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Draws {@link OverlayLayer}s over the recorded video only, after the renderer's media pass.
+ * The on-screen pass is untouched, so the app does not need to know which pass it is drawing.
+ * <p>
+ * All layers share one texture atlas and are drawn with a single draw call. Layers are
+ * rasterized and uploaded only when invalidated; when the atlas fills up it is repacked from
+ * scratch.
+ * <p>
+ * Drawing changes the bound program, the texture bound to unit 0 and the blend function, and
+ * leaves blending and the depth test disabled and no array buffer bound, their GL defaults.
+ * The previous state is not queried, which would stall some drivers every frame, so renderers
+ * that rely on blending or the depth test should enable them in each draw call.
+ *
+ * @see RecordableSurfaceView#setOverlayCompositor(OverlayCompositor)
+ */
+public class OverlayCompositor {
+
+    private static final String TAG = OverlayCompositor.class.getSimpleName();
+
+    private static final int DEFAULT_ATLAS_SIZE = 1024;
+
+    private static final int ATLAS_PADDING = 1;
+
+    // x, y, u, v, alpha
+    private static final int FLOATS_PER_VERTEX = 5;
+
+    private static final int VERTICES_PER_LAYER = 6;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n"
+                    + "attribute vec2 aTexCoord;\n"
+                    + "attribute float aAlpha;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "varying float vAlpha;\n"
+                    + "void main() {\n"
+                    + "  vTexCoord = aTexCoord;\n"
+                    + "  vAlpha = aAlpha;\n"
+                    + "  gl_Position = vec4(aPosition, 0.0, 1.0);\n"
+                    + "}\n";
+
+    // bitmaps are uploaded with premultiplied alpha
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n"
+                    + "uniform sampler2D uTexture;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "varying float vAlpha;\n"
+                    + "void main() {\n"
+                    + "  gl_FragColor = texture2D(uTexture, vTexCoord) * vAlpha;\n"
+                    + "}\n";
+
+    private final List<OverlayLayer> mLayers = new CopyOnWriteArrayList<>();
+
+    private final TextureAtlas mAtlas;
+
+    private final OverlaySlots<OverlayLayer> mSlots;
+
+    private final float[] mBounds = new float[4];
+
+    private FloatBuffer mVertices;
+
+    private int mProgram = 0;
+
+    private int mTexture = 0;
+
+    private int mPositionHandle;
+
+    private int mTexCoordHandle;
+
+    private int mAlphaHandle;
+
+    private int mTextureHandle;
+
+    private long mUploads = 0;
+
+    public OverlayCompositor() {
+        this(DEFAULT_ATLAS_SIZE);
+    }
+
+    /**
+     * @param atlasSize width and height of the shared layer texture; no layer may be larger
+     */
+    public OverlayCompositor(int atlasSize) {
+        mAtlas = new TextureAtlas(atlasSize, atlasSize, ATLAS_PADDING);
+        mSlots = new OverlaySlots<>(mAtlas);
+    }
+
+    /**
+     * Adds a layer on top of the existing ones.
+     */
+    public void addLayer(OverlayLayer layer) {
+        if (!mLayers.contains(layer)) {
+            mLayers.add(layer);
+        }
+    }
+
+    public void removeLayer(OverlayLayer layer) {
+        mLayers.remove(layer);
+    }
+
+    /**
+     * @return how many times layer content has been uploaded to the atlas
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getUploadCount() {
+        return mUploads;
+    }
+
+    /**
+     * @return how many times the atlas ran out of room and was repacked
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getRepackCount() {
+        return mSlots.getRepackCount();
+    }
+
+    /**
+     * Uploads invalidated layers and draws all visible ones. Must be called on the GL thread
+     * with the target surface current.
+     *
+     * @param width  width of the target
+     * @param height height of the target
+     */
+    void draw(int width, int height) {
+        if (mLayers.isEmpty() || width <= 0 || height <= 0) {
+            return;
+        }
+        if (mProgram == 0) {
+            initGl();
+        }
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        uploadLayers();
+
+        int count = buildVertices(width, height);
+        if (count == 0) {
+            return;
+        }
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glUniform1i(mTextureHandle, 0);
+        int stride = FLOATS_PER_VERTEX * 4;
+        mVertices.position(0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2, GLES20.GL_FLOAT, false, stride,
+                mVertices);
+        mVertices.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false, stride,
+                mVertices);
+        mVertices.position(4);
+        GLES20.glVertexAttribPointer(mAlphaHandle, 1, GLES20.GL_FLOAT, false, stride,
+                mVertices);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        GLES20.glEnableVertexAttribArray(mAlphaHandle);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, count * VERTICES_PER_LAYER);
+
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        GLES20.glDisableVertexAttribArray(mTexCoordHandle);
+        GLES20.glDisableVertexAttribArray(mAlphaHandle);
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * Deletes the GL objects. Must be called on the GL thread before its context is destroyed;
+     * they are recreated on the next draw.
+     */
+    void releaseGl() {
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+            mProgram = 0;
+            mTexture = 0;
+        }
+        mSlots.clear();
+    }
+
+    private void initGl() {
+        mProgram = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+        mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+        mAlphaHandle = GLES20.glGetAttribLocation(mProgram, "aAlpha");
+        mTextureHandle = GLES20.glGetUniformLocation(mProgram, "uTexture");
+
+        mTexture = GlUtil.createTexture();
+        // start from transparent texels so the padding between regions is clean
+        ByteBuffer clear = ByteBuffer.allocateDirect(mAtlas.getWidth() * mAtlas.getHeight() * 4);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mAtlas.getWidth(),
+                mAtlas.getHeight(), 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, clear);
+        GlUtil.logGlError("OverlayCompositor init");
+    }
+
+    private void uploadLayers() {
+        // forget layers that were removed
+        mSlots.retain(mLayers);
+
+        // a repack invalidates every region, so go around once more to re-upload everything
+        for (int pass = 0; pass < 2; pass++) {
+            boolean repacked = false;
+            for (OverlayLayer layer : mLayers) {
+                OverlaySlots.Slot slot = mSlots.get(layer);
+                int version = layer.getVersion();
+                if (!layer.isVisible() || version == slot.uploadedVersion) {
+                    continue;
+                }
+                if (!upload(layer, slot, version, pass == 0)) {
+                    repacked = true;
+                    break;
+                }
+            }
+            if (!repacked) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the atlas had to be repacked, leaving other layers to upload again
+     */
+    private boolean upload(OverlayLayer layer, OverlaySlots.Slot slot, int version,
+            boolean mayRepack) {
+        Bitmap bitmap = layer.rasterize();
+        slot.uploadedVersion = version;
+        if (bitmap == null) {
+            slot.empty = true;
+            return true;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        switch (mSlots.place(slot, width, height, mayRepack)) {
+            case OverlaySlots.PLACE_REPACKED:
+                return false;
+            case OverlaySlots.PLACE_TOO_LARGE:
+                Log.w(TAG, "Overlay of " + width + "x" + height + " does not fit the atlas");
+                return true;
+            case OverlaySlots.PLACE_OK:
+            default:
+                GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, slot.region.x, slot.region.y,
+                        bitmap);
+                mUploads++;
+                return true;
+        }
+    }
+
+    private int buildVertices(int width, int height) {
+        int capacity = mLayers.size() * VERTICES_PER_LAYER * FLOATS_PER_VERTEX;
+        if (mVertices == null || mVertices.capacity() < capacity) {
+            mVertices = GlUtil.createFloatBuffer(capacity);
+        }
+        mVertices.clear();
+
+        float atlasWidth = mAtlas.getWidth();
+        float atlasHeight = mAtlas.getHeight();
+        int count = 0;
+        for (OverlayLayer layer : mLayers) {
+            OverlaySlots.Slot slot = mSlots.find(layer);
+            if (slot == null || slot.empty || !layer.isVisible() || layer.getAlpha() <= 0f) {
+                continue;
+            }
+            layer.computeBounds(slot.width, slot.height, width, height, mBounds);
+            float u0 = slot.region.x / atlasWidth;
+            float v0 = slot.region.y / atlasHeight;
+            float u1 = (slot.region.x + slot.width) / atlasWidth;
+            float v1 = (slot.region.y + slot.height) / atlasHeight;
+            float alpha = layer.getAlpha();
+
+            putVertex(mBounds[0], mBounds[1], u0, v0, alpha);
+            putVertex(mBounds[0], mBounds[3], u0, v1, alpha);
+            putVertex(mBounds[2], mBounds[1], u1, v0, alpha);
+            putVertex(mBounds[2], mBounds[1], u1, v0, alpha);
+            putVertex(mBounds[0], mBounds[3], u0, v1, alpha);
+            putVertex(mBounds[2], mBounds[3], u1, v1, alpha);
+            count++;
+        }
+        return count;
+    }
+
+    private void putVertex(float x, float y, float u, float v, float alpha) {
+        mVertices.put(x).put(y).put(u).put(v).put(alpha);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content drawn over the recorded video by an {@link OverlayCompositor}, but not on screen.
+ * <p>
+ * A layer's pixels are cached in the compositor's texture atlas and only rasterized and uploaded
+ * again after {@link #invalidate()}. Placement and opacity may change every frame at no cost.
+ * Setters may be called from any thread.
+ */
+public abstract class OverlayLayer {
+
+    public static final int ANCHOR_TOP_LEFT = 0;
+
+    public static final int ANCHOR_TOP_RIGHT = 1;
+
+    public static final int ANCHOR_BOTTOM_LEFT = 2;
+
+    public static final int ANCHOR_BOTTOM_RIGHT = 3;
+
+    public static final int ANCHOR_CENTER = 4;
+
+    private final AtomicInteger mVersion = new AtomicInteger(0);
+
+    private volatile int mAnchor = ANCHOR_TOP_LEFT;
+
+    private volatile float mOffsetX = 0;
+
+    private volatile float mOffsetY = 0;
+
+    private volatile float mScale = 1f;
+
+    private volatile float mAlpha = 1f;
+
+    private volatile boolean mVisible = true;
+
+    /**
+     * Produces the layer's current pixels. Called on the GL thread, only when the layer has been
+     * invalidated since the last upload. The returned bitmap is not recycled by the compositor.
+     *
+     * @return the content, or null for nothing
+     */
+    protected abstract Bitmap rasterize();
+
+    /**
+     * Marks the content as changed so it is rasterized and uploaded before the next recorded
+     * frame.
+     */
+    public void invalidate() {
+        mVersion.incrementAndGet();
+    }
+
+    /**
+     * Places the layer relative to a corner (or the center) of the recorded frame.
+     *
+     * @param anchor  one of the ANCHOR_ constants
+     * @param offsetX distance from the anchor in output pixels, towards the frame's center
+     * @param offsetY distance from the anchor in output pixels, towards the frame's center
+     */
+    public OverlayLayer setPosition(int anchor, float offsetX, float offsetY) {
+        mAnchor = anchor;
+        mOffsetX = offsetX;
+        mOffsetY = offsetY;
+        return this;
+    }
+
+    public OverlayLayer setScale(float scale) {
+        mScale = scale;
+        return this;
+    }
+
+    public OverlayLayer setAlpha(float alpha) {
+        mAlpha = Math.max(0f, Math.min(1f, alpha));
+        return this;
+    }
+
+    public OverlayLayer setVisible(boolean visible) {
+        mVisible = visible;
+        return this;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public boolean isVisible() {
+        return mVisible;
+    }
+
+    float getAlpha() {
+        return mAlpha;
+    }
+
+    /**
+     * @return a number that changes on every {@link #invalidate()}
+     */
+    int getVersion() {
+        return mVersion.get();
+    }
+
+    /**
+     * Computes the layer's rectangle in normalized device coordinates.
+     *
+     * @param width         content width in pixels
+     * @param height        content height in pixels
+     * @param surfaceWidth  width of the recorded frame
+     * @param surfaceHeight height of the recorded frame
+     * @param out           receives left, top, right, bottom
+     */
+    void computeBounds(int width, int height, int surfaceWidth, int surfaceHeight, float[] out) {
+        float w = width * mScale;
+        float h = height * mScale;
+        float left;
+        float top;
+        switch (mAnchor) {
+            case ANCHOR_TOP_RIGHT:
+                left = surfaceWidth - mOffsetX - w;
+                top = mOffsetY;
+                break;
+            case ANCHOR_BOTTOM_LEFT:
+                left = mOffsetX;
+                top = surfaceHeight - mOffsetY - h;
+                break;
+            case ANCHOR_BOTTOM_RIGHT:
+                left = surfaceWidth - mOffsetX - w;
+                top = surfaceHeight - mOffsetY - h;
+                break;
+            case ANCHOR_CENTER:
+                left = (surfaceWidth - w) / 2f + mOffsetX;
+                top = (surfaceHeight - h) / 2f + mOffsetY;
+                break;
+            case ANCHOR_TOP_LEFT:
+            default:
+                left = mOffsetX;
+                top = mOffsetY;
+                break;
+        }
+        out[0] = left / surfaceWidth * 2f - 1f;
+        out[1] = 1f - top / surfaceHeight * 2f;
+        out[2] = (left + w) / surfaceWidth * 2f - 1f;
+        out[3] = 1f - (top + h) / surfaceHeight * 2f;
+    }
+}
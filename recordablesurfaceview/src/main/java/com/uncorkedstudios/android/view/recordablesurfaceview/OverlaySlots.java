@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tracks where each overlay layer sits in a {@link TextureAtlas} and which content version was
+ * last uploaded there. When a layer no longer fits, the whole atlas is repacked: every region
+ * is forgotten and every layer must be uploaded again. Pure bookkeeping, no GL.
+ *
+ * @param <K> the layer type, compared by identity
+ */
+final class OverlaySlots<K> {
+
+    static final int PLACE_OK = 0;
+
+    /**
+     * The atlas was full and has been repacked; every slot must be placed and uploaded again.
+     */
+    static final int PLACE_REPACKED = 1;
+
+    /**
+     * The content does not fit, even after a repack. The slot is left empty.
+     */
+    static final int PLACE_TOO_LARGE = 2;
+
+    /**
+     * Atlas state of one layer.
+     */
+    static final class Slot {
+
+        TextureAtlas.Region region;
+
+        int width;
+
+        int height;
+
+        int uploadedVersion = -1;
+
+        boolean empty = true;
+    }
+
+    private final Map<K, Slot> mSlots = new IdentityHashMap<>();
+
+    private final TextureAtlas mAtlas;
+
+    private int mRepacks = 0;
+
+    OverlaySlots(TextureAtlas atlas) {
+        mAtlas = atlas;
+    }
+
+    /**
+     * @return the layer's slot, created empty on first use
+     */
+    Slot get(K key) {
+        Slot slot = mSlots.get(key);
+        if (slot == null) {
+            slot = new Slot();
+            mSlots.put(key, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @return the layer's slot, or null if it has none
+     */
+    Slot find(K key) {
+        return mSlots.get(key);
+    }
+
+    /**
+     * Forgets the slots of layers that are not in <code>keys</code>. Their regions stay
+     * allocated until the next repack.
+     */
+    void retain(Collection<K> keys) {
+        Iterator<K> slots = mSlots.keySet().iterator();
+        while (slots.hasNext()) {
+            if (!keys.contains(slots.next())) {
+                slots.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds room for content of the given size, reusing the slot's region if it is big enough.
+     *
+     * @param mayRepack true to repack the atlas if it is full, false to give up
+     * @return one of the PLACE_ constants
+     */
+    int place(Slot slot, int width, int height, boolean mayRepack) {
+        if (slot.region == null || !slot.region.fits(width, height)) {
+            slot.region = mAtlas.allocate(width, height);
+            if (slot.region == null && mayRepack) {
+                repack();
+                return PLACE_REPACKED;
+            }
+        }
+        if (slot.region == null) {
+            slot.empty = true;
+            return PLACE_TOO_LARGE;
+        }
+        slot.width = width;
+        slot.height = height;
+        slot.empty = false;
+        return PLACE_OK;
+    }
+
+    /**
+     * Forgets every slot and region, as when the atlas texture is deleted.
+     */
+    void clear() {
+        mSlots.clear();
+        mAtlas.reset();
+    }
+
+    int getRepackCount() {
+        return mRepacks;
+    }
+
+    private void repack() {
+        mRepacks++;
+        mAtlas.reset();
+        for (Slot slot : mSlots.values()) {
+            slot.region = null;
+            slot.uploadedVersion = -1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * {@link RecordableSurfaceView.RendererCallbacks} that are told which pass they are drawing.
+ * <p>
+ * When a view's callbacks implement this interface, {@link #onDrawFrame(RenderPass)} is called
+ * instead of {@link RecordableSurfaceView.RendererCallbacks#onDrawFrame()}, which is then never
+ * called by the library.
+ */
+public interface PassAwareRendererCallbacks extends RecordableSurfaceView.RendererCallbacks {
+
+    /**
+     * Render call. Called once per frame for the display, and a second time for the recording
+     * while recording.
+     *
+     * @param pass the pass being drawn; only valid during this call
+     */
+    @Override
+    void onDrawFrame(RenderPass pass);
+}
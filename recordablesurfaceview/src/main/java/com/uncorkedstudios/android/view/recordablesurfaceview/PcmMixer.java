@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Allocation-free helpers for mixing interleaved 16 bit PCM.
+ */
+public final class PcmMixer {
+
+    private PcmMixer() {
+    }
+
+    /**
+     * Adds <code>src</code> scaled by <code>gain</code> into <code>dst</code>, saturating at the
+     * 16 bit range instead of wrapping.
+     *
+     * @param dst       samples mixed into, in place
+     * @param dstOffset offset into dst
+     * @param src       samples to mix in
+     * @param srcOffset offset into src
+     * @param length    number of samples
+     * @param gain      linear gain applied to src; 1 leaves it unchanged
+     */
+    public static void mix(short[] dst, int dstOffset, short[] src, int srcOffset, int length,
+                           float gain) {
+        // Q15 fixed point keeps the inner loop in integer math; long, since gains above 2
+        // overflow an int for full scale samples
+        long q = toQ15(gain);
+        for (int i = 0; i < length; i++) {
+            long value = dst[dstOffset + i] + ((src[srcOffset + i] * q) >> 15);
+            dst[dstOffset + i] = clamp(value);
+        }
+    }
+
+    /**
+     * Scales samples in place, saturating at the 16 bit range.
+     *
+     * @param samples samples to scale
+     * @param offset  offset into samples
+     * @param length  number of samples
+     * @param gain    linear gain
+     */
+    public static void applyGain(short[] samples, int offset, int length, float gain) {
+        long q = toQ15(gain);
+        for (int i = offset; i < offset + length; i++) {
+            samples[i] = clamp((samples[i] * q) >> 15);
+        }
+    }
+
+    /**
+     * Limited to the int range, which saturates any sample and keeps the products in a long.
+     */
+    private static long toQ15(float gain) {
+        long q = Math.round(gain * 32768d);
+        return Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, q));
+    }
+
+    private static short clamp(long value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of 16 bit PCM samples.
+ * <p>
+ * Exactly one thread may call {@link #write(short[], int, int)} and exactly one (other) thread
+ * may call {@link #read(short[], int, int)}. Neither call blocks or allocates; a full buffer
+ * accepts fewer samples than offered and an empty buffer returns fewer samples than requested.
+ */
+public class PcmRingBuffer {
+
+    private final short[] mBuffer;
+
+    private final int mMask;
+
+    // total samples ever written/read; positions only grow, so (write - read) is the fill level
+    private final AtomicLong mWritePosition = new AtomicLong(0);
+
+    private final AtomicLong mReadPosition = new AtomicLong(0);
+
+    /**
+     * @param capacitySamples minimum capacity in samples, rounded up to a power of two
+     */
+    public PcmRingBuffer(int capacitySamples) {
+        if (capacitySamples <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacitySamples);
+        }
+        int capacity = Integer.highestOneBit(capacitySamples);
+        if (capacity < capacitySamples) {
+            capacity <<= 1;
+        }
+        mBuffer = new short[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @return the capacity in samples
+     */
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return the number of samples that can currently be read
+     */
+    public int available() {
+        return (int) (mWritePosition.get() - mReadPosition.get());
+    }
+
+    /**
+     * Producer side. Copies as many samples as fit.
+     *
+     * @param src    source samples
+     * @param offset offset into src
+     * @param length number of samples offered
+     * @return the number of samples actually written
+     */
+    public int write(short[] src, int offset, int length) {
+        long write = mWritePosition.get();
+        long read = mReadPosition.get();
+        int count = Math.min(length, mBuffer.length - (int) (write - read));
+        if (count <= 0) {
+            return 0;
+        }
+        int index = (int) (write & mMask);
+        int first = Math.min(count, mBuffer.length - index);
+        System.arraycopy(src, offset, mBuffer, index, first);
+        if (count > first) {
+            System.arraycopy(src, offset + first, mBuffer, 0, count - first);
+        }
+        // ordered store publishes the copied samples before the new position
+        mWritePosition.lazySet(write + count);
+        return count;
+    }
+
+    /**
+     * Consumer side. Copies as many samples as are available.
+     *
+     * @param dst    destination array
+     * @param offset offset into dst
+     * @param length maximum number of samples to read
+     * @return the number of samples actually read
+     */
+    public int read(short[] dst, int offset, int length) {
+        long read = mReadPosition.get();
+        long write = mWritePosition.get();
+        int count = Math.min(length, (int) (write - read));
+        if (count <= 0) {
+            return 0;
+        }
+        int index = (int) (read & mMask);
+        int first = Math.min(count, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, dst, offset, first);
+        if (count > first) {
+            System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+        }
+        mReadPosition.lazySet(read + count);
+        return count;
+    }
+
+    /**
+     * Consumer side. Discards all readable samples.
+     */
+    public void clear() {
+        mReadPosition.lazySet(mWritePosition.get());
+    }
+}
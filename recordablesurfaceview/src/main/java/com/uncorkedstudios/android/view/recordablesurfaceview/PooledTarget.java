@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+
+/**
+ * An offscreen render target handed out by a {@link RenderTargetPool}: an RGBA texture with a
+ * 16 bit depth buffer. Its allocation is rounded up to the pool's size bucket, so the texture
+ * may be larger than the requested size; sample it with {@link #getTexCoordScaleX()} and
+ * {@link #getTexCoordScaleY()}. Must be used on the GL thread.
+ */
+public final class PooledTarget {
+
+    final RenderTarget mTarget = new RenderTarget();
+
+    final RenderTargetPool mPool;
+
+    private final int mAllocatedWidth;
+
+    private final int mAllocatedHeight;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    boolean mInUse = false;
+
+    long mLastUsedFrame = 0;
+
+    PooledTarget(RenderTargetPool pool, int allocatedWidth, int allocatedHeight) {
+        mPool = pool;
+        mAllocatedWidth = allocatedWidth;
+        mAllocatedHeight = allocatedHeight;
+    }
+
+    void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Binds the framebuffer, allocating it on first use, and sets the viewport to the
+     * requested size.
+     */
+    public void bind() {
+        mTarget.bind(mAllocatedWidth, mAllocatedHeight);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * @return the color texture, 0 until bound for the first time
+     */
+    public int getTexture() {
+        return mTarget.getTexture();
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getAllocatedWidth() {
+        return mAllocatedWidth;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getAllocatedHeight() {
+        return mAllocatedHeight;
+    }
+
+    /**
+     * @return the horizontal texture coordinate of the right edge of the requested size
+     */
+    public float getTexCoordScaleX() {
+        return (float) mWidth / mAllocatedWidth;
+    }
+
+    /**
+     * @return the vertical texture coordinate of the top edge of the requested size
+     */
+    public float getTexCoordScaleY() {
+        return (float) mHeight / mAllocatedHeight;
+    }
+
+    long getAllocatedBytes() {
+        return (long) mAllocatedWidth * mAllocatedHeight * 6;
+    }
+}
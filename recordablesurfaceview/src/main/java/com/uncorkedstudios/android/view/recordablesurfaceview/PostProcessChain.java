@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Runs an ordered list of {@link PostProcessPass}es over each frame the renderer draws.
+ * <p>
+ * While a chain is set, {@link RecordableSurfaceView.RendererCallbacks#onDrawFrame()} draws
+ * into a pooled offscreen target instead of the surface, so a renderer must not bind
+ * framebuffer 0 itself. Each pass then reads the previous result and draws into a new pooled
+ * target, the last one into the surface. Recording overlays are drawn after the chain.
+ * <p>
+ * The display and the recording usually differ in size, so each has its own
+ * {@link RenderTargetPool}; raw capture shares the recording's.
+ *
+ * @see RecordableSurfaceView#setPostProcessChain(PostProcessChain)
+ */
+public class PostProcessChain {
+
+    /**
+     * What a pass draws from and into.
+     */
+    public static final class Frame {
+
+        private final TextureBlitter mBlitter = new TextureBlitter();
+
+        private final float[] mTexCoords = new float[4];
+
+        private RenderTargetPool mPool;
+
+        private RenderPass mRenderPass;
+
+        private PooledTarget mInput;
+
+        // a pooled target, or null for mOutputFramebuffer
+        private PooledTarget mOutputTarget;
+
+        private int mOutputFramebuffer;
+
+        private int mWidth;
+
+        private int mHeight;
+
+        /**
+         * @return the result of the previous pass, or the renderer's frame for the first
+         */
+        public PooledTarget getInput() {
+            return mInput;
+        }
+
+        /**
+         * @return the pool to take intermediate targets from
+         */
+        public RenderTargetPool getPool() {
+            return mPool;
+        }
+
+        /**
+         * @return the pass the renderer drew, e.g. to skip an effect in the recording
+         */
+        public RenderPass getRenderPass() {
+            return mRenderPass;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Binds this pass's output again and sets the viewport to cover it.
+         */
+        public void bindOutput() {
+            if (mOutputTarget != null) {
+                mOutputTarget.bind();
+            } else {
+                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mOutputFramebuffer);
+                GLES20.glViewport(0, 0, mWidth, mHeight);
+            }
+        }
+
+        /**
+         * Draws a target over the whole viewport, with blending, depth and scissor test
+         * disabled.
+         */
+        public void drawTexture(PooledTarget source) {
+            mTexCoords[2] = source.getTexCoordScaleX();
+            mTexCoords[3] = source.getTexCoordScaleY();
+            mBlitter.draw(source.getTexture(), mTexCoords);
+        }
+    }
+
+    private final List<PostProcessPass> mPasses = new CopyOnWriteArrayList<>();
+
+    private final RenderTargetPool mDisplayPool;
+
+    private final RenderTargetPool mRecordingPool;
+
+    private final Frame mFrame = new Frame();
+
+    private final int[] mBinding = new int[1];
+
+    // passes enabled when the frame began
+    private final List<PostProcessPass> mActivePasses = new ArrayList<>();
+
+    // passes that may hold GL objects, used on the GL thread only
+    private final List<PostProcessPass> mDrawnPasses = new ArrayList<>();
+
+    public PostProcessChain() {
+        this(new RenderTargetPool(), new RenderTargetPool());
+    }
+
+    /**
+     * @param displayPool   the pool for frames drawn to the view
+     * @param recordingPool the pool for frames drawn into the recording or raw capture
+     */
+    public PostProcessChain(RenderTargetPool displayPool, RenderTargetPool recordingPool) {
+        mDisplayPool = displayPool;
+        mRecordingPool = recordingPool;
+    }
+
+    /**
+     * Adds a pass after the existing ones.
+     */
+    public void addPass(PostProcessPass pass) {
+        if (!mPasses.contains(pass)) {
+            mPasses.add(pass);
+        }
+    }
+
+    /**
+     * Removes a pass. Its GL objects are released before the next frame is processed.
+     */
+    public void removePass(PostProcessPass pass) {
+        mPasses.remove(pass);
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public RenderTargetPool getDisplayPool() {
+        return mDisplayPool;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public RenderTargetPool getRecordingPool() {
+        return mRecordingPool;
+    }
+
+    /**
+     * Redirects drawing into a pooled target of the given size, unless no pass is enabled.
+     * Must be called on the GL thread with the final output bound.
+     *
+     * @return true if the frame is redirected and {@link #finish()} must be called
+     */
+    boolean begin(RenderPass renderPass, int width, int height) {
+        for (int i = mDrawnPasses.size() - 1; i >= 0; i--) {
+            if (!mPasses.contains(mDrawnPasses.get(i))) {
+                mDrawnPasses.remove(i).onReleaseGl();
+            }
+        }
+        mActivePasses.clear();
+        for (PostProcessPass pass : mPasses) {
+            if (pass.isEnabled()) {
+                mActivePasses.add(pass);
+            }
+        }
+        if (mActivePasses.isEmpty() || width <= 0 || height <= 0) {
+            return false;
+        }
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mBinding, 0);
+        Frame frame = mFrame;
+        frame.mPool = renderPass.getTarget() == RenderPass.TARGET_DISPLAY
+                ? mDisplayPool : mRecordingPool;
+        frame.mRenderPass = renderPass;
+        frame.mOutputFramebuffer = mBinding[0];
+        frame.mWidth = width;
+        frame.mHeight = height;
+        frame.mInput = frame.mPool.acquire(width, height);
+        frame.mInput.bind();
+        return true;
+    }
+
+    /**
+     * Runs the passes over the redirected frame, the last one into the output that was bound
+     * in {@link #begin(RenderPass, int, int)}, which is left bound with a full viewport.
+     */
+    void finish() {
+        Frame frame = mFrame;
+        RenderTargetPool pool = frame.mPool;
+        int count = mActivePasses.size();
+        for (int i = 0; i < count; i++) {
+            frame.mOutputTarget = i < count - 1 ? pool.acquire(frame.mWidth, frame.mHeight)
+                    : null;
+            frame.bindOutput();
+            PostProcessPass pass = mActivePasses.get(i);
+            if (!mDrawnPasses.contains(pass)) {
+                mDrawnPasses.add(pass);
+            }
+            pass.draw(frame);
+            pool.release(frame.mInput);
+            frame.mInput = frame.mOutputTarget;
+        }
+        frame.mInput = null;
+        frame.mOutputTarget = null;
+        frame.bindOutput();
+        pool.endFrame();
+    }
+
+    /**
+     * Deletes the GL objects of the passes and pools. Must be called on the GL thread while the
+     * context is current.
+     */
+    void releaseGl() {
+        for (int i = 0; i < mDrawnPasses.size(); i++) {
+            mDrawnPasses.get(i).onReleaseGl();
+        }
+        mDrawnPasses.clear();
+        mFrame.mBlitter.release();
+        mDisplayPool.trim();
+        mRecordingPool.trim();
+    }
+}
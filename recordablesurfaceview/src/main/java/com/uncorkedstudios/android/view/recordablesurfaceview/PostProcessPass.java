@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * One step of a {@link PostProcessChain}, such as bloom, color grading or FXAA. A pass reads the
+ * previous result and draws into the output the chain has bound.
+ * <p>
+ * {@link #draw(PostProcessChain.Frame)} and {@link #onReleaseGl()} are called on the GL thread;
+ * {@link #setEnabled(boolean)} may be called from any thread.
+ */
+public abstract class PostProcessPass {
+
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Draws the pass. The output is bound with the viewport covering it; a pass that renders
+     * into intermediate targets from {@link PostProcessChain.Frame#getPool()} binds the output
+     * again with {@link PostProcessChain.Frame#bindOutput()} before its final draw, and
+     * releases the targets before returning.
+     *
+     * @param frame the input, output and pool of this pass
+     */
+    protected abstract void draw(PostProcessChain.Frame frame);
+
+    /**
+     * Deletes the pass's GL objects. Called when the chain is replaced or the GL context goes
+     * away; {@link #draw(PostProcessChain.Frame)} creates them again if the pass is used later.
+     */
+    protected void onReleaseGl() {
+    }
+
+    /**
+     * Disabled passes are skipped; the chain is bypassed when no pass is enabled.
+     */
+    public PostProcessPass setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * {@link RecordableSurfaceView.RendererCallbacks} that load resources before the GL context
+ * exists.
+ * <p>
+ * When a view's callbacks implement this interface, {@link #onPreGlSetup()} runs on a
+ * background thread during {@link RecordableSurfaceView#doSetup()}, concurrently with EGL
+ * initialization and encoder preparation. The render thread waits for it to return before
+ * calling {@link RecordableSurfaceView.RendererCallbacks#onSurfaceCreated()}, so anything it
+ * loads can be used from there without further synchronization.
+ */
+public interface PreGlRendererCallbacks extends RecordableSurfaceView.RendererCallbacks {
+
+    /**
+     * Decodes assets such as images, meshes or shader sources. No GL context is current; GL
+     * objects must be created in
+     * {@link RecordableSurfaceView.RendererCallbacks#onSurfaceCreated()}.
+     */
+    void onPreGlSetup();
+}
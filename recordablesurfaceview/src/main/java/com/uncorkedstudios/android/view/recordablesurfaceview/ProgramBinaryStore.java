@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Stores linked program binaries on disk, one file per program, named by a hash of the shader
+ * sources.
+ * <p>
+ * Each file records the driver it was produced by; a binary from another driver, or one that
+ * fails its checksum, is deleted when loaded. Once the files take more than the size limit,
+ * the least recently used ones are deleted.
+ * <p>
+ * File layout, big-endian: magic <code>RSPB</code>, format version, driver and key as modified
+ * UTF-8, binary format, binary length, CRC32 of the binary, the binary.
+ * <p>
+ * Pure Java. Thread safe.
+ */
+final class ProgramBinaryStore {
+
+    private static final int MAGIC = 0x52535042; // "RSPB"
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * A stored binary.
+     */
+    static final class Binary {
+
+        final int format;
+
+        final byte[] data;
+
+        Binary(int format, byte[] data) {
+            this.format = format;
+            this.data = data;
+        }
+    }
+
+    private final File mDirectory;
+
+    private final long mMaxBytes;
+
+    /**
+     * @param directory the directory to keep the files in, created if needed
+     * @param maxBytes  the size the files may take together
+     */
+    ProgramBinaryStore(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return a hex SHA-256 of both sources, usable as a file name
+     */
+    static String key(String vertexSource, String fragmentSource) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // lengths first, so moving text from one source to the other changes the key
+            byte[] vertex = vertexSource.getBytes("UTF-8");
+            byte[] fragment = fragmentSource.getBytes("UTF-8");
+            digest.update(intBytes(vertex.length));
+            digest.update(vertex);
+            digest.update(intBytes(fragment.length));
+            digest.update(fragment);
+            byte[] hash = digest.digest();
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
+                (byte) value};
+    }
+
+    /**
+     * Loads a binary, deleting it if it is from another driver or damaged.
+     *
+     * @return the binary, or null if there is no usable one
+     */
+    synchronized Binary load(String key, String driver) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        Binary binary = null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() == MAGIC && in.readInt() == VERSION
+                    && driver.equals(in.readUTF()) && key.equals(in.readUTF())) {
+                int format = in.readInt();
+                int length = in.readInt();
+                long crc = in.readLong();
+                if (length >= 0 && length <= file.length()) {
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    if (crc32(data) == crc) {
+                        binary = new Binary(format, data);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            binary = null;
+        }
+        if (binary == null) {
+            remove(key);
+        } else {
+            // marks it as recently used for eviction
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return binary;
+    }
+
+    /**
+     * Stores a binary, replacing any stored under the same key, then evicts old files if the
+     * store is over its size.
+     *
+     * @return false if it could not be written
+     */
+    synchronized boolean save(String key, String driver, Binary binary) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            return false;
+        }
+        File file = fileFor(key);
+        File temp = new File(mDirectory, key + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(driver);
+            out.writeUTF(key);
+            out.writeInt(binary.format);
+            out.writeInt(binary.data.length);
+            out.writeLong(crc32(binary.data));
+            out.write(binary.data);
+        } catch (IOException e) {
+            temp.delete();
+            return false;
+        }
+        // a reader never sees a half written file
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return false;
+        }
+        evict(file);
+        return true;
+    }
+
+    synchronized void remove(String key) {
+        fileFor(key).delete();
+    }
+
+    /**
+     * Deletes all stored binaries.
+     */
+    synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the bytes the stored files take
+     */
+    synchronized long getSize() {
+        long size = 0;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private void evict(File keep) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                size += file.length();
+            }
+        }
+        while (size > mMaxBytes) {
+            File oldest = null;
+            for (File file : files) {
+                if (file != null && file.getName().endsWith(SUFFIX) && !file.equals(keep)
+                        && (oldest == null || file.lastModified() < oldest.lastModified())) {
+                    oldest = file;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            size -= oldest.length();
+            oldest.delete();
+            for (int i = 0; i < files.length; i++) {
+                if (oldest.equals(files[i])) {
+                    files[i] = null;
+                }
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+
+    private static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+}
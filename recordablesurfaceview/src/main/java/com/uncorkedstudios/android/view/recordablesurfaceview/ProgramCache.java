@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Creates GL programs from linked binaries cached on disk, so only the first start after
+ * installation or a driver update compiles shaders.
+ * <p>
+ * Binaries are keyed by a hash of the shader sources and tagged with the GL vendor, renderer
+ * and version strings and the build fingerprint; a binary from another driver, or one the
+ * driver rejects, is discarded and the program compiled from source instead. Program binaries
+ * need OpenGL ES 3; on ES 2 contexts programs are always compiled.
+ * <p>
+ * {@link #precompileAsync(Collection)} fills the cache on a background thread with a context
+ * of its own, for example while the first screen is still loading. Thread safe.
+ *
+ * <pre>
+ * ProgramCache cache = new ProgramCache(new File(context.getCacheDir(), "programs"));
+ * // on the GL thread
+ * int program = cache.getProgram(vertexSource, fragmentSource);
+ * </pre>
+ */
+public class ProgramCache {
+
+    private static final String TAG = ProgramCache.class.getSimpleName();
+
+    private static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The sources of one program.
+     */
+    public static final class Source {
+
+        final String vertex;
+
+        final String fragment;
+
+        public Source(String vertexSource, String fragmentSource) {
+            vertex = vertexSource;
+            fragment = fragmentSource;
+        }
+    }
+
+    private final ProgramBinaryStore mStore;
+
+    private volatile String mDriver;
+
+    private volatile long mLoads = 0;
+
+    private volatile long mCompiles = 0;
+
+    private volatile long mRejects = 0;
+
+    /**
+     * @param directory the directory to keep binaries in, such as a subdirectory of the app's
+     *                  cache directory
+     */
+    public ProgramCache(File directory) {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param directory the directory to keep binaries in
+     * @param maxBytes  the size the binaries may take on disk before the least recently used
+     *                  ones are deleted
+     */
+    public ProgramCache(File directory, long maxBytes) {
+        mStore = new ProgramBinaryStore(directory, maxBytes);
+    }
+
+    /**
+     * Creates a linked program, from a cached binary if there is a usable one. Must be called
+     * on a GL thread with a context current.
+     *
+     * @return the program, owned by the caller
+     * @throws RuntimeException if either shader fails to compile or the program fails to link
+     */
+    public int getProgram(String vertexSource, String fragmentSource) {
+        if (!GlUtil.isGles3()) {
+            mCompiles++;
+            return GlUtil.createProgram(vertexSource, fragmentSource);
+        }
+        String key = ProgramBinaryStore.key(vertexSource, fragmentSource);
+        String driver = getDriver();
+        ProgramBinaryStore.Binary binary = mStore.load(key, driver);
+        if (binary != null) {
+            int program = loadBinary(binary);
+            if (program != 0) {
+                mLoads++;
+                return program;
+            }
+            // the driver can refuse a binary it produced, e.g. after a GPU driver update that
+            // kept the version string
+            mRejects++;
+            mStore.remove(key);
+        }
+        int program = compile(vertexSource, fragmentSource);
+        mCompiles++;
+        store(program, key, driver);
+        return program;
+    }
+
+    /**
+     * Compiles programs that are not cached yet and stores their binaries, on a background
+     * thread with a pbuffer context of its own. Programs already cached are skipped.
+     *
+     * @param sources the programs to prepare
+     * @return a future completing with the number of programs compiled
+     */
+    public Future<Integer> precompileAsync(Collection<Source> sources) {
+        final List<Source> pending = new ArrayList<>(sources);
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return precompile(pending);
+            }
+        });
+        new Thread(task, TAG).start();
+        return task;
+    }
+
+    /**
+     * Deletes all cached binaries.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void clear() {
+        mStore.clear();
+    }
+
+    /**
+     * @return programs created from a cached binary
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getLoadCount() {
+        return mLoads;
+    }
+
+    /**
+     * @return programs compiled from source, by {@link #getProgram(String, String)} or in the
+     * background
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getCompileCount() {
+        return mCompiles;
+    }
+
+    /**
+     * @return cached binaries the driver refused to load
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getRejectCount() {
+        return mRejects;
+    }
+
+    /**
+     * @return bytes the cached binaries take on disk
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getCacheSize() {
+        return mStore.getSize();
+    }
+
+    private int precompile(List<Source> sources) {
+        EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        EGL14.eglInitialize(display, version, 0, version, 1);
+        EGLConfig config = RecordableSurfaceView.chooseEglConfig(display);
+        EGLContext context = EGL14.eglCreateContext(display, config, EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        EGLSurface surface = EGL14.eglCreatePbufferSurface(display, config,
+                new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        int compiled = 0;
+        try {
+            EGL14.eglMakeCurrent(display, surface, surface, context);
+            if (!GlUtil.isGles3()) {
+                return 0;
+            }
+            String driver = getDriver();
+            for (Source source : sources) {
+                String key = ProgramBinaryStore.key(source.vertex, source.fragment);
+                if (mStore.load(key, driver) != null) {
+                    continue;
+                }
+                try {
+                    int program = compile(source.vertex, source.fragment);
+                    store(program, key, driver);
+                    GLES20.glDeleteProgram(program);
+                    compiled++;
+                    mCompiles++;
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Could not precompile program", e);
+                }
+            }
+        } finally {
+            // the display is shared with the render threads, so it is not terminated
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(display, surface);
+            EGL14.eglDestroyContext(display, context);
+            EGL14.eglReleaseThread();
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the current context's driver, which a binary must match
+     */
+    private String getDriver() {
+        String driver = mDriver;
+        if (driver == null) {
+            driver = GLES20.glGetString(GLES20.GL_VENDOR) + '|'
+                    + GLES20.glGetString(GLES20.GL_RENDERER) + '|'
+                    + GLES20.glGetString(GLES20.GL_VERSION) + '|' + Build.FINGERPRINT;
+            mDriver = driver;
+        }
+        return driver;
+    }
+
+    private static int compile(String vertexSource, String fragmentSource) {
+        int vertexShader = GlUtil.loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader;
+        try {
+            fragmentShader = GlUtil.loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        } catch (RuntimeException e) {
+            GLES20.glDeleteShader(vertexShader);
+            throw e;
+        }
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                GLES20.GL_TRUE);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        if (!isLinked(program)) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new RuntimeException("Could not link program: " + log);
+        }
+        return program;
+    }
+
+    private void store(int program, String key, String driver) {
+        int[] values = new int[2];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        GLES30.glGetProgramBinary(program, length, values, 0, values, 1, buffer);
+        if (GlUtil.logGlError("glGetProgramBinary") || values[0] <= 0) {
+            return;
+        }
+        byte[] data = new byte[values[0]];
+        buffer.get(data);
+        mStore.save(key, driver, new ProgramBinaryStore.Binary(values[1], data));
+    }
+
+    private static int loadBinary(ProgramBinaryStore.Binary binary) {
+        int program = GLES20.glCreateProgram();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.data.length);
+        buffer.put(binary.data).position(0);
+        GLES30.glProgramBinary(program, binary.format, buffer, binary.data.length);
+        // a rejected binary leaves an error and an unlinked program
+        GlUtil.logGlError("glProgramBinary");
+        if (!isLinked(program)) {
+            GLES20.glDeleteProgram(program);
+            return 0;
+        }
+        return program;
+    }
+
+    private static boolean isLinked(int program) {
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        return status[0] == GLES20.GL_TRUE;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads frames back from the bound framebuffer into a {@link FrameTarget}, such as a
+ * {@link MappedFrameRing}. Must be used on a single GL thread.
+ * <p>
+ * On OpenGL ES 3 the read goes into one of {@link #PBO_COUNT} pixel buffer objects and is only
+ * mapped and copied into the target {@link #PBO_COUNT} - 1 frames later, so the GPU finishes
+ * the transfer without stalling the render thread. On OpenGL ES 2 pixels are read
+ * synchronously, straight into the target's buffer. Neither path copies through the Java heap.
+ */
+final class RawFrameCapture {
+
+    private static final int PBO_COUNT = 3;
+
+    private final FrameTarget mTarget;
+
+    private final int[] mPixelBuffers = new int[PBO_COUNT];
+
+    private final long[] mTimestamps = new long[PBO_COUNT];
+
+    private boolean mUsePixelBuffers;
+
+    private boolean mInitialized = false;
+
+    // frames read into pixel buffers so far, and how many of those reached the target
+    private long mReadCount = 0;
+
+    private long mCopiedCount = 0;
+
+    RawFrameCapture(FrameTarget target) {
+        mTarget = target;
+    }
+
+    FrameTarget getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Reads the bottom left target-sized rectangle of the bound framebuffer.
+     *
+     * @param timestampNs capture time stored with the frame
+     */
+    void capture(long timestampNs) {
+        if (!mInitialized) {
+            initialize();
+        }
+        int width = mTarget.getWidth();
+        int height = mTarget.getHeight();
+        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 4);
+
+        if (!mUsePixelBuffers) {
+            ByteBuffer slot = mTarget.beginFrame();
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    slot);
+            if (GlUtil.logGlError("glReadPixels")) {
+                mTarget.abortFrame();
+            } else {
+                mTarget.commitFrame(timestampNs);
+            }
+            return;
+        }
+
+        int index = (int) (mReadCount % PBO_COUNT);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mTimestamps[index] = timestampNs;
+        mReadCount++;
+
+        // every buffer is in use now; free the oldest, whose transfer has had the most time
+        if (mReadCount - mCopiedCount == PBO_COUNT) {
+            copyOldest();
+        }
+    }
+
+    private void initialize() {
+        mUsePixelBuffers = GlUtil.isGles3();
+        if (mUsePixelBuffers) {
+            int size = mTarget.getFrameSize();
+            GLES20.glGenBuffers(PBO_COUNT, mPixelBuffers, 0);
+            for (int buffer : mPixelBuffers) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffer);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null,
+                        GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            if (GlUtil.logGlError("pixel buffer setup")) {
+                GLES20.glDeleteBuffers(PBO_COUNT, mPixelBuffers, 0);
+                mUsePixelBuffers = false;
+            }
+        }
+        mInitialized = true;
+    }
+
+    private void copyOldest() {
+        int index = (int) (mCopiedCount % PBO_COUNT);
+        int size = mTarget.getFrameSize();
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        ByteBuffer pixels = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                size, GLES30.GL_MAP_READ_BIT);
+        if (pixels != null) {
+            ByteBuffer slot = mTarget.beginFrame();
+            slot.put(pixels);
+            mTarget.commitFrame(mTimestamps[index]);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        } else {
+            GlUtil.logGlError("glMapBufferRange");
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mCopiedCount++;
+    }
+
+    /**
+     * Deletes the pixel buffers, dropping frames not yet copied into the target. Must be called on
+     * the GL thread while the context is current.
+     */
+    void release() {
+        if (mInitialized && mUsePixelBuffers) {
+            GLES20.glDeleteBuffers(PBO_COUNT, mPixelBuffers, 0);
+        }
+        mInitialized = false;
+        mReadCount = 0;
+        mCopiedCount = 0;
+    }
+}
@@ -27,6 +27,7 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Build;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -34,7 +35,19 @@ import android.view.SurfaceView;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -45,8 +58,9 @@ import java.util.concurrent.atomic.AtomicInteger;
  * instead of an explicit {@link GLSurfaceView.Renderer}.
  *
  *
- * <p><strong>Note:</strong> Currently, RecordableSurfaceView does not record video on the emulator
- * due to a dependency on {@link MediaRecorder}.</p>
+ * <p><strong>Note:</strong> The {@link MediaRecorder} based <code>initRecorder</code> overloads
+ * do not record video on the emulator. {@link #initRecorder(RecorderConfig)} does, falling back
+ * to ByteBuffer encoder input where surface input is unavailable.</p>
  */
 public class RecordableSurfaceView extends SurfaceView {
 
@@ -64,6 +78,54 @@ public class RecordableSurfaceView extends SurfaceView {
      */
     public static int RENDERMODE_CONTINUOUSLY = GLSurfaceView.RENDERMODE_CONTINUOUSLY;
 
+    /**
+     * No recorder is initialized.
+     */
+    public static final int RECORDER_STATE_IDLE = 0;
+
+    /**
+     * A recorder is initialized and ready to start.
+     */
+    public static final int RECORDER_STATE_PREPARED = 1;
+
+    /**
+     * Frames are being recorded.
+     */
+    public static final int RECORDER_STATE_RECORDING = 2;
+
+    /**
+     * Recording has stopped and the file is being finalized; a new recorder cannot be
+     * initialized until this completes.
+     */
+    public static final int RECORDER_STATE_FINALIZING = 3;
+
+    private static final int VIDEO_BIT_RATE = 12000000;
+
+    private static final int VIDEO_FRAME_RATE = 30;
+
+    // how long surfaceDestroyed waits for the render thread to let go of the window
+    private static final long WINDOW_RELEASE_TIMEOUT_MS = 1000;
+
+    // how long an idle render thread keeps its context after the window is gone
+    private static final long WINDOW_RETURN_TIMEOUT_NS = 2000000000L;
+
+    // a thread per startup step; there are only a handful and each runs once
+    private static final Executor STARTUP_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            new Thread(runnable, TAG + " startup").start();
+        }
+    };
+
+    // finalizes stopped recordings one after the other; the thread exits when idle
+    private static final ExecutorService FINALIZER_EXECUTOR = new ThreadPoolExecutor(0, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, TAG + " finalizer");
+                }
+            });
+
     private Surface mSurface;
 
     private AtomicInteger mRenderMode = new AtomicInteger(RENDERMODE_CONTINUOUSLY);
@@ -80,10 +142,22 @@ public class RecordableSurfaceView extends SurfaceView {
 
     private MediaRecorder mMediaRecorder;
 
+    private volatile CodecRecorder mCodecRecorder;
+
     private ARRenderThread mARRenderThread;
 
     private AtomicBoolean mIsRecording = new AtomicBoolean(false);
 
+    private final RecorderLifecycle mRecorderLifecycle = new RecorderLifecycle();
+
+    private final Object mMediaPassLock = new Object();
+
+    // guards the recorder fields and state changes; the startup step prepares a recorder on a
+    // background thread while the app may call into the recorder
+    private final Object mRecorderLock = new Object();
+
+    private File mOutputFile;
+
     private AtomicBoolean mHasGLContext = new AtomicBoolean(false);
 
     private AtomicBoolean mHasGLSurface = new AtomicBoolean(false);
@@ -98,6 +172,42 @@ public class RecordableSurfaceView extends SurfaceView {
 
     private boolean mPreserveEGLContextOnPause;
 
+    private volatile BackpressureMonitor mBackpressureMonitor;
+
+    private volatile OverlayCompositor mOverlayCompositor;
+
+    private volatile RecordingTransform mRecordingTransform;
+
+    private volatile PostProcessChain mPostProcessChain;
+
+    private volatile UpdateStage<?> mUpdateStage;
+
+    private volatile FrameRepeatPolicy mFrameRepeatPolicy;
+
+    // replaced only while not recording; the render thread owns it during a recording
+    private volatile CaptureRateMapper mCaptureRateMapper;
+
+    // guards mRawCaptureRing so the render thread never writes to a ring after stopRawCapture()
+    private final Object mRawCaptureLock = new Object();
+
+    private MappedFrameRing mRawCaptureRing;
+
+    private final SurfaceTransitionStats mSurfaceTransitionStats = new SurfaceTransitionStats();
+
+    private SharedRenderHost mRenderHost;
+
+    // guards mMirrorOutputs so the render thread never draws into a removed output
+    private final Object mMirrorLock = new Object();
+
+    private final List<MirrorOutput> mMirrorOutputs = new ArrayList<>();
+
+    // the steps of the last setup; mSurface is only set once its step has finished
+    private volatile StartupGraph mStartupGraph;
+
+    private volatile StartupMetrics mStartupMetrics;
+
+    private volatile RecorderConfig mStartupRecorderConfig;
+
 
     /**
      * @param context -
@@ -141,15 +251,34 @@ public class RecordableSurfaceView extends SurfaceView {
      * <p>
      * Also links the SurfaceHolder that manages the Surface View to the render thread for lifecycle
      * callbacks
+     * <p>
+     * The persistent surface, EGL initialization, {@link PreGlRendererCallbacks#onPreGlSetup()}
+     * and the recorder set with {@link #setStartupRecorderConfig(RecorderConfig)} are set up
+     * concurrently on background threads; this returns without waiting for them.
      *
      * @see MediaCodec
      * @see SurfaceHolder.Callback
+     * @see #getStartupMetrics()
      */
     public void doSetup() {
 
+        ARRenderThread previous = mARRenderThread;
+        if (previous != null && previous.isExiting()
+                && !previous.awaitFinished(WINDOW_RELEASE_TIMEOUT_MS)) {
+            // it would refuse the window; a new thread must wait until it has let go of GL
+            Log.w(TAG, "Render thread did not finish, cannot set up a new one");
+            return;
+        }
+
         if (!mHasGLSurface.get()) {
-            mSurface = MediaCodec.createPersistentInputSurface();
-            mARRenderThread = new ARRenderThread();
+            StartupMetrics metrics = new StartupMetrics(System.nanoTime());
+            StartupGraph startup = new StartupGraph(STARTUP_EXECUTOR, metrics);
+            mSurface = null;
+            mARRenderThread = new ARRenderThread(mRenderHost, startup, metrics);
+            addStartupSteps(startup, mARRenderThread);
+            mStartupMetrics = metrics;
+            mStartupGraph = startup;
+            startup.start();
         }
 
         this.getHolder().addCallback(mARRenderThread);
@@ -162,6 +291,79 @@ public class RecordableSurfaceView extends SurfaceView {
 
     }
 
+    /**
+     * Sets up a new render thread for a window that came back after the thread had decided to
+     * end. Called on the main thread.
+     */
+    private void replaceRenderThread(ARRenderThread exiting) {
+        if (exiting != mARRenderThread) {
+            return;
+        }
+        boolean paused = mPaused;
+        doSetup();
+        mPaused = paused;
+    }
+
+    private void addStartupSteps(StartupGraph startup, final ARRenderThread thread) {
+        startup.add(StartupMetrics.STEP_INPUT_SURFACE, new StartupGraph.Task() {
+            @Override
+            public void run() {
+                mSurface = MediaCodec.createPersistentInputSurface();
+            }
+        });
+        if (mRenderHost == null) {
+            // a hosted view uses the host's context
+            startup.add(StartupMetrics.STEP_EGL, new StartupGraph.Task() {
+                @Override
+                public void run() {
+                    thread.initEgl();
+                }
+            });
+        }
+        RendererCallbacks callbacks = getRendererCallbacks();
+        if (callbacks instanceof PreGlRendererCallbacks) {
+            final PreGlRendererCallbacks preGlCallbacks = (PreGlRendererCallbacks) callbacks;
+            startup.add(StartupMetrics.STEP_APP_RESOURCES, new StartupGraph.Task() {
+                @Override
+                public void run() {
+                    preGlCallbacks.onPreGlSetup();
+                }
+            });
+        }
+        final RecorderConfig config = mStartupRecorderConfig;
+        if (config != null && mRecorderLifecycle.isIdle()) {
+            mStartupRecorderConfig = null;
+            startup.add(StartupMetrics.STEP_ENCODER, new StartupGraph.Task() {
+                @Override
+                public void run() throws IOException {
+                    try {
+                        synchronized (mRecorderLock) {
+                            if (mRecorderLifecycle.isIdle()) {
+                                prepareCodecRecorder(config);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        Log.w(TAG, "Could not prepare the recorder at startup", e);
+                        throw e;
+                    }
+                }
+            }, StartupMetrics.STEP_INPUT_SURFACE);
+        }
+    }
+
+    /**
+     * @return the persistent input surface, once the startup step creating it has finished
+     * @throws IOException if it could not be created
+     */
+    private Surface getInputSurface() throws IOException {
+        StartupGraph startup = mStartupGraph;
+        if (startup != null && !startup.await(StartupMetrics.STEP_INPUT_SURFACE)) {
+            throw new IOException("Could not create the input surface",
+                    startup.getError(StartupMetrics.STEP_INPUT_SURFACE));
+        }
+        return mSurface;
+    }
+
     /**
      * Pauses the render thread.
      */
@@ -244,15 +446,274 @@ public class RecordableSurfaceView extends SurfaceView {
         return mPreserveEGLContextOnPause;
     }
 
+    /**
+     * Enables backpressure handling for the recording pass. When the encoder falls behind, the
+     * monitor skips frames into the encoder (and lowers bitrate/frame rate when the encoder
+     * supports it) so that the on-screen preview is not stalled by
+     * <code>eglSwapBuffers</code> on the media surface.
+     *
+     * @param monitor the monitor to use, or null to always send every frame to the encoder
+     * @see BackpressureMonitor
+     */
+    public void setBackpressureMonitor(BackpressureMonitor monitor) {
+        mBackpressureMonitor = monitor;
+    }
+
+    /**
+     * @return the current backpressure monitor, or null if none is set
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public BackpressureMonitor getBackpressureMonitor() {
+        return mBackpressureMonitor;
+    }
+
+    /**
+     * Returns how long resizes and window surface recreations, e.g. on rotation, took to show a
+     * frame again. Neither tears down the GL context; a recording in progress continues, drawn
+     * through the {@link RecordingTransform} for the new view size.
+     *
+     * @return the statistics, updated for the lifetime of this view
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public SurfaceTransitionStats getSurfaceTransitionStats() {
+        return mSurfaceTransitionStats;
+    }
+
+    /**
+     * Prepares a recorder while the view starts up, concurrently with GL setup, instead of after
+     * it. Equivalent to calling {@link #initRecorder(RecorderConfig)} once the view is set up;
+     * until the recorder is ready {@link #getRecorderState()} stays
+     * {@link #RECORDER_STATE_IDLE}. Calls to <code>initRecorder</code>,
+     * {@link #startRecording()} and {@link #stopRecording()} made while it is being prepared
+     * wait for it.
+     * <p>
+     * Used by the next {@link #doSetup()} only, and only if no recorder is prepared by then.
+     *
+     * @param config the recording settings, or null to prepare no recorder at startup
+     */
+    public void setStartupRecorderConfig(RecorderConfig config) {
+        mStartupRecorderConfig = config;
+    }
+
+    /**
+     * Returns how long the last {@link #doSetup()} took to show the first frame and to have the
+     * recorder ready, and how long each setup step took.
+     *
+     * @return the metrics, or null before the first setup
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public StartupMetrics getStartupMetrics() {
+        return mStartupMetrics;
+    }
+
+    /**
+     * Renders this view on the thread and GL context of a {@link SharedRenderHost}, together with
+     * the other views using the same host, instead of on a thread of its own. Each view still
+     * has its own window and media surfaces, callbacks and recorder.
+     * <p>
+     * Must be called before {@link #doSetup()}. All views of a host get their
+     * {@link RendererCallbacks} on the host's thread, one view at a time, and share GL objects;
+     * the viewport is reset to the view's size before each of its frames, other GL state must be
+     * set by the renderer on every frame.
+     *
+     * @param host the host to render on, or null for a thread of its own
+     * @throws IllegalStateException if the view is already set up
+     */
+    public void setRenderHost(SharedRenderHost host) {
+        if (mARRenderThread != null && mHasGLSurface.get()) {
+            throw new IllegalStateException("Cannot change the render host after setup.");
+        }
+        if (mARRenderThread != null) {
+            getHolder().removeCallback(mARRenderThread);
+            mARRenderThread = null;
+        }
+        mRenderHost = host;
+    }
+
+    /**
+     * @return the host this view renders on, or null if it has a thread of its own
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public SharedRenderHost getRenderHost() {
+        return mRenderHost;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mARRenderThread != null) {
+            mARRenderThread.requestExit();
+        }
+    }
+
+    /**
+     * Draws overlays such as a watermark or timestamp into the recorded video, but not on
+     * screen. The compositor runs after {@link RendererCallbacks#onDrawFrame()} on the media
+     * pass only, and leaves blending and the depth test disabled.
+     *
+     * @param compositor the compositor to use, or null for none
+     * @see OverlayCompositor
+     */
+    public void setOverlayCompositor(OverlayCompositor compositor) {
+        mOverlayCompositor = compositor;
+    }
+
+    /**
+     * @return the current overlay compositor, or null if none is set
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public OverlayCompositor getOverlayCompositor() {
+        return mOverlayCompositor;
+    }
+
+    /**
+     * Runs post-processing passes over every frame the renderer draws, for the display, the
+     * recording and raw capture. The renderer then draws into a pooled offscreen target
+     * instead of the surface.
+     *
+     * @param chain the chain to use, or null to draw straight into the surfaces
+     * @see PostProcessChain
+     */
+    public void setPostProcessChain(PostProcessChain chain) {
+        mPostProcessChain = chain;
+    }
+
+    /**
+     * @return the current post-processing chain, or null if none is set
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public PostProcessChain getPostProcessChain() {
+        return mPostProcessChain;
+    }
+
+    /**
+     * Runs the app's per-frame update on a worker thread, overlapped with drawing the previous
+     * frame. Before {@link RendererCallbacks#onPreDrawFrame()} the render thread takes the
+     * newest finished state, which the renderer reads with {@link UpdateStage#getState()}, and
+     * the worker starts on the next one. The worker runs while the render thread does.
+     *
+     * @param stage the stage to use, or null to update on the render thread as before
+     * @see UpdateStage
+     */
+    public void setUpdateStage(UpdateStage<?> stage) {
+        mUpdateStage = stage;
+    }
+
+    /**
+     * @return the current update stage, or null if none is set
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public UpdateStage<?> getUpdateStage() {
+        return mUpdateStage;
+    }
+
+    /**
+     * Controls how the view's content is placed in the recorded frame when the recording size
+     * differs from the view's, and optionally records only a region of the view. Without a
+     * transform the content is stretched to the recording size.
+     *
+     * @param transform the transform to use, or null to stretch
+     * @see RecordingTransform
+     */
+    public void setRecordingTransform(RecordingTransform transform) {
+        mRecordingTransform = transform;
+    }
+
+    /**
+     * @return the current recording transform, or null if none is set
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public RecordingTransform getRecordingTransform() {
+        return mRecordingTransform;
+    }
+
+    /**
+     * Keeps the recording at a constant frame rate in {@link #RENDERMODE_WHEN_DIRTY}: when no
+     * frame has been rendered for a frame interval, a cached copy of the last recorded frame is
+     * sent to the encoder instead of re-rendering the scene. Works with both recorders; with
+     * {@link #initRecorder(RecorderConfig)} the encoder can also repeat frames by itself, see
+     * {@link RecorderConfig#setRepeatPreviousFrameAfterUs(long)}.
+     *
+     * @param policy the policy to use, or null to only record rendered frames
+     * @see FrameRepeatPolicy
+     */
+    public void setFrameRepeatPolicy(FrameRepeatPolicy policy) {
+        mFrameRepeatPolicy = policy;
+    }
+
+    /**
+     * @return the current frame repeat policy, or null if none is set
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public FrameRepeatPolicy getFrameRepeatPolicy() {
+        return mFrameRepeatPolicy;
+    }
+
+    /**
+     * Starts writing every rendered frame, uncompressed, into a memory-mapped ring file that
+     * other threads or processes can read without copying, see {@link MappedFrameRing.Reader}.
+     * Frames are drawn in an extra offscreen pass at the ring's size, with the
+     * {@link RecordingTransform} and overlays applied, and read back asynchronously where the
+     * device supports OpenGL ES 3. Capture works with or without a recording in progress.
+     *
+     * @param ring the ring to write to; it stays owned by the caller
+     */
+    public void startRawCapture(MappedFrameRing ring) {
+        synchronized (mRawCaptureLock) {
+            mRawCaptureRing = ring;
+        }
+    }
+
+    /**
+     * Stops raw capture. Once this returns the ring is no longer written to and may be closed;
+     * up to two frames still being read back are dropped.
+     */
+    public void stopRawCapture() {
+        synchronized (mRawCaptureLock) {
+            mRawCaptureRing = null;
+        }
+    }
+
+    /**
+     * Starts copying every frame shown on screen into an additional output, such as a
+     * secondary display, without rendering it again. Works with or without a recording in
+     * progress. Outputs are presented on the render thread after the view's own frame, see
+     * {@link MirrorOutput} for how a slow consumer affects the next frame.
+     *
+     * @param output the output to add
+     * @see MirrorOutput
+     */
+    public void addMirrorOutput(MirrorOutput output) {
+        synchronized (mMirrorLock) {
+            if (!mMirrorOutputs.contains(output)) {
+                mMirrorOutputs.add(output);
+            }
+        }
+    }
+
+    /**
+     * Stops copying frames into an output. Once this returns the output's surface is no longer
+     * drawn into and may be released.
+     *
+     * @param output the output to remove
+     */
+    public void removeMirrorOutput(MirrorOutput output) {
+        synchronized (mMirrorLock) {
+            mMirrorOutputs.remove(output);
+        }
+    }
+
     /**
      * Resets the {@link MediaRecorder} to let it be cleanly re-initialized without destroying the
      * process
      */
     public void resetMediaRecorder() {
-        if (mMediaRecorder == null || mIsRecording.get()) {
-            return;
+        synchronized (mRecorderLock) {
+            if (mMediaRecorder == null || mIsRecording.get()) {
+                return;
+            }
+            mMediaRecorder.reset();
         }
-        mMediaRecorder.reset();
     }
 
 
@@ -317,131 +778,390 @@ public class RecordableSurfaceView extends SurfaceView {
                              MediaRecorder.OnErrorListener errorListener,
                              MediaRecorder.OnInfoListener infoListener)
             throws IOException {
+        synchronized (mRecorderLock) {
+            mRecorderLifecycle.beginInit();
+            releasePreparedRecorders();
 
-        MediaRecorder mediaRecorder = new MediaRecorder();
+            MediaRecorder mediaRecorder = new MediaRecorder();
+            mCaptureRateMapper = null;
 
-        mediaRecorder.setOnInfoListener(infoListener);
+            mediaRecorder.setOnInfoListener(infoListener);
 
-        mediaRecorder.setOnErrorListener(errorListener);
+            mediaRecorder.setOnErrorListener(errorListener);
 
-        mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        mediaRecorder.setInputSurface(mSurface);
-        mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+            mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+            mediaRecorder.setInputSurface(getInputSurface());
+            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
 
-        mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-        mediaRecorder.setAudioSamplingRate(44100);
-        mediaRecorder.setAudioEncodingBitRate(96000);
+            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+            mediaRecorder.setAudioSamplingRate(44100);
+            mediaRecorder.setAudioEncodingBitRate(96000);
 
-        mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
+            mediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
 
-        mediaRecorder.setVideoEncodingBitRate(12000000);
-        mediaRecorder.setVideoFrameRate(30);
+            mediaRecorder.setVideoEncodingBitRate(VIDEO_BIT_RATE);
+            mediaRecorder.setVideoFrameRate(VIDEO_FRAME_RATE);
 
-        mDesiredHeight = desiredHeight;
-        mDesiredWidth = desiredWidth;
+            mDesiredHeight = desiredHeight;
+            mDesiredWidth = desiredWidth;
 
-        mediaRecorder.setVideoSize(mDesiredWidth, mDesiredHeight);
+            mediaRecorder.setVideoSize(mDesiredWidth, mDesiredHeight);
 
-        mediaRecorder.setOrientationHint(orientationHint);
+            mediaRecorder.setOrientationHint(orientationHint);
 
-        mediaRecorder.setOutputFile(saveToFile.getPath());
+            mediaRecorder.setOutputFile(saveToFile.getPath());
 
-        mediaRecorder.prepare();
+            mediaRecorder.prepare();
 
-        mMediaRecorder = mediaRecorder;
+            mMediaRecorder = mediaRecorder;
+            mOutputFile = saveToFile;
+            mRecorderLifecycle.onPrepared();
+            onRecorderPrepared();
 
+            BackpressureMonitor monitor = mBackpressureMonitor;
+            if (monitor != null) {
+                // MediaRecorder cannot change bitrate once started, so only frame skipping and
+                // frame rate capping take effect on this path
+                monitor.setEncoderControl(null);
+                monitor.reset(VIDEO_BIT_RATE, VIDEO_FRAME_RATE);
+            }
+        }
     }
 
 
     /**
-     * @return true if the recording started successfully and false if not
-     * @see MediaRecorder#start()
+     * Initializes the {@link MediaCodec} based recorder. Unlike the {@link MediaRecorder} based
+     * overloads, this allows choosing the audio source (including none, app playback capture or
+     * app-supplied PCM) and mixing app audio in through {@link #writeAudio(short[], int, int)}.
+     *
+     * @param config the recording settings
+     * @throws IOException if the encoders or the output file could not be set up
+     * @see RecorderConfig
      */
-    public boolean startRecording() {
-        boolean success = true;
-        try {
-            mMediaRecorder.start();
-            mIsRecording.set(true);
-        } catch (IllegalStateException e) {
-            success = false;
-            mIsRecording.set(false);
-            mMediaRecorder.reset();
-            mMediaRecorder.release();
+    public void initRecorder(RecorderConfig config) throws IOException {
+        synchronized (mRecorderLock) {
+            prepareCodecRecorder(config);
         }
-        return success;
     }
 
     /**
-     * Stops the {@link MediaRecorder} and sets the internal state of this object to 'Not
-     * recording'
-     * It is important to call this before attempting to play back the video that has been
-     * recorded.
-     *
-     * @return true if the recording stopped successfully and false if not
-     * @throws IllegalStateException if not recording when called
+     * Prepares the {@link MediaCodec} based recorder. Callers hold {@link #mRecorderLock}.
      */
-    public boolean stopRecording() throws IllegalStateException {
-        if (mIsRecording.get()) {
-            boolean success = true;
-            try {
-                mMediaRecorder.stop();
-                mIsRecording.set(false);
-            } catch (RuntimeException e) {
-                success = false;
-            } finally {
-                mMediaRecorder.release();
-            }
-            return success;
-        } else {
-            throw new IllegalStateException("Cannot stop. Is not recording.");
+    private void prepareCodecRecorder(RecorderConfig config) throws IOException {
+        mRecorderLifecycle.beginInit();
+        releasePreparedRecorders();
+
+        mDesiredWidth = config.getWidth();
+        mDesiredHeight = config.getHeight();
+
+        CodecRecorder recorder = new CodecRecorder(config, getInputSurface());
+
+        BackpressureMonitor monitor = mBackpressureMonitor;
+        if (monitor != null) {
+            monitor.setEncoderControl(recorder);
+            monitor.reset(config.getVideoBitRate(), config.getFrameRate());
+            recorder.setBackpressureMonitor(monitor);
         }
 
+        mCodecRecorder = recorder;
+        mCaptureRateMapper = config.hasCaptureRateMapping()
+                ? new CaptureRateMapper(config.getCaptureRate(), config.getFrameRate()) : null;
+        mOutputFile = config.getOutputFile();
+        mRecorderLifecycle.onPrepared();
+        onRecorderPrepared();
+    }
+
+    private void onRecorderPrepared() {
+        StartupMetrics metrics = mStartupMetrics;
+        if (metrics != null) {
+            metrics.onRecordingReady(System.nanoTime());
+        }
     }
 
     /**
-     * Returns the reference (if any) to the {@link RendererCallbacks}
-     *
-     * @return the callbacks if registered
-     * @see RendererCallbacks
+     * Releases a recorder that was prepared but never started. A prepared MediaRecorder still
+     * holds the persistent input surface. Callers hold {@link #mRecorderLock} and are not
+     * recording.
      */
-    @SuppressWarnings({"UnusedDeclaration"})
-    public RendererCallbacks getRendererCallbacks() {
-        if (mRendererCallbacksWeakReference != null) {
-            return mRendererCallbacksWeakReference.get();
+    private void releasePreparedRecorders() {
+        if (mCodecRecorder != null) {
+            mCodecRecorder.release();
+            mCodecRecorder = null;
+        }
+        if (mMediaRecorder != null) {
+            mMediaRecorder.reset();
+            mMediaRecorder.release();
+            mMediaRecorder = null;
         }
-
-        return null;
     }
 
     /**
-     * Add a {@link RendererCallbacks} object to handle rendering. Not setting one of these is not
-     * necessarily an error, but is usually necessary.
+     * Mixes app-generated audio into the recording. Requires a recorder initialized through
+     * {@link #initRecorder(RecorderConfig)} with app audio mixing enabled or
+     * {@link RecorderConfig#AUDIO_SOURCE_APP}.
+     * <p>
+     * Samples are interleaved 16 bit PCM in the configured sample rate and channel count. The
+     * call never blocks: samples that do not fit in the mix buffer are rejected. Must always be
+     * called from the same thread.
      *
-     * @param surfaceRendererCallbacks - the object to call back to
+     * @param pcm    the samples
+     * @param offset offset into pcm
+     * @param length number of samples
+     * @return the number of samples accepted
      */
-    public void setRendererCallbacks(RendererCallbacks surfaceRendererCallbacks) {
-
-        mRendererCallbacksWeakReference = new WeakReference<>(surfaceRendererCallbacks);
+    public int writeAudio(short[] pcm, int offset, int length) {
+        CodecRecorder recorder = mCodecRecorder;
+        if (recorder == null || !mIsRecording.get()) {
+            return 0;
+        }
+        return recorder.writeAppAudio(pcm, offset, length);
     }
 
-
     /**
-     * Queue a runnable to be run on the GL rendering thread.
+     * Returns the A/V sync monitor of the current recording, which exposes the measured drift
+     * between the audio device clock and the video clock.
      *
-     * @param runnable - the runnable to queue
+     * @return the monitor, or null if not recording through {@link #initRecorder(RecorderConfig)}
+     * with a captured audio source
+     * @see RecorderConfig#setAvSyncCorrection(int)
      */
-    public void queueEvent(Runnable runnable) {
-        if (mARRenderThread != null) {
-            mARRenderThread.mRunnableQueue.add(runnable);
-        }
+    @SuppressWarnings({"UnusedDeclaration"})
+    public AvSyncMonitor getAvSyncMonitor() {
+        CodecRecorder recorder = mCodecRecorder;
+        return recorder != null ? recorder.getAvSyncMonitor() : null;
     }
 
     /**
-     * Lifecycle events for the SurfaceView and renderer. These callbacks (unless specified)
-     * are executed on the GL thread.
+     * @return true if the recording started successfully and false if not, including when no
+     * recorder is prepared
+     * @see MediaRecorder#start()
      */
-    public interface RendererCallbacks {
+    public boolean startRecording() {
+        synchronized (mRecorderLock) {
+            if (!mRecorderLifecycle.canStart()) {
+                return false;
+            }
+
+            FrameRepeatPolicy repeatPolicy = mFrameRepeatPolicy;
+            if (repeatPolicy != null) {
+                // don't repeat the last frame of a previous recording
+                repeatPolicy.reset();
+            }
+            CaptureRateMapper mapper = mCaptureRateMapper;
+            if (mapper != null) {
+                mapper.reset();
+            }
+
+            if (mCodecRecorder != null) {
+                try {
+                    mCodecRecorder.start();
+                    mIsRecording.set(true);
+                    mRecorderLifecycle.onStarted();
+                    return true;
+                } catch (IllegalStateException e) {
+                    mIsRecording.set(false);
+                    mCodecRecorder.release();
+                    mCodecRecorder = null;
+                    mRecorderLifecycle.onStartFailed();
+                    return false;
+                }
+            }
+
+            boolean success = true;
+            try {
+                mMediaRecorder.start();
+                mIsRecording.set(true);
+                mRecorderLifecycle.onStarted();
+            } catch (IllegalStateException e) {
+                success = false;
+                mIsRecording.set(false);
+                mMediaRecorder.reset();
+                mMediaRecorder.release();
+                mMediaRecorder = null;
+                mRecorderLifecycle.onStartFailed();
+            }
+            return success;
+        }
+    }
+
+    /**
+     * Stops the {@link MediaRecorder} and sets the internal state of this object to 'Not
+     * recording'
+     * It is important to call this before attempting to play back the video that has been
+     * recorded.
+     * <p>
+     * Finalizing the file can take hundreds of milliseconds for long recordings; prefer
+     * {@link #stopRecordingAsync(OnRecordingFinalizedListener)} on the UI thread.
+     *
+     * @return true if the recording stopped successfully and false if not
+     * @throws IllegalStateException if not recording when called
+     */
+    public boolean stopRecording() throws IllegalStateException {
+        return beginStop().call().isSuccess();
+    }
+
+    /**
+     * Stops recording without blocking the caller. The render thread stops drawing into the
+     * recording before this returns; the encoders are stopped and the file is finalized on a
+     * background thread. Until that completes the recorder state is
+     * {@link #RECORDER_STATE_FINALIZING} and {@link #initRecorder(RecorderConfig)} throws.
+     *
+     * @param listener optional listener, called on the main thread once the file is finalized
+     * @return a future completing with the same result
+     * @throws IllegalStateException if not recording when called
+     */
+    public Future<RecordingResult> stopRecordingAsync(
+            final OnRecordingFinalizedListener listener) throws IllegalStateException {
+        final RecordingFinalizer finalizer = beginStop();
+        FutureTask<RecordingResult> task = new FutureTask<>(new Callable<RecordingResult>() {
+            @Override
+            public RecordingResult call() {
+                final RecordingResult result = finalizer.call();
+                if (listener != null) {
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onRecordingFinalized(result);
+                        }
+                    });
+                }
+                return result;
+            }
+        });
+        FINALIZER_EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * @return one of the RECORDER_STATE_ constants
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getRecorderState() {
+        return mRecorderLifecycle.getState();
+    }
+
+    /**
+     * Stops drawing into the recording and detaches the recorder from this view. The returned
+     * finalizer stops the recorder and moves the state back to idle.
+     */
+    private RecordingFinalizer beginStop() {
+        synchronized (mRecorderLock) {
+            mRecorderLifecycle.beginStop();
+            mIsRecording.set(false);
+
+            RecordingFinalizer finalizer = new RecordingFinalizer(mCodecRecorder,
+                    mCodecRecorder == null ? mMediaRecorder : null, mOutputFile);
+            mCodecRecorder = null;
+            mMediaRecorder = null;
+            return finalizer;
+        }
+    }
+
+    /**
+     * Stops a detached recorder. Runs on the caller for {@link #stopRecording()}, on a background
+     * thread for {@link #stopRecordingAsync(OnRecordingFinalizedListener)}.
+     */
+    private class RecordingFinalizer implements Callable<RecordingResult> {
+
+        private final CodecRecorder mFinalizingCodecRecorder;
+
+        private final MediaRecorder mFinalizingMediaRecorder;
+
+        private final File mFinalizingOutputFile;
+
+        RecordingFinalizer(CodecRecorder codecRecorder, MediaRecorder mediaRecorder,
+                File outputFile) {
+            mFinalizingCodecRecorder = codecRecorder;
+            mFinalizingMediaRecorder = mediaRecorder;
+            mFinalizingOutputFile = outputFile;
+        }
+
+        @Override
+        public RecordingResult call() {
+            long start = System.currentTimeMillis();
+            synchronized (mMediaPassLock) {
+                // a media pass that started before recording was flagged off has now finished,
+                // and no new one will start
+            }
+            boolean success = true;
+            try {
+                if (mFinalizingCodecRecorder != null) {
+                    success = mFinalizingCodecRecorder.stop();
+                } else {
+                    try {
+                        mFinalizingMediaRecorder.stop();
+                    } catch (RuntimeException e) {
+                        success = false;
+                    } finally {
+                        mFinalizingMediaRecorder.release();
+                    }
+                }
+            } finally {
+                mRecorderLifecycle.onFinalized();
+            }
+            return new RecordingResult(success, mFinalizingOutputFile,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Returns the reference (if any) to the {@link RendererCallbacks}
+     *
+     * @return the callbacks if registered
+     * @see RendererCallbacks
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public RendererCallbacks getRendererCallbacks() {
+        if (mRendererCallbacksWeakReference != null) {
+            return mRendererCallbacksWeakReference.get();
+        }
+
+        return null;
+    }
+
+    /**
+     * Add a {@link RendererCallbacks} object to handle rendering. Not setting one of these is not
+     * necessarily an error, but is usually necessary.
+     *
+     * @param surfaceRendererCallbacks - the object to call back to
+     */
+    public void setRendererCallbacks(RendererCallbacks surfaceRendererCallbacks) {
+
+        mRendererCallbacksWeakReference = new WeakReference<>(surfaceRendererCallbacks);
+    }
+
+
+    /**
+     * Queue a runnable to be run on the GL rendering thread.
+     *
+     * @param runnable - the runnable to queue
+     */
+    public void queueEvent(Runnable runnable) {
+        if (mARRenderThread != null) {
+            mARRenderThread.mRunnableQueue.add(runnable);
+        }
+    }
+
+    /**
+     * Notified once a recording stopped with
+     * {@link #stopRecordingAsync(OnRecordingFinalizedListener)} has been finalized.
+     */
+    public interface OnRecordingFinalizedListener {
+
+        /**
+         * Called on the main thread. A new recorder may be initialized from here.
+         *
+         * @param result the outcome of the recording
+         */
+        void onRecordingFinalized(RecordingResult result);
+    }
+
+    /**
+     * Lifecycle events for the SurfaceView and renderer. These callbacks (unless specified)
+     * are executed on the GL thread.
+     */
+    public interface RendererCallbacks {
 
         /**
          * The surface has been created and bound to the GL context.
@@ -479,13 +1199,52 @@ public class RecordableSurfaceView extends SurfaceView {
 
         /**
          * Render call. Called twice when recording: first for screen display, second for video
-         * file.
+         * file. Implement {@link PassAwareRendererCallbacks} to tell the two apart.
          */
         void onDrawFrame();
+
+        /**
+         * Render call that is told which pass it draws. Calls {@link #onDrawFrame()} unless
+         * overridden; {@link PassAwareRendererCallbacks} implementations provide their own.
+         *
+         * @param pass the pass being drawn; only valid during this call
+         */
+        default void onDrawFrame(RenderPass pass) {
+            onDrawFrame();
+        }
     }
 
 
-    private class ARRenderThread extends Thread implements SurfaceHolder.Callback2 {
+    /**
+     * Chooses the recordable RGBA8888 config with a 16 bit depth buffer all rendering uses.
+     */
+    static EGLConfig chooseEglConfig(EGLDisplay eglDisplay) {
+        int[] config = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                0x3142, 1,
+                EGL14.EGL_DEPTH_SIZE, 16,
+                EGL14.EGL_NONE
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            config[10] = EGLExt.EGL_RECORDABLE_ANDROID;
+        }
+        int[] configsCount = new int[]{0};
+        EGLConfig[] configs = new EGLConfig[1];
+        EGL14.eglChooseConfig(eglDisplay, config, 0, configs, 0, configs.length, configsCount,
+                0);
+        return configs[0];
+    }
+
+    /**
+     * Renders the view. Runs as its own thread, or without starting it, as a client of a
+     * {@link SharedRenderHost} that calls it on the host's thread.
+     */
+    private class ARRenderThread extends Thread
+            implements SurfaceHolder.Callback2, SharedRenderHost.Client {
 
         EGLDisplay mEGLDisplay;
 
@@ -495,60 +1254,186 @@ public class RecordableSurfaceView extends SurfaceView {
 
         EGLSurface mEGLSurfaceMedia;
 
+        // current while there is no window surface, so the context always has a surface
+        EGLSurface mEGLSurfaceParked;
+
+        EGLConfig mEGLConfig;
+
+        // guards mWindowPolicy, mFinished and changes of mEGLSurface
+        final Object mWindowLock = new Object();
+
+        final WindowSurfacePolicy mWindowPolicy =
+                new WindowSurfacePolicy(WINDOW_RETURN_TIMEOUT_NS);
+
         LinkedList<Runnable> mRunnableQueue = new LinkedList<>();
 
-        int[] config = {
-                EGL14.EGL_RED_SIZE, 8,
-                EGL14.EGL_GREEN_SIZE, 8,
-                EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_ALPHA_SIZE, 8,
-                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
-                0x3142, 1,
-                EGL14.EGL_DEPTH_SIZE, 16,
-                EGL14.EGL_NONE
-        };
+        // the compositor whose GL objects live in this thread's context
+        OverlayCompositor mActiveCompositor;
 
+        // likewise for the post-processing chain
+        PostProcessChain mActiveChain;
 
-        ARRenderThread() {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-                config[10] = EGLExt.EGL_RECORDABLE_ANDROID;
-            }
-        }
+        // the update stage whose worker this thread started
+        UpdateStage<?> mActiveUpdateStage;
 
-        private AtomicBoolean mLoop = new AtomicBoolean(false);
+        // layout of mLayoutTransform for the sizes it was computed for
+        RecordingTransform.Layout mLayout;
+
+        RecordingTransform mLayoutTransform;
+
+        int[] mLayoutSizes = new int[4];
+
+        // the renderer's clear color, read when mLayout was computed and restored after the
+        // bars are cleared
+        float[] mClearColor = new float[4];
+
+        RenderPass mDisplayPass = new RenderPass(RenderPass.TARGET_DISPLAY);
+
+        RenderPass mRecordingPass = new RenderPass(RenderPass.TARGET_RECORDING);
+
+        long mFrameIndex = 0;
+
+        // true once a pass of the current frame has run the renderer, so later passes of the
+        // frame can reuse its per-frame state
+        boolean mFrameStatePrepared = false;
+
+        // holds the last recorded frame for FrameRepeatPolicy
+        TextureBlitter mRepeatBlitter;
+
+        // mirror outputs with their EGL surfaces, and the copy of the displayed frame
+        List<MirrorOutput> mActiveMirrors = new ArrayList<>();
+
+        TextureBlitter mMirrorBlitter;
+
+        int[] mMirrorSize = new int[2];
+
+        RenderPass mOffscreenPass = new RenderPass(RenderPass.TARGET_OFFSCREEN);
+
+        RenderTarget mRawCaptureTarget;
+
+        RawFrameCapture mRawCapture;
+
+        // downsamples recorded frames for the key frame index
+        ThumbnailCapture mThumbnailCapture;
+
+        // recording through ByteBuffer input: the frame, its YUV conversion and the read back
+        RenderTarget mBufferFrameTarget;
+
+        RenderTarget mBufferYuvTarget;
 
-        EGLConfig chooseEglConfig(EGLDisplay eglDisplay) {
-            int[] configsCount = new int[]{0};
-            EGLConfig[] configs = new EGLConfig[1];
-            EGL14.eglChooseConfig(eglDisplay, config, 0, configs, 0, configs.length, configsCount,
-                    0);
-            return configs[0];
+        YuvConverter mYuvConverter;
+
+        RawFrameCapture mBufferCapture;
+
+        // drives this renderer instead of its own thread loop, or null
+        final SharedRenderHost mHost;
+
+        boolean mHostAttachRequested = false;
+
+        volatile boolean mFinished = false;
+
+        volatile boolean mExitRequested = false;
+
+        // the setup this thread belongs to
+        final StartupGraph mStartup;
+
+        final StartupMetrics mStartupMetrics;
+
+        boolean mFirstFramePresented = false;
+
+        ARRenderThread(SharedRenderHost host, StartupGraph startup, StartupMetrics metrics) {
+            mHost = host;
+            mStartup = startup;
+            mStartupMetrics = metrics;
         }
 
+        private AtomicBoolean mLoop = new AtomicBoolean(false);
+
         @Override
         public void run() {
             if (mHasGLSurface.get()) {
                 return;
             }
-            mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+            // normally done by the startup step while the window was being created
+            if (!mStartup.await(StartupMetrics.STEP_EGL)) {
+                Log.e(TAG, "Could not set up EGL", mStartup.getError(StartupMetrics.STEP_EGL));
+                getHolder().removeCallback(this);
+                finish();
+                return;
+            }
+            if (mEGLContext != null) {
+                mHasGLContext.set(true);
+            }
+            onAttached(mEGLDisplay, mEGLConfig, mEGLContext);
+
+            while (mLoop.get()) {
+
+                updateWindowSurface();
+
+                renderFrame(true);
+
+                try {
+                    CaptureRateMapper mapper = mCaptureRateMapper;
+                    if (mapper != null && mapper.isHighFrameRate() && mIsRecording.get()) {
+                        Thread.sleep(Math.max(1, mapper.getCaptureIntervalNs() / 1000000L));
+                    } else {
+                        Thread.sleep((long) (1f / 60f * 1000f));
+                    }
+                } catch (InterruptedException intex) {
+                    break;
+                }
+            }
+            teardown();
+        }
+
+        /**
+         * Initializes the display and creates the context. Runs as a startup step before the
+         * thread starts; the context is made current by the thread itself.
+         */
+        void initEgl() {
+            EGLDisplay display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
             int[] version = new int[2];
-            EGL14.eglInitialize(mEGLDisplay, version, 0, version, 1);
-            EGLConfig eglConfig = chooseEglConfig(mEGLDisplay);
+            EGL14.eglInitialize(display, version, 0, version, 1);
+            EGLConfig eglConfig = chooseEglConfig(display);
             if (!mHasGLContext.get()) {
                 mEGLContext = EGL14
-                        .eglCreateContext(mEGLDisplay, eglConfig, EGL14.EGL_NO_CONTEXT,
+                        .eglCreateContext(display, eglConfig, EGL14.EGL_NO_CONTEXT,
                                 new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
-                mHasGLContext.set(true);
             }
+            mEGLDisplay = display;
+            mEGLConfig = eglConfig;
+        }
+
+        /**
+         * Creates the surfaces of this view in the given context and reports it to the renderer.
+         * Waits for the startup steps the renderer and the media surface depend on; a shared
+         * host only attaches the view once they are done, so it never waits here.
+         */
+        @Override
+        public void onAttached(EGLDisplay display, EGLConfig eglConfig, EGLContext context) {
+            long setupStart = System.nanoTime();
+            mEGLDisplay = display;
+            mEGLConfig = eglConfig;
+            mEGLContext = context;
 
             int[] surfaceAttribs = {
                     EGL14.EGL_NONE
             };
 
-            mEGLSurface = EGL14
-                    .eglCreateWindowSurface(mEGLDisplay, eglConfig, RecordableSurfaceView.this,
-                            surfaceAttribs, 0);
-            EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext);
+            mEGLSurfaceParked = EGL14.eglCreatePbufferSurface(mEGLDisplay, eglConfig,
+                    new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+            synchronized (mWindowLock) {
+                if (mWindowPolicy.isWindowAvailable()) {
+                    createWindowSurface();
+                }
+                mWindowPolicy.onAttached(System.nanoTime());
+            }
+            makeDisplayCurrent();
+
+            // resources decoded before GL existed are ready before the renderer sees the surface
+            if (mStartup.has(StartupMetrics.STEP_APP_RESOURCES)) {
+                mStartup.await(StartupMetrics.STEP_APP_RESOURCES);
+            }
 
             // guarantee to only report surface as created once GL context
             // associated with the surface has been created, and call on the GL thread
@@ -560,9 +1445,15 @@ public class RecordableSurfaceView extends SurfaceView {
 
             }
 
-            mEGLSurfaceMedia = EGL14
-                    .eglCreateWindowSurface(mEGLDisplay, eglConfig, mSurface,
-                            surfaceAttribs, 0);
+            if (mStartup.await(StartupMetrics.STEP_INPUT_SURFACE)) {
+                mEGLSurfaceMedia = EGL14
+                        .eglCreateWindowSurface(mEGLDisplay, eglConfig, mSurface,
+                                surfaceAttribs, 0);
+            } else {
+                // initRecorder reports this; the view still draws to the screen
+                Log.e(TAG, "Could not create the input surface",
+                        mStartup.getError(StartupMetrics.STEP_INPUT_SURFACE));
+            }
 
             GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 
@@ -573,112 +1464,802 @@ public class RecordableSurfaceView extends SurfaceView {
                 mRendererCallbacksWeakReference.get().onContextCreated();
             }
 
+            mStartupMetrics.onStepFinished(StartupMetrics.STEP_GL_SETUP, setupStart,
+                    System.nanoTime(), null);
+            // so the first state is being computed before the first frame
+            updateUpdateStage();
             mLoop.set(true);
+        }
 
-            while (mLoop.get()) {
+        @Override
+        public boolean updateWindow() {
+            updateWindowSurface();
+            return mLoop.get();
+        }
 
-                if (!mPaused) {
-                    boolean shouldRender = false;
+        @Override
+        public boolean wantsFrame() {
+            return !mPaused
+                    && (mRenderMode.get() != RENDERMODE_WHEN_DIRTY || mRenderRequested.get())
+                    && (mEGLSurface != null || mIsRecording.get());
+        }
 
-                    //we're just rendering when requested, so check that no one
-                    //has requested and if not, just continue
-                    if (mRenderMode.get() == RENDERMODE_WHEN_DIRTY) {
+        @Override
+        public boolean isRecording() {
+            return mIsRecording.get();
+        }
 
-                        if (mRenderRequested.get()) {
-                            mRenderRequested.set(false);
-                            shouldRender = true;
-                        }
+        @Override
+        public void onDetached() {
+            teardown();
+        }
 
-                    } else {
+        /**
+         * Runs one iteration of the render loop.
+         *
+         * @param scheduled false if a shared host deferred this view's frame to a later vsync;
+         *                  queued events and repeated frames still run
+         */
+        @Override
+        public void renderFrame(boolean scheduled) {
+            if (mHost != null) {
+                // other views draw in the same context between this view's frames
+                makeDisplayCurrent();
+                GLES20.glViewport(0, 0, mWidth, mHeight);
+            }
+
+            if (!mPaused) {
+                boolean shouldRender = false;
+
+                //we're just rendering when requested, so check that no one
+                //has requested and if not, just continue
+                if (!scheduled) {
+                    // deferred by the shared host; a requested render stays pending
+                } else if (mRenderMode.get() == RENDERMODE_WHEN_DIRTY) {
+
+                    if (mRenderRequested.get()) {
+                        mRenderRequested.set(false);
                         shouldRender = true;
                     }
 
-                    if (mSizeChange.get()) {
+                } else {
+                    shouldRender = true;
+                }
 
-                        GLES20.glViewport(0, 0, mWidth, mHeight);
+                if (mSizeChange.get()) {
 
-                        if (mRendererCallbacksWeakReference != null
-                                && mRendererCallbacksWeakReference.get() != null) {
-                            mRendererCallbacksWeakReference.get()
-                                    .onSurfaceChanged(mWidth, mHeight);
-                        }
+                    GLES20.glViewport(0, 0, mWidth, mHeight);
 
-                        mSizeChange.set(false);
+                    if (mRendererCallbacksWeakReference != null
+                            && mRendererCallbacksWeakReference.get() != null) {
+                        mRendererCallbacksWeakReference.get()
+                                .onSurfaceChanged(mWidth, mHeight);
                     }
 
-                    if (shouldRender && mEGLSurface != null
-                            && mEGLSurface != EGL14.EGL_NO_SURFACE) {
+                    mSizeChange.set(false);
+                }
 
-                        if (mRendererCallbacksWeakReference != null
-                                && mRendererCallbacksWeakReference.get() != null) {
-                            mRendererCallbacksWeakReference.get().onPreDrawFrame();
-                        }
+                // without a window, e.g. mid-rotation, only the recording is drawn
+                boolean hasWindow = mEGLSurface != null;
+                if (shouldRender && (hasWindow || mIsRecording.get())) {
+
+                    UpdateStage<?> stage = updateUpdateStage();
+                    if (stage != null) {
+                        stage.beginFrame(System.nanoTime());
+                    }
+
+                    if (mRendererCallbacksWeakReference != null
+                            && mRendererCallbacksWeakReference.get() != null) {
+                        mRendererCallbacksWeakReference.get().onPreDrawFrame();
+                    }
 
+                    // without a window the recording pass is the first of the frame
+                    mFrameStatePrepared = false;
+                    if (hasWindow) {
                         if (mRendererCallbacksWeakReference != null
                                 && mRendererCallbacksWeakReference.get() != null) {
-                            mRendererCallbacksWeakReference.get().onDrawFrame();
+                            mDisplayPass.set(mWidth, mHeight, mFrameIndex, false);
+                            boolean post = beginPostProcess(mDisplayPass, mWidth, mHeight);
+                            mDisplayPass.dispatch(mRendererCallbacksWeakReference.get());
+                            mFrameStatePrepared = true;
+                            if (post) {
+                                mActiveChain.finish();
+                            }
                         }
+                        // the back buffer is undefined after the swap, so copy it first
+                        boolean mirror = prepareMirrors(System.nanoTime());
 
                         EGL14.eglSwapBuffers(mEGLDisplay, mEGLSurface);
+                        long presentedNs = System.nanoTime();
+                        mSurfaceTransitionStats.onFramePresented(presentedNs);
+                        if (!mFirstFramePresented) {
+                            mFirstFramePresented = true;
+                            mStartupMetrics.onFramePresented(presentedNs);
+                        }
+                        if (mirror) {
+                            drawMirrors();
+                        }
+                    }
 
-                        if (mIsRecording.get()) {
-                            EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurfaceMedia, mEGLSurfaceMedia,
-                                    mEGLContext);
-                            if (mRendererCallbacksWeakReference != null
-                                    && mRendererCallbacksWeakReference.get() != null) {
-                                GLES20.glViewport(0, 0, mDesiredWidth, mDesiredHeight);
-                                mRendererCallbacksWeakReference.get().onDrawFrame();
-                                GLES20.glViewport(0, 0, mWidth, mHeight);
+                    // finalization takes this lock to wait for an in-flight media pass
+                    synchronized (mMediaPassLock) {
+                        BackpressureMonitor monitor = mBackpressureMonitor;
+                        CaptureRateMapper mapper = mCaptureRateMapper;
+                        long now = System.nanoTime();
+                        // time-lapse skips the whole media pass between capture ticks
+                        if (mIsRecording.get()
+                                && (mapper == null || mapper.shouldCapture(now))
+                                && (monitor == null || !monitor.shouldSkipFrame(now))) {
+                            drawMediaPass(monitor);
+                            if (!hasWindow) {
+                                mSurfaceTransitionStats.onFrameWithoutWindow();
                             }
-                            EGL14.eglSwapBuffers(mEGLDisplay, mEGLSurfaceMedia);
-                            EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface,
-                                    mEGLContext);
                         }
                     }
+                    if (!mIsRecording.get() && mBufferCapture != null) {
+                        updateBufferCapture(null);
+                    }
+                    synchronized (mRawCaptureLock) {
+                        updateRawCapture(mRawCaptureRing);
+                        if (mRawCapture != null) {
+                            drawRawCapturePass();
+                        }
+                    }
+                    mFrameIndex++;
+                } else if (!shouldRender) {
+                    synchronized (mMediaPassLock) {
+                        FrameRepeatPolicy repeatPolicy = mFrameRepeatPolicy;
+                        // repeated frames would defeat time-lapse and slow motion
+                        if (mIsRecording.get() && repeatPolicy != null
+                                && mCaptureRateMapper == null && mRepeatBlitter != null
+                                && mRepeatBlitter.hasCopy()
+                                && repeatPolicy.shouldRepeat()) {
+                            repeatMediaFrame(repeatPolicy);
+                        }
+                    }
+                }
+
+                while (mRunnableQueue.size() > 0) {
+                    Runnable event = mRunnableQueue.remove();
+                    event.run();
+                }
+            }
+        }
+
+        /**
+         * Starts the worker of a newly set update stage and stops the one it replaces.
+         *
+         * @return the current stage, or null
+         */
+        private UpdateStage<?> updateUpdateStage() {
+            UpdateStage<?> stage = mUpdateStage;
+            if (stage != mActiveUpdateStage) {
+                if (mActiveUpdateStage != null) {
+                    mActiveUpdateStage.stop();
+                }
+                if (stage != null) {
+                    stage.start();
+                }
+                mActiveUpdateStage = stage;
+            }
+            return stage;
+        }
+
+        /**
+         * Releases everything the thread created. The context survives if it is to be preserved.
+         */
+        private void teardown() {
+            if (mActiveUpdateStage != null) {
+                mActiveUpdateStage.stop();
+                mActiveUpdateStage = null;
+            }
+            if (mHost != null && mEGLDisplay != null) {
+                // the shared context may be current on another view's surface, or none
+                makeDisplayCurrent();
+            }
+            if (mRendererCallbacksWeakReference != null
+                    && mRendererCallbacksWeakReference.get() != null) {
+                mRendererCallbacksWeakReference.get().onSurfaceDestroyed();
+            }
 
-                    while (mRunnableQueue.size() > 0) {
-                        Runnable event = mRunnableQueue.remove();
-                        event.run();
+            if (mEGLDisplay != null) {
+                if (mRepeatBlitter != null) {
+                    mRepeatBlitter.release();
+                    mRepeatBlitter = null;
+                }
+                if (mThumbnailCapture != null) {
+                    mThumbnailCapture.release();
+                    mThumbnailCapture = null;
+                }
+                releaseMirrors();
+                updateBufferCapture(null);
+                if (mActiveCompositor != null) {
+                    mActiveCompositor.releaseGl();
+                    mActiveCompositor = null;
+                }
+                if (mActiveChain != null) {
+                    mActiveChain.releaseGl();
+                    mActiveChain = null;
+                }
+                updateRawCapture(null);
+                // a shared context stays with the host
+                boolean ownsContext = mHost == null;
+                EGL14.eglMakeCurrent(
+                        mEGLDisplay,
+                        EGL14.EGL_NO_SURFACE,
+                        EGL14.EGL_NO_SURFACE,
+                        mPreserveEGLContextOnPause && ownsContext
+                                ? mEGLContext : EGL14.EGL_NO_CONTEXT);
+
+                synchronized (mWindowLock) {
+                    if (mEGLSurface != null) {
+                        EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
+                        mEGLSurface = null;
                     }
+                    mWindowLock.notifyAll();
                 }
-                try {
-                    Thread.sleep((long) (1f / 60f * 1000f));
-                } catch (InterruptedException intex) {
-                    if (mRendererCallbacksWeakReference != null
-                            && mRendererCallbacksWeakReference.get() != null) {
-                        mRendererCallbacksWeakReference.get().onSurfaceDestroyed();
+                if (mEGLSurfaceParked != null) {
+                    EGL14.eglDestroySurface(mEGLDisplay, mEGLSurfaceParked);
+                }
+
+                if (mEGLSurfaceMedia != null) {
+                    EGL14.eglDestroySurface(mEGLDisplay, mEGLSurfaceMedia);
+                }
+                if (ownsContext && !mPreserveEGLContextOnPause) {
+                    EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+                    mHasGLContext.set(false);
+                }
+
+                mHasGLSurface.set(false);
+                if (ownsContext) {
+                    EGL14.eglReleaseThread();
+                    EGL14.eglTerminate(mEGLDisplay);
+                }
+                if (mSurface != null) {
+                    mSurface.release();
+                }
+
+            }
+            mSurfaceTransitionStats.cancel();
+            getHolder().removeCallback(this);
+            finish();
+        }
+
+        /**
+         * Marks the thread as done with GL and wakes {@link #awaitFinished(long)}.
+         */
+        private void finish() {
+            synchronized (mWindowLock) {
+                mFinished = true;
+                mWindowLock.notifyAll();
+            }
+        }
+
+        /**
+         * @return true while the thread, or the host driving this renderer, may still touch
+         * the window surface
+         */
+        private boolean isRunning() {
+            return mHost != null ? mHostAttachRequested && !mFinished : isAlive();
+        }
+
+        /**
+         * Ends the thread, which then releases everything it created.
+         */
+        void requestExit() {
+            mExitRequested = true;
+            synchronized (mWindowLock) {
+                mWindowPolicy.exit();
+            }
+            mLoop.set(false);
+            interrupt();
+        }
+
+        /**
+         * @return true once the thread has decided to end; it then no longer takes a window
+         */
+        boolean isExiting() {
+            synchronized (mWindowLock) {
+                return mWindowPolicy.isExiting();
+            }
+        }
+
+        /**
+         * Waits for a thread that is ending to release everything it created.
+         *
+         * @return false if it did not finish in time
+         */
+        boolean awaitFinished(long timeoutMs) {
+            long deadline = System.nanoTime() / 1000000L + timeoutMs;
+            synchronized (mWindowLock) {
+                while (!mFinished && isRunning()) {
+                    long remaining = deadline - System.nanoTime() / 1000000L;
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        mWindowLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
                     }
+                }
+            }
+            return true;
+        }
 
-                    if (mEGLDisplay != null) {
-                        EGL14.eglMakeCurrent(
-                                mEGLDisplay,
-                                EGL14.EGL_NO_SURFACE,
-                                EGL14.EGL_NO_SURFACE,
-                                mPreserveEGLContextOnPause ? mEGLContext : EGL14.EGL_NO_CONTEXT);
+        private void attachToHost() {
+            if (mExitRequested) {
+                // detached from the window before the startup steps finished
+                getHolder().removeCallback(this);
+                finish();
+                return;
+            }
+            mHost.attach(this);
+        }
 
-                        if (mEGLSurface != null) {
-                            EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
-                        }
+        /**
+         * Follows the window: destroys the window surface once the holder has destroyed the
+         * window, creates a new one when it is back, and ends the thread if it stays gone while
+         * there is no recording to draw.
+         */
+        private void updateWindowSurface() {
+            boolean recording = mRecorderLifecycle.isCapturing();
+            synchronized (mWindowLock) {
+                switch (mWindowPolicy.update(System.nanoTime(), mEGLSurface != null, recording)) {
+                    case WindowSurfacePolicy.ACTION_PARK:
+                        EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurfaceParked, mEGLSurfaceParked,
+                                mEGLContext);
+                        EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
+                        mEGLSurface = null;
+                        mWindowLock.notifyAll();
+                        break;
+                    case WindowSurfacePolicy.ACTION_CREATE:
+                        createWindowSurface();
+                        makeDisplayCurrent();
+                        mSizeChange.set(true);
+                        break;
+                    case WindowSurfacePolicy.ACTION_EXIT:
+                        // from here on a returning window gets a new thread, see doSetup
+                        mLoop.set(false);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
 
-                        if (mEGLSurfaceMedia != null) {
-                            EGL14.eglDestroySurface(mEGLDisplay, mEGLSurfaceMedia);
-                        }
-                        if (!mPreserveEGLContextOnPause) {
-                            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
-                            mHasGLContext.set(false);
-                        }
+        private void createWindowSurface() {
+            mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig,
+                    RecordableSurfaceView.this, new int[]{EGL14.EGL_NONE}, 0);
+            if (mEGLSurface == EGL14.EGL_NO_SURFACE) {
+                // tried again on the next frame
+                mEGLSurface = null;
+            } else if (mHost != null) {
+                // the host paces all views by vsync; a swap must not wait for this one's
+                makeDisplayCurrent();
+                EGL14.eglSwapInterval(mEGLDisplay, 0);
+            }
+        }
+
+        /**
+         * Makes the window surface current, or the parked surface while there is no window.
+         */
+        private void makeDisplayCurrent() {
+            EGLSurface surface = mEGLSurface != null ? mEGLSurface : mEGLSurfaceParked;
+            EGL14.eglMakeCurrent(mEGLDisplay, surface, surface, mEGLContext);
+        }
 
-                        mHasGLSurface.set(false);
-                        EGL14.eglReleaseThread();
-                        EGL14.eglTerminate(mEGLDisplay);
-                        mSurface.release();
 
+        /**
+         * Brings the mirror EGL surfaces in line with the outputs and copies the displayed
+         * frame if any output is due for it.
+         *
+         * @return true if there are outputs to draw after the display swap
+         */
+        private boolean prepareMirrors(long nowNs) {
+            boolean due = false;
+            synchronized (mMirrorLock) {
+                for (int i = mActiveMirrors.size() - 1; i >= 0; i--) {
+                    MirrorOutput output = mActiveMirrors.get(i);
+                    if (!mMirrorOutputs.contains(output)) {
+                        destroyMirrorSurface(output);
+                        mActiveMirrors.remove(i);
                     }
-                    return;
                 }
+                for (int i = 0; i < mMirrorOutputs.size(); i++) {
+                    MirrorOutput output = mMirrorOutputs.get(i);
+                    if (!mActiveMirrors.contains(output)) {
+                        createMirrorSurface(output);
+                        mActiveMirrors.add(output);
+                    }
+                    output.mDue = output.mEGLSurface != null && output.isDue(nowNs);
+                    due |= output.mDue;
+                }
+            }
+            if (due) {
+                if (mMirrorBlitter == null) {
+                    mMirrorBlitter = new TextureBlitter();
+                }
+                mMirrorBlitter.copyFromFramebuffer(mWidth, mHeight);
             }
+            return due;
         }
 
+        /**
+         * Draws the copied frame into each due mirror output.
+         */
+        private void drawMirrors() {
+            int[] size = mMirrorSize;
+            synchronized (mMirrorLock) {
+                for (int i = 0; i < mActiveMirrors.size(); i++) {
+                    MirrorOutput output = mActiveMirrors.get(i);
+                    // skips outputs removed since prepareMirrors
+                    if (!output.mDue || !mMirrorOutputs.contains(output)) {
+                        continue;
+                    }
+                    output.mDue = false;
+                    EGLSurface surface = output.mEGLSurface;
+                    EGL14.eglMakeCurrent(mEGLDisplay, surface, surface, mEGLContext);
+                    EGL14.eglQuerySurface(mEGLDisplay, surface, EGL14.EGL_WIDTH, size, 0);
+                    EGL14.eglQuerySurface(mEGLDisplay, surface, EGL14.EGL_HEIGHT, size, 1);
+                    RecordingTransform transform = output.getTransform();
+                    if (transform != null) {
+                        applyRecordingTransform(transform, size[0], size[1]);
+                    } else {
+                        GLES20.glViewport(0, 0, size[0], size[1]);
+                    }
+                    mMirrorBlitter.drawCopy();
+                    GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                    long swapStart = System.nanoTime();
+                    if (EGL14.eglSwapBuffers(mEGLDisplay, surface)) {
+                        long swapEnd = System.nanoTime();
+                        output.onPresented(swapEnd, swapEnd - swapStart);
+                    } else {
+                        Log.w(TAG, "Mirror output failed, EGL error " + EGL14.eglGetError());
+                        output.onFailed();
+                    }
+                }
+            }
+            makeDisplayCurrent();
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+        }
+
+        private void createMirrorSurface(MirrorOutput output) {
+            EGLSurface surface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig,
+                    output.getSurface(), new int[]{EGL14.EGL_NONE}, 0);
+            if (surface == null || surface == EGL14.EGL_NO_SURFACE) {
+                Log.w(TAG, "Cannot draw into mirror output, EGL error " + EGL14.eglGetError());
+                output.onFailed();
+                return;
+            }
+            output.mEGLSurface = surface;
+            // a mirror must never wait for the vsync of a display it does not pace
+            EGL14.eglMakeCurrent(mEGLDisplay, surface, surface, mEGLContext);
+            EGL14.eglSwapInterval(mEGLDisplay, 0);
+            makeDisplayCurrent();
+        }
+
+        private void destroyMirrorSurface(MirrorOutput output) {
+            if (output.mEGLSurface != null) {
+                EGL14.eglDestroySurface(mEGLDisplay, output.mEGLSurface);
+                output.mEGLSurface = null;
+            }
+            output.mDue = false;
+        }
+
+        private void releaseMirrors() {
+            synchronized (mMirrorLock) {
+                for (int i = 0; i < mActiveMirrors.size(); i++) {
+                    destroyMirrorSurface(mActiveMirrors.get(i));
+                }
+                mActiveMirrors.clear();
+            }
+            if (mMirrorBlitter != null) {
+                mMirrorBlitter.release();
+                mMirrorBlitter = null;
+            }
+        }
+
+        /**
+         * Draws the current frame into the recording surface and submits it to the encoder.
+         */
+        private void drawMediaPass(BackpressureMonitor monitor) {
+            bindMediaOutput();
+            boolean post = beginPostProcess(mRecordingPass, mDesiredWidth, mDesiredHeight);
+            RecordingTransform transform = mRecordingTransform;
+            if (transform != null) {
+                applyRecordingTransform(transform, mDesiredWidth, mDesiredHeight);
+            } else {
+                GLES20.glViewport(0, 0, mDesiredWidth, mDesiredHeight);
+            }
+            if (mRendererCallbacksWeakReference != null
+                    && mRendererCallbacksWeakReference.get() != null) {
+                mRecordingPass.set(mDesiredWidth, mDesiredHeight, mFrameIndex,
+                        mFrameStatePrepared);
+                mRecordingPass.dispatch(mRendererCallbacksWeakReference.get());
+                mFrameStatePrepared = true;
+            }
+            if (transform != null) {
+                GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                GLES20.glViewport(0, 0, mDesiredWidth, mDesiredHeight);
+            }
+            if (post) {
+                mActiveChain.finish();
+            }
+            // cached without overlays, so a repeated frame gets current overlays drawn over it
+            FrameRepeatPolicy repeatPolicy = mFrameRepeatPolicy;
+            if (repeatPolicy != null) {
+                if (mRepeatBlitter == null) {
+                    mRepeatBlitter = new TextureBlitter();
+                }
+                mRepeatBlitter.copyFromFramebuffer(mDesiredWidth, mDesiredHeight);
+            }
+            drawOverlays(mDesiredWidth, mDesiredHeight);
+            CodecRecorder recorder = mCodecRecorder;
+            ByteBuffer thumbnail = null;
+            if (recorder != null && recorder.isThumbnailDue(System.nanoTime())) {
+                thumbnail = captureThumbnail(recorder);
+            }
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+            long presentationTimeNs = submitMediaFrame(monitor, thumbnail != null);
+            if (thumbnail != null) {
+                recorder.addThumbnail(presentationTimeNs, thumbnail);
+            }
+            if (repeatPolicy != null) {
+                repeatPolicy.onFrameSubmitted();
+            }
+        }
+
+        /**
+         * Reads a downsampled copy of the frame in the media surface.
+         */
+        private ByteBuffer captureThumbnail(CodecRecorder recorder) {
+            int width = recorder.getThumbnailWidth();
+            int height = recorder.getThumbnailHeight();
+            if (mThumbnailCapture != null && (mThumbnailCapture.getWidth() != width
+                    || mThumbnailCapture.getHeight() != height)) {
+                mThumbnailCapture.release();
+                mThumbnailCapture = null;
+            }
+            if (mThumbnailCapture == null) {
+                mThumbnailCapture = new ThumbnailCapture(width, height);
+            }
+            return mThumbnailCapture.capture(mDesiredWidth, mDesiredHeight);
+        }
+
+        /**
+         * Makes the media surface current, or binds the offscreen frame when the encoder takes
+         * ByteBuffer input.
+         */
+        private void bindMediaOutput() {
+            CodecRecorder recorder = mCodecRecorder;
+            YuvEncoderInput input = recorder != null ? recorder.getBufferInput() : null;
+            updateBufferCapture(input);
+            if (input == null) {
+                EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurfaceMedia, mEGLSurfaceMedia,
+                        mEGLContext);
+            } else {
+                mBufferFrameTarget.bind(mDesiredWidth, mDesiredHeight);
+            }
+        }
+
+        /**
+         * Creates or releases the ByteBuffer input path when the encoder input has changed.
+         */
+        private void updateBufferCapture(YuvEncoderInput input) {
+            if (mBufferCapture != null && mBufferCapture.getTarget() != input) {
+                mBufferCapture.release();
+                mBufferCapture = null;
+                mYuvConverter.release();
+                mYuvConverter = null;
+            }
+            if (input != null && mBufferCapture == null) {
+                mBufferCapture = new RawFrameCapture(input);
+                mYuvConverter = new YuvConverter(input.getLayout());
+                if (mBufferFrameTarget == null) {
+                    mBufferFrameTarget = new RenderTarget();
+                    mBufferYuvTarget = new RenderTarget();
+                }
+            } else if (input == null && mBufferFrameTarget != null) {
+                mBufferFrameTarget.release();
+                mBufferFrameTarget = null;
+                mBufferYuvTarget.release();
+                mBufferYuvTarget = null;
+            }
+        }
+
+        /**
+         * Creates or releases the raw capture when the ring to write to has changed.
+         */
+        private void updateRawCapture(MappedFrameRing ring) {
+            if (mRawCapture != null && mRawCapture.getTarget() != ring) {
+                mRawCapture.release();
+                mRawCapture = null;
+            }
+            if (ring != null && mRawCapture == null) {
+                mRawCapture = new RawFrameCapture(ring);
+                if (mRawCaptureTarget == null) {
+                    mRawCaptureTarget = new RenderTarget();
+                }
+            } else if (ring == null && mRawCaptureTarget != null) {
+                mRawCaptureTarget.release();
+                mRawCaptureTarget = null;
+            }
+        }
+
+        /**
+         * Draws the current frame into the offscreen target at the ring's size and reads it
+         * back into the ring.
+         */
+        private void drawRawCapturePass() {
+            FrameTarget ring = mRawCapture.getTarget();
+            int width = ring.getWidth();
+            int height = ring.getHeight();
+            mRawCaptureTarget.bind(width, height);
+            boolean post = beginPostProcess(mOffscreenPass, width, height);
+            RecordingTransform transform = mRecordingTransform;
+            if (transform != null) {
+                applyRecordingTransform(transform, width, height);
+            }
+            if (mRendererCallbacksWeakReference != null
+                    && mRendererCallbacksWeakReference.get() != null) {
+                mOffscreenPass.set(width, height, mFrameIndex, mFrameStatePrepared);
+                mOffscreenPass.dispatch(mRendererCallbacksWeakReference.get());
+                mFrameStatePrepared = true;
+            }
+            if (transform != null) {
+                GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                GLES20.glViewport(0, 0, width, height);
+            }
+            if (post) {
+                mActiveChain.finish();
+            }
+            drawOverlays(width, height);
+            mRawCapture.capture(System.nanoTime());
+            RenderTarget.unbind();
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+        }
+
+        /**
+         * Redirects the renderer's drawing into the post-processing chain's pooled target when
+         * a chain with enabled passes is set.
+         *
+         * @return true if the chain must be finished after the renderer has drawn
+         */
+        private boolean beginPostProcess(RenderPass pass, int width, int height) {
+            PostProcessChain chain = mPostProcessChain;
+            if (chain != mActiveChain) {
+                if (mActiveChain != null) {
+                    mActiveChain.releaseGl();
+                }
+                mActiveChain = chain;
+            }
+            return chain != null && chain.begin(pass, width, height);
+        }
+
+        private void drawOverlays(int width, int height) {
+            OverlayCompositor compositor = mOverlayCompositor;
+            if (compositor != mActiveCompositor) {
+                if (mActiveCompositor != null) {
+                    mActiveCompositor.releaseGl();
+                }
+                mActiveCompositor = compositor;
+            }
+            if (compositor != null) {
+                compositor.draw(width, height);
+            }
+        }
+
+        /**
+         * Sends the cached copy of the last recorded frame to the encoder again.
+         */
+        private void repeatMediaFrame(FrameRepeatPolicy repeatPolicy) {
+            BackpressureMonitor monitor = mBackpressureMonitor;
+            if (monitor != null && monitor.shouldSkipFrame(System.nanoTime())) {
+                return;
+            }
+            bindMediaOutput();
+            GLES20.glViewport(0, 0, mDesiredWidth, mDesiredHeight);
+            mRepeatBlitter.drawCopy();
+            drawOverlays(mDesiredWidth, mDesiredHeight);
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+            submitMediaFrame(monitor, false);
+            repeatPolicy.onFrameRepeated();
+        }
+
+        /**
+         * Swaps the media surface, handing the drawn frame to the encoder, and switches back to
+         * the display surface. With ByteBuffer input the offscreen frame is converted to YUV and
+         * read back instead.
+         *
+         * @param timestamp whether to set the presentation time even when the surface's own
+         *                  queue time would do, so the caller knows it exactly
+         * @return the presentation time set, or the time just before the swap if none was set
+         */
+        private long submitMediaFrame(BackpressureMonitor monitor, boolean timestamp) {
+            CodecRecorder recorder = mCodecRecorder;
+            AvSyncMonitor avSync = recorder != null ? recorder.getAvSyncMonitor() : null;
+            CaptureRateMapper mapper = mCaptureRateMapper;
+            long presentationTimeNs = System.nanoTime();
+            if (mapper != null) {
+                presentationTimeNs = mapper.onCaptured(presentationTimeNs);
+            } else if (avSync != null) {
+                presentationTimeNs = avSync.getVideoTimestampNs(presentationTimeNs);
+            }
+            if (mBufferCapture == null && (mapper != null || avSync != null || timestamp)) {
+                EGLExt.eglPresentationTimeANDROID(mEGLDisplay, mEGLSurfaceMedia,
+                        presentationTimeNs);
+            }
+            long swapStart = System.nanoTime();
+            if (mBufferCapture != null) {
+                // the input counts the frame as submitted once the encoder has it
+                mYuvConverter.convert(mBufferFrameTarget.getTexture(), mDesiredWidth,
+                        mDesiredHeight, mBufferYuvTarget);
+                mBufferCapture.capture(presentationTimeNs);
+                RenderTarget.unbind();
+            } else {
+                EGL14.eglSwapBuffers(mEGLDisplay, mEGLSurfaceMedia);
+                if (recorder != null) {
+                    recorder.onFrameSubmitted();
+                }
+            }
+            if (monitor != null) {
+                long swapEnd = System.nanoTime();
+                monitor.onFrameSubmitted(swapEnd, swapEnd - swapStart);
+            }
+            if (mBufferCapture == null) {
+                makeDisplayCurrent();
+            } else {
+                GLES20.glViewport(0, 0, mWidth, mHeight);
+            }
+            return presentationTimeNs;
+        }
+
+        /**
+         * Sets viewport and scissor for a pass into an output of the given size, clearing the
+         * bars around the content when the transform needs it.
+         */
+        private void applyRecordingTransform(RecordingTransform transform, int outputWidth,
+                int outputHeight) {
+            if (transform != mLayoutTransform || mLayoutSizes[0] != mWidth
+                    || mLayoutSizes[1] != mHeight || mLayoutSizes[2] != outputWidth
+                    || mLayoutSizes[3] != outputHeight) {
+                mLayout = transform.computeLayout(mWidth, mHeight, outputWidth, outputHeight);
+                mLayoutTransform = transform;
+                mLayoutSizes[0] = mWidth;
+                mLayoutSizes[1] = mHeight;
+                mLayoutSizes[2] = outputWidth;
+                mLayoutSizes[3] = outputHeight;
+                if (mLayout.clearBars) {
+                    // once per layout; reading it back on every frame stalls the pipeline
+                    GLES20.glGetFloatv(GLES20.GL_COLOR_CLEAR_VALUE, mClearColor, 0);
+                }
+            }
+            RecordingTransform.Layout layout = mLayout;
+
+            if (layout.clearBars) {
+                int color = transform.getBarColor();
+                GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+                GLES20.glClearColor(((color >> 16) & 0xFF) / 255f, ((color >> 8) & 0xFF) / 255f,
+                        (color & 0xFF) / 255f, ((color >>> 24) & 0xFF) / 255f);
+                int[] bars = layout.bars;
+                for (int i = 0; i < layout.barCount * 4; i += 4) {
+                    GLES20.glScissor(bars[i], bars[i + 1], bars[i + 2], bars[i + 3]);
+                    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                }
+                GLES20.glClearColor(mClearColor[0], mClearColor[1], mClearColor[2],
+                        mClearColor[3]);
+            }
+
+            GLES20.glViewport(layout.viewportX, layout.viewportY, layout.viewportWidth,
+                    layout.viewportHeight);
+            if (layout.scissor) {
+                GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+                GLES20.glScissor(layout.scissorX, layout.scissorY, layout.scissorWidth,
+                        layout.scissorHeight);
+            }
+        }
 
         @Override
         public void surfaceRedrawNeeded(SurfaceHolder surfaceHolder) {
@@ -687,14 +2268,40 @@ public class RecordableSurfaceView extends SurfaceView {
 
         @Override
         public void surfaceCreated(SurfaceHolder surfaceHolder) {
+            boolean taken;
+            synchronized (mWindowLock) {
+                taken = mWindowPolicy.onWindowCreated();
+            }
+            if (!taken) {
+                // the window came back after this thread gave up on it
+                replaceRenderThread(this);
+                return;
+            }
 
-            if (!this.isAlive() && !this.isInterrupted() && this.getState() != State.TERMINATED) {
+            if (mHost != null) {
+                if (!mHostAttachRequested) {
+                    mHostAttachRequested = true;
+                    // attaching once the steps onAttached needs are done keeps the shared host
+                    // thread, and every other view on it, from waiting on them
+                    mStartup.whenFinished(new Runnable() {
+                        @Override
+                        public void run() {
+                            attachToHost();
+                        }
+                    }, StartupMetrics.STEP_APP_RESOURCES, StartupMetrics.STEP_INPUT_SURFACE);
+                }
+            } else if (!this.isAlive() && !this.isInterrupted()
+                    && this.getState() != State.TERMINATED) {
                 this.start();
             }
         }
 
         @Override
         public void surfaceChanged(SurfaceHolder surfaceHolder, int i, int width, int height) {
+            if (mWidth != 0 && (mWidth != width || mHeight != height)) {
+                mSurfaceTransitionStats.begin(SurfaceTransitionStats.TRANSITION_RESIZE,
+                        System.nanoTime());
+            }
 
             if (mWidth != width) {
                 mWidth = width;
@@ -709,9 +2316,27 @@ public class RecordableSurfaceView extends SurfaceView {
 
         @Override
         public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
-            mLoop.set(false);
-            this.interrupt();
-            getHolder().removeCallback(ARRenderThread.this);
+            // only the window surface goes; context, media surface and recording stay
+            long now = System.nanoTime();
+            mSurfaceTransitionStats.begin(SurfaceTransitionStats.TRANSITION_RECREATE, now);
+            synchronized (mWindowLock) {
+                mWindowPolicy.onWindowDestroyed();
+                // EGL must let go of the window before this returns
+                long deadline = now / 1000000L + WINDOW_RELEASE_TIMEOUT_MS;
+                while (mEGLSurface != null && isRunning()) {
+                    long remaining = deadline - System.nanoTime() / 1000000L;
+                    if (remaining <= 0) {
+                        Log.w(TAG, "Render thread did not release the window surface");
+                        break;
+                    }
+                    try {
+                        mWindowLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
         }
     }
 
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaFormat;
+import android.media.projection.MediaProjection;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recording settings for the {@link android.media.MediaCodec} based recording path, passed to
+ * {@link RecordableSurfaceView#initRecorder(RecorderConfig)}.
+ * <p>
+ * Unlike the {@link android.media.MediaRecorder} based <code>initRecorder</code> overloads this
+ * path lets the app choose the audio source, record without audio, and mix its own PCM into the
+ * recording.
+ */
+public class RecorderConfig {
+
+    /**
+     * Record video only.
+     */
+    public static final int AUDIO_SOURCE_NONE = 0;
+
+    /**
+     * Record the microphone.
+     */
+    public static final int AUDIO_SOURCE_MIC = 1;
+
+    /**
+     * Record audio played by apps (API 29+), using the {@link MediaProjection} supplied through
+     * {@link #setMediaProjection(MediaProjection)}.
+     */
+    public static final int AUDIO_SOURCE_PLAYBACK_CAPTURE = 2;
+
+    /**
+     * Record only the PCM supplied by the app through
+     * {@link RecordableSurfaceView#writeAudio(short[], int, int)}.
+     */
+    public static final int AUDIO_SOURCE_APP = 3;
+
+    /**
+     * Feed the encoder through its input surface, falling back to ByteBuffer input if the
+     * encoder rejects the surface.
+     */
+    public static final int VIDEO_INPUT_AUTO = 0;
+
+    /**
+     * Feed the encoder through its input surface only.
+     */
+    public static final int VIDEO_INPUT_SURFACE = 1;
+
+    /**
+     * Convert frames to YUV on the GPU, read them back and feed the encoder's ByteBuffer input.
+     * Slower than surface input, but works with encoders and emulators that have no working
+     * surface input. Needs a width that is a multiple of 8 and a height that is a multiple of 4.
+     */
+    public static final int VIDEO_INPUT_BUFFER = 2;
+
+    private final File mOutputFile;
+
+    private final FileDescriptor mOutputFileDescriptor;
+
+    private final WritableByteChannel mOutputChannel;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private int mOrientationHint = 0;
+
+    private String mVideoMimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+
+    private int mVideoBitRate = 12000000;
+
+    private int mFrameRate = 30;
+
+    private int mIFrameInterval = 1;
+
+    private int mVideoInput = VIDEO_INPUT_AUTO;
+
+    private double mCaptureRate = 0;
+
+    private int mAudioSource = AUDIO_SOURCE_MIC;
+
+    private boolean mAppAudioMixing = false;
+
+    private float mAppAudioGain = 1f;
+
+    private int mAudioSampleRate = 44100;
+
+    private int mAudioChannelCount = 1;
+
+    private int mAudioBitRate = 96000;
+
+    private MediaProjection mMediaProjection;
+
+    private int mAvSyncCorrection = AvSyncMonitor.CORRECTION_NONE;
+
+    private long mRepeatPreviousFrameAfterUs = 0;
+
+    private ChannelWriter.Options mWriterOptions = new ChannelWriter.Options();
+
+    private boolean mUsePlatformMuxer = false;
+
+    private boolean mFaststart = false;
+
+    private long mExpectedDurationMs = 0;
+
+    private long mFragmentDurationUs = 1000000L;
+
+    private File mKeyframeIndexFile;
+
+    private int mThumbnailWidth = 0;
+
+    private int mThumbnailHeight = 0;
+
+    private final List<EncodedFrameSink> mEncodedFrameSinks = new ArrayList<>();
+
+    /**
+     * @param outputFile the file to record into. Assumes the calling program has permission to
+     *                   write to this file
+     * @param width      the width of the recorded video
+     * @param height     the height of the recorded video
+     */
+    public RecorderConfig(File outputFile, int width, int height) {
+        mOutputFile = outputFile;
+        mOutputFileDescriptor = null;
+        mOutputChannel = null;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * @param outputFileDescriptor a seekable, writable file descriptor to record into, e.g. one
+     *                             opened from a MediaStore Uri, open for reading too when
+     *                             faststart is enabled. It is not closed by the recorder,
+     *                             which writes through a duplicate of it
+     * @param width                the width of the recorded video
+     * @param height               the height of the recorded video
+     */
+    public RecorderConfig(FileDescriptor outputFileDescriptor, int width, int height) {
+        mOutputFile = null;
+        mOutputFileDescriptor = outputFileDescriptor;
+        mOutputChannel = null;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Records a fragmented MP4 into a stream, e.g. a pipe to an uploader, which can consume the
+     * recording while it is being made. H.264 only.
+     *
+     * @param outputChannel the channel to write to. It is not closed by the recorder
+     * @param width         the width of the recorded video
+     * @param height        the height of the recorded video
+     * @see #setFragmentDurationMs(long)
+     */
+    public RecorderConfig(WritableByteChannel outputChannel, int width, int height) {
+        mOutputFile = null;
+        mOutputFileDescriptor = null;
+        mOutputChannel = outputChannel;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Encodes video without writing a container, for use with
+     * {@link #addEncodedFrameSink(EncodedFrameSink)} only. No audio is recorded.
+     *
+     * @param width  the width of the encoded video
+     * @param height the height of the encoded video
+     */
+    public RecorderConfig(int width, int height) {
+        mOutputFile = null;
+        mOutputFileDescriptor = null;
+        mOutputChannel = null;
+        mWidth = width;
+        mHeight = height;
+        mAudioSource = AUDIO_SOURCE_NONE;
+    }
+
+    /**
+     * Records a fragmented MP4 into an {@link OutputStream}.
+     *
+     * @see #RecorderConfig(WritableByteChannel, int, int)
+     */
+    public RecorderConfig(OutputStream outputStream, int width, int height) {
+        this(Channels.newChannel(outputStream), width, height);
+    }
+
+    /**
+     * @param degrees the orientation to record the video (0, 90, 180, or 270)
+     */
+    public RecorderConfig setOrientationHint(int degrees) {
+        mOrientationHint = degrees;
+        return this;
+    }
+
+    /**
+     * @param mimeType the video codec, e.g. {@link MediaFormat#MIMETYPE_VIDEO_AVC}
+     */
+    public RecorderConfig setVideoMimeType(String mimeType) {
+        mVideoMimeType = mimeType;
+        return this;
+    }
+
+    /**
+     * @param bitsPerSecond the video bitrate. Defaults to 12 Mbps
+     */
+    public RecorderConfig setVideoBitRate(int bitsPerSecond) {
+        mVideoBitRate = bitsPerSecond;
+        return this;
+    }
+
+    /**
+     * @param fps the video frame rate. Defaults to 30
+     */
+    public RecorderConfig setFrameRate(int fps) {
+        mFrameRate = fps;
+        return this;
+    }
+
+    /**
+     * Captures frames at a different rate than the recording plays back at
+     * ({@link #setFrameRate(int)}): lower for time-lapse, higher for slow motion. Audio cannot be
+     * recorded in either mode.
+     * <p>
+     * In time-lapse the recording pass is only drawn on capture ticks. In high frame rate mode the
+     * render loop runs at the capture rate while recording, but the display's refresh rate may
+     * still limit how many frames are actually rendered.
+     *
+     * @param fps frames captured per second of real time, or 0 to capture at the frame rate
+     * @see CaptureRateMapper
+     */
+    public RecorderConfig setCaptureRate(double fps) {
+        mCaptureRate = fps;
+        return this;
+    }
+
+    /**
+     * @param seconds the key frame interval. Defaults to 1
+     */
+    public RecorderConfig setIFrameInterval(int seconds) {
+        mIFrameInterval = seconds;
+        return this;
+    }
+
+    /**
+     * @param input one of the <code>VIDEO_INPUT_</code> constants. Defaults to
+     *              {@link #VIDEO_INPUT_AUTO}
+     */
+    public RecorderConfig setVideoInput(int input) {
+        mVideoInput = input;
+        return this;
+    }
+
+    /**
+     * @param source one of the <code>AUDIO_SOURCE_</code> constants. Defaults to
+     *               {@link #AUDIO_SOURCE_MIC}
+     */
+    public RecorderConfig setAudioSource(int source) {
+        mAudioSource = source;
+        return this;
+    }
+
+    /**
+     * Enables mixing PCM written through {@link RecordableSurfaceView#writeAudio(short[], int,
+     * int)} into the captured audio. Always enabled for {@link #AUDIO_SOURCE_APP}.
+     *
+     * @param enabled whether to mix app audio
+     * @param gain    linear gain applied to the app audio, at least 0; mixed samples saturate
+     *                rather than wrap
+     * @throws IllegalArgumentException if gain is negative, infinite or not a number
+     */
+    public RecorderConfig setAppAudioMixing(boolean enabled, float gain) {
+        if (!(gain >= 0f) || Float.isInfinite(gain)) {
+            throw new IllegalArgumentException("Gain must be finite and at least 0: " + gain);
+        }
+        mAppAudioMixing = enabled;
+        mAppAudioGain = gain;
+        return this;
+    }
+
+    /**
+     * @param sampleRate   audio sample rate in Hz. Defaults to 44100
+     * @param channelCount 1 or 2. Defaults to 1
+     * @param bitRate      AAC bitrate. Defaults to 96 kbps
+     */
+    public RecorderConfig setAudioFormat(int sampleRate, int channelCount, int bitRate) {
+        mAudioSampleRate = sampleRate;
+        mAudioChannelCount = channelCount;
+        mAudioBitRate = bitRate;
+        return this;
+    }
+
+    /**
+     * @param projection the projection used for {@link #AUDIO_SOURCE_PLAYBACK_CAPTURE}
+     */
+    public RecorderConfig setMediaProjection(MediaProjection projection) {
+        mMediaProjection = projection;
+        return this;
+    }
+
+    /**
+     * Sets how drift between the audio device clock and the video clock is corrected. Drift is
+     * measured whenever audio is captured from a device, regardless of this setting.
+     *
+     * @param mode one of the <code>AvSyncMonitor.CORRECTION_</code> constants. Defaults to
+     *             {@link AvSyncMonitor#CORRECTION_NONE}
+     */
+    public RecorderConfig setAvSyncCorrection(int mode) {
+        mAvSyncCorrection = mode;
+        return this;
+    }
+
+    /**
+     * Asks the encoder to repeat the last frame when no new frame arrives within
+     * <code>afterUs</code>, keeping the output frame rate steady while the view renders only on
+     * demand. Not all encoders honor this; {@link FrameRepeatPolicy} works with any recorder.
+     *
+     * @param afterUs the gap in microseconds after which a frame is repeated, or 0 to disable
+     * @see android.media.MediaFormat#KEY_REPEAT_PREVIOUS_FRAME_AFTER
+     */
+    public RecorderConfig setRepeatPreviousFrameAfterUs(long afterUs) {
+        mRepeatPreviousFrameAfterUs = afterUs;
+        return this;
+    }
+
+    /**
+     * Tunes how the library's MP4 writer performs I/O: chunk size and count, preallocation and
+     * fsync policy.
+     *
+     * @param options the writer options
+     * @see ChannelWriter.Options
+     */
+    public RecorderConfig setWriterOptions(ChannelWriter.Options options) {
+        mWriterOptions = options;
+        return this;
+    }
+
+    /**
+     * Forces the platform {@link android.media.MediaMuxer} instead of the library's MP4 writer.
+     * The platform muxer is always used for video formats other than H.264.
+     *
+     * @param usePlatformMuxer whether to use the platform muxer
+     */
+    public RecorderConfig setUsePlatformMuxer(boolean usePlatformMuxer) {
+        mUsePlatformMuxer = usePlatformMuxer;
+        return this;
+    }
+
+    /**
+     * Writes the <code>moov</code> box ahead of the media data, so web players and CDNs can
+     * start playback before the whole file has been downloaded. Space for it is reserved when
+     * recording starts, sized for the expected duration; a longer recording moves its media data
+     * once when it stops, in a single streaming pass. Applies to the library's MP4 writer only,
+     * not to the platform muxer or stream outputs.
+     *
+     * @param faststart          whether to write faststart files
+     * @param expectedDurationMs how long recordings are expected to last
+     */
+    public RecorderConfig setFaststart(boolean faststart, long expectedDurationMs) {
+        mFaststart = faststart;
+        mExpectedDurationMs = expectedDurationMs;
+        return this;
+    }
+
+    /**
+     * Writes a {@link KeyframeIndex} sidecar next to the recording: the time, byte offset and
+     * size of every key frame, and optionally a small thumbnail once per key frame interval,
+     * downsampled on the GPU. Byte offsets are known for the library's MP4 writer only.
+     *
+     * @param file            the index file, or null for none
+     * @param thumbnailWidth  thumbnail width, or 0 for an index without thumbnails
+     * @param thumbnailHeight thumbnail height
+     */
+    public RecorderConfig setKeyframeIndex(File file, int thumbnailWidth, int thumbnailHeight) {
+        mKeyframeIndexFile = file;
+        mThumbnailWidth = thumbnailWidth;
+        mThumbnailHeight = thumbnailHeight;
+        return this;
+    }
+
+    /**
+     * Sets the target length of each fragment for stream outputs. Fragments are cut at the first
+     * key frame after this duration, so the key frame interval bounds the real length.
+     *
+     * @param millis fragment length, or 0 to write every encoded sample as its own fragment,
+     *               one sample behind the encoder. Defaults to 1000
+     */
+    public RecorderConfig setFragmentDurationMs(long millis) {
+        mFragmentDurationUs = millis * 1000L;
+        return this;
+    }
+
+    /**
+     * Delivers every encoded video frame to <code>sink</code>, in addition to any file or
+     * stream output.
+     *
+     * @param sink the sink to add
+     * @see EncodedFrameSink
+     */
+    public RecorderConfig addEncodedFrameSink(EncodedFrameSink sink) {
+        mEncodedFrameSinks.add(sink);
+        return this;
+    }
+
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    public FileDescriptor getOutputFileDescriptor() {
+        return mOutputFileDescriptor;
+    }
+
+    public WritableByteChannel getOutputChannel() {
+        return mOutputChannel;
+    }
+
+    /**
+     * @return true if the recording is written to a file, descriptor or stream
+     */
+    public boolean hasOutput() {
+        return mOutputFile != null || mOutputFileDescriptor != null || mOutputChannel != null;
+    }
+
+    public List<EncodedFrameSink> getEncodedFrameSinks() {
+        return Collections.unmodifiableList(mEncodedFrameSinks);
+    }
+
+    public long getFragmentDurationUs() {
+        return mFragmentDurationUs;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getOrientationHint() {
+        return mOrientationHint;
+    }
+
+    public String getVideoMimeType() {
+        return mVideoMimeType;
+    }
+
+    public int getVideoBitRate() {
+        return mVideoBitRate;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    public int getVideoInput() {
+        return mVideoInput;
+    }
+
+    public int getAudioSource() {
+        return mAudioSource;
+    }
+
+    public boolean isAppAudioMixing() {
+        return mAppAudioMixing || mAudioSource == AUDIO_SOURCE_APP;
+    }
+
+    public float getAppAudioGain() {
+        return mAppAudioGain;
+    }
+
+    public int getAudioSampleRate() {
+        return mAudioSampleRate;
+    }
+
+    public int getAudioChannelCount() {
+        return mAudioChannelCount;
+    }
+
+    public int getAudioBitRate() {
+        return mAudioBitRate;
+    }
+
+    public MediaProjection getMediaProjection() {
+        return mMediaProjection;
+    }
+
+    public int getAvSyncCorrection() {
+        return mAvSyncCorrection;
+    }
+
+    /**
+     * @return the capture rate, or 0 if frames are captured at the frame rate
+     */
+    public double getCaptureRate() {
+        return mCaptureRate;
+    }
+
+    /**
+     * @return true if the capture rate differs from the frame rate
+     */
+    public boolean hasCaptureRateMapping() {
+        return mCaptureRate > 0 && mCaptureRate != mFrameRate;
+    }
+
+    public long getRepeatPreviousFrameAfterUs() {
+        return mRepeatPreviousFrameAfterUs;
+    }
+
+    public ChannelWriter.Options getWriterOptions() {
+        return mWriterOptions;
+    }
+
+    public boolean isUsePlatformMuxer() {
+        return mUsePlatformMuxer;
+    }
+
+    public boolean isFaststart() {
+        return mFaststart;
+    }
+
+    public long getExpectedDurationMs() {
+        return mExpectedDurationMs;
+    }
+
+    public File getKeyframeIndexFile() {
+        return mKeyframeIndexFile;
+    }
+
+    public int getThumbnailWidth() {
+        return mThumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return mThumbnailHeight;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The recorder state of a {@link RecordableSurfaceView}: idle, prepared, recording, finalizing
+ * and back to idle. Only the transitions live here; the view owns the recorders and makes the
+ * transitions under its recorder lock. The state may be read from any thread.
+ */
+final class RecorderLifecycle {
+
+    private static final int IDLE = RecordableSurfaceView.RECORDER_STATE_IDLE;
+
+    private static final int PREPARED = RecordableSurfaceView.RECORDER_STATE_PREPARED;
+
+    private static final int RECORDING = RecordableSurfaceView.RECORDER_STATE_RECORDING;
+
+    private static final int FINALIZING = RecordableSurfaceView.RECORDER_STATE_FINALIZING;
+
+    private final AtomicInteger mState = new AtomicInteger(IDLE);
+
+    /**
+     * @return one of the RECORDER_STATE_ constants
+     */
+    int getState() {
+        return mState.get();
+    }
+
+    boolean isIdle() {
+        return mState.get() == IDLE;
+    }
+
+    /**
+     * @return true while frames go to the recorder or are still being written out
+     */
+    boolean isCapturing() {
+        int state = mState.get();
+        return state == RECORDING || state == FINALIZING;
+    }
+
+    /**
+     * Starts initializing a recorder. A recorder prepared earlier is dropped: the state goes
+     * back to idle and the caller must release it.
+     *
+     * @throws IllegalStateException while recording or finalizing
+     */
+    void beginInit() {
+        int state = mState.get();
+        if (state == RECORDING) {
+            throw new IllegalStateException("Cannot init while recording.");
+        } else if (state == FINALIZING) {
+            throw new IllegalStateException(
+                    "Cannot init while the previous recording is being finalized.");
+        }
+        mState.set(IDLE);
+    }
+
+    /**
+     * Called once {@link #beginInit()} was followed by a successful prepare.
+     */
+    void onPrepared() {
+        if (!mState.compareAndSet(IDLE, PREPARED)) {
+            throw new IllegalStateException("Cannot prepare in state " + mState.get());
+        }
+    }
+
+    /**
+     * @return true if a prepared recorder can be started
+     */
+    boolean canStart() {
+        return mState.get() == PREPARED;
+    }
+
+    void onStarted() {
+        if (!mState.compareAndSet(PREPARED, RECORDING)) {
+            throw new IllegalStateException("Cannot start. Is not prepared.");
+        }
+    }
+
+    /**
+     * Called when starting failed and the prepared recorder was released.
+     */
+    void onStartFailed() {
+        mState.compareAndSet(PREPARED, IDLE);
+    }
+
+    /**
+     * @throws IllegalStateException if not recording
+     */
+    void beginStop() {
+        if (!mState.compareAndSet(RECORDING, FINALIZING)) {
+            throw new IllegalStateException("Cannot stop. Is not recording.");
+        }
+    }
+
+    /**
+     * Called once the stopped recorder has written out the file, successfully or not.
+     */
+    void onFinalized() {
+        mState.compareAndSet(FINALIZING, IDLE);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.File;
+
+/**
+ * Outcome of a finalized recording.
+ *
+ * @see RecordableSurfaceView#stopRecordingAsync(RecordableSurfaceView.OnRecordingFinalizedListener)
+ */
+public final class RecordingResult {
+
+    private final boolean mSuccess;
+
+    private final File mOutputFile;
+
+    private final long mFinalizeTimeMs;
+
+    RecordingResult(boolean success, File outputFile, long finalizeTimeMs) {
+        mSuccess = success;
+        mOutputFile = outputFile;
+        mFinalizeTimeMs = finalizeTimeMs;
+    }
+
+    /**
+     * @return true if a playable file was written
+     */
+    public boolean isSuccess() {
+        return mSuccess;
+    }
+
+    /**
+     * @return the file recorded into, or null when recording to a file descriptor or stream
+     */
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    /**
+     * @return size of the output file in bytes, or -1 if not recording to a file
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getFileSize() {
+        return mOutputFile != null ? mOutputFile.length() : -1;
+    }
+
+    /**
+     * @return how long stopping the encoders and finalizing the file took
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getFinalizeTimeMs() {
+        return mFinalizeTimeMs;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Maps the view's content onto the recorded frame when the two differ in size or aspect ratio,
+ * optionally recording only a region of the view.
+ * <p>
+ * The transform is applied on the GPU while the renderer draws the media pass, by moving and
+ * scaling the viewport; the renderer keeps the projection it set up for the view's size. The
+ * math is plain Java; see {@link #computeLayout(int, int, int, int)}.
+ * <p>
+ * Instances are immutable.
+ *
+ * @see RecordableSurfaceView#setRecordingTransform(RecordingTransform)
+ */
+public class RecordingTransform {
+
+    /**
+     * The content is scaled to the recorded size, ignoring aspect ratio. This is the behavior
+     * without a transform.
+     */
+    public static final int SCALE_STRETCH = 0;
+
+    /**
+     * The whole content is scaled to fit inside the recorded frame, keeping its aspect ratio.
+     * The renderer's own clear color shows in the bars.
+     */
+    public static final int SCALE_FIT = 1;
+
+    /**
+     * The content is scaled to cover the whole recorded frame, keeping its aspect ratio, and
+     * cropped at the edges.
+     */
+    public static final int SCALE_FILL_CROP = 2;
+
+    /**
+     * Like {@link #SCALE_FIT}, but the bars are filled with the bar color and the renderer is
+     * scissored to the content.
+     */
+    public static final int SCALE_LETTERBOX = 3;
+
+    /**
+     * Viewport, scissor and texture coordinates for one combination of view and recording size.
+     * Rectangles are in GL window coordinates of the recorded frame (origin bottom left).
+     */
+    static final class Layout {
+
+        final int viewportX;
+
+        final int viewportY;
+
+        final int viewportWidth;
+
+        final int viewportHeight;
+
+        final boolean scissor;
+
+        final int scissorX;
+
+        final int scissorY;
+
+        final int scissorWidth;
+
+        final int scissorHeight;
+
+        /**
+         * True if the parts of the frame outside the scissor box must be cleared to the bar
+         * color.
+         */
+        final boolean clearBars;
+
+        /**
+         * The parts of the frame outside the scissor box when {@link #clearBars} is set, as
+         * x, y, width, height quadruples: bottom, top, left, right, empty ones left out.
+         */
+        final int[] bars;
+
+        final int barCount;
+
+        /**
+         * The part of a view-sized texture (GL orientation) that lands in the scissor box, for
+         * copying cached frames into the recording: left, bottom, right, top.
+         */
+        final float[] texCoords;
+
+        Layout(int viewportX, int viewportY, int viewportWidth, int viewportHeight,
+                boolean scissor, int scissorX, int scissorY, int scissorWidth, int scissorHeight,
+                boolean clearBars, int[] bars, int barCount, float[] texCoords) {
+            this.viewportX = viewportX;
+            this.viewportY = viewportY;
+            this.viewportWidth = viewportWidth;
+            this.viewportHeight = viewportHeight;
+            this.scissor = scissor;
+            this.scissorX = scissorX;
+            this.scissorY = scissorY;
+            this.scissorWidth = scissorWidth;
+            this.scissorHeight = scissorHeight;
+            this.clearBars = clearBars;
+            this.bars = bars;
+            this.barCount = barCount;
+            this.texCoords = texCoords;
+        }
+    }
+
+    private final int mScaleMode;
+
+    private final boolean mHasRegion;
+
+    private final int mLeft;
+
+    private final int mTop;
+
+    private final int mRight;
+
+    private final int mBottom;
+
+    private final int mBarColor;
+
+    /**
+     * Records the whole view.
+     *
+     * @param scaleMode one of the SCALE_ constants
+     */
+    public RecordingTransform(int scaleMode) {
+        this(scaleMode, false, 0, 0, 0, 0, 0xFF000000);
+    }
+
+    /**
+     * Records only a region of the view, scaled onto the recorded frame with
+     * <code>scaleMode</code>. The viewport grows with the zoom factor, so regions much smaller
+     * than the recorded frame may exceed the driver's GL_MAX_VIEWPORT_DIMS.
+     *
+     * @param scaleMode one of the SCALE_ constants
+     * @param left      left edge of the region in view pixels
+     * @param top       top edge of the region in view pixels
+     * @param right     right edge of the region in view pixels, exclusive
+     * @param bottom    bottom edge of the region in view pixels, exclusive
+     */
+    public RecordingTransform(int scaleMode, int left, int top, int right, int bottom) {
+        this(scaleMode, true, left, top, right, bottom, 0xFF000000);
+        if (right <= left || bottom <= top) {
+            throw new IllegalArgumentException("Empty region of interest");
+        }
+    }
+
+    private RecordingTransform(int scaleMode, boolean hasRegion, int left, int top, int right,
+            int bottom, int barColor) {
+        mScaleMode = scaleMode;
+        mHasRegion = hasRegion;
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        mBarColor = barColor;
+    }
+
+    /**
+     * @param argb the color of the bars around the content, black by default
+     * @return a copy of this transform with the new bar color
+     */
+    public RecordingTransform withBarColor(int argb) {
+        return new RecordingTransform(mScaleMode, mHasRegion, mLeft, mTop, mRight, mBottom, argb);
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getScaleMode() {
+        return mScaleMode;
+    }
+
+    public int getBarColor() {
+        return mBarColor;
+    }
+
+    /**
+     * Computes where the view's content goes in the recorded frame.
+     *
+     * @param viewWidth    width the renderer draws for
+     * @param viewHeight   height the renderer draws for
+     * @param outputWidth  width of the recorded frame
+     * @param outputHeight height of the recorded frame
+     * @return the layout
+     */
+    Layout computeLayout(int viewWidth, int viewHeight, int outputWidth, int outputHeight) {
+        // the source rectangle in view pixels, clamped to the view
+        float srcLeft = 0;
+        float srcTop = 0;
+        float srcRight = viewWidth;
+        float srcBottom = viewHeight;
+        if (mHasRegion) {
+            srcLeft = clamp(mLeft, 0, viewWidth);
+            srcTop = clamp(mTop, 0, viewHeight);
+            srcRight = clamp(mRight, srcLeft, viewWidth);
+            srcBottom = clamp(mBottom, srcTop, viewHeight);
+        }
+        float srcWidth = Math.max(1f, srcRight - srcLeft);
+        float srcHeight = Math.max(1f, srcBottom - srcTop);
+
+        // where the source lands in the output, in output pixels from the top left
+        float scaleX = outputWidth / srcWidth;
+        float scaleY = outputHeight / srcHeight;
+        switch (mScaleMode) {
+            case SCALE_FIT:
+            case SCALE_LETTERBOX:
+                scaleX = scaleY = Math.min(scaleX, scaleY);
+                break;
+            case SCALE_FILL_CROP:
+                scaleX = scaleY = Math.max(scaleX, scaleY);
+                break;
+            case SCALE_STRETCH:
+            default:
+                break;
+        }
+        float dstWidth = srcWidth * scaleX;
+        float dstHeight = srcHeight * scaleY;
+        float dstLeft = (outputWidth - dstWidth) / 2f;
+        float dstTop = (outputHeight - dstHeight) / 2f;
+
+        // the viewport covers the whole view at that scale, so the region lands on dst;
+        // GL window coordinates grow upwards
+        float viewportLeft = dstLeft - srcLeft * scaleX;
+        float viewportBottom = (outputHeight - dstTop - dstHeight)
+                - (viewHeight - srcBottom) * scaleY;
+        int viewportX = Math.round(viewportLeft);
+        int viewportY = Math.round(viewportBottom);
+        int viewportWidth = Math.round(viewportLeft + viewWidth * scaleX) - viewportX;
+        int viewportHeight = Math.round(viewportBottom + viewHeight * scaleY) - viewportY;
+
+        // the visible part of dst
+        int scissorX = Math.max(0, Math.round(dstLeft));
+        int scissorY = Math.max(0, Math.round(outputHeight - dstTop - dstHeight));
+        int scissorRight = Math.min(outputWidth, Math.round(dstLeft + dstWidth));
+        int scissorTop = Math.min(outputHeight, Math.round(outputHeight - dstTop));
+        int scissorWidth = Math.max(0, scissorRight - scissorX);
+        int scissorHeight = Math.max(0, scissorTop - scissorY);
+
+        boolean coversOutput = scissorX == 0 && scissorY == 0
+                && scissorWidth == outputWidth && scissorHeight == outputHeight;
+        // content outside a region could show in the bars, so always scissor then
+        boolean scissor = !coversOutput && (mScaleMode == SCALE_LETTERBOX || mHasRegion);
+
+        float[] texCoords = new float[]{
+                (scissorX - viewportX) / (float) viewportWidth,
+                (scissorY - viewportY) / (float) viewportHeight,
+                (scissorX + scissorWidth - viewportX) / (float) viewportWidth,
+                (scissorY + scissorHeight - viewportY) / (float) viewportHeight
+        };
+
+        int[] bars = new int[16];
+        int barCount = 0;
+        if (scissor) {
+            int boxRight = scissorX + scissorWidth;
+            int boxTop = scissorY + scissorHeight;
+            barCount = addBar(bars, barCount, 0, 0, outputWidth, scissorY);
+            barCount = addBar(bars, barCount, 0, boxTop, outputWidth, outputHeight - boxTop);
+            barCount = addBar(bars, barCount, 0, scissorY, scissorX, scissorHeight);
+            barCount = addBar(bars, barCount, boxRight, scissorY,
+                    outputWidth - boxRight, scissorHeight);
+        }
+
+        return new Layout(viewportX, viewportY, viewportWidth, viewportHeight, scissor,
+                scissorX, scissorY, scissorWidth, scissorHeight, scissor, bars, barCount,
+                texCoords);
+    }
+
+    private static int addBar(int[] bars, int count, int x, int y, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return count;
+        }
+        bars[count * 4] = x;
+        bars[count * 4 + 1] = y;
+        bars[count * 4 + 2] = width;
+        bars[count * 4 + 3] = height;
+        return count + 1;
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Describes the draw call a {@link PassAwareRendererCallbacks} is receiving.
+ * <p>
+ * While recording, every frame is drawn twice: first to the display, then to the recording; raw
+ * capture adds an offscreen pass. Passes after the first see {@link #isFrameStatePrepared()}
+ * return true, so renderers can reuse the matrices, culling and animation state computed in the
+ * first pass and only issue GL calls. While the window is gone, e.g. during a rotation, there
+ * is no display pass and the recording pass is the first.
+ * <p>
+ * Instances are reused between frames and are only valid for the duration of the callback.
+ */
+public final class RenderPass {
+
+    /**
+     * The pass drawing to the view (or, offline, to the display pbuffer).
+     */
+    public static final int TARGET_DISPLAY = 0;
+
+    /**
+     * The pass drawing into the recording.
+     */
+    public static final int TARGET_RECORDING = 1;
+
+    /**
+     * The pass drawing into an offscreen framebuffer, such as the one read back for
+     * {@link RecordableSurfaceView#startRawCapture(MappedFrameRing)}.
+     */
+    public static final int TARGET_OFFSCREEN = 2;
+
+    private final int mTarget;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private long mFrameIndex;
+
+    private boolean mFrameStatePrepared;
+
+    RenderPass(int target) {
+        mTarget = target;
+    }
+
+    /**
+     * @return {@link #TARGET_DISPLAY}, {@link #TARGET_RECORDING} or {@link #TARGET_OFFSCREEN}
+     */
+    public int getTarget() {
+        return mTarget;
+    }
+
+    public boolean isRecording() {
+        return mTarget == TARGET_RECORDING;
+    }
+
+    /**
+     * @return width of the target surface; the viewport may differ when a
+     * {@link RecordingTransform} is set
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return height of the target surface; the viewport may differ when a
+     * {@link RecordingTransform} is set
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return a counter that increases by one for every frame, shared by all passes of a frame
+     */
+    public long getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    /**
+     * @return true if an earlier pass of the same frame has already run, so per-frame state is
+     * up to date
+     */
+    public boolean isFrameStatePrepared() {
+        return mFrameStatePrepared;
+    }
+
+    void set(int width, int height, long frameIndex, boolean frameStatePrepared) {
+        mWidth = width;
+        mHeight = height;
+        mFrameIndex = frameIndex;
+        mFrameStatePrepared = frameStatePrepared;
+    }
+
+    /**
+     * Calls the pass-aware draw callback, which falls back to the plain one unless
+     * <code>callbacks</code> implements {@link PassAwareRendererCallbacks}.
+     */
+    void dispatch(RecordableSurfaceView.RendererCallbacks callbacks) {
+        callbacks.onDrawFrame(this);
+    }
+}
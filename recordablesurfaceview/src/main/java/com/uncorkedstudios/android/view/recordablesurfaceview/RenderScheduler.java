@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which views of a {@link SharedRenderHost} render on each vsync.
+ * <p>
+ * Views that want a frame are ordered recording first, then by how many vsyncs they have been
+ * deferred, with ties rotated so no view is always first. They are admitted while their
+ * estimated render cost fits the frame budget; the first one always is, and a view deferred
+ * {@link #setMaxDeferredFrames(int) too often} is admitted regardless of the budget, so every
+ * view keeps a share of the frames when they do not all fit.
+ * <p>
+ * Pure Java; the frame time and render costs are passed in, so it can be driven by fake clients
+ * and a fake clock. Not thread safe.
+ */
+final class RenderScheduler {
+
+    /**
+     * A view as the scheduler sees it.
+     */
+    interface Client {
+
+        /**
+         * @return true if the client has something to draw this vsync
+         */
+        boolean wantsFrame();
+
+        /**
+         * @return true if the client is recording, which puts it ahead of the others
+         */
+        boolean isRecording();
+    }
+
+    private static final long DEFAULT_VSYNC_PERIOD_NS = 16666667L;
+
+    // render cost estimates follow new measurements with this weight
+    private static final float COST_SMOOTHING = 0.25f;
+
+    private static class Entry {
+
+        final Client client;
+
+        // estimated render time, 0 until measured
+        long costNs = 0;
+
+        int deferredFrames = 0;
+
+        // position among the candidates of the current frame, for rotating ties
+        int order;
+
+        Entry(Client client) {
+            this.client = client;
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    private final List<Entry> mCandidates = new ArrayList<>();
+
+    private float mBudgetFraction = 0.8f;
+
+    private int mMaxDeferredFrames = 2;
+
+    private long mVsyncPeriodNs = DEFAULT_VSYNC_PERIOD_NS;
+
+    private long mLastFrameTimeNs = -1;
+
+    private int mRotation = 0;
+
+    private volatile long mDeferredFrames = 0;
+
+    private volatile long mScheduledFrames = 0;
+
+    /**
+     * @param fraction the share of a vsync period the views may take together to render
+     */
+    void setBudgetFraction(float fraction) {
+        if (fraction <= 0) {
+            throw new IllegalArgumentException("Budget fraction must be positive");
+        }
+        mBudgetFraction = fraction;
+    }
+
+    /**
+     * @param frames how many vsyncs in a row a view may be deferred before it is admitted
+     *               regardless of the budget
+     */
+    void setMaxDeferredFrames(int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("Frames must not be negative");
+        }
+        mMaxDeferredFrames = frames;
+    }
+
+    void add(Client client) {
+        if (find(client) == null) {
+            mEntries.add(new Entry(client));
+        }
+    }
+
+    void remove(Client client) {
+        Entry entry = find(client);
+        if (entry != null) {
+            mEntries.remove(entry);
+        }
+    }
+
+    int getClientCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Picks the clients to render for a vsync.
+     *
+     * @param frameTimeNs the vsync time
+     * @param out         cleared, then filled with the clients to render, in render order
+     */
+    void schedule(long frameTimeNs, List<Client> out) {
+        out.clear();
+        updateVsyncPeriod(frameTimeNs);
+
+        mCandidates.clear();
+        int count = mEntries.size();
+        for (int i = 0; i < count; i++) {
+            Entry entry = mEntries.get(i);
+            if (entry.client.wantsFrame()) {
+                entry.order = count > 0 ? (i - mRotation % count + count) % count : 0;
+                insertByPriority(entry);
+            }
+        }
+        mRotation++;
+
+        long budgetNs = getFrameBudgetNs();
+        long usedNs = 0;
+        for (int i = 0; i < mCandidates.size(); i++) {
+            Entry entry = mCandidates.get(i);
+            if (i == 0 || usedNs + entry.costNs <= budgetNs
+                    || entry.deferredFrames >= mMaxDeferredFrames) {
+                usedNs += entry.costNs;
+                entry.deferredFrames = 0;
+                out.add(entry.client);
+            } else {
+                entry.deferredFrames++;
+                mDeferredFrames++;
+            }
+        }
+        mScheduledFrames += out.size();
+    }
+
+    /**
+     * Reports how long a scheduled client took to render.
+     */
+    void onRendered(Client client, long costNs) {
+        Entry entry = find(client);
+        if (entry == null) {
+            return;
+        }
+        if (entry.costNs == 0) {
+            entry.costNs = costNs;
+        } else {
+            entry.costNs += (long) ((costNs - entry.costNs) * COST_SMOOTHING);
+        }
+    }
+
+    /**
+     * @return the vsync period measured from the frame times, or 60 Hz until measured
+     */
+    long getVsyncPeriodNs() {
+        return mVsyncPeriodNs;
+    }
+
+    long getFrameBudgetNs() {
+        return (long) (mVsyncPeriodNs * mBudgetFraction);
+    }
+
+    /**
+     * @return the estimated render cost of a client, 0 until measured
+     */
+    long getEstimatedCostNs(Client client) {
+        Entry entry = find(client);
+        return entry != null ? entry.costNs : 0;
+    }
+
+    /**
+     * @return how often a client that wanted a frame was deferred to a later vsync
+     */
+    long getDeferredFrames() {
+        return mDeferredFrames;
+    }
+
+    /**
+     * @return how many client frames were scheduled
+     */
+    long getScheduledFrames() {
+        return mScheduledFrames;
+    }
+
+    private void updateVsyncPeriod(long frameTimeNs) {
+        if (mLastFrameTimeNs >= 0) {
+            long delta = frameTimeNs - mLastFrameTimeNs;
+            // missed vsyncs show up as multiples of the period and are not measurements of it
+            if (delta > 0 && delta < mVsyncPeriodNs * 3 / 2) {
+                mVsyncPeriodNs += (delta - mVsyncPeriodNs) / 8;
+            }
+        }
+        mLastFrameTimeNs = frameTimeNs;
+    }
+
+    private void insertByPriority(Entry entry) {
+        int i = mCandidates.size();
+        while (i > 0 && comesBefore(entry, mCandidates.get(i - 1))) {
+            i--;
+        }
+        mCandidates.add(i, entry);
+    }
+
+    private static boolean comesBefore(Entry a, Entry b) {
+        boolean aRecording = a.client.isRecording();
+        if (aRecording != b.client.isRecording()) {
+            return aRecording;
+        }
+        if (a.deferredFrames != b.deferredFrames) {
+            return a.deferredFrames > b.deferredFrames;
+        }
+        return a.order < b.order;
+    }
+
+    private Entry find(Client client) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).client == client) {
+                return mEntries.get(i);
+            }
+        }
+        return null;
+    }
+}
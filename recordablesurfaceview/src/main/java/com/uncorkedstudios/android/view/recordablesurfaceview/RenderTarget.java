@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+
+/**
+ * An offscreen framebuffer with an RGBA texture and a depth renderbuffer. Must be used on a
+ * single GL thread.
+ */
+final class RenderTarget {
+
+    private int mFramebuffer = 0;
+
+    private int mTexture = 0;
+
+    private int mDepthBuffer = 0;
+
+    private int mWidth = 0;
+
+    private int mHeight = 0;
+
+    /**
+     * Binds the framebuffer, (re)allocating it if the size changed, and sets the viewport to
+     * cover it.
+     *
+     * @throws RuntimeException if the framebuffer is incomplete
+     */
+    void bind(int width, int height) {
+        if (mFramebuffer == 0 || width != mWidth || height != mHeight) {
+            release();
+            allocate(width, height);
+        } else {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        }
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    /**
+     * Binds the default framebuffer of the current surface again.
+     */
+    static void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    int getTexture() {
+        return mTexture;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return bytes of GPU memory held, assuming 4 bytes per color and 2 per depth sample
+     */
+    long getByteSize() {
+        return mFramebuffer == 0 ? 0 : (long) mWidth * mHeight * 6;
+    }
+
+    private void allocate(int width, int height) {
+        mTexture = GlUtil.createTexture();
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+        int[] handles = new int[1];
+        GLES20.glGenRenderbuffers(1, handles, 0);
+        mDepthBuffer = handles[0];
+        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mDepthBuffer);
+        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width,
+                height);
+
+        GLES20.glGenFramebuffers(1, handles, 0);
+        mFramebuffer = handles[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTexture, 0);
+        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                GLES20.GL_RENDERBUFFER, mDepthBuffer);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("Framebuffer incomplete: " + status);
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Deletes the GL objects. Must be called on the GL thread while the context is current.
+     */
+    void release() {
+        if (mFramebuffer != 0) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glDeleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+            mFramebuffer = 0;
+        }
+        if (mDepthBuffer != 0) {
+            GLES20.glDeleteRenderbuffers(1, new int[]{mDepthBuffer}, 0);
+            mDepthBuffer = 0;
+        }
+        if (mTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[]{mTexture}, 0);
+            mTexture = 0;
+        }
+        mWidth = 0;
+        mHeight = 0;
+    }
+}
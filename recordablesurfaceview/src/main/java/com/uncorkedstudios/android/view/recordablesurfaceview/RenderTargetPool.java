@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reuses offscreen render targets between passes, frames and surface size changes.
+ * <p>
+ * Requested sizes are rounded up to a size bucket, so a target can serve any request within its
+ * bucket and small size changes, such as a resize of a few pixels, do not reallocate. Targets
+ * not used for a number of frames are freed. Hits, misses and the memory held are counted.
+ * <p>
+ * Allocation is deferred to the first {@link PooledTarget#bind()}, so the bookkeeping runs
+ * without a GL context. Must be used on a single thread; the counters may be read from any.
+ */
+public class RenderTargetPool {
+
+    /**
+     * Default rounding of target widths and heights, in pixels.
+     */
+    public static final int DEFAULT_BUCKET_SIZE = 64;
+
+    /**
+     * Default number of frames an unused target is kept.
+     */
+    public static final int DEFAULT_MAX_IDLE_FRAMES = 120;
+
+    private final int mBucketSize;
+
+    private final int mMaxIdleFrames;
+
+    private final List<PooledTarget> mFree = new ArrayList<>();
+
+    private long mFrame = 0;
+
+    private int mInUseCount = 0;
+
+    private volatile long mHits = 0;
+
+    private volatile long mMisses = 0;
+
+    private volatile long mEvictions = 0;
+
+    private volatile long mAllocatedBytes = 0;
+
+    private volatile long mPeakAllocatedBytes = 0;
+
+    private volatile int mTargetCount = 0;
+
+    public RenderTargetPool() {
+        this(DEFAULT_BUCKET_SIZE, DEFAULT_MAX_IDLE_FRAMES);
+    }
+
+    /**
+     * @param bucketSize    rounding of widths and heights, in pixels
+     * @param maxIdleFrames frames an unused target is kept before it is freed
+     */
+    public RenderTargetPool(int bucketSize, int maxIdleFrames) {
+        if (bucketSize < 1 || maxIdleFrames < 0) {
+            throw new IllegalArgumentException("Invalid bucket size or idle frames");
+        }
+        mBucketSize = bucketSize;
+        mMaxIdleFrames = maxIdleFrames;
+    }
+
+    /**
+     * Hands out a target of at least the given size, reusing a free one from the same bucket
+     * if there is one.
+     *
+     * @return the target, to be given back with {@link #release(PooledTarget)}
+     */
+    public PooledTarget acquire(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
+        int bucketWidth = roundUp(width);
+        int bucketHeight = roundUp(height);
+        PooledTarget target = null;
+        // most recently released first, so the others can age out
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            PooledTarget free = mFree.get(i);
+            if (free.getAllocatedWidth() == bucketWidth
+                    && free.getAllocatedHeight() == bucketHeight) {
+                target = mFree.remove(i);
+                break;
+            }
+        }
+        if (target != null) {
+            mHits++;
+        } else {
+            mMisses++;
+            target = new PooledTarget(this, bucketWidth, bucketHeight);
+            mTargetCount++;
+            mAllocatedBytes += target.getAllocatedBytes();
+            mPeakAllocatedBytes = Math.max(mPeakAllocatedBytes, mAllocatedBytes);
+        }
+        target.setSize(width, height);
+        target.mInUse = true;
+        mInUseCount++;
+        return target;
+    }
+
+    /**
+     * Gives a target back for reuse.
+     *
+     * @throws IllegalArgumentException if the target is not in use from this pool
+     */
+    public void release(PooledTarget target) {
+        if (target.mPool != this || !target.mInUse) {
+            throw new IllegalArgumentException("Target is not in use from this pool");
+        }
+        target.mInUse = false;
+        target.mLastUsedFrame = mFrame;
+        mInUseCount--;
+        mFree.add(target);
+    }
+
+    /**
+     * Ends a frame, freeing targets that have not been used for too long.
+     */
+    void endFrame() {
+        mFrame++;
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            PooledTarget target = mFree.get(i);
+            if (mFrame - target.mLastUsedFrame > mMaxIdleFrames) {
+                mFree.remove(i);
+                destroy(target);
+                mEvictions++;
+            }
+        }
+    }
+
+    /**
+     * Frees all targets not in use. Must be called on the GL thread.
+     */
+    void trim() {
+        for (int i = 0; i < mFree.size(); i++) {
+            destroy(mFree.get(i));
+        }
+        mFree.clear();
+    }
+
+    private void destroy(PooledTarget target) {
+        target.mTarget.release();
+        mTargetCount--;
+        mAllocatedBytes -= target.getAllocatedBytes();
+    }
+
+    private int roundUp(int size) {
+        return (size + mBucketSize - 1) / mBucketSize * mBucketSize;
+    }
+
+    /**
+     * @return requests served by a free target
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return requests that needed a new target
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return targets freed after going unused
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * @return bytes of GPU memory the pool's targets take, counting 4 bytes per color and 2
+     * per depth sample at the bucketed size
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getPeakAllocatedBytes() {
+        return mPeakAllocatedBytes;
+    }
+
+    /**
+     * @return targets held, in use or free
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTargetCount() {
+        return mTargetCount;
+    }
+
+    /**
+     * @return targets handed out and not yet released
+     */
+    public int getInUseCount() {
+        return mInUseCount;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Container writer used by {@link CodecRecorder}. Mirrors the subset of
+ * {@link android.media.MediaMuxer} that the recorder needs so that the platform muxer and the
+ * library's own writers are interchangeable.
+ */
+interface SampleMuxer {
+
+    /**
+     * @return the track index to pass to {@link #writeSampleData}
+     */
+    int addTrack(MediaFormat format);
+
+    void start() throws IOException;
+
+    void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info)
+            throws IOException;
+
+    /**
+     * Finalizes the output.
+     */
+    void stop() throws IOException;
+
+    /**
+     * Frees resources. Safe to call after {@link #stop()} or instead of it.
+     */
+    void release();
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders several {@link RecordableSurfaceView}s on one thread and one GL context, instead of a
+ * thread, EGL display and context per view.
+ * <p>
+ * Frames are driven by {@link Choreographer} vsync callbacks rather than a sleep loop. On each
+ * vsync the views that want a frame are rendered one after another; when they do not all fit
+ * in a frame, a {@link RenderScheduler} defers some of them to the next vsync in turn, putting
+ * recording views first. Each view keeps its own window and media surfaces, so any of them can
+ * record independently of the others.
+ * <p>
+ * The thread starts when the first view is set up and ends, releasing the context, once the
+ * last view has been torn down.
+ *
+ * <pre>
+ * SharedRenderHost host = new SharedRenderHost();
+ * for (RecordableSurfaceView view : views) {
+ *     view.setRenderHost(host);
+ *     view.doSetup();
+ * }
+ * </pre>
+ *
+ * @see RecordableSurfaceView#setRenderHost(SharedRenderHost)
+ */
+public class SharedRenderHost {
+
+    private static final String TAG = SharedRenderHost.class.getSimpleName();
+
+    /**
+     * A view's renderer as driven by the host. All calls are made on the host thread.
+     */
+    interface Client extends RenderScheduler.Client {
+
+        /**
+         * Creates the view's surfaces in the shared context.
+         */
+        void onAttached(EGLDisplay display, EGLConfig config, EGLContext context);
+
+        /**
+         * Follows the view's window, called every vsync whether or not the view renders.
+         *
+         * @return false once the view is done and should be detached
+         */
+        boolean updateWindow();
+
+        /**
+         * @param scheduled false if the frame was deferred to a later vsync
+         */
+        void renderFrame(boolean scheduled);
+
+        /**
+         * Releases everything the view created in the shared context.
+         */
+        void onDetached();
+    }
+
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    private int mClientCount = 0;
+
+    // used on the host thread only
+    private final RenderScheduler mScheduler = new RenderScheduler();
+
+    private final List<Client> mClients = new ArrayList<>();
+
+    private final List<RenderScheduler.Client> mScheduled = new ArrayList<>();
+
+    private Choreographer mChoreographer;
+
+    private boolean mFramePending = false;
+
+    private EGLDisplay mEGLDisplay;
+
+    private EGLContext mEGLContext;
+
+    private EGLConfig mEGLConfig;
+
+    private EGLSurface mEGLSurfaceParked;
+
+    private volatile float mBudgetFraction = 0.8f;
+
+    private volatile int mMaxDeferredFrames = 2;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePending = false;
+            onVsync(frameTimeNanos);
+        }
+    };
+
+    /**
+     * Sets how much of a vsync period the views may take together before some of them are
+     * deferred to the next vsync. Defaults to 0.8.
+     *
+     * @param fraction the share of the period, above 0
+     * @return this host
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public SharedRenderHost setFrameBudget(float fraction) {
+        if (fraction <= 0) {
+            throw new IllegalArgumentException("Budget fraction must be positive");
+        }
+        mBudgetFraction = fraction;
+        return this;
+    }
+
+    /**
+     * Sets how many vsyncs in a row a view may be deferred before it renders regardless of the
+     * frame budget. Defaults to 2, so each view renders at least every third vsync.
+     *
+     * @param frames the number of vsyncs, 0 to never defer
+     * @return this host
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public SharedRenderHost setMaxDeferredFrames(int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("Frames must not be negative");
+        }
+        mMaxDeferredFrames = frames;
+        return this;
+    }
+
+    /**
+     * @return the measured vsync period
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getVsyncPeriodNs() {
+        return mScheduler.getVsyncPeriodNs();
+    }
+
+    /**
+     * @return how often a view that wanted a frame was deferred to a later vsync
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getDeferredFrames() {
+        return mScheduler.getDeferredFrames();
+    }
+
+    /**
+     * @return how many view frames were rendered
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getRenderedFrames() {
+        return mScheduler.getScheduledFrames();
+    }
+
+    /**
+     * Starts rendering a view, starting the host thread if needed.
+     */
+    void attach(final Client client) {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new HandlerThread(TAG);
+                mThread.start();
+                mHandler = new Handler(mThread.getLooper());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setUpEgl();
+                    }
+                });
+            }
+            mClientCount++;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    attachOnHost(client);
+                }
+            });
+        }
+    }
+
+    private void setUpEgl() {
+        mChoreographer = Choreographer.getInstance();
+        mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        EGL14.eglInitialize(mEGLDisplay, version, 0, version, 1);
+        mEGLConfig = RecordableSurfaceView.chooseEglConfig(mEGLDisplay);
+        mEGLContext = EGL14.eglCreateContext(mEGLDisplay, mEGLConfig, EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        mEGLSurfaceParked = EGL14.eglCreatePbufferSurface(mEGLDisplay, mEGLConfig,
+                new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurfaceParked, mEGLSurfaceParked, mEGLContext);
+    }
+
+    private void attachOnHost(Client client) {
+        client.onAttached(mEGLDisplay, mEGLConfig, mEGLContext);
+        mClients.add(client);
+        mScheduler.add(client);
+        if (!mFramePending) {
+            mFramePending = true;
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private void onVsync(long frameTimeNs) {
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            if (!client.updateWindow()) {
+                detachOnHost(client);
+            }
+        }
+        if (mClients.isEmpty()) {
+            return;
+        }
+
+        mScheduler.setBudgetFraction(mBudgetFraction);
+        mScheduler.setMaxDeferredFrames(mMaxDeferredFrames);
+        mScheduler.schedule(frameTimeNs, mScheduled);
+        for (int i = 0; i < mScheduled.size(); i++) {
+            Client client = (Client) mScheduled.get(i);
+            long start = System.nanoTime();
+            client.renderFrame(true);
+            mScheduler.onRendered(client, System.nanoTime() - start);
+        }
+        for (int i = 0; i < mClients.size(); i++) {
+            Client client = mClients.get(i);
+            if (!mScheduled.contains(client)) {
+                client.renderFrame(false);
+            }
+        }
+
+        mFramePending = true;
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    private void detachOnHost(Client client) {
+        client.onDetached();
+        mClients.remove(client);
+        mScheduler.remove(client);
+        synchronized (mLock) {
+            mClientCount--;
+            if (mClientCount == 0) {
+                // no attach is pending, it would have been counted
+                releaseEgl();
+                mThread.quitSafely();
+                mThread = null;
+                mHandler = null;
+            }
+        }
+    }
+
+    private void releaseEgl() {
+        EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                EGL14.EGL_NO_CONTEXT);
+        EGL14.eglDestroySurface(mEGLDisplay, mEGLSurfaceParked);
+        EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+        EGL14.eglReleaseThread();
+        EGL14.eglTerminate(mEGLDisplay);
+        mEGLSurfaceParked = null;
+        mEGLContext = null;
+        mEGLDisplay = null;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs startup steps on an {@link Executor} as soon as the steps they depend on have finished,
+ * so independent steps run concurrently.
+ * <p>
+ * Steps may only depend on steps added before them, which keeps the graph acyclic. A step that
+ * throws fails the steps depending on it, which then do not run. Other threads wait for a
+ * step with {@link #await(String)}. Pure Java; the clock is {@link System#nanoTime()}.
+ */
+final class StartupGraph {
+
+    /**
+     * The work of one step.
+     */
+    interface Task {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Told about each step as it finishes, on the thread that ran it.
+     */
+    interface Listener {
+
+        /**
+         * @param startNs -1 for a step that did not run because a dependency failed
+         * @param error   what the step, or a step it depends on, threw; null on success
+         */
+        void onStepFinished(String name, long startNs, long endNs, Throwable error);
+    }
+
+    private static final class Step {
+
+        final String name;
+
+        final Task task;
+
+        final List<Step> dependents = new ArrayList<>();
+
+        int pendingDependencies;
+
+        long startNs = -1;
+
+        long endNs = -1;
+
+        Throwable error;
+
+        boolean done = false;
+
+        Step(String name, Task task) {
+            this.name = name;
+            this.task = task;
+        }
+    }
+
+    private final Executor mExecutor;
+
+    private final Listener mListener;
+
+    private final Map<String, Step> mSteps = new LinkedHashMap<>();
+
+    // actions waiting for steps, see whenFinished
+    private final List<Runnable> mWaitingActions = new ArrayList<>();
+
+    private final List<String[]> mWaitingSteps = new ArrayList<>();
+
+    private boolean mStarted = false;
+
+    /**
+     * @param executor runs the steps; needs as many threads as steps should run at once
+     * @param listener told about finished steps, or null
+     */
+    StartupGraph(Executor executor, Listener listener) {
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /**
+     * Adds a step.
+     *
+     * @param name      unique name of the step
+     * @param task      the work
+     * @param dependsOn steps that must have finished successfully before this one runs
+     * @return this graph
+     * @throws IllegalArgumentException if the name is taken or a dependency is unknown
+     * @throws IllegalStateException    if the graph was started
+     */
+    synchronized StartupGraph add(String name, Task task, String... dependsOn) {
+        if (mStarted) {
+            throw new IllegalStateException("Cannot add steps once started.");
+        }
+        if (mSteps.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate step " + name);
+        }
+        Step step = new Step(name, task);
+        for (String dependency : dependsOn) {
+            Step required = mSteps.get(dependency);
+            if (required == null) {
+                throw new IllegalArgumentException(
+                        "Step " + name + " depends on unknown step " + dependency);
+            }
+            required.dependents.add(step);
+            step.pendingDependencies++;
+        }
+        mSteps.put(name, step);
+        return this;
+    }
+
+    /**
+     * Submits the steps without dependencies. Later steps are submitted by the thread that
+     * finishes their last dependency.
+     */
+    void start() {
+        List<Step> ready = new ArrayList<>();
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Already started.");
+            }
+            mStarted = true;
+            for (Step step : mSteps.values()) {
+                if (step.pendingDependencies == 0) {
+                    ready.add(step);
+                }
+            }
+        }
+        submit(ready);
+    }
+
+    /**
+     * @return true if the graph has a step of that name
+     */
+    synchronized boolean has(String name) {
+        return mSteps.containsKey(name);
+    }
+
+    /**
+     * Blocks until a step has finished or was failed by a dependency.
+     *
+     * @return true if the step ran successfully; false if it failed, does not exist, or the
+     * thread was interrupted, in which case the interrupt flag is set again
+     */
+    synchronized boolean await(String name) {
+        Step step = mSteps.get(name);
+        if (step == null) {
+            return false;
+        }
+        while (!step.done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return step.error == null;
+    }
+
+    /**
+     * Runs an action once the given steps have finished or failed, without blocking: right away
+     * on the calling thread if they already have, otherwise on the thread that finishes the
+     * last of them. Steps not in the graph count as finished.
+     */
+    void whenFinished(Runnable action, String... steps) {
+        synchronized (this) {
+            if (!areFinished(steps)) {
+                mWaitingActions.add(action);
+                mWaitingSteps.add(steps);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    private boolean areFinished(String[] steps) {
+        for (String name : steps) {
+            Step step = mSteps.get(name);
+            if (step != null && !step.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the waiting actions whose steps have all finished. Called with the lock held.
+     */
+    private List<Runnable> takeReadyActions() {
+        List<Runnable> ready = null;
+        for (int i = mWaitingActions.size() - 1; i >= 0; i--) {
+            if (areFinished(mWaitingSteps.get(i))) {
+                if (ready == null) {
+                    ready = new ArrayList<>();
+                }
+                ready.add(mWaitingActions.remove(i));
+                mWaitingSteps.remove(i);
+            }
+        }
+        return ready;
+    }
+
+    private static void runAll(List<Runnable> actions) {
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * @return true once every step has finished or failed
+     */
+    synchronized boolean isDone() {
+        for (Step step : mSteps.values()) {
+            if (!step.done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return what a finished step threw, or null
+     */
+    synchronized Throwable getError(String name) {
+        Step step = mSteps.get(name);
+        return step != null ? step.error : null;
+    }
+
+    /**
+     * @return how long a step ran, in nanoseconds, or -1 if it has not finished or did not run
+     */
+    synchronized long getDurationNs(String name) {
+        Step step = mSteps.get(name);
+        return step != null && step.startNs >= 0 && step.endNs >= 0
+                ? step.endNs - step.startNs : -1;
+    }
+
+    private void submit(List<Step> steps) {
+        for (final Step step : steps) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runStep(step);
+                }
+            });
+        }
+    }
+
+    private void runStep(Step step) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            step.startNs = start;
+        }
+        Throwable error = null;
+        try {
+            step.task.run();
+        } catch (Throwable t) {
+            error = t;
+        }
+        finish(step, start, System.nanoTime(), error);
+    }
+
+    private void finish(Step step, long startNs, long endNs, Throwable error) {
+        List<Step> ready = new ArrayList<>();
+        List<Step> failed = new ArrayList<>();
+        List<Runnable> actions;
+        synchronized (this) {
+            step.endNs = endNs;
+            step.error = error;
+            step.done = true;
+            for (Step dependent : step.dependents) {
+                if (error != null) {
+                    if (!dependent.done) {
+                        failed.add(dependent);
+                        dependent.done = true;
+                        dependent.error = error;
+                    }
+                } else if (--dependent.pendingDependencies == 0 && !dependent.done) {
+                    ready.add(dependent);
+                }
+            }
+            actions = takeReadyActions();
+            notifyAll();
+        }
+        if (mListener != null) {
+            mListener.onStepFinished(step.name, startNs, endNs, error);
+        }
+        for (Step dependent : failed) {
+            // marked done above so no other dependency submits it; cascade to its dependents
+            finishFailed(dependent, endNs, error);
+        }
+        runAll(actions);
+        submit(ready);
+    }
+
+    private void finishFailed(Step step, long nowNs, Throwable error) {
+        List<Step> failed = new ArrayList<>();
+        List<Runnable> actions;
+        synchronized (this) {
+            for (Step dependent : step.dependents) {
+                if (!dependent.done) {
+                    failed.add(dependent);
+                    dependent.done = true;
+                    dependent.error = error;
+                }
+            }
+            actions = takeReadyActions();
+            notifyAll();
+        }
+        if (mListener != null) {
+            mListener.onStepFinished(step.name, -1, nowNs, error);
+        }
+        for (Step dependent : failed) {
+            finishFailed(dependent, nowNs, error);
+        }
+        runAll(actions);
+    }
+}
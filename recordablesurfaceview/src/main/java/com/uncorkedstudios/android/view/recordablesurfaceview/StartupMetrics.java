@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times the startup of a {@link RecordableSurfaceView} from {@link RecordableSurfaceView#doSetup()}
+ * to the first frame on screen and to the recorder being ready, and how long each setup step
+ * took.
+ * <p>
+ * Independent steps run concurrently, so the sum of the step durations,
+ * {@link #getSerialDurationNs()}, is roughly what a startup running them one after the other
+ * would take. The getters may be called from any thread.
+ */
+public class StartupMetrics implements StartupGraph.Listener {
+
+    /**
+     * Creating the persistent input surface the recording is drawn into.
+     */
+    public static final String STEP_INPUT_SURFACE = "input surface";
+
+    /**
+     * Initializing the EGL display, choosing the config and creating the context.
+     */
+    public static final String STEP_EGL = "egl";
+
+    /**
+     * {@link PreGlRendererCallbacks#onPreGlSetup()}.
+     */
+    public static final String STEP_APP_RESOURCES = "app resources";
+
+    /**
+     * Preparing the encoder set with {@link RecordableSurfaceView#setStartupRecorderConfig}.
+     */
+    public static final String STEP_ENCODER = "encoder";
+
+    /**
+     * Creating the GL surfaces and calling the renderer's surface and context callbacks, on the
+     * render thread.
+     */
+    public static final String STEP_GL_SETUP = "gl setup";
+
+    private final long mSetupStartNs;
+
+    private long mFirstFrameNs = -1;
+
+    private long mRecordingReadyNs = -1;
+
+    private final Map<String, long[]> mSteps = new LinkedHashMap<>();
+
+    private final Map<String, Throwable> mErrors = new LinkedHashMap<>();
+
+    StartupMetrics(long setupStartNs) {
+        mSetupStartNs = setupStartNs;
+    }
+
+    @Override
+    public synchronized void onStepFinished(String name, long startNs, long endNs,
+            Throwable error) {
+        mSteps.put(name, new long[]{startNs, endNs});
+        if (error != null) {
+            mErrors.put(name, error);
+        }
+    }
+
+    /**
+     * Called on the render thread after a frame was swapped into the window; only the first
+     * counts.
+     */
+    synchronized void onFramePresented(long nowNs) {
+        if (mFirstFrameNs < 0) {
+            mFirstFrameNs = nowNs;
+        }
+    }
+
+    /**
+     * Called once a recorder was prepared; only the first counts.
+     */
+    synchronized void onRecordingReady(long nowNs) {
+        if (mRecordingReadyNs < 0) {
+            mRecordingReadyNs = nowNs;
+        }
+    }
+
+    /**
+     * @return nanoseconds from setup to the first frame on screen, or -1 if none has been shown
+     */
+    public synchronized long getTimeToFirstFrameNs() {
+        return mFirstFrameNs < 0 ? -1 : mFirstFrameNs - mSetupStartNs;
+    }
+
+    /**
+     * @return nanoseconds from setup until a recorder was prepared, either at startup or by the
+     * first <code>initRecorder</code> call, or -1 if none has been
+     */
+    public synchronized long getTimeToRecordingReadyNs() {
+        return mRecordingReadyNs < 0 ? -1 : mRecordingReadyNs - mSetupStartNs;
+    }
+
+    /**
+     * @return the steps that have finished, in the order they finished
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public synchronized List<String> getSteps() {
+        return new ArrayList<>(mSteps.keySet());
+    }
+
+    /**
+     * @param step one of the STEP_ constants
+     * @return how long the step ran, in nanoseconds, or -1 if it has not finished or did not run
+     */
+    public synchronized long getStepDurationNs(String step) {
+        long[] times = mSteps.get(step);
+        return times == null || times[0] < 0 ? -1 : times[1] - times[0];
+    }
+
+    /**
+     * @param step one of the STEP_ constants
+     * @return nanoseconds from setup until the step started, or -1 if it has not run
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public synchronized long getStepStartNs(String step) {
+        long[] times = mSteps.get(step);
+        return times == null || times[0] < 0 ? -1 : times[0] - mSetupStartNs;
+    }
+
+    /**
+     * @param step one of the STEP_ constants
+     * @return what the step, or a step it depends on, threw, or null
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public synchronized Throwable getStepError(String step) {
+        return mErrors.get(step);
+    }
+
+    /**
+     * @return the sum of the durations of the finished steps, in nanoseconds
+     */
+    public synchronized long getSerialDurationNs() {
+        long total = 0;
+        for (long[] times : mSteps.values()) {
+            if (times[0] >= 0) {
+                total += times[1] - times[0];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Measures how long the view takes to show a frame again after its window surface was resized
+ * or destroyed and recreated, e.g. on rotation.
+ * <p>
+ * A transition starts in the {@link android.view.SurfaceHolder} callback and ends when the
+ * first frame has been swapped into the window afterwards. The GL context, the recording
+ * surface and any recording in progress survive a transition; recorded frames keep being drawn
+ * while the window is gone.
+ * <p>
+ * Updated from the UI and render threads; the getters may be called from any thread.
+ */
+public class SurfaceTransitionStats {
+
+    /**
+     * The window surface changed size; only the viewport changed.
+     */
+    public static final int TRANSITION_RESIZE = 0;
+
+    /**
+     * The window surface was destroyed and a new one created.
+     */
+    public static final int TRANSITION_RECREATE = 1;
+
+    private int mPendingType = -1;
+
+    private long mPendingSinceNs = 0;
+
+    private int mLastType = -1;
+
+    private long mLastNs = 0;
+
+    private long mMaxNs = 0;
+
+    private long mTotalNs = 0;
+
+    private int mResizeCount = 0;
+
+    private int mRecreateCount = 0;
+
+    private long mFramesWithoutWindow = 0;
+
+    /**
+     * Starts timing a transition. A recreation in progress is not downgraded to a resize.
+     */
+    synchronized void begin(int type, long nowNs) {
+        if (mPendingType == TRANSITION_RECREATE && type == TRANSITION_RESIZE) {
+            return;
+        }
+        if (mPendingType < 0) {
+            mPendingSinceNs = nowNs;
+        }
+        mPendingType = type;
+    }
+
+    /**
+     * Called on the render thread after a frame was swapped into the window.
+     */
+    synchronized void onFramePresented(long nowNs) {
+        if (mPendingType < 0) {
+            return;
+        }
+        long duration = nowNs - mPendingSinceNs;
+        mLastType = mPendingType;
+        mLastNs = duration;
+        mMaxNs = Math.max(mMaxNs, duration);
+        mTotalNs += duration;
+        if (mPendingType == TRANSITION_RESIZE) {
+            mResizeCount++;
+        } else {
+            mRecreateCount++;
+        }
+        mPendingType = -1;
+    }
+
+    /**
+     * Drops a transition that will not finish, for example because the view was torn down.
+     */
+    synchronized void cancel() {
+        mPendingType = -1;
+    }
+
+    /**
+     * Called on the render thread for each frame recorded while there is no window surface.
+     */
+    synchronized void onFrameWithoutWindow() {
+        mFramesWithoutWindow++;
+    }
+
+    /**
+     * @return true while a transition has started but no frame has been shown since
+     */
+    public synchronized boolean isInTransition() {
+        return mPendingType >= 0;
+    }
+
+    /**
+     * @return {@link #TRANSITION_RESIZE} or {@link #TRANSITION_RECREATE} for the last completed
+     * transition, or -1 if there was none
+     */
+    public synchronized int getLastTransitionType() {
+        return mLastType;
+    }
+
+    /**
+     * @return duration of the last completed transition, in nanoseconds
+     */
+    public synchronized long getLastTransitionNs() {
+        return mLastNs;
+    }
+
+    /**
+     * @return duration of the longest transition, in nanoseconds
+     */
+    public synchronized long getMaxTransitionNs() {
+        return mMaxNs;
+    }
+
+    /**
+     * @return time spent in all completed transitions, in nanoseconds
+     */
+    public synchronized long getTotalTransitionNs() {
+        return mTotalNs;
+    }
+
+    public synchronized int getResizeCount() {
+        return mResizeCount;
+    }
+
+    public synchronized int getRecreateCount() {
+        return mRecreateCount;
+    }
+
+    /**
+     * @return the number of frames recorded while the window surface was gone
+     */
+    public synchronized long getFramesWithoutWindow() {
+        return mFramesWithoutWindow;
+    }
+}
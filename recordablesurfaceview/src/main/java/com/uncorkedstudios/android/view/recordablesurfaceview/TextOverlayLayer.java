@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+ * A line of text, such as a burned-in timestamp. The text is rasterized once per change;
+ * setting the same text again costs nothing.
+ */
+public class TextOverlayLayer extends OverlayLayer {
+
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private volatile String mText = "";
+
+    private String mRasterizedText;
+
+    private Bitmap mBitmap;
+
+    private final Canvas mCanvas = new Canvas();
+
+    /**
+     * @param textSize text size in output pixels
+     * @param color    ARGB text color
+     */
+    public TextOverlayLayer(float textSize, int color) {
+        mPaint.setTextSize(textSize);
+        mPaint.setColor(color);
+        mPaint.setTypeface(Typeface.MONOSPACE);
+    }
+
+    /**
+     * @param text the text to show
+     */
+    public TextOverlayLayer setText(String text) {
+        String value = text != null ? text : "";
+        if (!value.equals(mText)) {
+            mText = value;
+            invalidate();
+        }
+        return this;
+    }
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * Exposes the paint for typeface, shadow and similar settings. Call {@link #invalidate()}
+     * after changing it.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public Paint getPaint() {
+        return mPaint;
+    }
+
+    @Override
+    protected Bitmap rasterize() {
+        String text = mText;
+        if (text.isEmpty()) {
+            return null;
+        }
+        if (text.equals(mRasterizedText) && mBitmap != null) {
+            return mBitmap;
+        }
+        float ascent = mPaint.ascent();
+        int width = (int) Math.ceil(mPaint.measureText(text));
+        int height = (int) Math.ceil(mPaint.descent() - ascent);
+
+        // timestamps keep the same size from frame to frame, so the bitmap is usually reused
+        if (mBitmap == null || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            if (mBitmap != null) {
+                mBitmap.recycle();
+            }
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCanvas.setBitmap(mBitmap);
+        } else {
+            mBitmap.eraseColor(0);
+        }
+        mCanvas.drawText(text, 0, -ascent, mPaint);
+        mRasterizedText = text;
+        return mBitmap;
+    }
+}
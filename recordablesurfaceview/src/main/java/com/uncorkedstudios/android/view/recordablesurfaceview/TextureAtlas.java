@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs rectangles into a fixed size texture using shelves: rows whose height is set by the
+ * first rectangle placed in them. Rectangles go to the shelf that wastes the least height, or
+ * open a new shelf below the last one.
+ * <p>
+ * Regions are never freed individually; when the atlas is full the owner calls
+ * {@link #reset()} and packs everything again. Pure bookkeeping, no GL.
+ */
+final class TextureAtlas {
+
+    /**
+     * A packed rectangle, in texels from the top left of the atlas.
+     */
+    static final class Region {
+
+        final int x;
+
+        final int y;
+
+        final int width;
+
+        final int height;
+
+        Region(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        boolean fits(int width, int height) {
+            return width <= this.width && height <= this.height;
+        }
+    }
+
+    private static final class Shelf {
+
+        final int y;
+
+        final int height;
+
+        int used;
+
+        Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+    }
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mPadding;
+
+    private final List<Shelf> mShelves = new ArrayList<>();
+
+    private int mNextShelfY = 0;
+
+    private long mAllocatedArea = 0;
+
+    /**
+     * @param width   atlas width in texels
+     * @param height  atlas height in texels
+     * @param padding empty texels kept around every region, so filtering does not bleed between
+     *                neighbours
+     */
+    TextureAtlas(int width, int height, int padding) {
+        mWidth = width;
+        mHeight = height;
+        mPadding = padding;
+    }
+
+    /**
+     * @return the region, or null if the atlas has no room left for it
+     */
+    Region allocate(int width, int height) {
+        int paddedWidth = width + 2 * mPadding;
+        int paddedHeight = height + 2 * mPadding;
+        if (width <= 0 || height <= 0 || paddedWidth > mWidth) {
+            return null;
+        }
+
+        Shelf best = null;
+        for (Shelf shelf : mShelves) {
+            if (shelf.height >= paddedHeight && mWidth - shelf.used >= paddedWidth
+                    && (best == null || shelf.height < best.height)) {
+                best = shelf;
+            }
+        }
+        // don't bury a short rectangle in a much taller shelf while there is room for a new one
+        if (best != null && best.height > 2 * paddedHeight
+                && mNextShelfY + paddedHeight <= mHeight) {
+            best = null;
+        }
+        if (best == null) {
+            if (mNextShelfY + paddedHeight > mHeight) {
+                return null;
+            }
+            best = new Shelf(mNextShelfY, paddedHeight);
+            mShelves.add(best);
+            mNextShelfY += paddedHeight;
+        }
+
+        Region region = new Region(best.used + mPadding, best.y + mPadding, width, height);
+        best.used += paddedWidth;
+        mAllocatedArea += (long) width * height;
+        return region;
+    }
+
+    /**
+     * Forgets every region.
+     */
+    void reset() {
+        mShelves.clear();
+        mNextShelfY = 0;
+        mAllocatedArea = 0;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the fraction of the atlas covered by allocated regions, excluding padding
+     */
+    float getOccupancy() {
+        return mAllocatedArea / (float) ((long) mWidth * mHeight);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Copies the current framebuffer into a texture and draws textures over the whole viewport.
+ * Must be used on a single GL thread.
+ */
+final class TextureBlitter {
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n"
+                    + "attribute vec2 aTexCoord;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "void main() {\n"
+                    + "  vTexCoord = aTexCoord;\n"
+                    + "  gl_Position = vec4(aPosition, 0.0, 1.0);\n"
+                    + "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "precision mediump float;\n"
+                    + "uniform sampler2D uTexture;\n"
+                    + "varying vec2 vTexCoord;\n"
+                    + "void main() {\n"
+                    + "  gl_FragColor = texture2D(uTexture, vTexCoord);\n"
+                    + "}\n";
+
+    private static final float[] FULL_TEXTURE = {0f, 0f, 1f, 1f};
+
+    private final FloatBuffer mVertices = GlUtil.createFloatBuffer(16);
+
+    private int mProgram = 0;
+
+    private int mPositionHandle;
+
+    private int mTexCoordHandle;
+
+    private int mTextureHandle;
+
+    private int mCopyTexture = 0;
+
+    private int mCopyWidth = 0;
+
+    private int mCopyHeight = 0;
+
+    /**
+     * Copies the bottom left <code>width</code> x <code>height</code> of the bound framebuffer
+     * into this blitter's texture.
+     */
+    void copyFromFramebuffer(int width, int height) {
+        if (mCopyTexture == 0) {
+            mCopyTexture = GlUtil.createTexture();
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCopyTexture);
+        }
+        if (width != mCopyWidth || height != mCopyHeight) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            mCopyWidth = width;
+            mCopyHeight = height;
+        }
+        GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 0, 0, width, height);
+    }
+
+    /**
+     * @return true if a frame has been copied since creation or the last release
+     */
+    boolean hasCopy() {
+        return mCopyTexture != 0 && mCopyWidth > 0;
+    }
+
+    /**
+     * Draws the texture filled by {@link #copyFromFramebuffer(int, int)} over the viewport.
+     */
+    void drawCopy() {
+        draw(mCopyTexture, FULL_TEXTURE);
+    }
+
+    /**
+     * Draws part of a texture over the whole viewport, with blending, depth test and scissor
+     * test disabled. Their enabled state is restored afterwards.
+     *
+     * @param texture   the 2D texture to draw
+     * @param texCoords left, bottom, right, top of the part to draw
+     */
+    void draw(int texture, float[] texCoords) {
+        if (mProgram == 0) {
+            mProgram = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+            mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+            mTexCoordHandle = GLES20.glGetAttribLocation(mProgram, "aTexCoord");
+            mTextureHandle = GLES20.glGetUniformLocation(mProgram, "uTexture");
+        }
+
+        boolean blend = GLES20.glIsEnabled(GLES20.GL_BLEND);
+        boolean depthTest = GLES20.glIsEnabled(GLES20.GL_DEPTH_TEST);
+        boolean scissorTest = GLES20.glIsEnabled(GLES20.GL_SCISSOR_TEST);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+
+        float left = texCoords[0];
+        float bottom = texCoords[1];
+        float right = texCoords[2];
+        float top = texCoords[3];
+        mVertices.clear();
+        mVertices.put(-1f).put(-1f).put(left).put(bottom);
+        mVertices.put(1f).put(-1f).put(right).put(bottom);
+        mVertices.put(-1f).put(1f).put(left).put(top);
+        mVertices.put(1f).put(1f).put(right).put(top);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(mTextureHandle, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mVertices.position(0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+        mVertices.position(2);
+        GLES20.glVertexAttribPointer(mTexCoordHandle, 2, GLES20.GL_FLOAT, false, 16, mVertices);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glEnableVertexAttribArray(mTexCoordHandle);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+        GLES20.glDisableVertexAttribArray(mTexCoordHandle);
+
+        if (blend) {
+            GLES20.glEnable(GLES20.GL_BLEND);
+        }
+        if (depthTest) {
+            GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        }
+        if (scissorTest) {
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        }
+    }
+
+    /**
+     * Deletes the GL objects. Must be called on the GL thread while the context is current.
+     */
+    void release() {
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+        if (mCopyTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[]{mCopyTexture}, 0);
+            mCopyTexture = 0;
+        }
+        mCopyWidth = 0;
+        mCopyHeight = 0;
+    }
+}
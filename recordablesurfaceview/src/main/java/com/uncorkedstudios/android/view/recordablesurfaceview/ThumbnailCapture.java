@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downsamples the bound framebuffer to a small thumbnail and reads it back. Must be used on a
+ * single GL thread.
+ * <p>
+ * The frame is halved with bilinear filtering, which averages 2x2 blocks, until it is within
+ * twice the thumbnail size, so fine detail does not alias the way a single large step would.
+ * The read back is synchronous but only a few kilobytes.
+ */
+final class ThumbnailCapture {
+
+    private static final float[] FULL_TEXTURE = {0f, 0f, 1f, 1f};
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final TextureBlitter mBlitter = new TextureBlitter();
+
+    private final List<RenderTarget> mTargets = new ArrayList<>();
+
+    private final ByteBuffer mPixels;
+
+    ThumbnailCapture(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mPixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Captures the bottom left <code>sourceWidth</code> x <code>sourceHeight</code> of the
+     * bound framebuffer. Leaves the default framebuffer bound and the viewport changed.
+     *
+     * @return RGBA pixels, bottom row first, valid until the next capture
+     */
+    ByteBuffer capture(int sourceWidth, int sourceHeight) {
+        mBlitter.copyFromFramebuffer(sourceWidth, sourceHeight);
+        int width = sourceWidth;
+        int height = sourceHeight;
+        int step = 0;
+        int texture = 0;
+        do {
+            if (width > 2 * mWidth || height > 2 * mHeight) {
+                width = Math.max(mWidth, (width + 1) / 2);
+                height = Math.max(mHeight, (height + 1) / 2);
+            } else {
+                width = mWidth;
+                height = mHeight;
+            }
+            if (step == mTargets.size()) {
+                mTargets.add(new RenderTarget());
+            }
+            RenderTarget target = mTargets.get(step);
+            target.bind(width, height);
+            if (step == 0) {
+                mBlitter.drawCopy();
+            } else {
+                mBlitter.draw(texture, FULL_TEXTURE);
+            }
+            texture = target.getTexture();
+            step++;
+        } while (width != mWidth || height != mHeight);
+
+        mPixels.clear();
+        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 4);
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                mPixels);
+        RenderTarget.unbind();
+        return mPixels;
+    }
+
+    /**
+     * Deletes the GL objects. Must be called on the GL thread while the context is current.
+     */
+    void release() {
+        mBlitter.release();
+        for (RenderTarget target : mTargets) {
+            target.release();
+        }
+        mTargets.clear();
+    }
+}
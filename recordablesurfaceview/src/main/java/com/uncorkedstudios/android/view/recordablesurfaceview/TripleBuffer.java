@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands objects from one producer thread to one consumer thread without locks or allocation.
+ * <p>
+ * Three preallocated slots rotate between the producer, the consumer and a middle position.
+ * The producer fills its slot and {@link #publish() publishes} it by swapping it with the
+ * middle one; the consumer {@link #acquire() acquires} the newest published slot by swapping
+ * its own with the middle one. Neither side ever waits for the other, and the slot one side
+ * holds is never touched by the other, so a published object can be read as an immutable
+ * snapshot until the consumer acquires the next one. Snapshots published faster than they are
+ * acquired are overwritten, the consumer always gets the latest.
+ *
+ * @param <T> the type of the slots
+ */
+public final class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 0x3;
+
+    // set in mMiddle while the middle slot holds a snapshot the consumer has not acquired
+    private static final int FRESH = 0x4;
+
+    private final Object[] mSlots;
+
+    // index of the middle slot, plus FRESH
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+
+    // owned by the producer
+    private int mWriteIndex = 0;
+
+    // owned by the consumer
+    private int mReadIndex = 2;
+
+    private boolean mHasRead = false;
+
+    private volatile long mPublished = 0;
+
+    private volatile long mAcquired = 0;
+
+    private volatile long mOverwritten = 0;
+
+    /**
+     * @param first  a slot
+     * @param second another slot
+     * @param third  the last slot; all three must be distinct objects
+     * @throws IllegalArgumentException if a slot is null or two slots are the same object
+     */
+    public TripleBuffer(T first, T second, T third) {
+        if (first == null || second == null || third == null) {
+            throw new IllegalArgumentException("Slots must not be null.");
+        }
+        if (first == second || second == third || first == third) {
+            throw new IllegalArgumentException("Slots must be distinct objects.");
+        }
+        mSlots = new Object[]{first, second, third};
+    }
+
+    /**
+     * Producer side: the slot to fill for the next {@link #publish()}. It may still hold an
+     * older snapshot, so every field must be written.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteSlot() {
+        return (T) mSlots[mWriteIndex];
+    }
+
+    /**
+     * Producer side: makes the filled write slot the newest snapshot and hands the producer
+     * another slot to fill.
+     */
+    public void publish() {
+        int previous = mMiddle.getAndSet(mWriteIndex | FRESH);
+        mWriteIndex = previous & INDEX_MASK;
+        mPublished++;
+        if ((previous & FRESH) != 0) {
+            mOverwritten++;
+        }
+    }
+
+    /**
+     * Consumer side: takes the newest snapshot if one was published since the last call.
+     *
+     * @return true if {@link #getReadSlot()} changed
+     */
+    public boolean acquire() {
+        // once FRESH is seen only the consumer can clear it, so the swap takes a fresh slot
+        if ((mMiddle.get() & FRESH) == 0) {
+            return false;
+        }
+        int previous = mMiddle.getAndSet(mReadIndex);
+        mReadIndex = previous & INDEX_MASK;
+        mHasRead = true;
+        mAcquired++;
+        return true;
+    }
+
+    /**
+     * Consumer side: the snapshot acquired last. The producer does not touch it until the
+     * consumer acquires another one.
+     *
+     * @return the snapshot, or null if none was acquired yet
+     */
+    @SuppressWarnings("unchecked")
+    public T getReadSlot() {
+        return mHasRead ? (T) mSlots[mReadIndex] : null;
+    }
+
+    /**
+     * @return snapshots published
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getPublishedCount() {
+        return mPublished;
+    }
+
+    /**
+     * @return snapshots acquired
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getAcquiredCount() {
+        return mAcquired;
+    }
+
+    /**
+     * @return snapshots replaced by a newer one before the consumer acquired them
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getOverwrittenCount() {
+        return mOverwritten;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the app's per-frame update, such as simulation or animation, on a worker thread, so it
+ * overlaps with the render thread drawing the previous frame instead of adding to frame time.
+ * <p>
+ * At the start of each frame the render thread takes the newest finished state and wakes the
+ * worker to compute the state for the next frame. States travel through a
+ * {@link TripleBuffer}, so the handoff takes no locks and allocates nothing; the renderer only
+ * reads {@link #getState()} and submits draws. The displayed state is one frame behind the
+ * update, the usual cost of pipelining.
+ *
+ * <pre>
+ * UpdateStage&lt;Scene&gt; stage = new UpdateStage&lt;&gt;(new Scene(), new Scene(), new Scene(),
+ *         new UpdateStage.Updater&lt;Scene&gt;() {
+ *             public void update(Scene next, long frameTimeNs) {
+ *                 simulation.step(frameTimeNs);
+ *                 simulation.copyTo(next);
+ *             }
+ *         });
+ * recordableSurfaceView.setUpdateStage(stage);
+ *
+ * // in onDrawFrame
+ * Scene scene = stage.getState();
+ * </pre>
+ *
+ * @param <T> the per-frame state
+ */
+public class UpdateStage<T> {
+
+    private static final String TAG = UpdateStage.class.getSimpleName();
+
+    private static final long DEFAULT_FRAME_INTERVAL_NS = 16666667L;
+
+    /**
+     * Computes the state for a frame. Called on the worker thread.
+     */
+    public interface Updater<T> {
+
+        /**
+         * @param next        the state to fill; it is reused and may hold an older frame, so
+         *                    every field the renderer reads must be written
+         * @param frameTimeNs the {@link System#nanoTime()} the frame is expected to be shown at
+         */
+        void update(T next, long frameTimeNs);
+    }
+
+    private final TripleBuffer<T> mBuffer;
+
+    private final Updater<T> mUpdater;
+
+    private final AtomicBoolean mRequested = new AtomicBoolean(false);
+
+    private volatile long mTargetFrameNs = 0;
+
+    private volatile boolean mRunning = false;
+
+    private volatile Thread mThread;
+
+    // render thread only
+    private long mLastBeginNs = 0;
+
+    private long mFrameIntervalNs = DEFAULT_FRAME_INTERVAL_NS;
+
+    private volatile long mUpdates = 0;
+
+    private volatile long mStaleFrames = 0;
+
+    private volatile long mLastUpdateNs = 0;
+
+    private volatile long mMaxUpdateNs = 0;
+
+    /**
+     * @param first   a state object
+     * @param second  another state object
+     * @param third   the last state object; all three must be distinct
+     * @param updater fills them
+     */
+    public UpdateStage(T first, T second, T third, Updater<T> updater) {
+        mBuffer = new TripleBuffer<>(first, second, third);
+        mUpdater = updater;
+    }
+
+    /**
+     * Starts the worker, which computes a first state right away. Called on the render thread.
+     */
+    void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        // a frame begun before a stop must not trigger a second update right away
+        mRequested.set(false);
+        mTargetFrameNs = System.nanoTime();
+        mLastBeginNs = 0;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runUpdates();
+            }
+        }, TAG);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the worker and waits for an update in progress. Called on the render thread.
+     */
+    void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Called on the render thread before each frame: takes the newest finished state for this
+     * frame and wakes the worker to compute the next one.
+     */
+    void beginFrame(long nowNs) {
+        if (!mBuffer.acquire() && mBuffer.getReadSlot() != null) {
+            mStaleFrames++;
+        }
+        if (mLastBeginNs != 0) {
+            long interval = nowNs - mLastBeginNs;
+            if (interval > 0 && interval < 4 * mFrameIntervalNs) {
+                mFrameIntervalNs += (interval - mFrameIntervalNs) / 4;
+            }
+        }
+        mLastBeginNs = nowNs;
+        mTargetFrameNs = nowNs + mFrameIntervalNs;
+        mRequested.set(true);
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void runUpdates() {
+        long frameTimeNs = mTargetFrameNs;
+        while (mRunning) {
+            long start = System.nanoTime();
+            try {
+                mUpdater.update(mBuffer.getWriteSlot(), frameTimeNs);
+            } catch (RuntimeException e) {
+                // the renderer keeps drawing the last state
+                Log.e(TAG, "Update failed, stopping the update stage", e);
+                mRunning = false;
+                return;
+            }
+            mBuffer.publish();
+            long duration = System.nanoTime() - start;
+            mLastUpdateNs = duration;
+            mMaxUpdateNs = Math.max(mMaxUpdateNs, duration);
+            mUpdates++;
+
+            while (mRunning && !mRequested.getAndSet(false)) {
+                LockSupport.park(this);
+            }
+            frameTimeNs = mTargetFrameNs;
+        }
+    }
+
+    /**
+     * The state to draw the current frame from. Only valid on the render thread, until the next
+     * frame begins; it must not be modified.
+     *
+     * @return the state, or null until the first update has finished
+     */
+    public T getState() {
+        return mBuffer.getReadSlot();
+    }
+
+    /**
+     * @return the buffer states are handed over in, for its counters
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public TripleBuffer<T> getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * @return updates finished
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getUpdateCount() {
+        return mUpdates;
+    }
+
+    /**
+     * @return frames drawn from the same state as the frame before, because the update for them
+     * had not finished in time
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getStaleFrameCount() {
+        return mStaleFrames;
+    }
+
+    /**
+     * @return duration of the last update, in nanoseconds
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getLastUpdateNs() {
+        return mLastUpdateNs;
+    }
+
+    /**
+     * @return duration of the longest update, in nanoseconds
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getMaxUpdateNs() {
+        return mMaxUpdateNs;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+/**
+ * Decides what a render thread does with its window surface while the holder destroys and
+ * recreates the window, e.g. during a rotation: park the context on a pbuffer while the window
+ * is gone, create a new window surface once it is back, and end the thread if the window stays
+ * gone for too long while nothing is being recorded.
+ * <p>
+ * Once the thread has decided to end, a returning window is refused, so the view starts a new
+ * thread for it instead of handing it to one that is tearing down.
+ * <p>
+ * Pure Java; times are passed in. Not thread safe; the render thread and the holder callbacks
+ * call it under the same lock.
+ */
+final class WindowSurfacePolicy {
+
+    static final int ACTION_NONE = 0;
+
+    /**
+     * Destroy the window surface and make the parked surface current.
+     */
+    static final int ACTION_PARK = 1;
+
+    /**
+     * Create a window surface for the returned window.
+     */
+    static final int ACTION_CREATE = 2;
+
+    /**
+     * End the thread.
+     */
+    static final int ACTION_EXIT = 3;
+
+    private final long mReturnTimeoutNs;
+
+    private boolean mWindowAvailable = false;
+
+    private long mWindowLostAtNs = 0;
+
+    private boolean mExiting = false;
+
+    /**
+     * @param returnTimeoutNs how long the thread waits for the window to come back
+     */
+    WindowSurfacePolicy(long returnTimeoutNs) {
+        mReturnTimeoutNs = returnTimeoutNs;
+    }
+
+    /**
+     * The holder created the window.
+     *
+     * @return false if the thread is ending and will not take the window
+     */
+    boolean onWindowCreated() {
+        if (mExiting) {
+            return false;
+        }
+        mWindowAvailable = true;
+        return true;
+    }
+
+    /**
+     * The holder is destroying the window.
+     */
+    void onWindowDestroyed() {
+        mWindowAvailable = false;
+    }
+
+    boolean isWindowAvailable() {
+        return mWindowAvailable;
+    }
+
+    /**
+     * The thread has its context. Starts the timeout if there is no window yet.
+     */
+    void onAttached(long nowNs) {
+        if (!mWindowAvailable) {
+            mWindowLostAtNs = nowNs;
+        }
+    }
+
+    /**
+     * The thread is ending for another reason, such as the view leaving its window.
+     */
+    void exit() {
+        mExiting = true;
+    }
+
+    /**
+     * @return true once the thread has decided to end
+     */
+    boolean isExiting() {
+        return mExiting;
+    }
+
+    /**
+     * Called by the render thread before each frame.
+     *
+     * @param hasSurface true if the thread has a window surface
+     * @param keepAlive  true while a recording needs the thread to go on without a window
+     * @return one of the <code>ACTION_</code> constants
+     */
+    int update(long nowNs, boolean hasSurface, boolean keepAlive) {
+        if (mExiting) {
+            return ACTION_EXIT;
+        }
+        if (!mWindowAvailable && hasSurface) {
+            mWindowLostAtNs = nowNs;
+            return ACTION_PARK;
+        }
+        if (mWindowAvailable && !hasSurface) {
+            return ACTION_CREATE;
+        }
+        if (!mWindowAvailable && !keepAlive && nowNs - mWindowLostAtNs > mReturnTimeoutNs) {
+            mExiting = true;
+            return ACTION_EXIT;
+        }
+        return ACTION_NONE;
+    }
+}
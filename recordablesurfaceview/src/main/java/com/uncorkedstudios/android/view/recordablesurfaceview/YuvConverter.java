@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Converts an RGBA texture to a YUV 4:2:0 frame on the GPU, for encoders that only take
+ * ByteBuffer input. Must be used on a single GL thread.
+ * <p>
+ * The frame is drawn into an RGBA target a quarter as wide as the video and one and a half
+ * times as tall, so each output pixel carries four bytes and reading the target back yields a
+ * tightly packed {@link YuvPacker#LAYOUT_I420} or {@link YuvPacker#LAYOUT_NV12} frame, top row
+ * first. Colors are converted to BT.601 limited range. Chroma is the average of each 2x2 block,
+ * taken with a single bilinear fetch at the block's center.
+ */
+final class YuvConverter {
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 aPosition;\n"
+                    + "void main() {\n"
+                    + "  gl_Position = vec4(aPosition, 0.0, 1.0);\n"
+                    + "}\n";
+
+    // gl_FragCoord addresses packed bytes: rows [0, h) hold Y, the rest chroma. x and row are
+    // source pixel units from the top left corner, and the texture's row 0 is the bottom
+    private static final String FRAGMENT_SHADER =
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n"
+                    + "precision highp float;\n"
+                    + "#else\n"
+                    + "precision mediump float;\n"
+                    + "#endif\n"
+                    + "uniform sampler2D uTexture;\n"
+                    + "uniform vec2 uSize;\n"
+                    + "uniform float uPlanar;\n"
+                    + "const vec3 Y_COEF = vec3(0.256788, 0.504129, 0.097906);\n"
+                    + "const vec3 U_COEF = vec3(-0.148223, -0.290993, 0.439216);\n"
+                    + "const vec3 V_COEF = vec3(0.439216, -0.367788, -0.071427);\n"
+                    + "vec3 rgb(float x, float row) {\n"
+                    + "  return texture2D(uTexture, vec2(x / uSize.x, 1.0 - row / uSize.y)).rgb;\n"
+                    + "}\n"
+                    + "float luma(float x, float row) {\n"
+                    + "  return dot(rgb(x + 0.5, row + 0.5), Y_COEF) + 0.062745;\n"
+                    + "}\n"
+                    + "vec2 chroma(float i, float row) {\n"
+                    + "  vec3 c = rgb(i * 2.0 + 1.0, row * 2.0 + 1.0);\n"
+                    + "  return vec2(dot(c, U_COEF), dot(c, V_COEF)) + 0.501961;\n"
+                    + "}\n"
+                    + "void main() {\n"
+                    + "  float x = floor(gl_FragCoord.x) * 4.0;\n"
+                    + "  float y = floor(gl_FragCoord.y);\n"
+                    + "  if (y < uSize.y) {\n"
+                    + "    gl_FragColor = vec4(luma(x, y), luma(x + 1.0, y), luma(x + 2.0, y),\n"
+                    + "        luma(x + 3.0, y));\n"
+                    + "  } else if (uPlanar < 0.5) {\n"
+                    + "    float row = y - uSize.y;\n"
+                    + "    gl_FragColor = vec4(chroma(x * 0.5, row), chroma(x * 0.5 + 1.0, row));\n"
+                    + "  } else {\n"
+                    + "    float row = y - uSize.y;\n"
+                    + "    float quarter = uSize.y * 0.25;\n"
+                    + "    bool v = row >= quarter;\n"
+                    + "    if (v) {\n"
+                    + "      row -= quarter;\n"
+                    + "    }\n"
+                    + "    row *= 2.0;\n"
+                    + "    float halfWidth = uSize.x * 0.5;\n"
+                    + "    if (x >= halfWidth) {\n"
+                    + "      x -= halfWidth;\n"
+                    + "      row += 1.0;\n"
+                    + "    }\n"
+                    + "    vec4 a = vec4(chroma(x, row), chroma(x + 1.0, row));\n"
+                    + "    vec4 b = vec4(chroma(x + 2.0, row), chroma(x + 3.0, row));\n"
+                    + "    gl_FragColor = v ? vec4(a.y, a.w, b.y, b.w)\n"
+                    + "        : vec4(a.x, a.z, b.x, b.z);\n"
+                    + "  }\n"
+                    + "}\n";
+
+    private final FloatBuffer mVertices = GlUtil.createFloatBuffer(8);
+
+    private final int mLayout;
+
+    private int mProgram = 0;
+
+    private int mPositionHandle;
+
+    private int mTextureHandle;
+
+    private int mSizeHandle;
+
+    private int mPlanarHandle;
+
+    /**
+     * @param layout the packed layout to produce
+     */
+    YuvConverter(int layout) {
+        mLayout = layout;
+        mVertices.put(new float[]{-1f, -1f, 1f, -1f, -1f, 1f, 1f, 1f}).position(0);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the packed layout cannot represent the size
+     */
+    static void checkSize(int width, int height) {
+        if (width % 8 != 0 || height % 4 != 0) {
+            throw new IllegalArgumentException("YUV conversion needs a width that is a multiple"
+                    + " of 8 and a height that is a multiple of 4, not " + width + "x" + height);
+        }
+    }
+
+    /**
+     * @return width of the packed target for a video <code>width</code> pixels wide
+     */
+    static int packedWidth(int width) {
+        return width / 4;
+    }
+
+    /**
+     * @return height of the packed target for a video <code>height</code> pixels tall
+     */
+    static int packedHeight(int height) {
+        return height * 3 / 2;
+    }
+
+    /**
+     * Draws the converted frame into <code>target</code>, which is left bound.
+     *
+     * @param texture a texture of <code>width</code> x <code>height</code> with linear
+     *                filtering
+     */
+    void convert(int texture, int width, int height, RenderTarget target) {
+        if (mProgram == 0) {
+            mProgram = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+            mPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
+            mTextureHandle = GLES20.glGetUniformLocation(mProgram, "uTexture");
+            mSizeHandle = GLES20.glGetUniformLocation(mProgram, "uSize");
+            mPlanarHandle = GLES20.glGetUniformLocation(mProgram, "uPlanar");
+        }
+        target.bind(packedWidth(width), packedHeight(height));
+
+        boolean blend = GLES20.glIsEnabled(GLES20.GL_BLEND);
+        boolean depthTest = GLES20.glIsEnabled(GLES20.GL_DEPTH_TEST);
+        boolean scissorTest = GLES20.glIsEnabled(GLES20.GL_SCISSOR_TEST);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+
+        GLES20.glUseProgram(mProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(mTextureHandle, 0);
+        GLES20.glUniform2f(mSizeHandle, width, height);
+        GLES20.glUniform1f(mPlanarHandle, mLayout == YuvPacker.LAYOUT_I420 ? 1f : 0f);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glVertexAttribPointer(mPositionHandle, 2, GLES20.GL_FLOAT, false, 8, mVertices);
+        GLES20.glEnableVertexAttribArray(mPositionHandle);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(mPositionHandle);
+
+        if (blend) {
+            GLES20.glEnable(GLES20.GL_BLEND);
+        }
+        if (depthTest) {
+            GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        }
+        if (scissorTest) {
+            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        }
+    }
+
+    /**
+     * Deletes the program. Must be called on the GL thread while the context is current.
+     */
+    void release() {
+        if (mProgram != 0) {
+            GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+}
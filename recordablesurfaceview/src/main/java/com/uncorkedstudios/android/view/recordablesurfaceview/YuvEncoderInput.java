@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Feeds frames converted by {@link YuvConverter} and read back by {@link RawFrameCapture} into
+ * an encoder's ByteBuffer input. Used when the encoder rejects surface input.
+ * <p>
+ * When the encoder's input has no row or plane padding, frames are read straight into its
+ * input buffer; otherwise they are read into a staging buffer and laid out by
+ * {@link YuvPacker}. A frame is dropped when the encoder has no free input buffer. Frames still
+ * in flight on the GPU when the recording stops are not encoded.
+ */
+final class YuvEncoderInput implements FrameTarget {
+
+    private static final String TAG = YuvEncoderInput.class.getSimpleName();
+
+    private static final long END_OF_STREAM_TIMEOUT_US = 100000;
+
+    private final CodecRecorder mRecorder;
+
+    private final MediaCodec mCodec;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mLayout;
+
+    private final YuvPacker mPacker;
+
+    private final ByteBuffer mStaging;
+
+    private int mStride;
+
+    private int mSliceHeight;
+
+    private boolean mStarted = false;
+
+    private boolean mEnded = false;
+
+    // input buffer claimed by beginFrame(), or -1
+    private int mIndex = -1;
+
+    private ByteBuffer mInput;
+
+    private boolean mDirect = false;
+
+    private long mLastTimeUs = 0;
+
+    private long mFramesDropped = 0;
+
+    /**
+     * @param colorFormat the format the encoder was configured with, from
+     *                    {@link #chooseColorFormat(MediaCodec, String)}
+     */
+    YuvEncoderInput(CodecRecorder recorder, MediaCodec codec, int colorFormat, int width,
+            int height) {
+        YuvConverter.checkSize(width, height);
+        mRecorder = recorder;
+        mCodec = codec;
+        mWidth = width;
+        mHeight = height;
+        mLayout = colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+                ? YuvPacker.LAYOUT_I420 : YuvPacker.LAYOUT_NV12;
+        mPacker = new YuvPacker(width, height, mLayout);
+        mStaging = ByteBuffer.allocateDirect(mPacker.getFrameSize())
+                .order(ByteOrder.nativeOrder());
+        mStride = width;
+        mSliceHeight = height;
+    }
+
+    /**
+     * Picks a YUV input format the packer can fill, preferring semi-planar, which most
+     * hardware encoders use natively.
+     *
+     * @throws IOException if the encoder supports neither planar nor semi-planar input
+     */
+    static int chooseColorFormat(MediaCodec codec, String mimeType) throws IOException {
+        int[] formats = codec.getCodecInfo().getCapabilitiesForType(mimeType).colorFormats;
+        boolean planar = false;
+        for (int format : formats) {
+            if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                return format;
+            }
+            planar |= format == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        }
+        if (planar) {
+            return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        }
+        throw new IOException(codec.getName() + " takes no YUV 4:2:0 input the recorder can"
+                + " produce");
+    }
+
+    /**
+     * @return the layout {@link YuvConverter} should produce
+     */
+    int getLayout() {
+        return mLayout;
+    }
+
+    @Override
+    public int getWidth() {
+        return YuvConverter.packedWidth(mWidth);
+    }
+
+    @Override
+    public int getHeight() {
+        return YuvConverter.packedHeight(mHeight);
+    }
+
+    @Override
+    public int getFrameSize() {
+        return mPacker.getFrameSize();
+    }
+
+    /**
+     * Reads the input layout, which the encoder only reports once started.
+     */
+    synchronized void onCodecStarted() {
+        MediaFormat format = mCodec.getInputFormat();
+        if (format != null && format.containsKey(MediaFormat.KEY_STRIDE)) {
+            mStride = Math.max(mWidth, format.getInteger(MediaFormat.KEY_STRIDE));
+        }
+        if (format != null && format.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
+            mSliceHeight = Math.max(mHeight, format.getInteger(MediaFormat.KEY_SLICE_HEIGHT));
+        }
+        mStarted = true;
+    }
+
+    @Override
+    public synchronized ByteBuffer beginFrame() {
+        if (mIndex < 0 && mStarted && !mEnded) {
+            try {
+                mIndex = mCodec.dequeueInputBuffer(0);
+                mInput = mIndex >= 0 ? mCodec.getInputBuffer(mIndex) : null;
+            } catch (IllegalStateException e) {
+                mIndex = -1;
+            }
+        }
+        mDirect = mIndex >= 0 && mStride == mWidth && mSliceHeight == mHeight;
+        ByteBuffer buffer = mDirect ? mInput : mStaging;
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public synchronized void commitFrame(long timestampNs) {
+        if (mIndex < 0 || mEnded) {
+            mFramesDropped++;
+            return;
+        }
+        int size = mDirect ? mPacker.getFrameSize()
+                : mPacker.pack(mStaging, mInput, mLayout, mStride, mSliceHeight);
+        mLastTimeUs = timestampNs / 1000;
+        try {
+            mCodec.queueInputBuffer(mIndex, 0, size, mLastTimeUs, 0);
+            mRecorder.onFrameSubmitted();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Could not queue frame", e);
+        }
+        mIndex = -1;
+        mInput = null;
+    }
+
+    @Override
+    public synchronized void abortFrame() {
+        // keep the claimed input buffer for the next frame
+    }
+
+    /**
+     * Queues the end of stream, waiting briefly for an input buffer if none is claimed.
+     *
+     * @return false if the encoder did not accept it
+     */
+    synchronized boolean signalEndOfStream() {
+        mEnded = true;
+        if (mFramesDropped > 0) {
+            Log.w(TAG, mFramesDropped + " frames dropped while the encoder input was full");
+        }
+        try {
+            int index = mIndex >= 0 ? mIndex : mCodec.dequeueInputBuffer(END_OF_STREAM_TIMEOUT_US);
+            mIndex = -1;
+            mInput = null;
+            if (index < 0) {
+                return false;
+            }
+            mCodec.queueInputBuffer(index, 0, 0, mLastTimeUs,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+}
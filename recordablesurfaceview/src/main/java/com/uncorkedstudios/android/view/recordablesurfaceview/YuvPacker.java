@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies a tightly packed YUV 4:2:0 frame into an encoder input buffer laid out with the
+ * encoder's stride and slice height. Pure Java and allocation free.
+ * <p>
+ * Destinations follow the {@link android.media.MediaCodec} convention for
+ * <code>COLOR_FormatYUV420Planar</code> and <code>COLOR_FormatYUV420SemiPlanar</code>: the Y
+ * plane has rows of <code>stride</code> bytes and <code>sliceHeight</code> rows, followed by the
+ * chroma planes, whose rows are half the stride for planar and the full stride for semi-planar.
+ * When source and destination layouts match, every row is a single bulk copy, and a frame
+ * without padding is one copy per plane.
+ */
+final class YuvPacker {
+
+    /**
+     * Y plane, then U and V planes of a quarter of its size each.
+     */
+    static final int LAYOUT_I420 = 0;
+
+    /**
+     * Y plane, then interleaved U and V at half the vertical resolution.
+     */
+    static final int LAYOUT_NV12 = 1;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mLayout;
+
+    /**
+     * @param width  frame width, even
+     * @param height frame height, even
+     * @param layout layout of the source frames, {@link #LAYOUT_I420} or {@link #LAYOUT_NV12}
+     */
+    YuvPacker(int width, int height, int layout) {
+        if ((width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("YUV 4:2:0 needs even dimensions");
+        }
+        mWidth = width;
+        mHeight = height;
+        mLayout = layout;
+    }
+
+    /**
+     * @return the size of a tightly packed source frame
+     */
+    int getFrameSize() {
+        return frameSize(mWidth, mHeight);
+    }
+
+    static int frameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    /**
+     * @return the number of bytes the encoder should be given for a frame of this layout
+     */
+    static int destinationSize(int stride, int sliceHeight) {
+        return stride * sliceHeight * 3 / 2;
+    }
+
+    /**
+     * Copies a frame. Moves position and limit of both buffers.
+     *
+     * @param src         a tightly packed frame in this packer's layout, from index 0
+     * @param dst         the encoder input buffer, written from index 0
+     * @param layout      layout of <code>dst</code>
+     * @param stride      bytes per Y row in <code>dst</code>, at least the width
+     * @param sliceHeight rows of the Y plane in <code>dst</code>, at least the height
+     * @return {@link #destinationSize(int, int)}
+     */
+    int pack(ByteBuffer src, ByteBuffer dst, int layout, int stride, int sliceHeight) {
+        int width = mWidth;
+        int height = mHeight;
+        int size = destinationSize(stride, sliceHeight);
+        if (stride < width || sliceHeight < height || dst.capacity() < size
+                || src.capacity() < getFrameSize()) {
+            throw new IllegalArgumentException("Buffer does not fit a " + width + "x" + height
+                    + " frame with stride " + stride + " and slice height " + sliceHeight);
+        }
+
+        int chromaStart = stride * sliceHeight;
+        int chromaHeight = height / 2;
+        int sourceChroma = width * height;
+        copyRows(src, 0, width, dst, 0, stride, width, height);
+        if (layout == mLayout) {
+            if (layout == LAYOUT_NV12) {
+                copyRows(src, sourceChroma, width, dst, chromaStart, stride, width,
+                        chromaHeight);
+            } else {
+                int chromaWidth = width / 2;
+                int chromaStride = stride / 2;
+                int sourcePlane = chromaWidth * chromaHeight;
+                int planeSize = chromaStride * (sliceHeight / 2);
+                copyRows(src, sourceChroma, chromaWidth, dst, chromaStart, chromaStride,
+                        chromaWidth, chromaHeight);
+                copyRows(src, sourceChroma + sourcePlane, chromaWidth, dst,
+                        chromaStart + planeSize, chromaStride, chromaWidth, chromaHeight);
+            }
+        } else {
+            convertChroma(src, sourceChroma, dst, chromaStart, layout, stride, sliceHeight);
+        }
+        return size;
+    }
+
+    /**
+     * Copies <code>rows</code> rows of <code>length</code> bytes, as one copy if neither side
+     * has padding.
+     */
+    private static void copyRows(ByteBuffer src, int srcOffset, int srcStride, ByteBuffer dst,
+            int dstOffset, int dstStride, int length, int rows) {
+        if (srcStride == length && dstStride == length) {
+            length *= rows;
+            rows = 1;
+        }
+        for (int row = 0; row < rows; row++) {
+            int from = srcOffset + row * srcStride;
+            src.limit(from + length);
+            src.position(from);
+            dst.limit(dst.capacity());
+            dst.position(dstOffset + row * dstStride);
+            dst.put(src);
+        }
+        src.clear();
+        dst.clear();
+    }
+
+    /**
+     * Moves chroma samples one at a time between planar and semi-planar layouts.
+     */
+    private void convertChroma(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset,
+            int layout, int stride, int sliceHeight) {
+        int chromaWidth = mWidth / 2;
+        int chromaHeight = mHeight / 2;
+        int sourceV = srcOffset + chromaWidth * chromaHeight;
+        int dstV = dstOffset + (stride / 2) * (sliceHeight / 2);
+        for (int row = 0; row < chromaHeight; row++) {
+            for (int i = 0; i < chromaWidth; i++) {
+                byte u;
+                byte v;
+                if (mLayout == LAYOUT_NV12) {
+                    int at = srcOffset + row * mWidth + i * 2;
+                    u = src.get(at);
+                    v = src.get(at + 1);
+                } else {
+                    int at = row * chromaWidth + i;
+                    u = src.get(srcOffset + at);
+                    v = src.get(sourceV + at);
+                }
+                if (layout == LAYOUT_NV12) {
+                    int at = dstOffset + row * stride + i * 2;
+                    dst.put(at, u);
+                    dst.put(at + 1, v);
+                } else {
+                    int at = row * (stride / 2) + i;
+                    dst.put(dstOffset + at, u);
+                    dst.put(dstV + at, v);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The per-frame work of the audio thread: app PCM through the ring buffer, mixed into the
+ * captured frame and copied into a codec input buffer. Compares three ways of doing the copy:
+ * a new short view per frame, a cached view, and a putShort loop.
+ * <p>
+ * Run with <code>./gradlew test -Dbenchmarks=true --tests '*AudioPathBenchmark'</code>.
+ */
+public class AudioPathBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    private static final int CHANNELS = 2;
+
+    private static final int FRAME_SAMPLES = 1024 * CHANNELS;
+
+    private static final int WARMUP_FRAMES = 20000;
+
+    private static final int FRAMES = 50000;
+
+    private static final int COPY_NEW_VIEW = 0;
+
+    private static final int COPY_CACHED_VIEW = 1;
+
+    private static final int COPY_PUT_SHORT = 2;
+
+    private final short[] mApp = new short[FRAME_SAMPLES];
+
+    private final short[] mCapture = new short[FRAME_SAMPLES];
+
+    private final short[] mFrame = new short[FRAME_SAMPLES];
+
+    private final short[] mScratch = new short[FRAME_SAMPLES];
+
+    private final long[] mSamplesNs = new long[FRAMES];
+
+    private PcmRingBuffer mRing;
+
+    private ByteBuffer mInput;
+
+    private ShortBuffer mCachedView;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            mApp[i] = (short) (Math.sin(i * 0.05) * 20000);
+            mCapture[i] = (short) (Math.sin(i * 0.013) * 25000);
+        }
+        mRing = new PcmRingBuffer(SAMPLE_RATE * CHANNELS);
+        mInput = ByteBuffer.allocateDirect(FRAME_SAMPLES * 2).order(ByteOrder.nativeOrder());
+        mCachedView = mInput.asShortBuffer();
+    }
+
+    private void frame(int copy) {
+        mRing.write(mApp, 0, FRAME_SAMPLES);
+        System.arraycopy(mCapture, 0, mFrame, 0, FRAME_SAMPLES);
+        int mixed = mRing.read(mScratch, 0, FRAME_SAMPLES);
+        PcmMixer.mix(mFrame, 0, mScratch, 0, mixed, 0.8f);
+
+        mInput.clear();
+        switch (copy) {
+            case COPY_NEW_VIEW:
+                mInput.order(ByteOrder.nativeOrder());
+                mInput.asShortBuffer().put(mFrame, 0, FRAME_SAMPLES);
+                break;
+            case COPY_CACHED_VIEW:
+                mCachedView.clear();
+                mCachedView.put(mFrame, 0, FRAME_SAMPLES);
+                break;
+            case COPY_PUT_SHORT:
+            default:
+                for (int i = 0; i < FRAME_SAMPLES; i++) {
+                    mInput.putShort(mFrame[i]);
+                }
+                break;
+        }
+    }
+
+    private void run(String name, int copy) {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            frame(copy);
+        }
+        long allocatedBefore = Benchmarks.allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            long start = System.nanoTime();
+            frame(copy);
+            mSamplesNs[i] = System.nanoTime() - start;
+        }
+        long allocated = Benchmarks.allocatedBytes() - allocatedBefore;
+
+        // a frame of 1024 samples lasts 21.3 ms at 48 kHz
+        Benchmarks.report("AudioPath " + name, Benchmarks.latencies(mSamplesNs, FRAMES)
+                + String.format(Locale.US, "  %6.1f bytes/frame",
+                allocatedBefore < 0 ? -1.0 : allocated / (double) FRAMES));
+
+        // every variant fills the input buffer with the same samples
+        ByteBuffer check = mInput.duplicate();
+        check.clear();
+        assertEquals(mFrame[FRAME_SAMPLES - 1],
+                check.order(ByteOrder.nativeOrder()).getShort((FRAME_SAMPLES - 1) * 2));
+    }
+
+    @Test
+    public void mixAndQueue() {
+        run("new view per frame", COPY_NEW_VIEW);
+        run("cached view       ", COPY_CACHED_VIEW);
+        run("putShort loop     ", COPY_PUT_SHORT);
+    }
+}
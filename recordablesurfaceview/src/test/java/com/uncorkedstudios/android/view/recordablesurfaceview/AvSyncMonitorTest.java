@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AvSyncMonitorTest {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    private static final int FRAMES = 1024;
+
+    private static final long START_NS = 5000000000L;
+
+    /**
+     * Feeds audio frames from a device whose clock is off by <code>skewPpm</code>, read
+     * <code>latencyNs</code> after they were captured.
+     *
+     * @return how many frames were dropped minus how many were duplicated
+     */
+    private static long feed(AvSyncMonitor monitor, double skewPpm, long latencyNs,
+                             double seconds) {
+        double frameNs = FRAMES * 1e9 / SAMPLE_RATE / (1 + skewPpm / 1e6);
+        long count = (long) (seconds * 1e9 / frameNs);
+        long dropped = 0;
+        for (long i = 1; i <= count; i++) {
+            int action = monitor.onAudioFrame(START_NS + latencyNs + Math.round(i * frameNs),
+                    FRAMES);
+            if (action == AvSyncMonitor.ACTION_DROP) {
+                dropped++;
+            } else if (action == AvSyncMonitor.ACTION_DUPLICATE) {
+                dropped--;
+            }
+        }
+        return dropped;
+    }
+
+    @Test
+    public void matchingClocksShowNoDrift() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE, AvSyncMonitor.CORRECTION_NONE);
+        monitor.start(START_NS);
+        feed(monitor, 0, 0, 30);
+        assertEquals(0, monitor.getDriftUs(), 100);
+        assertEquals(0, monitor.getDriftPpm(), 5);
+    }
+
+    @Test
+    public void constantCaptureLatencyIsExcluded() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE, AvSyncMonitor.CORRECTION_NONE);
+        monitor.start(START_NS);
+        feed(monitor, 0, 80000000L, 30);
+        assertEquals(0, monitor.getDriftUs(), 100);
+    }
+
+    @Test
+    public void measuresFastAudioClock() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE, AvSyncMonitor.CORRECTION_NONE);
+        monitor.start(START_NS);
+        feed(monitor, 200, 0, 60);
+        // 200 ppm over the 58 s after warm-up
+        assertEquals(11600, monitor.getDriftUs(), 1000);
+        assertEquals(200, monitor.getDriftPpm(), 20);
+        assertEquals(0, monitor.getDroppedFrames());
+    }
+
+    @Test
+    public void measuresSlowAudioClock() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE, AvSyncMonitor.CORRECTION_NONE);
+        monitor.start(START_NS);
+        feed(monitor, -200, 0, 60);
+        assertTrue(monitor.getDriftUs() < -10000);
+        assertEquals(-200, monitor.getDriftPpm(), 20);
+    }
+
+    @Test
+    public void dropsAudioFramesToFollowTheSystemClock() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE,
+                AvSyncMonitor.CORRECTION_AUDIO_FRAMES);
+        monitor.start(START_NS);
+        long dropped = feed(monitor, 1000, 0, 120);
+
+        assertTrue("dropped " + dropped, dropped > 0);
+        assertEquals(0, monitor.getDuplicatedFrames());
+        assertEquals(dropped, monitor.getDroppedFrames());
+        // held near the default 40 ms threshold instead of growing to 118 ms
+        assertTrue("drift " + monitor.getDriftUs(), Math.abs(monitor.getDriftUs()) < 60000);
+        // the reported skew excludes the corrections
+        assertEquals(1000, monitor.getDriftPpm(), 100);
+    }
+
+    @Test
+    public void duplicatesAudioFramesForSlowClock() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE,
+                AvSyncMonitor.CORRECTION_AUDIO_FRAMES);
+        monitor.start(START_NS);
+        long dropped = feed(monitor, -1000, 0, 120);
+
+        assertTrue("dropped " + dropped, dropped < 0);
+        assertEquals(0, monitor.getDroppedFrames());
+        assertTrue("drift " + monitor.getDriftUs(), Math.abs(monitor.getDriftUs()) < 60000);
+    }
+
+    @Test
+    public void audioCorrectionsRespectTheMinimumInterval() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE,
+                AvSyncMonitor.CORRECTION_AUDIO_FRAMES)
+                .setAudioCorrectionBounds(1000, 10000000L);
+        monitor.start(START_NS);
+        feed(monitor, 2000, 0, 60);
+        // at most one correction per 10 s after the warm-up
+        assertTrue(monitor.getDroppedFrames() <= 6);
+    }
+
+    @Test
+    public void videoTimestampsSlewTowardsTheAudioClock() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE,
+                AvSyncMonitor.CORRECTION_VIDEO_TIMESTAMPS)
+                .setVideoCorrectionBounds(100, 5000);
+        monitor.start(START_NS);
+        feed(monitor, 200, 0, 60);
+        assertTrue(monitor.getDriftUs() > 5000);
+
+        long wallNs = START_NS + 60000000000L;
+        assertEquals(wallNs + 100000L, monitor.getVideoTimestampNs(wallNs));
+        assertEquals(100, monitor.getVideoOffsetUs());
+        for (int i = 0; i < 100; i++) {
+            monitor.getVideoTimestampNs(wallNs);
+        }
+        // clamped to the maximum offset
+        assertEquals(5000, monitor.getVideoOffsetUs());
+        assertEquals(wallNs + 5000000L, monitor.getVideoTimestampNs(wallNs));
+        // audio frames are never touched in this mode
+        assertEquals(0, monitor.getDroppedFrames());
+    }
+
+    @Test
+    public void otherModesLeaveVideoTimestampsAlone() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE, AvSyncMonitor.CORRECTION_NONE);
+        monitor.start(START_NS);
+        feed(monitor, 500, 0, 30);
+        assertEquals(START_NS, monitor.getVideoTimestampNs(START_NS));
+        assertEquals(0, monitor.getVideoOffsetUs());
+    }
+
+    @Test
+    public void startResetsMeasurements() {
+        AvSyncMonitor monitor = new AvSyncMonitor(SAMPLE_RATE,
+                AvSyncMonitor.CORRECTION_AUDIO_FRAMES);
+        monitor.start(START_NS);
+        feed(monitor, 1000, 0, 120);
+        monitor.start(START_NS);
+        assertEquals(0, monitor.getDriftUs());
+        assertEquals(0, monitor.getDroppedFrames());
+        assertEquals(0, monitor.getDriftPpm(), 0);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Helpers for the benchmarks: JUnit tests that only run with <code>-Dbenchmarks=true</code>,
+ * print their results and assert nothing about speed.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue("run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+    }
+
+    /**
+     * @return the sample at <code>fraction</code> (0 to 1) of the sorted samples
+     */
+    static long percentile(long[] sorted, int count, double fraction) {
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * @return p50, p99 and max of the first <code>count</code> samples, in microseconds
+     */
+    static String latencies(long[] samplesNs, int count) {
+        long[] sorted = Arrays.copyOf(samplesNs, count);
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "p50 %8.1f us  p99 %8.1f us  max %9.1f us",
+                percentile(sorted, count, 0.5) / 1000.0, percentile(sorted, count, 0.99) / 1000.0,
+                sorted[count - 1] / 1000.0);
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or -1 if the JVM does not tell
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    static void report(String benchmark, String line) {
+        System.out.println(benchmark + ": " + line);
+    }
+}
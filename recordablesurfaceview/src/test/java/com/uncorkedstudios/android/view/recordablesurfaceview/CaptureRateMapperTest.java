@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureRateMapperTest {
+
+    private static final long START_NS = 7000000000L;
+
+    private static final long POLL_NS = 1000000000L / 60;
+
+    /**
+     * Renders <code>seconds</code> worth of 60 Hz frames and captures when the mapper says so.
+     *
+     * @return the presentation times of the captured frames
+     */
+    private static List<Long> render(CaptureRateMapper mapper, long startNs, int seconds) {
+        List<Long> times = new ArrayList<>();
+        for (int poll = 0; poll < seconds * 60; poll++) {
+            long now = startNs + poll * POLL_NS;
+            if (mapper.shouldCapture(now)) {
+                times.add(mapper.onCaptured(now));
+            }
+        }
+        return times;
+    }
+
+    @Test
+    public void classifiesRates() {
+        CaptureRateMapper timeLapse = new CaptureRateMapper(0.2, 30);
+        assertTrue(timeLapse.isTimeLapse());
+        assertFalse(timeLapse.isHighFrameRate());
+        assertEquals(150, timeLapse.getSpeedFactor(), 1e-9);
+        assertEquals(5000000000L, timeLapse.getCaptureIntervalNs());
+
+        CaptureRateMapper slowMotion = new CaptureRateMapper(120, 30);
+        assertTrue(slowMotion.isHighFrameRate());
+        assertEquals(0.25, slowMotion.getSpeedFactor(), 1e-9);
+
+        CaptureRateMapper normal = new CaptureRateMapper(30, 30);
+        assertFalse(normal.isTimeLapse());
+        assertFalse(normal.isHighFrameRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCaptureRate() {
+        new CaptureRateMapper(0, 30);
+    }
+
+    @Test
+    public void capturesTheFirstFrameRightAway() {
+        CaptureRateMapper mapper = new CaptureRateMapper(1, 30);
+        assertTrue(mapper.shouldCapture(START_NS));
+        assertEquals(START_NS, mapper.onCaptured(START_NS));
+        assertFalse(mapper.shouldCapture(START_NS + POLL_NS));
+    }
+
+    @Test
+    public void timeLapseCapturesOnScheduleAndStampsByIndex() {
+        CaptureRateMapper mapper = new CaptureRateMapper(2, 30);
+        List<Long> times = render(mapper, START_NS, 10);
+        assertEquals(20, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            // exactly one playback frame apart
+            assertEquals(START_NS + i * 1000000000L / 30, (long) times.get(i));
+        }
+        assertEquals(20, mapper.getCapturedFrames());
+    }
+
+    @Test
+    public void timeLapseScheduleDoesNotDrift() {
+        // 1.5 s does not divide into 60 Hz polls; captures must still average 1.5 s apart
+        CaptureRateMapper mapper = new CaptureRateMapper(1 / 1.5, 30);
+        List<Long> captures = new ArrayList<>();
+        for (int poll = 0; poll < 150 * 60; poll++) {
+            long now = START_NS + poll * POLL_NS;
+            if (mapper.shouldCapture(now)) {
+                mapper.onCaptured(now);
+                captures.add(now);
+            }
+        }
+        assertEquals(100, captures.size());
+        long last = captures.get(captures.size() - 1);
+        assertEquals(START_NS + 99 * 1500000000L, last, POLL_NS);
+    }
+
+    @Test
+    public void highFrameRateScalesRealTime() {
+        CaptureRateMapper mapper = new CaptureRateMapper(60, 30);
+        List<Long> times = render(mapper, START_NS, 1);
+        // every 60 Hz frame is captured and plays back at half speed
+        assertEquals(60, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(START_NS + 2 * i * POLL_NS, (long) times.get(i), 2);
+        }
+    }
+
+    @Test
+    public void resumesTheScheduleAfterAGap() {
+        CaptureRateMapper mapper = new CaptureRateMapper(10, 30);
+        render(mapper, START_NS, 1);
+        long captured = mapper.getCapturedFrames();
+
+        // paused for five seconds: one capture, not a burst of 50
+        long resume = START_NS + 6000000000L;
+        assertTrue(mapper.shouldCapture(resume));
+        long time = mapper.onCaptured(resume);
+        assertFalse(mapper.shouldCapture(resume + POLL_NS));
+        // time-lapse keeps stamping by index across the gap
+        assertEquals(START_NS + captured * 1000000000L / 30, time);
+    }
+
+    @Test
+    public void resetStartsANewTimeline() {
+        CaptureRateMapper mapper = new CaptureRateMapper(2, 30);
+        render(mapper, START_NS, 3);
+        mapper.reset();
+        assertEquals(0, mapper.getCapturedFrames());
+        long restart = START_NS + 100000000000L;
+        assertTrue(mapper.shouldCapture(restart));
+        assertEquals(restart, mapper.onCaptured(restart));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Write latency seen by the muxer thread for a 30 fps, 12 Mbit/s recording with AAC audio:
+ * <ul>
+ * <li>one positional {@link FileChannel} write per sample on the muxer thread, like
+ * MediaMuxer</li>
+ * <li>{@link ChannelWriter} coalescing samples into 1 MiB chunks</li>
+ * <li>the same with file space reserved ahead of the writes</li>
+ * </ul>
+ * The desktop JVM has no <code>posix_fallocate</code>, so the preallocated case writes one byte
+ * per 4 KiB block ahead of the data, which is what the C library falls back to on file systems
+ * without fallocate support.
+ * <p>
+ * Run with <code>./gradlew test -Dbenchmarks=true --tests '*ChannelWriterBenchmark'</code>;
+ * <code>-Dbenchmarks.mb=1024</code> writes a larger file (default 128 MiB).
+ */
+public class ChannelWriterBenchmark {
+
+    private static final int VIDEO_FRAME_BYTES = 12000000 / 8 / 30;
+
+    private static final int KEYFRAME_INTERVAL = 30;
+
+    private static final int AUDIO_FRAME_BYTES = 372;
+
+    // 48 kHz AAC frames per 30 fps video frame
+    private static final double AUDIO_FRAMES_PER_VIDEO_FRAME = 48000 / 1024.0 / 30;
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private int[] mSampleSizes;
+
+    private int mSampleCount;
+
+    private long[] mSamplesNs;
+
+    private ByteBuffer mSample;
+
+    /**
+     * Reserves space by touching one byte per block, like the C library's fallback.
+     */
+    private static final class BlockTouchingPreallocator implements ChannelWriter.Preallocator {
+
+        private final FileChannel mChannel;
+
+        private final ByteBuffer mByte = ByteBuffer.allocateDirect(1);
+
+        BlockTouchingPreallocator(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public void allocate(long offset, long length) throws IOException {
+            long end = offset + length;
+            long size = mChannel.size();
+            for (long block = offset / BLOCK_SIZE * BLOCK_SIZE; block < end;
+                    block += BLOCK_SIZE) {
+                // past the end of the file only; bytes already written are left alone
+                long position = Math.max(block, offset);
+                if (position >= size) {
+                    mByte.clear();
+                    mChannel.write(mByte, position);
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        long totalBytes = Long.getLong("benchmarks.mb", 128) << 20;
+
+        // sample sizes of the interleaved streams, the same for every variant
+        Random random = new Random(42);
+        mSampleSizes = new int[1024];
+        long bytes = 0;
+        double audioDue = 0;
+        int frame = 0;
+        int maxSize = 0;
+        while (bytes < totalBytes) {
+            if (mSampleCount + 8 > mSampleSizes.length) {
+                mSampleSizes = Arrays.copyOf(mSampleSizes, mSampleSizes.length * 2);
+            }
+            double scale = frame % KEYFRAME_INTERVAL == 0 ? 4 : 0.9;
+            int size = (int) (VIDEO_FRAME_BYTES * scale * (0.75 + random.nextDouble() / 2));
+            mSampleSizes[mSampleCount++] = size;
+            bytes += size;
+            maxSize = Math.max(maxSize, size);
+            for (audioDue += AUDIO_FRAMES_PER_VIDEO_FRAME; audioDue >= 1; audioDue--) {
+                size = AUDIO_FRAME_BYTES + random.nextInt(32) - 16;
+                mSampleSizes[mSampleCount++] = size;
+                bytes += size;
+            }
+            frame++;
+        }
+        mSamplesNs = new long[mSampleCount];
+        // codec output buffers are direct
+        mSample = ByteBuffer.allocateDirect(maxSize);
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            total += mSampleSizes[i];
+        }
+        return total;
+    }
+
+    private ByteBuffer sample(int index) {
+        mSample.clear();
+        mSample.limit(mSampleSizes[index]);
+        return mSample;
+    }
+
+    private void report(String name, long elapsedNs, long closeNs, File file) {
+        double seconds = elapsedNs / 1e9;
+        Benchmarks.report("ChannelWriter " + name, Benchmarks.latencies(mSamplesNs, mSampleCount)
+                + String.format(Locale.US, "  %7.1f MiB/s  close %6.1f ms",
+                totalBytes() / seconds / (1 << 20), closeNs / 1e6));
+        assertEquals(totalBytes(), file.length());
+    }
+
+    @Test
+    public void smallWritesOnTheMuxerThread() throws IOException {
+        File file = mFolder.newFile("direct.mp4");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        long start = System.nanoTime();
+        long position = 0;
+        for (int i = 0; i < mSampleCount; i++) {
+            ByteBuffer sample = sample(i);
+            long writeStart = System.nanoTime();
+            while (sample.hasRemaining()) {
+                position += channel.write(sample, position);
+            }
+            mSamplesNs[i] = System.nanoTime() - writeStart;
+        }
+        long closeStart = System.nanoTime();
+        channel.force(true);
+        raf.close();
+        long end = System.nanoTime();
+        report("small writes       ", end - start, end - closeStart, file);
+    }
+
+    @Test
+    public void coalescedWrites() throws IOException {
+        run("coalesced          ", false);
+    }
+
+    @Test
+    public void coalescedPreallocatedWrites() throws IOException {
+        run("coalesced, prealloc", true);
+    }
+
+    private void run(String name, boolean preallocate) throws IOException {
+        File file = mFolder.newFile(preallocate ? "preallocated.mp4" : "coalesced.mp4");
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        ChannelWriter writer = new ChannelWriter(channel,
+                preallocate ? new BlockTouchingPreallocator(channel) : null,
+                new ChannelWriter.Options().setPreallocateBytes(preallocate ? 16L << 20 : 0));
+        long start = System.nanoTime();
+        for (int i = 0; i < mSampleCount; i++) {
+            ByteBuffer sample = sample(i);
+            long writeStart = System.nanoTime();
+            writer.write(sample);
+            mSamplesNs[i] = System.nanoTime() - writeStart;
+        }
+        long closeStart = System.nanoTime();
+        writer.close();
+        long end = System.nanoTime();
+        report(name, end - start, end - closeStart, file);
+        Benchmarks.report("ChannelWriter " + name, String.format(Locale.US,
+                "%d chunk writes, mean %.1f us, max %.1f us on the I/O thread",
+                writer.getWriteCount(), writer.getMeanWriteLatencyNs() / 1000.0,
+                writer.getMaxWriteLatencyNs() / 1000.0));
+    }
+}
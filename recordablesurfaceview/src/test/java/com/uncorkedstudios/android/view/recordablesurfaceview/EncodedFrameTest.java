@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedFrameTest {
+
+    /**
+     * Counts how often each output buffer was given back.
+     */
+    private static final class CountingOwner implements EncodedFrame.Owner {
+
+        final AtomicInteger mReleases = new AtomicInteger(0);
+
+        volatile int mLastIndex = -1;
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            mLastIndex = index;
+            mReleases.incrementAndGet();
+        }
+    }
+
+    private static EncodedFrame frame(EncodedFrame.Buffer buffer, int flags) {
+        return new EncodedFrame(buffer, ByteBuffer.allocate(4).asReadOnlyBuffer(), 1234L,
+                flags);
+    }
+
+    @Test
+    public void returnsTheBufferAfterTheLastReference() {
+        CountingOwner owner = new CountingOwner();
+        // the recorder's own reference plus two sinks
+        EncodedFrame.Buffer buffer = new EncodedFrame.Buffer(owner, 7, 3);
+        EncodedFrame first = frame(buffer, 0);
+        EncodedFrame second = frame(buffer, 0);
+
+        first.release();
+        buffer.release();
+        assertEquals(0, owner.mReleases.get());
+        second.release();
+        assertEquals(1, owner.mReleases.get());
+        assertEquals(7, owner.mLastIndex);
+    }
+
+    @Test
+    public void ignoresRepeatedReleases() {
+        CountingOwner owner = new CountingOwner();
+        EncodedFrame.Buffer buffer = new EncodedFrame.Buffer(owner, 0, 2);
+        EncodedFrame frame = frame(buffer, 0);
+
+        frame.release();
+        frame.release();
+        frame.release();
+        // another consumer's reference is still out
+        assertEquals(0, owner.mReleases.get());
+        buffer.release();
+        assertEquals(1, owner.mReleases.get());
+    }
+
+    @Test
+    public void concurrentReleasesReturnTheBufferOnce() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            CountingOwner owner = new CountingOwner();
+            final int consumers = 8;
+            EncodedFrame.Buffer buffer = new EncodedFrame.Buffer(owner, round, consumers);
+            final CountDownLatch go = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < consumers; i++) {
+                final EncodedFrame frame = frame(buffer, 0);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        // racing releases of the same frame count once
+                        frame.release();
+                        frame.release();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            go.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, owner.mReleases.get());
+            assertEquals(round, owner.mLastIndex);
+        }
+    }
+
+    @Test
+    public void exposesTheBufferInfo() {
+        EncodedFrame.Buffer buffer = new EncodedFrame.Buffer(new CountingOwner(), 0, 1);
+        EncodedFrame key = frame(buffer, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        assertTrue(key.isKeyFrame());
+        assertEquals(1234L, key.getPresentationTimeUs());
+        assertTrue(key.getData().isReadOnly());
+        assertFalse(frame(buffer, MediaCodec.BUFFER_FLAG_CODEC_CONFIG).isKeyFrame());
+    }
+}
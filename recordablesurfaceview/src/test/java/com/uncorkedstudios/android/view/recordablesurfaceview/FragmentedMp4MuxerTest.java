@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4MuxerTest {
+
+    private static final int SYNC = 0x02000000;
+
+    /**
+     * One <code>traf</code> as read back from a fragment.
+     */
+    private static final class Run {
+
+        int sequence;
+
+        int trackId;
+
+        long baseDecodeTime;
+
+        int[] durations;
+
+        int[] sizes;
+
+        int[] flags;
+
+        // absolute offset of the first sample in the stream
+        int dataStart;
+    }
+
+    private static void mux(WritableByteChannel channel, long fragmentDurationUs,
+                            int videoFrames, int gop, boolean audio) throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(channel, fragmentDurationUs, 0);
+        int videoTrack = muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        int audioTrack = audio ? muxer.addTrack(Mp4Fixtures.audioTrack(2)) : -1;
+        muxer.start();
+        Mp4Fixtures.feed(Mp4Fixtures.writerFor(muxer), videoTrack, audioTrack, videoFrames,
+                gop);
+        muxer.stop();
+        muxer.release();
+    }
+
+    private static ByteBuffer mux(long fragmentDurationUs, int videoFrames, int gop,
+                                  boolean audio) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mux(Channels.newChannel(out), fragmentDurationUs, videoFrames, gop, audio);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static List<Run> runs(ByteBuffer stream) throws IOException {
+        List<Run> runs = new ArrayList<>();
+        ByteBuffer data = stream.duplicate();
+        while (data.remaining() >= 8) {
+            int moofStart = data.position();
+            ByteBuffer box = Mp4BoxReader.next(data);
+            if (!Mp4BoxReader.type(box).equals("moof")) {
+                continue;
+            }
+            int sequence = Mp4BoxReader.fullPayload(Mp4BoxReader.find(box, "mfhd")).getInt(0);
+            ByteBuffer children = Mp4BoxReader.payload(box);
+            while (children.remaining() >= 8) {
+                ByteBuffer traf = Mp4BoxReader.next(children);
+                if (!Mp4BoxReader.type(traf).equals("traf")) {
+                    continue;
+                }
+                Run run = new Run();
+                run.sequence = sequence;
+                ByteBuffer tfhd = Mp4BoxReader.find(traf, "tfhd");
+                // default-base-is-moof
+                assertEquals(0x020000, Mp4BoxReader.payload(tfhd).getInt(0) & 0xFFFFFF);
+                run.trackId = Mp4BoxReader.fullPayload(tfhd).getInt(0);
+                ByteBuffer tfdt = Mp4BoxReader.find(traf, "tfdt");
+                assertEquals(1, Mp4BoxReader.version(tfdt));
+                run.baseDecodeTime = Mp4BoxReader.fullPayload(tfdt).getLong(0);
+                ByteBuffer trun = Mp4BoxReader.fullPayload(Mp4BoxReader.find(traf, "trun"));
+                int count = trun.getInt();
+                run.dataStart = moofStart + trun.getInt();
+                run.durations = new int[count];
+                run.sizes = new int[count];
+                run.flags = new int[count];
+                for (int i = 0; i < count; i++) {
+                    run.durations[i] = trun.getInt();
+                    run.sizes[i] = trun.getInt();
+                    run.flags[i] = trun.getInt();
+                }
+                runs.add(run);
+            }
+        }
+        return runs;
+    }
+
+    private static List<Run> runsOf(List<Run> runs, int trackId) {
+        List<Run> track = new ArrayList<>();
+        for (Run run : runs) {
+            if (run.trackId == trackId) {
+                track.add(run);
+            }
+        }
+        return track;
+    }
+
+    @Test
+    public void writesInitSegmentThenFragments() throws IOException {
+        ByteBuffer stream = mux(1000000L, 75, 25, true);
+        List<ByteBuffer> boxes = Mp4Fixtures.topLevelBoxes(stream);
+        List<String> types = Mp4Fixtures.types(boxes);
+        assertEquals(Arrays.asList("ftyp", "moov"), types.subList(0, 2));
+        for (int i = 2; i < types.size(); i += 2) {
+            assertEquals("moof", types.get(i));
+            assertEquals("mdat", types.get(i + 1));
+        }
+
+        ByteBuffer moov = boxes.get(1);
+        assertNotNull(Mp4BoxReader.findPath(moov, "mvex", "trex"));
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(stream);
+        assertEquals(2, tracks.size());
+        assertEquals(0, tracks.get(0).sampleCount);
+        assertEquals(0, tracks.get(1).sampleCount);
+    }
+
+    @Test
+    public void cutsFragmentsAtKeyFramesAfterTheDuration() throws IOException {
+        List<Run> runs = runs(mux(1000000L, 75, 25, true));
+        List<Run> video = runsOf(runs, 1);
+        // a key frame every second, so one fragment per second
+        assertEquals(3, video.size());
+        int frame = 0;
+        for (int f = 0; f < video.size(); f++) {
+            Run run = video.get(f);
+            assertEquals(f + 1, run.sequence);
+            assertEquals(25, run.sizes.length);
+            assertEquals(SYNC, run.flags[0]);
+            for (int i = 1; i < run.flags.length; i++) {
+                assertTrue(run.flags[i] != SYNC);
+            }
+            assertEquals(3600L * frame, run.baseDecodeTime);
+            frame += run.sizes.length;
+        }
+    }
+
+    @Test
+    public void decodeTimesAreContinuous() throws IOException {
+        List<Run> runs = runs(mux(1000000L, 100, 10, true));
+        for (int trackId = 1; trackId <= 2; trackId++) {
+            // only the track that cuts the fragment knows when its last sample ends; the
+            // others repeat the duration before, and whole microsecond timestamps make audio
+            // durations vary by a tick either way. The next tfdt is exact, so nothing adds up
+            int tolerance = trackId == 1 ? 0 : 2;
+            long next = -1;
+            for (Run run : runsOf(runs, trackId)) {
+                if (next >= 0) {
+                    assertEquals(next, run.baseDecodeTime, tolerance);
+                }
+                next = run.baseDecodeTime;
+                for (int duration : run.durations) {
+                    next += duration;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sampleDataMatchesTheInput() throws IOException {
+        ByteBuffer stream = mux(1000000L, 60, 20, true);
+        int frame = 0;
+        int audioFrame = 0;
+        for (Run run : runs(stream)) {
+            int offset = run.dataStart;
+            for (int i = 0; i < run.sizes.length; i++) {
+                if (run.trackId == 1) {
+                    assertEquals(Mp4Fixtures.storedSize(frame), run.sizes[i]);
+                    assertEquals(Mp4Fixtures.payloadByte(frame, 0), stream.get(offset + 5));
+                    frame++;
+                } else {
+                    assertEquals(Mp4Fixtures.audioFrameSize(audioFrame), run.sizes[i]);
+                    assertEquals((byte) audioFrame, stream.get(offset));
+                    audioFrame++;
+                }
+                offset += run.sizes[i];
+            }
+        }
+        assertEquals(60, frame);
+        assertTrue(audioFrame > 0);
+    }
+
+    @Test
+    public void writesEachSampleAsAFragmentWithoutDuration() throws IOException {
+        List<Run> runs = runs(mux(0, 10, 5, false));
+        assertEquals(10, runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            assertEquals(i + 1, run.sequence);
+            assertEquals(1, run.sizes.length);
+            assertEquals(3600L * i, run.baseDecodeTime);
+            // the duration runs up to the next sample, the last repeats the default
+            assertEquals(i < 9 ? 3600 : Mp4Track.VIDEO_TIMESCALE / 30, run.durations[0]);
+            assertEquals(i % 5 == 0 ? SYNC : 0x01010000, run.flags[0]);
+        }
+    }
+
+    @Test
+    public void directModeKeepsTracksApart() throws IOException {
+        List<Run> runs = runs(mux(0, 20, 5, true));
+        for (Run run : runs) {
+            assertEquals(1, run.sizes.length);
+        }
+        List<Run> audio = runsOf(runs, 2);
+        assertTrue(audio.size() > 20);
+        for (int i = 0; i + 1 < audio.size(); i++) {
+            assertEquals(audio.get(i + 1).baseDecodeTime - audio.get(i).baseDecodeTime,
+                    audio.get(i).durations[0]);
+        }
+    }
+
+    @Test
+    public void storesAccessUnitsWithManyNalUnits() throws IOException {
+        ByteBuffer unit = ByteBuffer.allocate(200 * 5);
+        for (int i = 0; i < 200; i++) {
+            unit.put(new byte[]{0, 0, 1, 0x06, (byte) (i + 2)});
+        }
+        unit.flip();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(Channels.newChannel(out), 0, 0);
+        muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        muxer.start();
+        muxer.writeSample(0, unit, 0, unit.limit(), 0, true);
+        muxer.stop();
+
+        ByteBuffer stream = ByteBuffer.wrap(out.toByteArray());
+        Run run = runs(stream).get(0);
+        assertEquals(200 * 6, run.sizes[0]);
+        for (int i = 0; i < 200; i++) {
+            int offset = run.dataStart + i * 6;
+            assertEquals(2, stream.getInt(offset));
+            assertEquals((byte) (i + 2), stream.get(offset + 5));
+        }
+    }
+
+    @Test
+    public void gatheringAndPlainChannelsWriteTheSameBytes() throws IOException {
+        File file = File.createTempFile("fragmented", ".mp4");
+        try {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            try {
+                mux(channel, 500000L, 40, 10, true);
+            } finally {
+                channel.close();
+            }
+            ByteBuffer gathered = Mp4Fixtures.read(file);
+            ByteBuffer plain = mux(500000L, 40, 10, true);
+            assertArrayEquals(plain.array(), Arrays.copyOf(gathered.array(), gathered.limit()));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void mdatHoldsExactlyTheFragmentPayload() throws IOException {
+        ByteBuffer stream = mux(1000000L, 50, 25, true);
+        List<ByteBuffer> boxes = Mp4Fixtures.topLevelBoxes(stream);
+        List<Run> runs = runs(stream);
+        int payload = 0;
+        for (Run run : runs) {
+            for (int size : run.sizes) {
+                payload += size;
+            }
+        }
+        int mdat = 0;
+        for (ByteBuffer box : boxes) {
+            if (Mp4BoxReader.type(box).equals("mdat")) {
+                mdat += box.remaining() - 8;
+            }
+        }
+        assertEquals(payload, mdat);
+    }
+}
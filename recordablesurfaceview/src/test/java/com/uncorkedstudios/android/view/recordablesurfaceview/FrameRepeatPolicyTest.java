@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRepeatPolicyTest {
+
+    private static final long INTERVAL_NS = 1000000000L / 30;
+
+    private static final long POLL_NS = 1000000000L / 60;
+
+    private static final class FakeClock implements FrameRepeatPolicy.Clock {
+
+        long mNowNs = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+    }
+
+    private FakeClock mClock;
+
+    private FrameRepeatPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mPolicy = new FrameRepeatPolicy(30, mClock);
+    }
+
+    /**
+     * Polls like the render loop for <code>durationNs</code>, repeating when asked.
+     *
+     * @return the number of repeats
+     */
+    private int poll(long durationNs) {
+        int repeats = 0;
+        long end = mClock.mNowNs + durationNs;
+        while (mClock.mNowNs < end) {
+            mClock.mNowNs += POLL_NS;
+            if (mPolicy.shouldRepeat()) {
+                mPolicy.onFrameRepeated();
+                repeats++;
+            }
+        }
+        return repeats;
+    }
+
+    @Test
+    public void doesNotRepeatBeforeTheFirstFrame() {
+        mClock.mNowNs += 10 * INTERVAL_NS;
+        assertFalse(mPolicy.shouldRepeat());
+    }
+
+    @Test
+    public void repeatsOnceAFrameIntervalHasPassed() {
+        mPolicy.onFrameSubmitted();
+        mClock.mNowNs += INTERVAL_NS / 2;
+        assertFalse(mPolicy.shouldRepeat());
+        mClock.mNowNs += INTERVAL_NS / 2;
+        assertTrue(mPolicy.shouldRepeat());
+    }
+
+    @Test
+    public void allowsRepeatsSlightlyEarly() {
+        mPolicy.onFrameSubmitted();
+        mClock.mNowNs += INTERVAL_NS - INTERVAL_NS / 4;
+        assertTrue(mPolicy.shouldRepeat());
+        mClock.mNowNs -= 1;
+        assertFalse(mPolicy.shouldRepeat());
+    }
+
+    @Test
+    public void newFramesPostponeTheRepeat() {
+        mPolicy.onFrameSubmitted();
+        for (int i = 0; i < 10; i++) {
+            mClock.mNowNs += INTERVAL_NS / 2;
+            mPolicy.onFrameSubmitted();
+            assertFalse(mPolicy.shouldRepeat());
+        }
+    }
+
+    @Test
+    public void keepsTheFrameRateWhileIdle() {
+        mPolicy.onFrameSubmitted();
+        // 60 Hz polls over ten seconds still make 30 frames per second
+        int repeats = poll(10000000000L);
+        assertEquals(300, repeats, 1);
+        assertEquals(repeats, mPolicy.getRepeatedFrames());
+    }
+
+    @Test
+    public void doesNotBurstAfterAStall() {
+        mPolicy.onFrameSubmitted();
+        poll(INTERVAL_NS * 3);
+        long before = mPolicy.getRepeatedFrames();
+
+        // the render thread stalls for a second
+        mClock.mNowNs += 1000000000L;
+        assertTrue(mPolicy.shouldRepeat());
+        mPolicy.onFrameRepeated();
+        // the schedule restarts from now instead of catching up on 30 missed frames
+        assertFalse(mPolicy.shouldRepeat());
+        mClock.mNowNs += INTERVAL_NS;
+        assertTrue(mPolicy.shouldRepeat());
+        assertEquals(before + 1, mPolicy.getRepeatedFrames());
+    }
+
+    @Test
+    public void resetForgetsTheFrame() {
+        mPolicy.onFrameSubmitted();
+        mPolicy.reset();
+        mClock.mNowNs += 10 * INTERVAL_NS;
+        assertFalse(mPolicy.shouldRepeat());
+    }
+
+    @Test
+    public void usesTheFrameRateForTheInterval() {
+        assertEquals(INTERVAL_NS, mPolicy.getIntervalNs());
+        assertEquals(1000000000L / 24, new FrameRepeatPolicy(24, mClock).getIntervalNs());
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KeyframeIndexTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * @return RGBA pixels whose first byte per row is the row number plus <code>seed</code>
+     */
+    private static ByteBuffer thumbnail(int width, int height, int seed) {
+        ByteBuffer pixels = ByteBuffer.allocate(width * height * 4);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width * 4; x++) {
+                pixels.put((byte) (y + seed + x));
+            }
+        }
+        pixels.flip();
+        return pixels;
+    }
+
+    private static void assertTopRowFirst(ByteBuffer pixels, int width, int height, int seed) {
+        for (int y = 0; y < height; y++) {
+            assertEquals("row " + y, (byte) (y + seed), pixels.get(y * width * 4));
+            assertEquals((byte) (y + seed + 5), pixels.get(y * width * 4 + 5));
+        }
+    }
+
+    @Test
+    public void roundTripsKeyframes() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 0, 0);
+        writer.setTimeBaseUs(1000000L);
+        writer.addKeyframe(1000000L, 48, 5000);
+        writer.addKeyframe(2000000L, 9000, 4000);
+        writer.addKeyframe(3000000L, -1, 3000);
+        writer.close(100);
+
+        KeyframeIndex index = KeyframeIndex.read(file);
+        assertEquals(3, index.getKeyframeCount());
+        assertEquals(0, index.getKeyframeTimeUs(0));
+        assertEquals(2000000L, index.getKeyframeTimeUs(2));
+        // the shift applies to known offsets only
+        assertEquals(148, index.getKeyframeOffset(0));
+        assertEquals(9100, index.getKeyframeOffset(1));
+        assertEquals(-1, index.getKeyframeOffset(2));
+        assertEquals(4000, index.getKeyframeSize(1));
+        assertEquals(0, index.getThumbnailCount());
+    }
+
+    @Test
+    public void timeBaseDefaultsToTheFirstKeyframe() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 0, 0);
+        writer.addKeyframe(5000000L, 0, 1);
+        writer.addKeyframe(5500000L, 0, 1);
+        writer.close();
+
+        KeyframeIndex index = KeyframeIndex.read(file);
+        assertEquals(0, index.getKeyframeTimeUs(0));
+        assertEquals(500000L, index.getKeyframeTimeUs(1));
+    }
+
+    @Test
+    public void roundTripsThumbnailsTopRowFirst() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 4, 3);
+        writer.setTimeBaseUs(0);
+        writer.addThumbnail(0, thumbnail(4, 3, 10), false);
+        // rows read back from GL come bottom row first
+        ByteBuffer bottomUp = ByteBuffer.allocate(4 * 3 * 4);
+        ByteBuffer topDown = thumbnail(4, 3, 20);
+        for (int y = 2; y >= 0; y--) {
+            topDown.limit((y + 1) * 16).position(y * 16);
+            bottomUp.put(topDown);
+        }
+        bottomUp.flip();
+        writer.addThumbnail(1000000L, bottomUp, true);
+        writer.close();
+
+        KeyframeIndex index = KeyframeIndex.read(file);
+        assertEquals(2, index.getThumbnailCount());
+        assertEquals(4, index.getThumbnailWidth());
+        assertEquals(3, index.getThumbnailHeight());
+        assertEquals(1000000L, index.getThumbnailTimeUs(1));
+
+        ByteBuffer pixels = ByteBuffer.allocate(4 * 3 * 4 + 8);
+        pixels.position(8);
+        index.readThumbnail(0, pixels);
+        assertEquals(pixels.capacity(), pixels.position());
+        pixels.position(8);
+        assertTopRowFirst(pixels.slice(), 4, 3, 10);
+
+        pixels.clear();
+        index.readThumbnail(1, pixels);
+        pixels.flip();
+        assertTopRowFirst(pixels, 4, 3, 20);
+    }
+
+    @Test
+    public void readsLargeIndexesAcrossBufferBoundaries() throws IOException {
+        // thumbnails larger than the reader's buffer, between thousands of key frames
+        int width = 160;
+        int height = 120;
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, width, height);
+        writer.setTimeBaseUs(0);
+        for (int i = 0; i < 5000; i++) {
+            writer.addKeyframe(i * 1000L, i * 10L, i);
+            if (i % 250 == 0) {
+                writer.addThumbnail(i * 1000L, thumbnail(width, height, i / 250), false);
+            }
+        }
+        writer.close();
+
+        KeyframeIndex index = KeyframeIndex.read(file);
+        assertEquals(5000, index.getKeyframeCount());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i * 1000L, index.getKeyframeTimeUs(i));
+            assertEquals(i * 10L, index.getKeyframeOffset(i));
+            assertEquals(i, index.getKeyframeSize(i));
+        }
+        assertEquals(20, index.getThumbnailCount());
+        ByteBuffer pixels = ByteBuffer.allocate(width * height * 4);
+        for (int t = 0; t < 20; t++) {
+            assertEquals(t * 250000L, index.getThumbnailTimeUs(t));
+            pixels.clear();
+            index.readThumbnail(t, pixels);
+            assertTopRowFirst(pixels, width, height, t);
+        }
+    }
+
+    @Test
+    public void findsKeyframesAndThumbnailsByTime() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 1, 1);
+        writer.setTimeBaseUs(0);
+        writer.addKeyframe(1000, 0, 1);
+        writer.addKeyframe(2000, 0, 1);
+        writer.addKeyframe(2000, 0, 1);
+        writer.addKeyframe(3000, 0, 1);
+        writer.addThumbnail(1500, thumbnail(1, 1, 0), false);
+        writer.addThumbnail(2500, thumbnail(1, 1, 0), false);
+        writer.close();
+
+        KeyframeIndex index = KeyframeIndex.read(file);
+        assertEquals(-1, index.findKeyframe(999));
+        assertEquals(0, index.findKeyframe(1000));
+        assertEquals(0, index.findKeyframe(1999));
+        // the first of equal times
+        assertEquals(1, index.findKeyframe(2000));
+        assertEquals(3, index.findKeyframe(100000));
+        // thumbnails fall back to the first one
+        assertEquals(0, index.findThumbnail(0));
+        assertEquals(0, index.findThumbnail(2499));
+        assertEquals(1, index.findThumbnail(2500));
+    }
+
+    @Test
+    public void ignoresATruncatedLastRecord() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 2, 2);
+        writer.setTimeBaseUs(0);
+        writer.addKeyframe(0, 0, 1);
+        writer.addThumbnail(0, thumbnail(2, 2, 0), false);
+        writer.addKeyframe(1000, 0, 1);
+        writer.close();
+        long length = file.length();
+
+        for (long cut : new long[]{length - 1, length - 21, length - 22}) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(cut);
+            raf.close();
+            KeyframeIndex index = KeyframeIndex.read(file);
+            assertEquals(1, index.getKeyframeCount());
+            // the thumbnail is dropped once its pixels are cut
+            assertEquals(cut == length - 22 ? 0 : 1, index.getThumbnailCount());
+        }
+    }
+
+    @Test
+    public void readsAnIndexThatWasNeverClosed() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 0, 0);
+        // more than the writer's buffer, so most records reach the file
+        for (int i = 0; i < 3000; i++) {
+            writer.addKeyframe(i, i, i);
+        }
+        KeyframeIndex index = KeyframeIndex.read(file);
+        assertTrue(index.getKeyframeCount() > 0 && index.getKeyframeCount() < 3000);
+        // without the header's time base, times stay as written
+        assertEquals(1, index.getKeyframeTimeUs(1));
+        writer.close();
+        assertEquals(3000, KeyframeIndex.read(file).getKeyframeCount());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        try {
+            KeyframeIndex.read(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsCorruptRecords() throws IOException {
+        File file = mFolder.newFile();
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(file, 0, 0);
+        writer.addKeyframe(0, 0, 1);
+        writer.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(KeyframeIndex.HEADER_SIZE);
+        raf.write('X');
+        raf.close();
+        try {
+            KeyframeIndex.read(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writerRejectsMisuse() throws IOException {
+        KeyframeIndex.Writer writer = new KeyframeIndex.Writer(mFolder.newFile(), 4, 4);
+        try {
+            writer.addThumbnail(0, thumbnail(2, 2, 0), false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        writer.close();
+        try {
+            writer.addKeyframe(0, 0, 0);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedFrameRingTest {
+
+    private static final int WIDTH = 8;
+
+    private static final int HEIGHT = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void writeFrame(MappedFrameRing ring, int value, long timestampNs) {
+        ByteBuffer frame = ring.beginFrame();
+        assertEquals(ring.getFrameSize(), frame.remaining());
+        while (frame.hasRemaining()) {
+            frame.put((byte) value);
+        }
+        ring.commitFrame(timestampNs);
+    }
+
+    private static void assertFrame(MappedFrameRing.Reader reader, long sequence, int value) {
+        ByteBuffer frame = reader.frame(sequence);
+        assertNotNull("frame " + sequence, frame);
+        assertEquals(WIDTH * 4 * HEIGHT, frame.remaining());
+        while (frame.hasRemaining()) {
+            assertEquals((byte) value, frame.get());
+        }
+        assertTrue(reader.isValid(sequence));
+    }
+
+    @Test
+    public void writesTheDocumentedHeader() throws IOException {
+        File file = mFolder.newFile();
+        MappedFrameRing ring = MappedFrameRing.create(file, WIDTH, HEIGHT, 3);
+        writeFrame(ring, 1, 100);
+        ring.close();
+
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(MappedFrameRing.MAGIC, header.getInt(0));
+        assertEquals(MappedFrameRing.VERSION, header.getInt(4));
+        // data starts on a page after the header and index
+        assertEquals(4096, header.getInt(8));
+        assertEquals(3, header.getInt(12));
+        assertEquals(4096, header.getInt(16));
+        assertEquals(WIDTH, header.getInt(20));
+        assertEquals(HEIGHT, header.getInt(24));
+        assertEquals(WIDTH * 4, header.getInt(28));
+        assertEquals(MappedFrameRing.PIXEL_FORMAT_RGBA_8888, header.getInt(32));
+        assertEquals(MappedFrameRing.FLAG_BOTTOM_UP, header.getInt(36));
+        assertEquals(1, header.getLong(40));
+        assertEquals(4096 + 3 * 4096, header.limit());
+
+        // the first index entry holds frame 0
+        int entry = MappedFrameRing.HEADER_SIZE;
+        assertEquals(0, header.getLong(entry));
+        assertEquals(100, header.getLong(entry + 8));
+        assertEquals(WIDTH * 4 * HEIGHT, header.getInt(entry + 16));
+        assertEquals(-1, header.getLong(entry + MappedFrameRing.INDEX_ENTRY_SIZE));
+    }
+
+    @Test
+    public void readerSeesCommittedFrames() throws IOException {
+        File file = mFolder.newFile();
+        MappedFrameRing ring = MappedFrameRing.create(file, WIDTH, HEIGHT, 4);
+        MappedFrameRing.Reader reader = new MappedFrameRing.Reader(file);
+        try {
+            assertEquals(0, reader.getFramesWritten());
+            assertNull(reader.frame(0));
+
+            writeFrame(ring, 10, 1000);
+            writeFrame(ring, 11, 2000);
+            assertEquals(2, reader.getFramesWritten());
+            assertFrame(reader, 0, 10);
+            assertFrame(reader, 1, 11);
+            assertEquals(2000, reader.getTimestampNs(1));
+            assertEquals(WIDTH, reader.getWidth());
+            assertEquals(HEIGHT, reader.getHeight());
+            assertEquals(WIDTH * 4, reader.getStride());
+            assertEquals(MappedFrameRing.FLAG_BOTTOM_UP, reader.getFlags());
+            assertTrue(reader.frame(0).isReadOnly());
+        } finally {
+            reader.close();
+            ring.close();
+        }
+    }
+
+    @Test
+    public void wrapsAroundAndInvalidatesOverwrittenFrames() throws IOException {
+        File file = mFolder.newFile();
+        MappedFrameRing ring = MappedFrameRing.create(file, WIDTH, HEIGHT, 3);
+        MappedFrameRing.Reader reader = new MappedFrameRing.Reader(file);
+        try {
+            for (int i = 0; i < 10; i++) {
+                writeFrame(ring, i, i * 1000L);
+            }
+            assertEquals(10, reader.getFramesWritten());
+            assertEquals(7, reader.getOldestAvailable());
+            for (long sequence = 0; sequence < 7; sequence++) {
+                assertFalse(reader.isValid(sequence));
+                assertNull(reader.frame(sequence));
+            }
+            for (int sequence = 7; sequence < 10; sequence++) {
+                assertFrame(reader, sequence, sequence);
+                assertEquals(sequence * 1000L, reader.getTimestampNs(sequence));
+            }
+            assertFalse(reader.isValid(10));
+        } finally {
+            reader.close();
+            ring.close();
+        }
+    }
+
+    @Test
+    public void readerDetectsBeingLapped() throws IOException {
+        File file = mFolder.newFile();
+        MappedFrameRing ring = MappedFrameRing.create(file, WIDTH, HEIGHT, 2);
+        MappedFrameRing.Reader reader = new MappedFrameRing.Reader(file);
+        try {
+            writeFrame(ring, 1, 0);
+            writeFrame(ring, 2, 0);
+            ByteBuffer held = reader.frame(0);
+            assertNotNull(held);
+
+            // the writer reuses frame 0's slot: invalid as soon as the write begins
+            ByteBuffer next = ring.beginFrame();
+            assertFalse(reader.isValid(0));
+            next.put(0, (byte) 3);
+            ring.commitFrame(0);
+            assertFalse(reader.isValid(0));
+            assertTrue(reader.isValid(2));
+            // the held view shows the new data, which is why it must be validated
+            assertEquals(3, held.get(0));
+        } finally {
+            reader.close();
+            ring.close();
+        }
+    }
+
+    @Test
+    public void abortedFramesStayEmpty() throws IOException {
+        File file = mFolder.newFile();
+        MappedFrameRing ring = MappedFrameRing.create(file, WIDTH, HEIGHT, 2);
+        MappedFrameRing.Reader reader = new MappedFrameRing.Reader(file);
+        try {
+            ring.beginFrame();
+            ring.abortFrame();
+            assertEquals(0, ring.getFramesWritten());
+            assertFalse(reader.isValid(0));
+            writeFrame(ring, 5, 0);
+            assertFrame(reader, 0, 5);
+        } finally {
+            reader.close();
+            ring.close();
+        }
+    }
+
+    @Test
+    public void framesMustBeBegunAndCommittedInTurn() throws IOException {
+        MappedFrameRing ring = MappedFrameRing.create(mFolder.newFile(), WIDTH, HEIGHT, 2);
+        try {
+            try {
+                ring.commitFrame(0);
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            ring.beginFrame();
+            try {
+                ring.beginFrame();
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            ring.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRings() throws IOException {
+        MappedFrameRing.create(mFolder.newFile(), WIDTH, HEIGHT, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void readerRejectsOtherFiles() throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[128]);
+        out.close();
+        new MappedFrameRing.Reader(file);
+    }
+}
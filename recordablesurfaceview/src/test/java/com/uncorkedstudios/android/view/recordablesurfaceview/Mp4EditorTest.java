@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Mp4EditorTest {
+
+    // 4 s of 25 fps video with a key frame every second, plus audio
+    private static final int FRAMES = 100;
+
+    private static final int GOP = 25;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File recording(boolean audio) throws IOException {
+        File file = mFolder.newFile();
+        Mp4Fixtures.writeRecording(file, FRAMES, GOP, audio, 0);
+        return file;
+    }
+
+    private static int frameAt(ByteBuffer file, Mp4SampleTable video, int sample) {
+        // the first payload byte after the length prefix and NAL header encodes the frame
+        byte first = file.get((int) video.offsets[sample] + 5);
+        for (int frame = 0; frame < FRAMES; frame++) {
+            if (Mp4Fixtures.payloadByte(frame, 0) == first
+                    && Mp4Fixtures.storedSize(frame) == video.sizes[sample]) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void trimStartsAtThePrecedingKeyFrame() throws IOException {
+        File output = mFolder.newFile();
+        long durationUs = Mp4Editor.trim(recording(true), output, 1500000L, 3000000L, false);
+
+        ByteBuffer file = Mp4Fixtures.read(output);
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"),
+                Mp4Fixtures.types(Mp4Fixtures.topLevelBoxes(file)));
+        Mp4SampleTable video = Mp4Fixtures.tracks(file).get(0);
+        // frames 25 (the key frame at 1 s) to 74, the last one starting before 3 s
+        assertEquals(50, video.sampleCount);
+        assertTrue(video.isSync(0));
+        assertEquals(25, frameAt(file, video, 0));
+        assertEquals(74, frameAt(file, video, 49));
+        assertEquals(0, video.mediaStartTime);
+        assertEquals(2000000L, durationUs, 50000L);
+    }
+
+    @Test
+    public void frameAccurateTrimHidesFramesBeforeTheStart() throws IOException {
+        File output = mFolder.newFile();
+        long durationUs = Mp4Editor.trim(recording(true), output, 1500000L, 3000000L, true);
+
+        Mp4SampleTable video = Mp4Fixtures.tracks(Mp4Fixtures.read(output)).get(0);
+        // the frames from the key frame on are still stored for decoding
+        assertEquals(50, video.sampleCount);
+        assertTrue(video.isSync(0));
+        // an edit list skips the half second before the requested start
+        assertEquals(Mp4Track.VIDEO_TIMESCALE / 2, video.mediaStartTime);
+        // frame 37 at 1.48 s falls before the start, frame 38 at 1.52 s just after it
+        assertEquals(-20000L, video.presentationTimeUs(12));
+        assertEquals(20000L, video.presentationTimeUs(13));
+        assertEquals(1500000L, durationUs, 50000L);
+    }
+
+    @Test
+    public void trimKeepsAudioAlongsideTheVideo() throws IOException {
+        File output = mFolder.newFile();
+        Mp4Editor.trim(recording(true), output, 1500000L, 3000000L, false);
+
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(Mp4Fixtures.read(output));
+        assertEquals(2, tracks.size());
+        Mp4SampleTable audio = tracks.get(1);
+        long audioUs = audio.endTimeUs() - audio.presentationTimeUs(0);
+        assertEquals(2000000L, audioUs, 50000L);
+    }
+
+    @Test
+    public void concatenatesRecordings() throws IOException {
+        File first = recording(true);
+        File second = recording(true);
+        File output = mFolder.newFile();
+        long durationUs = Mp4Editor.concat(Arrays.asList(first, second), output);
+
+        ByteBuffer file = Mp4Fixtures.read(output);
+        Mp4SampleTable video = Mp4Fixtures.tracks(file).get(0);
+        assertEquals(2 * FRAMES, video.sampleCount);
+        for (int i = 0; i < video.sampleCount; i++) {
+            assertEquals(3600L * i, video.decodeTimes[i]);
+            assertEquals(i % GOP == 0, video.isSync(i));
+            assertEquals(i % FRAMES, frameAt(file, video, i));
+        }
+        assertEquals(8000000L, durationUs, 50000L);
+    }
+
+    @Test
+    public void joinsTrimmedClips() throws IOException {
+        File input = recording(false);
+        File output = mFolder.newFile();
+        new Mp4Editor(output)
+                .addClip(input, 0, 1000000L)
+                .addClip(input, 3000000L, Long.MAX_VALUE)
+                .write();
+
+        ByteBuffer file = Mp4Fixtures.read(output);
+        Mp4SampleTable video = Mp4Fixtures.tracks(file).get(0);
+        assertEquals(50, video.sampleCount);
+        assertEquals(24, frameAt(file, video, 24));
+        assertEquals(75, frameAt(file, video, 25));
+        assertTrue(video.isSync(25));
+    }
+
+    @Test
+    public void readsFaststartInput() throws IOException {
+        File input = mFolder.newFile();
+        Mp4Fixtures.writeRecording(input, FRAMES, GOP, true, 64 * 1024);
+        File output = mFolder.newFile();
+        Mp4Editor.trim(input, output, 2000000L, Long.MAX_VALUE, false);
+
+        ByteBuffer file = Mp4Fixtures.read(output);
+        Mp4SampleTable video = Mp4Fixtures.tracks(file).get(0);
+        assertEquals(50, video.sampleCount);
+        assertEquals(50, frameAt(file, video, 0));
+    }
+
+    @Test
+    public void rejectsClipsWithDifferentTracks() throws IOException {
+        try {
+            Mp4Editor.concat(Arrays.asList(recording(true), recording(false)),
+                    mFolder.newFile());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsRangesWithoutSamples() throws IOException {
+        File input = recording(false);
+        for (boolean frameAccurate : new boolean[]{false, true}) {
+            try {
+                Mp4Editor.trim(input, mFolder.newFile(), 10000000L, 20000000L, frameAccurate);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRanges() {
+        new Mp4Editor(new File("unused")).addClip(new File("unused"), 2000, 1000);
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotMp4() throws IOException {
+        File input = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(input);
+        out.write(new byte[]{0, 0, 0, 4, 'j', 'u', 'n', 'k'});
+        out.close();
+        try {
+            Mp4Editor.trim(input, mFolder.newFile(), 0, 1000, false);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsFragmentedInput() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(Channels.newChannel(stream),
+                1000000L, 0);
+        int video = muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        muxer.start();
+        Mp4Fixtures.feed(Mp4Fixtures.writerFor(muxer), video, -1, 50, GOP);
+        muxer.stop();
+        File input = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(input);
+        out.write(stream.toByteArray());
+        out.close();
+
+        try {
+            Mp4Editor.trim(input, mFolder.newFile(), 0, 1000000L, false);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Fragmented"));
+        }
+    }
+}
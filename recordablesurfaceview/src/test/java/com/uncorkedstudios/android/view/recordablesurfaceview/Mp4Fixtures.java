@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds small synthetic recordings for the MP4 tests and reads them back.
+ * <p>
+ * Video runs at 25 fps, so every frame lasts exactly 3600 ticks of the 90 kHz timescale. Each
+ * access unit holds two Annex B NAL units whose bytes encode the frame number, so tests can
+ * find a frame's data by its offset.
+ */
+final class Mp4Fixtures {
+
+    static final long FRAME_US = 40000L;
+
+    static final int SAMPLE_RATE = 48000;
+
+    static final long VIDEO_START_US = 1000000L;
+
+    // audio starts a little later, which the muxer writes as an empty edit
+    static final long AUDIO_START_US = VIDEO_START_US + 10000L;
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0xC0, 0x1F, (byte) 0x8C, 0x68};
+
+    static final byte[] PPS = {0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    static final byte[] AUDIO_SPECIFIC_CONFIG = {0x11, (byte) 0x90};
+
+    private Mp4Fixtures() {
+    }
+
+    static Mp4Track videoTrack(int trackId) {
+        return Mp4Track.avc(trackId, 320, 240, SPS, PPS);
+    }
+
+    static Mp4Track audioTrack(int trackId) {
+        return Mp4Track.aac(trackId, SAMPLE_RATE, 2, AUDIO_SPECIFIC_CONFIG);
+    }
+
+    static long videoTimeUs(int frame) {
+        return VIDEO_START_US + frame * FRAME_US;
+    }
+
+    static long audioTimeUs(int frame) {
+        return AUDIO_START_US + frame * 1024L * 1000000L / SAMPLE_RATE;
+    }
+
+    private static int firstNalSize(int frame) {
+        return 20 + frame % 7;
+    }
+
+    private static int secondNalSize(int frame) {
+        return 5 + frame % 3;
+    }
+
+    /**
+     * @return the frame's NAL unit bytes after the NAL header; never contains a start code
+     */
+    static byte payloadByte(int frame, int index) {
+        return (byte) (2 + (frame * 7 + index) % 200);
+    }
+
+    /**
+     * @return an Annex B access unit: a slice NAL unit followed by an SEI NAL unit
+     */
+    static ByteBuffer accessUnit(int frame, boolean key) {
+        int first = firstNalSize(frame);
+        int second = secondNalSize(frame);
+        ByteBuffer unit = ByteBuffer.allocate(4 + 1 + first + 3 + 1 + second);
+        unit.put(new byte[]{0, 0, 0, 1}).put((byte) (key ? 0x65 : 0x41));
+        for (int i = 0; i < first; i++) {
+            unit.put(payloadByte(frame, i));
+        }
+        unit.put(new byte[]{0, 0, 1}).put((byte) 0x06);
+        for (int i = 0; i < second; i++) {
+            unit.put(payloadByte(frame, first + i));
+        }
+        unit.flip();
+        return unit;
+    }
+
+    /**
+     * @return the size of the access unit once stored with 4 byte length prefixes
+     */
+    static int storedSize(int frame) {
+        return 4 + 1 + firstNalSize(frame) + 4 + 1 + secondNalSize(frame);
+    }
+
+    static ByteBuffer audioFrame(int frame) {
+        ByteBuffer data = ByteBuffer.allocate(100 + frame % 5);
+        while (data.hasRemaining()) {
+            data.put((byte) frame);
+        }
+        data.flip();
+        return data;
+    }
+
+    static int audioFrameSize(int frame) {
+        return 100 + frame % 5;
+    }
+
+    /**
+     * Feeds video and, optionally, audio samples to a muxer in time order, as the encoders
+     * would.
+     *
+     * @param gop frames from one key frame to the next
+     */
+    static void feed(SampleWriter muxer, int videoTrack, int audioTrack, int videoFrames,
+                     int gop) throws IOException {
+        long endUs = videoTimeUs(videoFrames);
+        int video = 0;
+        int audio = 0;
+        while (video < videoFrames || (audioTrack >= 0 && audioTimeUs(audio) < endUs)) {
+            boolean audioNext = audioTrack >= 0 && audioTimeUs(audio) < endUs
+                    && (video >= videoFrames || audioTimeUs(audio) < videoTimeUs(video));
+            if (audioNext) {
+                ByteBuffer data = audioFrame(audio);
+                muxer.write(audioTrack, data, data.remaining(), audioTimeUs(audio), true);
+                audio++;
+            } else {
+                ByteBuffer data = accessUnit(video, video % gop == 0);
+                muxer.write(videoTrack, data, data.remaining(), videoTimeUs(video),
+                        video % gop == 0);
+                video++;
+            }
+        }
+    }
+
+    /**
+     * The muxer method the fixtures write through, so they work for both muxers.
+     */
+    interface SampleWriter {
+
+        void write(int track, ByteBuffer data, int size, long timeUs, boolean key)
+                throws IOException;
+    }
+
+    static SampleWriter writerFor(final Mp4Muxer muxer) {
+        return new SampleWriter() {
+            @Override
+            public void write(int track, ByteBuffer data, int size, long timeUs, boolean key)
+                    throws IOException {
+                muxer.writeSample(track, data, 0, size, timeUs, key);
+            }
+        };
+    }
+
+    static SampleWriter writerFor(final FragmentedMp4Muxer muxer) {
+        return new SampleWriter() {
+            @Override
+            public void write(int track, ByteBuffer data, int size, long timeUs, boolean key)
+                    throws IOException {
+                muxer.writeSample(track, data, 0, size, timeUs, key);
+            }
+        };
+    }
+
+    /**
+     * Opens a muxer on <code>file</code>, truncating it.
+     *
+     * @param reserveBytes faststart reservation, or 0 for <code>moov</code> at the end
+     */
+    static Mp4Muxer openMuxer(File file, long reserveBytes, int orientationHint)
+            throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        ChannelWriter writer = new ChannelWriter(channel, null,
+                new ChannelWriter.Options().setChunks(64 * 1024, 2));
+        if (reserveBytes == 0) {
+            return new Mp4Muxer(writer, orientationHint);
+        }
+        return new Mp4Muxer(writer, channel, reserveBytes, orientationHint);
+    }
+
+    /**
+     * Writes a complete recording.
+     *
+     * @param audio        whether to add an audio track after the video track
+     * @param reserveBytes faststart reservation, or 0 for <code>moov</code> at the end
+     * @return the muxer, already stopped
+     */
+    static Mp4Muxer writeRecording(File file, int videoFrames, int gop, boolean audio,
+                                   long reserveBytes) throws IOException {
+        Mp4Muxer muxer = openMuxer(file, reserveBytes, 0);
+        int videoTrack = muxer.addTrack(videoTrack(1));
+        int audioTrack = audio ? muxer.addTrack(audioTrack(2)) : -1;
+        muxer.start();
+        feed(writerFor(muxer), videoTrack, audioTrack, videoFrames, gop);
+        muxer.stop();
+        return muxer;
+    }
+
+    static ByteBuffer read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer data = ByteBuffer.allocate((int) in.length());
+            in.getChannel().read(data, 0);
+            data.flip();
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the top level boxes of a file, in order
+     */
+    static List<ByteBuffer> topLevelBoxes(ByteBuffer file) throws IOException {
+        List<ByteBuffer> boxes = new ArrayList<>();
+        ByteBuffer data = file.duplicate();
+        while (data.remaining() >= 8) {
+            boxes.add(Mp4BoxReader.next(data));
+        }
+        return boxes;
+    }
+
+    static List<String> types(List<ByteBuffer> boxes) {
+        List<String> types = new ArrayList<>();
+        for (ByteBuffer box : boxes) {
+            types.add(Mp4BoxReader.type(box));
+        }
+        return types;
+    }
+
+    static ByteBuffer topLevelBox(ByteBuffer file, String type) throws IOException {
+        for (ByteBuffer box : topLevelBoxes(file)) {
+            if (Mp4BoxReader.type(box).equals(type)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the sample tables of a progressive file's tracks, in <code>moov</code> order
+     */
+    static List<Mp4SampleTable> tracks(ByteBuffer file) throws IOException {
+        ByteBuffer moov = topLevelBox(file, "moov");
+        List<Mp4SampleTable> tracks = new ArrayList<>();
+        ByteBuffer children = Mp4BoxReader.payload(moov);
+        while (children.remaining() >= 8) {
+            ByteBuffer child = Mp4BoxReader.next(children);
+            if (Mp4BoxReader.type(child).equals("trak")) {
+                tracks.add(Mp4SampleTable.parse(child, Mp4Muxer.MOVIE_TIMESCALE));
+            }
+        }
+        return tracks;
+    }
+}
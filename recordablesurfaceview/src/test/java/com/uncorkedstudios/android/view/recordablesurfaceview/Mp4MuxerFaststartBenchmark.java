@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time spent in {@link Mp4Muxer#stop()} for a long recording: 30 fps video at 20 Mbit/s with
+ * AAC audio, over 4 GiB by default so chunk offsets need 64 bits. Compares <code>moov</code> at
+ * the end of the file, faststart with a reservation that fits, and faststart with a
+ * reservation that is too small, which relocates all of the media data.
+ * <p>
+ * Run with <code>./gradlew test -Dbenchmarks=true --tests '*Mp4MuxerFaststartBenchmark'</code>;
+ * <code>-Dbenchmarks.muxer.mb=1024</code> writes a smaller file.
+ */
+public class Mp4MuxerFaststartBenchmark {
+
+    private static final int FRAME_RATE = 30;
+
+    private static final int VIDEO_FRAME_BYTES = 20000000 / 8 / FRAME_RATE;
+
+    private static final int GOP = FRAME_RATE;
+
+    private static final int AUDIO_FRAME_BYTES = 372;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private int mVideoFrames;
+
+    private ByteBuffer mAccessUnit;
+
+    private ByteBuffer mAudioFrame;
+
+    private long mStopNs;
+
+    @Before
+    public void setUp() {
+        Benchmarks.assumeEnabled();
+        long totalBytes = Long.getLong("benchmarks.muxer.mb", 4608) << 20;
+        mVideoFrames = (int) (totalBytes / (VIDEO_FRAME_BYTES + AUDIO_FRAME_BYTES * 1.5625));
+
+        // a key frame's worth of one Annex B NAL unit, free of start codes after the first
+        byte[] unit = new byte[VIDEO_FRAME_BYTES * 3];
+        Arrays.fill(unit, (byte) 0x55);
+        unit[0] = 0;
+        unit[1] = 0;
+        unit[2] = 0;
+        unit[3] = 1;
+        unit[4] = 0x65;
+        mAccessUnit = ByteBuffer.allocateDirect(unit.length);
+        mAccessUnit.put(unit).flip();
+        mAudioFrame = ByteBuffer.allocateDirect(AUDIO_FRAME_BYTES);
+    }
+
+    private long durationMs() {
+        return mVideoFrames * 1000L / FRAME_RATE;
+    }
+
+    /**
+     * Writes the whole recording and stops the muxer, timing stop() into {@link #mStopNs}.
+     *
+     * @return the stopped muxer
+     */
+    private Mp4Muxer record(File file, long reserveBytes) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        ChannelWriter writer = new ChannelWriter(channel, null, new ChannelWriter.Options());
+        Mp4Muxer muxer = reserveBytes == 0 ? new Mp4Muxer(writer, 0)
+                : new Mp4Muxer(writer, channel, reserveBytes, 0);
+        int video = muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        int audio = muxer.addTrack(Mp4Fixtures.audioTrack(2));
+        muxer.start();
+
+        long writeStart = System.nanoTime();
+        int audioFrames = 0;
+        for (int frame = 0; frame < mVideoFrames; frame++) {
+            long timeUs = frame * 1000000L / FRAME_RATE;
+            // 48 kHz AAC frames are 21.3 ms long
+            while (audioFrames * 1024L * 1000000L / Mp4Fixtures.SAMPLE_RATE <= timeUs) {
+                mAudioFrame.clear();
+                muxer.writeSample(audio, mAudioFrame, 0, AUDIO_FRAME_BYTES,
+                        audioFrames * 1024L * 1000000L / Mp4Fixtures.SAMPLE_RATE, true);
+                audioFrames++;
+            }
+            boolean key = frame % GOP == 0;
+            int size = key ? VIDEO_FRAME_BYTES * 3 : VIDEO_FRAME_BYTES * 9 / 10;
+            mAccessUnit.clear();
+            muxer.writeSample(video, mAccessUnit, 0, size, timeUs, key);
+        }
+        long stopStart = System.nanoTime();
+        muxer.stop();
+        mStopNs = System.nanoTime() - stopStart;
+
+        Benchmarks.report("Mp4Muxer", String.format(Locale.US,
+                "%d MiB, %d video and %d audio samples written in %.1f s", file.length() >> 20,
+                mVideoFrames, audioFrames, (stopStart - writeStart) / 1e9));
+        return muxer;
+    }
+
+    @Test
+    public void moovAtTheEnd() throws IOException {
+        record(mFolder.newFile("end.mp4"), 0);
+
+        Benchmarks.report("Mp4Muxer moov at end     ", String.format(Locale.US,
+                "stop %8.1f ms", mStopNs / 1e6));
+    }
+
+    @Test
+    public void faststartWithinTheReservation() throws IOException {
+        long reserve = Mp4Muxer.estimateMoovSize(durationMs(), FRAME_RATE,
+                Mp4Fixtures.SAMPLE_RATE);
+        Mp4Muxer muxer = record(mFolder.newFile("reserved.mp4"), reserve);
+
+        assertEquals(0, muxer.getMediaDataShift());
+        Benchmarks.report("Mp4Muxer faststart, fits ", String.format(Locale.US,
+                "stop %8.1f ms, %d KiB reserved", mStopNs / 1e6, reserve >> 10));
+    }
+
+    @Test
+    public void faststartRelocatingTheMediaData() throws IOException {
+        File file = mFolder.newFile("relocated.mp4");
+        Mp4Muxer muxer = record(file, 4096);
+
+        assertTrue(muxer.getMediaDataShift() > 0);
+        Benchmarks.report("Mp4Muxer faststart, moved", String.format(Locale.US,
+                "stop %8.1f ms, %.1f MiB/s relocated, moov grew by %d KiB", mStopNs / 1e6,
+                (file.length() >> 20) / (mStopNs / 1e9), muxer.getMediaDataShift() >> 10));
+    }
+}
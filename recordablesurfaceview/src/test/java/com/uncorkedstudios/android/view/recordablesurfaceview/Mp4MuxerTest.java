@@ -0,0 +1,324 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4MuxerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ByteBuffer record(int frames, int gop, boolean audio) throws IOException {
+        File file = mFolder.newFile();
+        Mp4Fixtures.writeRecording(file, frames, gop, audio, 0);
+        return Mp4Fixtures.read(file);
+    }
+
+    @Test
+    public void writesMoovAfterMediaData() throws IOException {
+        ByteBuffer file = record(10, 5, true);
+        List<ByteBuffer> boxes = Mp4Fixtures.topLevelBoxes(file);
+        assertEquals(Arrays.asList("ftyp", "mdat", "moov"), Mp4Fixtures.types(boxes));
+        // every byte belongs to a box
+        int total = 0;
+        for (ByteBuffer box : boxes) {
+            total += box.remaining();
+        }
+        assertEquals(file.limit(), total);
+    }
+
+    @Test
+    public void patchesLargeMdatSize() throws IOException {
+        ByteBuffer file = record(10, 5, false);
+        ByteBuffer mdat = Mp4Fixtures.topLevelBox(file, "mdat");
+        assertEquals(1, mdat.getInt(0));
+        assertEquals(mdat.remaining(), mdat.getLong(8));
+    }
+
+    @Test
+    public void storesVideoAsLengthPrefixedNalUnits() throws IOException {
+        ByteBuffer file = record(12, 4, true);
+        Mp4SampleTable video = Mp4Fixtures.tracks(file).get(0);
+        assertTrue(video.isVideo());
+        assertEquals(1, video.trackId);
+        assertEquals(12, video.sampleCount);
+        for (int i = 0; i < video.sampleCount; i++) {
+            assertEquals(Mp4Fixtures.storedSize(i), video.sizes[i]);
+            int offset = (int) video.offsets[i];
+            int firstNal = file.getInt(offset);
+            assertEquals(i % 4 == 0 ? 0x65 : 0x41, file.get(offset + 4));
+            assertEquals(Mp4Fixtures.payloadByte(i, 0), file.get(offset + 5));
+            // the second NAL unit follows its own length prefix
+            assertEquals(0x06, file.get(offset + 4 + firstNal + 4));
+            assertEquals(Mp4Fixtures.storedSize(i), 4 + firstNal + 4
+                    + file.getInt(offset + 4 + firstNal));
+        }
+    }
+
+    @Test
+    public void storesAudioUnchanged() throws IOException {
+        ByteBuffer file = record(10, 5, true);
+        Mp4SampleTable audio = Mp4Fixtures.tracks(file).get(1);
+        assertFalse(audio.isVideo());
+        assertEquals("soun", audio.handler);
+        assertEquals(Mp4Fixtures.SAMPLE_RATE, audio.timescale);
+        for (int i = 0; i < audio.sampleCount; i++) {
+            assertEquals(Mp4Fixtures.audioFrameSize(i), audio.sizes[i]);
+            assertEquals((byte) i, file.get((int) audio.offsets[i]));
+        }
+        // no stss, so every audio sample is a sync sample
+        assertNull(audio.sync);
+    }
+
+    @Test
+    public void marksKeyFramesAsSyncSamples() throws IOException {
+        Mp4SampleTable video = Mp4Fixtures.tracks(record(20, 6, false)).get(0);
+        assertNotNull(video.sync);
+        for (int i = 0; i < video.sampleCount; i++) {
+            assertEquals(i % 6 == 0, video.isSync(i));
+        }
+    }
+
+    @Test
+    public void derivesDurationsFromTimestamps() throws IOException {
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(record(10, 5, true));
+        Mp4SampleTable video = tracks.get(0);
+        assertEquals(Mp4Track.VIDEO_TIMESCALE, video.timescale);
+        for (int i = 0; i < video.sampleCount; i++) {
+            // the last sample repeats the one before
+            assertEquals(3600, video.durations[i]);
+            assertEquals(3600L * i, video.decodeTimes[i]);
+        }
+        Mp4SampleTable audio = tracks.get(1);
+        for (int i = 0; i < audio.sampleCount; i++) {
+            assertEquals(1024, audio.durations[i], 1);
+        }
+    }
+
+    @Test
+    public void delaysLaterTracksWithAnEmptyEdit() throws IOException {
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(record(10, 5, true));
+        assertEquals(0, tracks.get(0).startOffsetUs);
+        assertEquals(Mp4Fixtures.AUDIO_START_US - Mp4Fixtures.VIDEO_START_US,
+                tracks.get(1).startOffsetUs);
+        assertEquals(0, tracks.get(0).presentationTimeUs(0));
+        assertEquals(400000, tracks.get(0).endTimeUs());
+    }
+
+    @Test
+    public void writesMovieDuration() throws IOException {
+        ByteBuffer moov = Mp4Fixtures.topLevelBox(record(10, 5, false), "moov");
+        ByteBuffer mvhd = Mp4BoxReader.fullPayload(Mp4BoxReader.find(moov, "mvhd"));
+        assertEquals(Mp4Muxer.MOVIE_TIMESCALE, mvhd.getInt(8));
+        assertEquals(400, mvhd.getInt(12));
+        // next track id
+        assertEquals(2, mvhd.getInt(mvhd.limit() - 4));
+    }
+
+    @Test
+    public void describesTheCodecConfiguration() throws IOException {
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(record(5, 5, true));
+        Mp4SampleTable video = tracks.get(0);
+        assertEquals(320L << 16, video.width);
+        assertEquals(240L << 16, video.height);
+
+        ByteBuffer avc1 = findSampleEntry(video.stsd);
+        assertNotNull(avc1);
+        ByteBuffer entry = Mp4BoxReader.payload(avc1);
+        assertEquals(320, entry.getShort(24) & 0xFFFF);
+        assertEquals(240, entry.getShort(26) & 0xFFFF);
+        entry.position(78);
+        ByteBuffer avcC = Mp4BoxReader.payload(Mp4BoxReader.next(entry));
+        // version, then profile, compatibility and level copied from the SPS
+        assertEquals(1, avcC.get(0));
+        assertEquals(Mp4Fixtures.SPS[1], avcC.get(1));
+        assertEquals(Mp4Fixtures.SPS[3], avcC.get(3));
+        assertEquals(Mp4Fixtures.SPS.length, avcC.getShort(6));
+        byte[] sps = new byte[Mp4Fixtures.SPS.length];
+        avcC.position(8);
+        avcC.get(sps);
+        assertArrayEquals(Mp4Fixtures.SPS, sps);
+        assertEquals(1, avcC.get());
+        assertEquals(Mp4Fixtures.PPS.length, avcC.getShort());
+    }
+
+    /**
+     * @return the first sample entry of an <code>stsd</code> box
+     */
+    private static ByteBuffer findSampleEntry(ByteBuffer stsd) throws IOException {
+        ByteBuffer entries = Mp4BoxReader.fullPayload(stsd);
+        entries.position(4);
+        return Mp4BoxReader.next(entries);
+    }
+
+    @Test
+    public void writesOrientationIntoVideoMatrixOnly() throws IOException {
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.openMuxer(file, 0, 90);
+        int video = muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        int audio = muxer.addTrack(Mp4Fixtures.audioTrack(2));
+        muxer.start();
+        Mp4Fixtures.feed(Mp4Fixtures.writerFor(muxer), video, audio, 3, 3);
+        muxer.stop();
+
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(Mp4Fixtures.read(file));
+        ByteBuffer videoMatrix = ByteBuffer.wrap(tracks.get(0).matrix);
+        assertEquals(0, videoMatrix.getInt(0));
+        assertEquals(0x10000, videoMatrix.getInt(4));
+        assertEquals(-0x10000, videoMatrix.getInt(12));
+        ByteBuffer audioMatrix = ByteBuffer.wrap(tracks.get(1).matrix);
+        assertEquals(0x10000, audioMatrix.getInt(0));
+        assertEquals(0x10000, audioMatrix.getInt(16));
+    }
+
+    @Test
+    public void storesInputWithoutStartCodesAsOneNalUnit() throws IOException {
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.openMuxer(file, 0, 0);
+        int video = muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        muxer.start();
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{9, 9, 0x65, 1, 2, 3});
+        muxer.writeSample(video, data, 2, 4, 0, true);
+        assertEquals(8, muxer.getLastSampleSize());
+        muxer.stop();
+
+        ByteBuffer written = Mp4Fixtures.read(file);
+        Mp4SampleTable track = Mp4Fixtures.tracks(written).get(0);
+        int offset = (int) track.offsets[0];
+        assertEquals(4, written.getInt(offset));
+        assertEquals(0x65, written.get(offset + 4));
+        assertEquals(3, written.get(offset + 7));
+    }
+
+    @Test
+    public void reportsTheLastSampleOffset() throws IOException {
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.writeRecording(file, 3, 3, false, 0);
+        Mp4SampleTable video = Mp4Fixtures.tracks(Mp4Fixtures.read(file)).get(0);
+        assertEquals(video.offsets[2], muxer.getLastSampleOffset());
+        assertEquals(video.sizes[2], muxer.getLastSampleSize());
+        assertEquals(0, muxer.getMediaDataShift());
+    }
+
+    @Test
+    public void faststartWritesMoovIntoTheReservation() throws IOException {
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.writeRecording(file, 50, 25, true, 64 * 1024);
+        assertEquals(0, muxer.getMediaDataShift());
+
+        ByteBuffer written = Mp4Fixtures.read(file);
+        List<ByteBuffer> boxes = Mp4Fixtures.topLevelBoxes(written);
+        assertEquals(Arrays.asList("ftyp", "moov", "free", "mdat"), Mp4Fixtures.types(boxes));
+        // moov and the remaining free box fill the reservation exactly
+        assertEquals(64 * 1024, boxes.get(1).remaining() + boxes.get(2).remaining());
+        assertSamplesIntact(written, 50);
+    }
+
+    @Test
+    public void faststartMovesMediaDataWhenMoovOutgrowsTheReservation() throws IOException {
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.writeRecording(file, 200, 25, true, 64);
+        assertTrue(muxer.getMediaDataShift() > 0);
+
+        ByteBuffer written = Mp4Fixtures.read(file);
+        List<ByteBuffer> boxes = Mp4Fixtures.topLevelBoxes(written);
+        List<String> types = Mp4Fixtures.types(boxes);
+        assertEquals("moov", types.get(1));
+        assertEquals("mdat", types.get(types.size() - 1));
+        ByteBuffer mdat = boxes.get(boxes.size() - 1);
+        assertEquals(mdat.remaining(), mdat.getLong(8));
+        assertSamplesIntact(written, 200);
+    }
+
+    @Test
+    public void faststartMovesMediaDataLargerThanTheCopyBuffer() throws IOException {
+        // 40 frames of 64 KiB make media data spanning several 1 MiB copy blocks
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.openMuxer(file, 16, 0);
+        int track = muxer.addTrack(Mp4Fixtures.videoTrack(1));
+        muxer.start();
+        for (int frame = 0; frame < 40; frame++) {
+            ByteBuffer unit = ByteBuffer.allocate(4 + 65536);
+            unit.putInt(1);
+            while (unit.hasRemaining()) {
+                unit.put(Mp4Fixtures.payloadByte(frame, unit.position()));
+            }
+            unit.flip();
+            muxer.writeSample(track, unit, 0, unit.limit(), frame * Mp4Fixtures.FRAME_US,
+                    frame % 10 == 0);
+        }
+        muxer.stop();
+        assertTrue(muxer.getMediaDataShift() > 0);
+
+        ByteBuffer written = Mp4Fixtures.read(file);
+        Mp4SampleTable video = Mp4Fixtures.tracks(written).get(0);
+        assertEquals(40, video.sampleCount);
+        for (int frame = 0; frame < 40; frame++) {
+            int offset = (int) video.offsets[frame];
+            assertEquals(65536, written.getInt(offset));
+            for (int i = 4; i < 4 + 65536; i += 997) {
+                assertEquals(Mp4Fixtures.payloadByte(frame, i), written.get(offset + i));
+            }
+        }
+    }
+
+    @Test
+    public void estimatedReservationFitsTheRecording() throws IOException {
+        long reserve = Mp4Muxer.estimateMoovSize(4000, 25, Mp4Fixtures.SAMPLE_RATE);
+        assertEquals(0, reserve % 4096);
+        assertTrue(Mp4Muxer.estimateMoovSize(8000, 25, Mp4Fixtures.SAMPLE_RATE) > reserve);
+        assertTrue(Mp4Muxer.estimateMoovSize(4000, 25, 0) <= reserve);
+
+        File file = mFolder.newFile();
+        Mp4Muxer muxer = Mp4Fixtures.writeRecording(file, 100, 25, true, reserve);
+        assertEquals(0, muxer.getMediaDataShift());
+    }
+
+    /**
+     * Checks that every sample of a fixture recording is where its sample table says.
+     */
+    private static void assertSamplesIntact(ByteBuffer file, int frames) throws IOException {
+        List<Mp4SampleTable> tracks = Mp4Fixtures.tracks(file);
+        Mp4SampleTable video = tracks.get(0);
+        assertEquals(frames, video.sampleCount);
+        for (int i = 0; i < frames; i++) {
+            int offset = (int) video.offsets[i];
+            assertEquals(Mp4Fixtures.storedSize(i), video.sizes[i]);
+            assertEquals(Mp4Fixtures.payloadByte(i, 0), file.get(offset + 5));
+            assertEquals(Mp4Fixtures.payloadByte(i, 1), file.get(offset + 6));
+        }
+        Mp4SampleTable audio = tracks.get(1);
+        for (int i = 0; i < audio.sampleCount; i++) {
+            assertEquals((byte) i, file.get((int) audio.offsets[i]));
+            assertEquals((byte) i, file.get((int) audio.offsets[i] + audio.sizes[i] - 1));
+        }
+    }
+}
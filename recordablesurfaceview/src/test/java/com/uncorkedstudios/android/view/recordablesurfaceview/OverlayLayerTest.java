@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OverlayLayerTest {
+
+    private static final float EPSILON = 1e-6f;
+
+    private static final class EmptyLayer extends OverlayLayer {
+
+        @Override
+        protected Bitmap rasterize() {
+            return null;
+        }
+    }
+
+    @Test
+    public void invalidateBumpsTheVersion() {
+        OverlayLayer layer = new EmptyLayer();
+        int version = layer.getVersion();
+
+        layer.invalidate();
+        assertEquals(version + 1, layer.getVersion());
+
+        // placement is not content
+        layer.setPosition(OverlayLayer.ANCHOR_CENTER, 5, 5).setScale(2f).setAlpha(0.5f);
+        assertEquals(version + 1, layer.getVersion());
+    }
+
+    @Test
+    public void alphaIsClamped() {
+        OverlayLayer layer = new EmptyLayer();
+
+        assertEquals(0f, layer.setAlpha(-1f).getAlpha(), 0f);
+        assertEquals(1f, layer.setAlpha(2f).getAlpha(), 0f);
+        assertEquals(0.25f, layer.setAlpha(0.25f).getAlpha(), 0f);
+    }
+
+    @Test
+    public void boundsFollowTheAnchor() {
+        OverlayLayer layer = new EmptyLayer();
+        float[] bounds = new float[4];
+
+        layer.setPosition(OverlayLayer.ANCHOR_TOP_LEFT, 10, 20);
+        layer.computeBounds(20, 10, 100, 100, bounds);
+        assertArrayEquals(new float[]{-0.8f, 0.6f, -0.4f, 0.4f}, bounds, EPSILON);
+
+        layer.setPosition(OverlayLayer.ANCHOR_TOP_RIGHT, 10, 20);
+        layer.computeBounds(20, 10, 100, 100, bounds);
+        assertArrayEquals(new float[]{0.4f, 0.6f, 0.8f, 0.4f}, bounds, EPSILON);
+
+        layer.setPosition(OverlayLayer.ANCHOR_BOTTOM_LEFT, 10, 20);
+        layer.computeBounds(20, 10, 100, 100, bounds);
+        assertArrayEquals(new float[]{-0.8f, -0.4f, -0.4f, -0.6f}, bounds, EPSILON);
+
+        layer.setPosition(OverlayLayer.ANCHOR_BOTTOM_RIGHT, 10, 20);
+        layer.computeBounds(20, 10, 100, 100, bounds);
+        assertArrayEquals(new float[]{0.4f, -0.4f, 0.8f, -0.6f}, bounds, EPSILON);
+
+        layer.setPosition(OverlayLayer.ANCHOR_CENTER, 0, 0);
+        layer.computeBounds(20, 10, 100, 100, bounds);
+        assertArrayEquals(new float[]{-0.2f, 0.1f, 0.2f, -0.1f}, bounds, EPSILON);
+    }
+
+    @Test
+    public void scaleGrowsAwayFromTheAnchor() {
+        OverlayLayer layer = new EmptyLayer();
+        float[] bounds = new float[4];
+
+        layer.setPosition(OverlayLayer.ANCHOR_BOTTOM_RIGHT, 0, 0).setScale(2f);
+        layer.computeBounds(25, 25, 100, 200, bounds);
+
+        assertArrayEquals(new float[]{0f, -0.5f, 1f, -1f}, bounds, EPSILON);
+    }
+
+    @Test
+    public void textVersionChangesOnlyWithTheText() {
+        TextOverlayLayer layer = new TextOverlayLayer(24f, 0xFFFFFFFF);
+        int version = layer.getVersion();
+
+        layer.setText("00:00:01");
+        assertEquals(version + 1, layer.getVersion());
+
+        // a timestamp set on every frame only costs when it changes
+        layer.setText("00:00:01");
+        layer.setText(new String("00:00:01"));
+        assertEquals(version + 1, layer.getVersion());
+
+        layer.setText("00:00:02");
+        assertEquals(version + 2, layer.getVersion());
+    }
+
+    @Test
+    public void nullTextIsEmpty() {
+        TextOverlayLayer layer = new TextOverlayLayer(24f, 0xFFFFFFFF);
+        int version = layer.getVersion();
+
+        layer.setText(null);
+        layer.setText("");
+        assertEquals(version, layer.getVersion());
+        assertEquals("", layer.getText());
+        assertNull(layer.rasterize());
+
+        layer.setText("a");
+        layer.setText(null);
+        assertEquals(version + 2, layer.getVersion());
+        assertNull(layer.rasterize());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OverlaySlotsTest {
+
+    /**
+     * Content of a layer: a size that changes with its version.
+     */
+    private static final class Layer {
+
+        int width;
+
+        int height;
+
+        int version = 0;
+
+        Layer(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        void resize(int width, int height) {
+            this.width = width;
+            this.height = height;
+            version++;
+        }
+    }
+
+    private TextureAtlas mAtlas;
+
+    private OverlaySlots<Layer> mSlots;
+
+    private int mUploads;
+
+    @Before
+    public void setUp() {
+        mAtlas = new TextureAtlas(64, 64, 0);
+        mSlots = new OverlaySlots<>(mAtlas);
+    }
+
+    /**
+     * Places changed layers like OverlayCompositor's upload loop, counting uploads.
+     */
+    private void uploadAll(List<Layer> layers) {
+        mSlots.retain(layers);
+        for (int pass = 0; pass < 2; pass++) {
+            boolean repacked = false;
+            for (Layer layer : layers) {
+                OverlaySlots.Slot slot = mSlots.get(layer);
+                if (layer.version == slot.uploadedVersion) {
+                    continue;
+                }
+                slot.uploadedVersion = layer.version;
+                int result = mSlots.place(slot, layer.width, layer.height, pass == 0);
+                if (result == OverlaySlots.PLACE_REPACKED) {
+                    repacked = true;
+                    break;
+                }
+                if (result == OverlaySlots.PLACE_OK) {
+                    mUploads++;
+                }
+            }
+            if (!repacked) {
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void placesNewContent() {
+        OverlaySlots.Slot slot = mSlots.get(new Layer(0, 0));
+
+        assertTrue(slot.empty);
+        assertEquals(OverlaySlots.PLACE_OK, mSlots.place(slot, 20, 10, true));
+        assertFalse(slot.empty);
+        assertEquals(20, slot.width);
+        assertEquals(10, slot.height);
+        assertNotNull(slot.region);
+    }
+
+    @Test
+    public void reusesTheRegionWhenTheContentStillFits() {
+        OverlaySlots.Slot slot = mSlots.get(new Layer(0, 0));
+        mSlots.place(slot, 20, 10, true);
+        TextureAtlas.Region region = slot.region;
+
+        assertEquals(OverlaySlots.PLACE_OK, mSlots.place(slot, 18, 10, true));
+        assertSame(region, slot.region);
+        assertEquals(18, slot.width);
+
+        assertEquals(OverlaySlots.PLACE_OK, mSlots.place(slot, 21, 10, true));
+        assertTrue(slot.region != region);
+    }
+
+    @Test
+    public void fullAtlasIsRepacked() {
+        Layer first = new Layer(64, 32);
+        Layer second = new Layer(64, 32);
+        uploadAll(Arrays.asList(first, second));
+        assertEquals(2, mUploads);
+
+        // the second layer's region is not reclaimed until a repack
+        first.resize(64, 40);
+        uploadAll(Arrays.asList(first));
+
+        assertEquals(1, mSlots.getRepackCount());
+        assertEquals(3, mUploads);
+        assertNull(mSlots.find(second));
+        OverlaySlots.Slot slot = mSlots.find(first);
+        assertEquals(0, slot.region.y);
+        assertEquals(40, slot.height);
+    }
+
+    @Test
+    public void repackUploadsEveryLayerAgain() {
+        List<Layer> layers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            layers.add(new Layer(64, 16));
+        }
+        uploadAll(layers);
+        assertEquals(4, mUploads);
+
+        // nothing changed, so nothing is uploaded
+        uploadAll(layers);
+        assertEquals(4, mUploads);
+
+        // shrinking keeps the old region, so growing the next layer finds the atlas full;
+        // after the repack the shrunk layer's spare room is reclaimed
+        layers.get(0).resize(32, 8);
+        layers.get(1).resize(64, 24);
+        uploadAll(layers);
+
+        assertEquals(1, mSlots.getRepackCount());
+        assertEquals(5 + 4, mUploads);
+        for (Layer layer : layers) {
+            OverlaySlots.Slot slot = mSlots.find(layer);
+            assertFalse(slot.empty);
+            assertEquals(layer.version, slot.uploadedVersion);
+        }
+    }
+
+    @Test
+    public void repackDropsEveryRegion() {
+        OverlaySlots.Slot first = mSlots.get(new Layer(0, 0));
+        OverlaySlots.Slot second = mSlots.get(new Layer(0, 0));
+        mSlots.place(first, 64, 64, true);
+        second.uploadedVersion = 3;
+
+        assertEquals(OverlaySlots.PLACE_REPACKED, mSlots.place(second, 8, 8, true));
+
+        assertNull(first.region);
+        assertEquals(-1, first.uploadedVersion);
+        assertEquals(-1, second.uploadedVersion);
+        assertEquals(0f, mAtlas.getOccupancy(), 0f);
+    }
+
+    @Test
+    public void contentLargerThanTheAtlasIsSkipped() {
+        Layer huge = new Layer(65, 10);
+        Layer small = new Layer(10, 10);
+        uploadAll(Arrays.asList(huge, small));
+
+        // one repack is tried before giving up, then the other layers still upload
+        assertEquals(1, mSlots.getRepackCount());
+        assertTrue(mSlots.find(huge).empty);
+        assertFalse(mSlots.find(small).empty);
+        assertEquals(1, mUploads);
+
+        OverlaySlots.Slot slot = mSlots.get(huge);
+        assertEquals(OverlaySlots.PLACE_TOO_LARGE, mSlots.place(slot, 65, 10, false));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        Layer layer = new Layer(0, 0);
+        mSlots.place(mSlots.get(layer), 32, 32, true);
+
+        mSlots.clear();
+
+        assertNull(mSlots.find(layer));
+        assertEquals(0f, mAtlas.getOccupancy(), 0f);
+        assertEquals(0, mSlots.getRepackCount());
+    }
+}
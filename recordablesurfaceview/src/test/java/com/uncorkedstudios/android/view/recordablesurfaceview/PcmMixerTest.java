@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class PcmMixerTest {
+
+    @Test
+    public void mixesAtUnityGain() {
+        short[] dst = {100, -100, 0};
+        PcmMixer.mix(dst, 0, new short[]{50, 50, -7}, 0, 3, 1f);
+        assertArrayEquals(new short[]{150, -50, -7}, dst);
+    }
+
+    @Test
+    public void scalesTheMixedInSamples() {
+        short[] dst = {0, 1000};
+        PcmMixer.mix(dst, 0, new short[]{1000, -1000}, 0, 2, 0.5f);
+        assertArrayEquals(new short[]{500, 500}, dst);
+    }
+
+    @Test
+    public void saturatesInsteadOfWrapping() {
+        short[] dst = {30000, -30000};
+        PcmMixer.mix(dst, 0, new short[]{10000, -10000}, 0, 2, 1f);
+        assertArrayEquals(new short[]{Short.MAX_VALUE, Short.MIN_VALUE}, dst);
+    }
+
+    @Test
+    public void saturatesFullScaleSamplesAtLargeGains() {
+        // Q15 products of these overflow an int
+        for (float gain : new float[]{2.5f, 100f, 1e9f}) {
+            short[] dst = {0, 0};
+            PcmMixer.mix(dst, 0, new short[]{Short.MAX_VALUE, Short.MIN_VALUE}, 0, 2, gain);
+            assertArrayEquals(new short[]{Short.MAX_VALUE, Short.MIN_VALUE}, dst);
+
+            short[] samples = {Short.MAX_VALUE, Short.MIN_VALUE, 0};
+            PcmMixer.applyGain(samples, 0, 3, gain);
+            assertArrayEquals(new short[]{Short.MAX_VALUE, Short.MIN_VALUE, 0}, samples);
+        }
+    }
+
+    @Test
+    public void honorsOffsetsAndLength() {
+        short[] dst = {1, 1, 1, 1};
+        PcmMixer.mix(dst, 1, new short[]{0, 5, 5, 5}, 1, 2, 1f);
+        assertArrayEquals(new short[]{1, 6, 6, 1}, dst);
+
+        short[] samples = {10, 10, 10};
+        PcmMixer.applyGain(samples, 1, 1, 0f);
+        assertArrayEquals(new short[]{10, 0, 10}, samples);
+    }
+}
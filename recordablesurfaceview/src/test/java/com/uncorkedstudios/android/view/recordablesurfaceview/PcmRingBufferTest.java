@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmRingBufferTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(8, new PcmRingBuffer(5).capacity());
+        assertEquals(8, new PcmRingBuffer(8).capacity());
+        assertEquals(1, new PcmRingBuffer(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        new PcmRingBuffer(0);
+    }
+
+    @Test
+    public void fullBufferAcceptsOnlyWhatFits() {
+        PcmRingBuffer ring = new PcmRingBuffer(4);
+        assertEquals(4, ring.write(new short[]{1, 2, 3, 4, 5, 6}, 0, 6));
+        assertEquals(0, ring.write(new short[]{7}, 0, 1));
+        assertEquals(4, ring.available());
+    }
+
+    @Test
+    public void emptyBufferReturnsNothing() {
+        PcmRingBuffer ring = new PcmRingBuffer(4);
+        assertEquals(0, ring.read(new short[4], 0, 4));
+    }
+
+    @Test
+    public void wrapsAroundTheEnd() {
+        PcmRingBuffer ring = new PcmRingBuffer(4);
+        short[] out = new short[4];
+        ring.write(new short[]{1, 2, 3}, 0, 3);
+        assertEquals(2, ring.read(out, 0, 2));
+
+        // starts at index 3 and continues at 0
+        assertEquals(3, ring.write(new short[]{4, 5, 6}, 0, 3));
+        assertEquals(4, ring.read(out, 0, 4));
+        assertArrayEquals(new short[]{3, 4, 5, 6}, out);
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void honorsOffsets() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(new short[]{9, 9, 1, 2}, 2, 2);
+        short[] out = {0, 0, 0, 0};
+        assertEquals(2, ring.read(out, 1, 3));
+        assertArrayEquals(new short[]{0, 1, 2, 0}, out);
+    }
+
+    @Test
+    public void clearDiscardsReadableSamples() {
+        PcmRingBuffer ring = new PcmRingBuffer(4);
+        ring.write(new short[]{1, 2, 3}, 0, 3);
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertEquals(4, ring.write(new short[]{4, 5, 6, 7}, 0, 4));
+    }
+
+    @Test
+    public void producerAndConsumerThreadsSeeEverySampleInOrder() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(64);
+        final int total = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] chunk = new short[13];
+                int next = 0;
+                while (next < total) {
+                    int length = Math.min(chunk.length, total - next);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = (short) (next + i);
+                    }
+                    int written = ring.write(chunk, 0, length);
+                    if (written == 0) {
+                        Thread.yield();
+                    }
+                    next += written;
+                }
+            }
+        });
+        producer.start();
+
+        short[] chunk = new short[17];
+        int expected = 0;
+        while (expected < total) {
+            int count = ring.read(chunk, 0, chunk.length);
+            if (count == 0) {
+                Thread.yield();
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals((short) expected, chunk[i]);
+                expected++;
+            }
+        }
+        producer.join();
+        assertEquals(0, ring.available());
+    }
+}
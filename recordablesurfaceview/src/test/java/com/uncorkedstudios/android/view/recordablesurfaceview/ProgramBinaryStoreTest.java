@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramBinaryStoreTest {
+
+    private static final String DRIVER = "Vendor Renderer OpenGL ES 3.2 v1";
+
+    private static final int FORMAT = 0x8741;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        // not created yet; the store creates it on the first save
+        mDirectory = new File(mFolder.getRoot(), "programs");
+    }
+
+    private static ProgramBinaryStore.Binary binary(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return new ProgramBinaryStore.Binary(FORMAT, data);
+    }
+
+    private File fileFor(String key) {
+        return new File(mDirectory, key + ".bin");
+    }
+
+    @Test
+    public void keysDependOnBothSources() {
+        String key = ProgramBinaryStore.key("vertex", "fragment");
+        assertEquals(64, key.length());
+        assertTrue(key.matches("[0-9a-f]+"));
+        assertEquals(key, ProgramBinaryStore.key("vertex", "fragment"));
+        assertNotEquals(key, ProgramBinaryStore.key("vertex", "fragment2"));
+        // moving text between the sources changes the key
+        assertNotEquals(ProgramBinaryStore.key("ab", "c"), ProgramBinaryStore.key("a", "bc"));
+    }
+
+    @Test
+    public void roundTripsBinaries() {
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 1 << 20);
+        String key = ProgramBinaryStore.key("v", "f");
+        assertNull(store.load(key, DRIVER));
+        ProgramBinaryStore.Binary saved = binary(5000, 1);
+        assertTrue(store.save(key, DRIVER, saved));
+
+        ProgramBinaryStore.Binary loaded = store.load(key, DRIVER);
+        assertEquals(FORMAT, loaded.format);
+        assertArrayEquals(saved.data, loaded.data);
+        assertEquals(fileFor(key).length(), store.getSize());
+
+        // saving again replaces it
+        ProgramBinaryStore.Binary replaced = binary(10, 2);
+        assertTrue(store.save(key, DRIVER, replaced));
+        assertArrayEquals(replaced.data, store.load(key, DRIVER).data);
+        assertEquals(1, mDirectory.list().length);
+    }
+
+    @Test
+    public void dropsBinariesFromAnotherDriver() {
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 1 << 20);
+        String key = ProgramBinaryStore.key("v", "f");
+        store.save(key, DRIVER, binary(100, 0));
+        assertNull(store.load(key, DRIVER + " updated"));
+        assertFalse(fileFor(key).exists());
+        assertNull(store.load(key, DRIVER));
+    }
+
+    @Test
+    public void dropsDamagedBinaries() throws IOException {
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 1 << 20);
+        String flipped = ProgramBinaryStore.key("v", "flipped");
+        String truncated = ProgramBinaryStore.key("v", "truncated");
+        String header = ProgramBinaryStore.key("v", "header");
+        store.save(flipped, DRIVER, binary(100, 0));
+        store.save(truncated, DRIVER, binary(100, 0));
+        store.save(header, DRIVER, binary(100, 0));
+
+        RandomAccessFile file = new RandomAccessFile(fileFor(flipped), "rw");
+        file.seek(file.length() - 1);
+        int last = file.read();
+        file.seek(file.length() - 1);
+        file.write(last ^ 1);
+        file.close();
+        file = new RandomAccessFile(fileFor(truncated), "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+        file = new RandomAccessFile(fileFor(header), "rw");
+        file.write(0);
+        file.close();
+
+        for (String key : new String[]{flipped, truncated, header}) {
+            assertNull(key, store.load(key, DRIVER));
+            assertFalse(key, fileFor(key).exists());
+        }
+    }
+
+    @Test
+    public void dropsBinariesStoredUnderAnotherKey() {
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 1 << 20);
+        String key = ProgramBinaryStore.key("v", "f");
+        String other = ProgramBinaryStore.key("v", "other");
+        store.save(key, DRIVER, binary(100, 0));
+        assertTrue(fileFor(key).renameTo(fileFor(other)));
+        assertNull(store.load(other, DRIVER));
+        assertFalse(fileFor(other).exists());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBinaries() {
+        ProgramBinaryStore.Binary binary = binary(1000, 0);
+        String[] keys = new String[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ProgramBinaryStore.key("v", "f" + i);
+        }
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 1 << 20);
+        for (int i = 0; i < 3; i++) {
+            store.save(keys[i], DRIVER, binary);
+            // the file system's clock may be coarse, so age the files explicitly
+            assertTrue(fileFor(keys[i]).setLastModified(1000000L * (i + 1)));
+        }
+        long fileSize = fileFor(keys[0]).length();
+
+        // room for three files; loading the oldest makes it the most recently used
+        store = new ProgramBinaryStore(mDirectory, fileSize * 3);
+        store.load(keys[0], DRIVER);
+        store.save(keys[3], DRIVER, binary);
+        assertTrue(fileFor(keys[0]).exists());
+        assertFalse(fileFor(keys[1]).exists());
+        assertTrue(fileFor(keys[2]).exists());
+        assertTrue(fileFor(keys[3]).exists());
+        assertEquals(fileSize * 3, store.getSize());
+    }
+
+    @Test
+    public void keepsTheNewestBinaryEvenIfOverTheLimit() {
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 100);
+        String small = ProgramBinaryStore.key("v", "small");
+        String large = ProgramBinaryStore.key("v", "large");
+        store.save(small, DRIVER, binary(10, 0));
+        assertTrue(store.save(large, DRIVER, binary(1000, 0)));
+        assertFalse(fileFor(small).exists());
+        assertTrue(fileFor(large).exists());
+    }
+
+    @Test
+    public void clearsOnlyItsOwnFiles() throws IOException {
+        ProgramBinaryStore store = new ProgramBinaryStore(mDirectory, 1 << 20);
+        store.save(ProgramBinaryStore.key("v", "a"), DRIVER, binary(10, 0));
+        store.save(ProgramBinaryStore.key("v", "b"), DRIVER, binary(10, 0));
+        File other = new File(mDirectory, "other.txt");
+        assertTrue(other.createNewFile());
+        store.clear();
+        assertEquals(0, store.getSize());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void failsToSaveWhenTheDirectoryCannotBeCreated() throws IOException {
+        File blocked = mFolder.newFile("blocked");
+        ProgramBinaryStore store = new ProgramBinaryStore(new File(blocked, "programs"), 1 << 20);
+        assertFalse(store.save(ProgramBinaryStore.key("v", "f"), DRIVER, binary(10, 0)));
+        assertEquals(0, store.getSize());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecorderLifecycleTest {
+
+    private static RecorderLifecycle recording() {
+        RecorderLifecycle lifecycle = new RecorderLifecycle();
+        lifecycle.beginInit();
+        lifecycle.onPrepared();
+        lifecycle.onStarted();
+        return lifecycle;
+    }
+
+    private static void assertCannotInit(RecorderLifecycle lifecycle) {
+        int state = lifecycle.getState();
+        try {
+            lifecycle.beginInit();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(state, lifecycle.getState());
+    }
+
+    @Test
+    public void goesAroundTheFullCycle() {
+        RecorderLifecycle lifecycle = new RecorderLifecycle();
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_IDLE, lifecycle.getState());
+        assertTrue(lifecycle.isIdle());
+        assertFalse(lifecycle.canStart());
+
+        lifecycle.beginInit();
+        lifecycle.onPrepared();
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_PREPARED, lifecycle.getState());
+        assertTrue(lifecycle.canStart());
+        assertFalse(lifecycle.isCapturing());
+
+        lifecycle.onStarted();
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_RECORDING, lifecycle.getState());
+        assertTrue(lifecycle.isCapturing());
+        assertFalse(lifecycle.canStart());
+
+        lifecycle.beginStop();
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_FINALIZING, lifecycle.getState());
+        assertTrue(lifecycle.isCapturing());
+
+        lifecycle.onFinalized();
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_IDLE, lifecycle.getState());
+        assertFalse(lifecycle.isCapturing());
+    }
+
+    @Test
+    public void initWhilePreparedDropsThePreparedRecorder() {
+        RecorderLifecycle lifecycle = new RecorderLifecycle();
+        lifecycle.beginInit();
+        lifecycle.onPrepared();
+
+        lifecycle.beginInit();
+
+        // if preparing the new recorder fails, nothing is left to start
+        assertTrue(lifecycle.isIdle());
+        assertFalse(lifecycle.canStart());
+        lifecycle.onPrepared();
+        assertTrue(lifecycle.canStart());
+    }
+
+    @Test
+    public void initIsRejectedWhileRecording() {
+        assertCannotInit(recording());
+    }
+
+    @Test
+    public void initIsRejectedWhileFinalizing() {
+        RecorderLifecycle lifecycle = recording();
+        lifecycle.beginStop();
+
+        assertCannotInit(lifecycle);
+
+        lifecycle.onFinalized();
+        lifecycle.beginInit();
+        lifecycle.onPrepared();
+        assertTrue(lifecycle.canStart());
+    }
+
+    @Test
+    public void failedStartReturnsToIdle() {
+        RecorderLifecycle lifecycle = new RecorderLifecycle();
+        lifecycle.beginInit();
+        lifecycle.onPrepared();
+
+        lifecycle.onStartFailed();
+
+        assertTrue(lifecycle.isIdle());
+    }
+
+    @Test
+    public void startRequiresAPreparedRecorder() {
+        RecorderLifecycle lifecycle = new RecorderLifecycle();
+        try {
+            lifecycle.onStarted();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(lifecycle.isIdle());
+    }
+
+    @Test
+    public void stopRequiresRecording() {
+        RecorderLifecycle lifecycle = new RecorderLifecycle();
+        lifecycle.beginInit();
+        lifecycle.onPrepared();
+        try {
+            lifecycle.beginStop();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(lifecycle.canStart());
+
+        lifecycle.onStarted();
+        lifecycle.beginStop();
+        try {
+            lifecycle.beginStop();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_FINALIZING, lifecycle.getState());
+    }
+
+    @Test
+    public void prepareRequiresInit() {
+        RecorderLifecycle lifecycle = recording();
+        try {
+            lifecycle.onPrepared();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_RECORDING, lifecycle.getState());
+    }
+
+    @Test
+    public void lateCallbacksDoNotChangeTheState() {
+        RecorderLifecycle lifecycle = recording();
+
+        // a finalizer or failed start from another recording leaves this one alone
+        lifecycle.onFinalized();
+        lifecycle.onStartFailed();
+
+        assertEquals(RecordableSurfaceView.RECORDER_STATE_RECORDING, lifecycle.getState());
+    }
+}
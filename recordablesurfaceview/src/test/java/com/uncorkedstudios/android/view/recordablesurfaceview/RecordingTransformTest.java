@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordingTransformTest {
+
+    private static final float EPSILON = 1e-4f;
+
+    /**
+     * Checks that the scissor box and the bars cover the frame exactly once.
+     */
+    private static void assertTiles(RecordingTransform.Layout layout, int width, int height) {
+        int[] hits = new int[width * height];
+        fill(hits, width, height, layout.scissorX, layout.scissorY, layout.scissorWidth,
+                layout.scissorHeight);
+        for (int i = 0; i < layout.barCount; i++) {
+            int[] bars = layout.bars;
+            fill(hits, width, height, bars[i * 4], bars[i * 4 + 1], bars[i * 4 + 2],
+                    bars[i * 4 + 3]);
+        }
+        for (int i = 0; i < hits.length; i++) {
+            assertEquals("pixel " + (i % width) + "," + (i / width), 1, hits[i]);
+        }
+    }
+
+    private static void fill(int[] hits, int width, int height, int x, int y, int w, int h) {
+        assertTrue(x >= 0 && y >= 0 && w > 0 && h > 0);
+        assertTrue(x + w <= width && y + h <= height);
+        for (int row = y; row < y + h; row++) {
+            for (int column = x; column < x + w; column++) {
+                hits[row * width + column]++;
+            }
+        }
+    }
+
+    private static void assertViewport(RecordingTransform.Layout layout, int x, int y, int width,
+            int height) {
+        assertEquals(x, layout.viewportX);
+        assertEquals(y, layout.viewportY);
+        assertEquals(width, layout.viewportWidth);
+        assertEquals(height, layout.viewportHeight);
+    }
+
+    private static void assertBar(RecordingTransform.Layout layout, int index, int x, int y,
+            int width, int height) {
+        assertArrayEquals(new int[]{x, y, width, height},
+                new int[]{layout.bars[index * 4], layout.bars[index * 4 + 1],
+                        layout.bars[index * 4 + 2], layout.bars[index * 4 + 3]});
+    }
+
+    @Test
+    public void stretchFillsTheFrame() {
+        RecordingTransform.Layout layout = new RecordingTransform(RecordingTransform.SCALE_STRETCH)
+                .computeLayout(1080, 1920, 1280, 720);
+
+        assertViewport(layout, 0, 0, 1280, 720);
+        assertFalse(layout.scissor);
+        assertFalse(layout.clearBars);
+        assertEquals(0, layout.barCount);
+        assertArrayEquals(new float[]{0f, 0f, 1f, 1f}, layout.texCoords, EPSILON);
+    }
+
+    @Test
+    public void fitCentersWithoutScissor() {
+        // 0.375 scale: 405 pixels wide, starting at 437.5
+        RecordingTransform.Layout layout = new RecordingTransform(RecordingTransform.SCALE_FIT)
+                .computeLayout(1080, 1920, 1280, 720);
+
+        assertViewport(layout, 438, 0, 405, 720);
+        assertEquals(438, layout.scissorX);
+        assertEquals(405, layout.scissorWidth);
+        assertFalse(layout.scissor);
+        assertFalse(layout.clearBars);
+        assertEquals(0, layout.barCount);
+    }
+
+    @Test
+    public void letterboxClearsTheSideBars() {
+        RecordingTransform.Layout layout = new RecordingTransform(
+                RecordingTransform.SCALE_LETTERBOX).computeLayout(1080, 1920, 1280, 720);
+
+        assertViewport(layout, 438, 0, 405, 720);
+        assertTrue(layout.scissor);
+        assertTrue(layout.clearBars);
+        assertEquals(438, layout.scissorX);
+        assertEquals(0, layout.scissorY);
+        assertEquals(405, layout.scissorWidth);
+        assertEquals(720, layout.scissorHeight);
+        assertEquals(2, layout.barCount);
+        assertBar(layout, 0, 0, 0, 438, 720);
+        assertBar(layout, 1, 843, 0, 437, 720);
+        assertTiles(layout, 1280, 720);
+        assertArrayEquals(new float[]{0f, 0f, 1f, 1f}, layout.texCoords, EPSILON);
+    }
+
+    @Test
+    public void letterboxClearsTopAndBottomBars() {
+        RecordingTransform.Layout layout = new RecordingTransform(
+                RecordingTransform.SCALE_LETTERBOX).computeLayout(1920, 1080, 720, 1280);
+
+        // 0.375 scale: 405 pixels high, starting at 437.5 from the top
+        assertEquals(0, layout.scissorX);
+        assertEquals(720, layout.scissorWidth);
+        assertEquals(405, layout.scissorHeight);
+        assertEquals(2, layout.barCount);
+        assertBar(layout, 0, 0, 0, 720, layout.scissorY);
+        assertBar(layout, 1, 0, layout.scissorY + 405, 720, 1280 - layout.scissorY - 405);
+        assertTiles(layout, 720, 1280);
+    }
+
+    @Test
+    public void letterboxOddSizesTileTheFrame() {
+        int[][] sizes = {
+                {101, 57, 64, 64},
+                {57, 101, 64, 64},
+                {333, 333, 100, 37},
+                {1, 1, 17, 9},
+                {640, 481, 641, 480},
+        };
+        for (int[] size : sizes) {
+            RecordingTransform.Layout layout = new RecordingTransform(
+                    RecordingTransform.SCALE_LETTERBOX)
+                    .computeLayout(size[0], size[1], size[2], size[3]);
+            assertTiles(layout, size[2], size[3]);
+            // the content never spills out of the viewport
+            assertTrue(layout.scissorX >= layout.viewportX);
+            assertTrue(layout.scissorY >= layout.viewportY);
+            assertTrue(layout.scissorX + layout.scissorWidth
+                    <= layout.viewportX + layout.viewportWidth);
+            assertTrue(layout.scissorY + layout.scissorHeight
+                    <= layout.viewportY + layout.viewportHeight);
+        }
+    }
+
+    @Test
+    public void oddSizesRoundToTheNearestPixel() {
+        // 0.6337 scale: 36.12 pixels high, starting at 13.94 from the top
+        RecordingTransform.Layout layout = new RecordingTransform(
+                RecordingTransform.SCALE_LETTERBOX).computeLayout(101, 57, 64, 64);
+
+        assertViewport(layout, 0, 14, 64, 36);
+        assertEquals(14, layout.scissorY);
+        assertEquals(36, layout.scissorHeight);
+        assertEquals(2, layout.barCount);
+        assertBar(layout, 0, 0, 0, 64, 14);
+        assertBar(layout, 1, 0, 50, 64, 14);
+    }
+
+    @Test
+    public void fillCropCoversTheFrame() {
+        // 1.185 scale: 2275.6 pixels high, starting at 777.8 below the frame
+        RecordingTransform.Layout layout = new RecordingTransform(
+                RecordingTransform.SCALE_FILL_CROP).computeLayout(1080, 1920, 1280, 720);
+
+        assertViewport(layout, 0, -778, 1280, 2276);
+        assertEquals(0, layout.scissorX);
+        assertEquals(0, layout.scissorY);
+        assertEquals(1280, layout.scissorWidth);
+        assertEquals(720, layout.scissorHeight);
+        assertFalse(layout.scissor);
+        assertFalse(layout.clearBars);
+        assertEquals(0, layout.barCount);
+        assertArrayEquals(new float[]{0f, 778f / 2276, 1f, 1498f / 2276}, layout.texCoords,
+                EPSILON);
+    }
+
+    @Test
+    public void regionScalesOntoTheFrame() {
+        RecordingTransform.Layout layout = new RecordingTransform(
+                RecordingTransform.SCALE_STRETCH, 250, 250, 750, 750)
+                .computeLayout(1000, 1000, 500, 500);
+
+        assertViewport(layout, -250, -250, 1000, 1000);
+        // the region covers the frame, so nothing outside it can show
+        assertFalse(layout.scissor);
+        assertEquals(0, layout.barCount);
+        assertArrayEquals(new float[]{0.25f, 0.25f, 0.75f, 0.75f}, layout.texCoords, EPSILON);
+    }
+
+    @Test
+    public void regionIsMeasuredFromTheTop() {
+        // the top quarter of the view at half scale, letterboxed into a square
+        RecordingTransform.Layout layout = new RecordingTransform(
+                RecordingTransform.SCALE_FIT, 0, 0, 1000, 250)
+                .computeLayout(1000, 1000, 500, 500);
+
+        assertViewport(layout, 0, -187, 500, 500);
+        // fit with a region scissors too, so the rest of the view stays out of the bars
+        assertTrue(layout.scissor);
+        assertEquals(0, layout.scissorX);
+        assertEquals(188, layout.scissorY);
+        assertEquals(500, layout.scissorWidth);
+        assertEquals(125, layout.scissorHeight);
+        assertTiles(layout, 500, 500);
+        assertArrayEquals(new float[]{0f, 0.75f, 1f, 1f}, layout.texCoords, EPSILON);
+    }
+
+    @Test
+    public void regionIsClampedToTheView() {
+        RecordingTransform.Layout clamped = new RecordingTransform(
+                RecordingTransform.SCALE_LETTERBOX, -100, -100, 500, 500)
+                .computeLayout(1000, 1000, 640, 480);
+        RecordingTransform.Layout inside = new RecordingTransform(
+                RecordingTransform.SCALE_LETTERBOX, 0, 0, 500, 500)
+                .computeLayout(1000, 1000, 640, 480);
+
+        assertViewport(clamped, inside.viewportX, inside.viewportY, inside.viewportWidth,
+                inside.viewportHeight);
+        assertEquals(inside.scissorX, clamped.scissorX);
+        assertEquals(inside.scissorWidth, clamped.scissorWidth);
+        assertEquals(inside.barCount, clamped.barCount);
+        assertArrayEquals(inside.texCoords, clamped.texCoords, EPSILON);
+    }
+
+    @Test
+    public void regionOutsideTheViewStaysInTheFrame() {
+        int[][] regions = {
+                {2000, 2000, 3000, 3000},
+                {-500, -500, -100, -100},
+                {1000, 0, 1200, 1000},
+        };
+        for (int[] region : regions) {
+            RecordingTransform.Layout layout = new RecordingTransform(
+                    RecordingTransform.SCALE_LETTERBOX, region[0], region[1], region[2],
+                    region[3]).computeLayout(1000, 1000, 640, 480);
+            assertTrue(layout.scissorX >= 0 && layout.scissorY >= 0);
+            assertTrue(layout.scissorX + layout.scissorWidth <= 640);
+            assertTrue(layout.scissorY + layout.scissorHeight <= 480);
+            assertTrue(layout.viewportWidth > 0 && layout.viewportHeight > 0);
+            for (float coordinate : layout.texCoords) {
+                assertFalse(Float.isNaN(coordinate) || Float.isInfinite(coordinate));
+            }
+        }
+    }
+
+    @Test
+    public void emptyRegionIsRejected() {
+        try {
+            new RecordingTransform(RecordingTransform.SCALE_FIT, 10, 10, 10, 20);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new RecordingTransform(RecordingTransform.SCALE_FIT, 10, 20, 30, 5);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void barColorIsCopied() {
+        RecordingTransform transform = new RecordingTransform(RecordingTransform.SCALE_LETTERBOX);
+        RecordingTransform red = transform.withBarColor(0xFFFF0000);
+
+        assertEquals(0xFF000000, transform.getBarColor());
+        assertEquals(0xFFFF0000, red.getBarColor());
+        assertEquals(RecordingTransform.SCALE_LETTERBOX, red.getScaleMode());
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RenderSchedulerTest {
+
+    private static final long VSYNC_NS = 16666667L;
+
+    private static final long MS = 1000000L;
+
+    private static class FakeClient implements RenderScheduler.Client {
+
+        boolean mWantsFrame = true;
+
+        boolean mRecording = false;
+
+        @Override
+        public boolean wantsFrame() {
+            return mWantsFrame;
+        }
+
+        @Override
+        public boolean isRecording() {
+            return mRecording;
+        }
+    }
+
+    private final RenderScheduler mScheduler = new RenderScheduler();
+
+    private final List<RenderScheduler.Client> mOut = new ArrayList<>();
+
+    private long mFrameTimeNs = 0;
+
+    private FakeClient[] addClients(int count, long costNs) {
+        FakeClient[] clients = new FakeClient[count];
+        for (int i = 0; i < count; i++) {
+            clients[i] = new FakeClient();
+            mScheduler.add(clients[i]);
+            if (costNs > 0) {
+                mScheduler.onRendered(clients[i], costNs);
+            }
+        }
+        return clients;
+    }
+
+    private List<RenderScheduler.Client> nextFrame() {
+        mScheduler.schedule(mFrameTimeNs, mOut);
+        mFrameTimeNs += VSYNC_NS;
+        return mOut;
+    }
+
+    @Test
+    public void schedulesEveryoneWhenTheyFit() {
+        FakeClient[] clients = addClients(3, 2 * MS);
+        assertEquals(3, nextFrame().size());
+        assertEquals(3, nextFrame().size());
+        assertEquals(0, mScheduler.getDeferredFrames());
+        assertEquals(6, mScheduler.getScheduledFrames());
+
+        clients[1].mWantsFrame = false;
+        List<RenderScheduler.Client> scheduled = nextFrame();
+        assertEquals(2, scheduled.size());
+        assertTrue(scheduled.containsAll(Arrays.asList(clients[0], clients[2])));
+    }
+
+    @Test
+    public void rotatesTies() {
+        FakeClient[] clients = addClients(3, 0);
+        List<RenderScheduler.Client> firsts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            firsts.add(nextFrame().get(0));
+        }
+        assertTrue(firsts.containsAll(Arrays.asList(clients)));
+    }
+
+    @Test
+    public void putsRecordingViewsFirst() {
+        FakeClient[] clients = addClients(3, 2 * MS);
+        clients[2].mRecording = true;
+        for (int i = 0; i < 5; i++) {
+            assertSame(clients[2], nextFrame().get(0));
+        }
+    }
+
+    @Test
+    public void admitsTheFirstViewOverBudget() {
+        FakeClient[] clients = addClients(1, 40 * MS);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Arrays.<RenderScheduler.Client>asList(clients[0]), nextFrame());
+        }
+        assertEquals(0, mScheduler.getDeferredFrames());
+    }
+
+    @Test
+    public void sharesFramesWithoutStarvingAnyView() {
+        // each view alone takes most of the budget
+        FakeClient[] clients = addClients(4, 10 * MS);
+        mScheduler.setMaxDeferredFrames(2);
+        int[] deferredInARow = new int[clients.length];
+        int[] rendered = new int[clients.length];
+        for (int frame = 0; frame < 120; frame++) {
+            List<RenderScheduler.Client> scheduled = nextFrame();
+            assertTrue(!scheduled.isEmpty());
+            for (int i = 0; i < clients.length; i++) {
+                if (scheduled.contains(clients[i])) {
+                    deferredInARow[i] = 0;
+                    rendered[i]++;
+                } else {
+                    deferredInARow[i]++;
+                    assertTrue("view " + i + " starved", deferredInARow[i] <= 2);
+                }
+            }
+        }
+        for (int i = 0; i < clients.length; i++) {
+            assertTrue("view " + i + " rendered " + rendered[i], rendered[i] >= 120 / 3);
+        }
+        assertTrue(mScheduler.getDeferredFrames() > 0);
+    }
+
+    @Test
+    public void admitsByBudget() {
+        // 13.3 ms budget: two 6 ms views fit, a third does not
+        FakeClient[] clients = addClients(3, 6 * MS);
+        mScheduler.setMaxDeferredFrames(10);
+        List<RenderScheduler.Client> first = new ArrayList<>(nextFrame());
+        assertEquals(2, first.size());
+        assertEquals(1, mScheduler.getDeferredFrames());
+        FakeClient deferred = null;
+        for (FakeClient client : clients) {
+            if (!first.contains(client)) {
+                deferred = client;
+            }
+        }
+        // the deferred view goes first next time
+        List<RenderScheduler.Client> second = nextFrame();
+        assertEquals(2, second.size());
+        assertSame(deferred, second.get(0));
+        assertEquals(2, mScheduler.getDeferredFrames());
+
+        mScheduler.setBudgetFraction(2);
+        assertEquals(3, nextFrame().size());
+    }
+
+    @Test
+    public void smoothsCostEstimates() {
+        FakeClient client = new FakeClient();
+        mScheduler.add(client);
+        assertEquals(0, mScheduler.getEstimatedCostNs(client));
+        mScheduler.onRendered(client, 8 * MS);
+        assertEquals(8 * MS, mScheduler.getEstimatedCostNs(client));
+        mScheduler.onRendered(client, 4 * MS);
+        assertEquals(7 * MS, mScheduler.getEstimatedCostNs(client));
+        assertEquals(0, mScheduler.getEstimatedCostNs(new FakeClient()));
+    }
+
+    @Test
+    public void measuresTheVsyncPeriod() {
+        long period = 11111111L;
+        long time = 0;
+        for (int i = 0; i < 100; i++) {
+            mScheduler.schedule(time, mOut);
+            time += period;
+            // a missed vsync every so often
+            if (i % 10 == 0) {
+                time += period;
+            }
+        }
+        assertEquals(period, mScheduler.getVsyncPeriodNs(), period / 100);
+        assertEquals((long) (mScheduler.getVsyncPeriodNs() * 0.8f),
+                mScheduler.getFrameBudgetNs());
+    }
+
+    @Test
+    public void addsAndRemovesClients() {
+        FakeClient client = new FakeClient();
+        mScheduler.add(client);
+        mScheduler.add(client);
+        assertEquals(1, mScheduler.getClientCount());
+        mScheduler.remove(client);
+        mScheduler.remove(client);
+        assertEquals(0, mScheduler.getClientCount());
+        assertTrue(nextFrame().isEmpty());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the bookkeeping only; targets are never bound, so no GL context is needed.
+ */
+public class RenderTargetPoolTest {
+
+    private static final long BYTES_64 = 64 * 64 * 6;
+
+    @Test
+    public void roundsSizesUpToBuckets() {
+        RenderTargetPool pool = new RenderTargetPool();
+        PooledTarget target = pool.acquire(100, 30);
+        assertEquals(128, target.getAllocatedWidth());
+        assertEquals(64, target.getAllocatedHeight());
+        assertEquals(100, target.getWidth());
+        assertEquals(30, target.getHeight());
+        assertEquals(100 / 128f, target.getTexCoordScaleX(), 0);
+        assertEquals(30 / 64f, target.getTexCoordScaleY(), 0);
+        assertEquals(128 * 64 * 6, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void reusesTargetsWithinABucket() {
+        RenderTargetPool pool = new RenderTargetPool();
+        PooledTarget first = pool.acquire(1080, 1920);
+        pool.release(first);
+        // a resize of a few pixels stays in the bucket
+        PooledTarget second = pool.acquire(1078, 1917);
+        assertSame(first, second);
+        assertEquals(1078, second.getWidth());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getTargetCount());
+
+        // another bucket, or a bucket whose only target is in use, misses
+        PooledTarget third = pool.acquire(1080, 1920);
+        assertNotSame(second, third);
+        pool.acquire(720, 1280);
+        assertEquals(3, pool.getMissCount());
+        assertEquals(3, pool.getTargetCount());
+        assertEquals(3, pool.getInUseCount());
+    }
+
+    @Test
+    public void reusesTheMostRecentlyReleasedTarget() {
+        RenderTargetPool pool = new RenderTargetPool();
+        PooledTarget a = pool.acquire(64, 64);
+        PooledTarget b = pool.acquire(64, 64);
+        pool.release(a);
+        pool.release(b);
+        assertSame(b, pool.acquire(64, 64));
+        assertSame(a, pool.acquire(64, 64));
+    }
+
+    @Test
+    public void countsAllocatedAndPeakBytes() {
+        RenderTargetPool pool = new RenderTargetPool(64, 0);
+        PooledTarget a = pool.acquire(64, 64);
+        PooledTarget b = pool.acquire(64, 64);
+        assertEquals(2 * BYTES_64, pool.getAllocatedBytes());
+        pool.release(a);
+        pool.release(b);
+        // released targets are still held until evicted
+        assertEquals(2 * BYTES_64, pool.getAllocatedBytes());
+        pool.endFrame();
+        assertEquals(0, pool.getAllocatedBytes());
+        assertEquals(2 * BYTES_64, pool.getPeakAllocatedBytes());
+        assertEquals(0, pool.getTargetCount());
+    }
+
+    @Test
+    public void evictsTargetsIdleForTooLong() {
+        RenderTargetPool pool = new RenderTargetPool(64, 3);
+        PooledTarget idle = pool.acquire(64, 64);
+        PooledTarget busy = pool.acquire(128, 128);
+        pool.release(idle);
+        for (int frame = 0; frame < 3; frame++) {
+            pool.endFrame();
+            // reused every frame, so never evicted
+            pool.release(busy);
+            busy = pool.acquire(128, 128);
+        }
+        assertEquals(0, pool.getEvictionCount());
+        assertEquals(2, pool.getTargetCount());
+        pool.endFrame();
+        assertEquals(1, pool.getEvictionCount());
+        assertEquals(1, pool.getTargetCount());
+        assertEquals(128 * 128 * 6, pool.getAllocatedBytes());
+        // targets in use are never evicted
+        for (int frame = 0; frame < 10; frame++) {
+            pool.endFrame();
+        }
+        assertEquals(1, pool.getTargetCount());
+        assertEquals(1, pool.getInUseCount());
+
+        pool.release(busy);
+        assertNotSame(idle, pool.acquire(64, 64));
+    }
+
+    @Test
+    public void trimFreesOnlyUnusedTargets() {
+        RenderTargetPool pool = new RenderTargetPool();
+        PooledTarget kept = pool.acquire(64, 64);
+        pool.release(pool.acquire(256, 256));
+        pool.release(pool.acquire(512, 512));
+        pool.trim();
+        assertEquals(1, pool.getTargetCount());
+        assertEquals(BYTES_64, pool.getAllocatedBytes());
+        assertEquals(0, pool.getEvictionCount());
+        pool.release(kept);
+        assertSame(kept, pool.acquire(64, 64));
+    }
+
+    @Test
+    public void rejectsReleasingTargetsNotInUse() {
+        RenderTargetPool pool = new RenderTargetPool();
+        PooledTarget target = pool.acquire(64, 64);
+        pool.release(target);
+        try {
+            pool.release(target);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new RenderTargetPool().release(pool.acquire(64, 64));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, pool.getInUseCount());
+    }
+
+    @Test
+    public void rejectsInvalidArguments() {
+        RenderTargetPool pool = new RenderTargetPool();
+        int[][] sizes = {{0, 64}, {64, 0}, {-1, -1}};
+        for (int[] size : sizes) {
+            try {
+                pool.acquire(size[0], size[1]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            new RenderTargetPool(0, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StartupGraphTest {
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    private final List<String> mFinished = Collections.synchronizedList(new ArrayList<String>());
+
+    private final StartupGraph.Listener mListener = new StartupGraph.Listener() {
+        @Override
+        public void onStepFinished(String name, long startNs, long endNs, Throwable error) {
+            mFinished.add(name + (startNs < 0 ? " skipped" : error != null ? " failed" : ""));
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static StartupGraph.Task record(final List<String> log, final String name) {
+        return new StartupGraph.Task() {
+            @Override
+            public void run() {
+                log.add(name);
+            }
+        };
+    }
+
+    private static StartupGraph.Task throwing(final Exception error) {
+        return new StartupGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                throw error;
+            }
+        };
+    }
+
+    @Test
+    public void runsStepsAfterTheirDependencies() {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        StartupGraph graph = new StartupGraph(mExecutor, mListener)
+                .add("a", record(log, "a"))
+                .add("b", record(log, "b"), "a")
+                .add("c", record(log, "c"), "a")
+                .add("d", record(log, "d"), "b", "c");
+        graph.start();
+
+        assertTrue(graph.await("d"));
+        assertTrue(graph.isDone());
+        assertEquals(4, log.size());
+        assertEquals("a", log.get(0));
+        assertEquals("d", log.get(3));
+        assertNull(graph.getError("d"));
+        assertTrue(graph.getDurationNs("d") >= 0);
+    }
+
+    @Test(timeout = 10000)
+    public void runsIndependentStepsConcurrently() {
+        // each step waits for the other, so they only finish if they run at the same time
+        final CountDownLatch both = new CountDownLatch(2);
+        StartupGraph.Task meet = new StartupGraph.Task() {
+            @Override
+            public void run() throws Exception {
+                both.countDown();
+                if (!both.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Ran alone");
+                }
+            }
+        };
+        StartupGraph graph = new StartupGraph(mExecutor, null)
+                .add("a", meet)
+                .add("b", meet);
+        graph.start();
+        assertTrue(graph.await("a"));
+        assertTrue(graph.await("b"));
+    }
+
+    @Test
+    public void failsDependentsOfAFailedStep() {
+        Exception error = new Exception("no GL");
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        StartupGraph graph = new StartupGraph(mExecutor, mListener)
+                .add("a", record(log, "a"))
+                .add("b", throwing(error), "a")
+                .add("c", record(log, "c"), "b")
+                .add("d", record(log, "d"), "c")
+                .add("e", record(log, "e"), "a");
+        graph.start();
+
+        assertFalse(graph.await("b"));
+        assertFalse(graph.await("c"));
+        assertFalse(graph.await("d"));
+        assertTrue(graph.await("e"));
+        while (!graph.isDone() || mFinished.size() < 5) {
+            Thread.yield();
+        }
+        assertSame(error, graph.getError("b"));
+        assertSame(error, graph.getError("c"));
+        assertSame(error, graph.getError("d"));
+        assertFalse(log.contains("c"));
+        assertFalse(log.contains("d"));
+        assertEquals(-1, graph.getDurationNs("c"));
+        assertTrue(mFinished.contains("b failed"));
+        assertTrue(mFinished.contains("c skipped"));
+        assertTrue(mFinished.contains("d skipped"));
+        assertTrue(mFinished.contains("e"));
+    }
+
+    @Test
+    public void failsAStepWithSeveralFailedDependenciesOnce() throws InterruptedException {
+        StartupGraph graph = new StartupGraph(mExecutor, mListener)
+                .add("a", throwing(new Exception("a")))
+                .add("b", throwing(new Exception("b")))
+                .add("c", record(new ArrayList<String>(), "c"), "a", "b");
+        graph.start();
+        assertFalse(graph.await("c"));
+        while (!graph.isDone() || mFinished.size() < 3) {
+            Thread.yield();
+        }
+        // let a second cascade show up if there were one
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, Collections.frequency(mFinished, "c skipped"));
+        assertEquals(3, mFinished.size());
+    }
+
+    @Test
+    public void runsActionsWhenStepsFinish() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        StartupGraph graph = new StartupGraph(mExecutor, null)
+                .add("slow", new StartupGraph.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        release.await();
+                    }
+                })
+                .add("failing", throwing(new Exception()));
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable action = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ran.countDown();
+            }
+        };
+        graph.start();
+        graph.whenFinished(action, "slow", "failing");
+        assertEquals(0, runs.get());
+        release.countDown();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        // finished and unknown steps run the action right away on this thread
+        graph.whenFinished(action, "slow", "unknown");
+        assertEquals(2, runs.get());
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void rejectsInvalidGraphs() {
+        StartupGraph graph = new StartupGraph(mExecutor, null)
+                .add("a", record(new ArrayList<String>(), "a"));
+        try {
+            graph.add("a", record(new ArrayList<String>(), "a"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            // later steps are unknown, which keeps the graph acyclic
+            graph.add("b", record(new ArrayList<String>(), "b"), "c");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertFalse(graph.has("b"));
+        graph.start();
+        try {
+            graph.add("c", record(new ArrayList<String>(), "c"));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            graph.start();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void awaitReturnsFalseForUnknownStepsAndInterrupts() {
+        final CountDownLatch release = new CountDownLatch(1);
+        StartupGraph graph = new StartupGraph(mExecutor, null)
+                .add("slow", new StartupGraph.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        release.await();
+                    }
+                });
+        graph.start();
+        assertFalse(graph.await("unknown"));
+
+        Thread.currentThread().interrupt();
+        assertFalse(graph.await("slow"));
+        assertTrue(Thread.interrupted());
+        release.countDown();
+        assertTrue(graph.await("slow"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TextureAtlasTest {
+
+    private static void assertRegion(TextureAtlas.Region region, int x, int y, int width,
+            int height) {
+        assertNotNull(region);
+        assertEquals(x, region.x);
+        assertEquals(y, region.y);
+        assertEquals(width, region.width);
+        assertEquals(height, region.height);
+    }
+
+    @Test
+    public void fillsAShelfLeftToRight() {
+        TextureAtlas atlas = new TextureAtlas(100, 100, 0);
+
+        assertRegion(atlas.allocate(30, 10), 0, 0, 30, 10);
+        assertRegion(atlas.allocate(30, 10), 30, 0, 30, 10);
+        assertRegion(atlas.allocate(40, 8), 60, 0, 40, 8);
+        // the first shelf is full
+        assertRegion(atlas.allocate(10, 10), 0, 10, 10, 10);
+    }
+
+    @Test
+    public void tallerRectangleOpensAShelf() {
+        TextureAtlas atlas = new TextureAtlas(100, 100, 0);
+
+        assertRegion(atlas.allocate(30, 10), 0, 0, 30, 10);
+        assertRegion(atlas.allocate(30, 20), 0, 10, 30, 20);
+        assertRegion(atlas.allocate(30, 15), 30, 10, 30, 15);
+    }
+
+    @Test
+    public void picksTheShelfThatWastesTheLeastHeight() {
+        TextureAtlas atlas = new TextureAtlas(100, 100, 0);
+        atlas.allocate(10, 20);
+        atlas.allocate(10, 30);
+
+        assertRegion(atlas.allocate(10, 18), 10, 0, 10, 18);
+        assertRegion(atlas.allocate(10, 25), 10, 20, 10, 25);
+    }
+
+    @Test
+    public void shortRectangleIsNotBuriedWhileThereIsRoom() {
+        TextureAtlas atlas = new TextureAtlas(100, 100, 0);
+        atlas.allocate(10, 50);
+
+        assertRegion(atlas.allocate(10, 10), 0, 50, 10, 10);
+    }
+
+    @Test
+    public void shortRectangleUsesATallShelfWhenFull() {
+        TextureAtlas atlas = new TextureAtlas(100, 60, 0);
+        atlas.allocate(10, 50);
+        atlas.allocate(100, 10);
+
+        assertRegion(atlas.allocate(10, 10), 10, 0, 10, 10);
+    }
+
+    @Test
+    public void keepsPaddingAroundRegions() {
+        TextureAtlas atlas = new TextureAtlas(100, 100, 1);
+
+        assertRegion(atlas.allocate(10, 10), 1, 1, 10, 10);
+        assertRegion(atlas.allocate(10, 10), 13, 1, 10, 10);
+        // 98 plus padding is the whole width
+        assertRegion(atlas.allocate(98, 5), 1, 13, 98, 5);
+        assertNull(atlas.allocate(99, 5));
+    }
+
+    @Test
+    public void rejectsRectanglesThatCannotFit() {
+        TextureAtlas atlas = new TextureAtlas(64, 64, 0);
+
+        assertNull(atlas.allocate(65, 1));
+        assertNull(atlas.allocate(1, 65));
+        assertNull(atlas.allocate(0, 10));
+        assertNull(atlas.allocate(10, -1));
+        assertEquals(0f, atlas.getOccupancy(), 0f);
+    }
+
+    @Test
+    public void returnsNullWhenFullAndRepacksAfterReset() {
+        TextureAtlas atlas = new TextureAtlas(64, 64, 0);
+        for (int i = 0; i < 4; i++) {
+            assertRegion(atlas.allocate(64, 16), 0, i * 16, 64, 16);
+        }
+        assertEquals(1f, atlas.getOccupancy(), 0f);
+        assertNull(atlas.allocate(1, 1));
+
+        atlas.reset();
+
+        assertEquals(0f, atlas.getOccupancy(), 0f);
+        assertRegion(atlas.allocate(32, 32), 0, 0, 32, 32);
+        assertRegion(atlas.allocate(32, 32), 32, 0, 32, 32);
+        assertEquals(0.5f, atlas.getOccupancy(), 0f);
+    }
+
+    @Test
+    public void occupancyExcludesPadding() {
+        TextureAtlas atlas = new TextureAtlas(100, 100, 2);
+        atlas.allocate(10, 10);
+        atlas.allocate(20, 5);
+
+        assertEquals(200 / 10000f, atlas.getOccupancy(), 1e-6f);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TripleBufferTest {
+
+    private static final int SNAPSHOTS = 200000;
+
+    /**
+     * A snapshot whose fields all hold the same number, so a torn read shows.
+     */
+    private static final class Snapshot {
+
+        final long[] mValues = new long[32];
+
+        void fill(long value) {
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = value;
+            }
+        }
+
+        long check() {
+            long value = mValues[0];
+            for (long v : mValues) {
+                assertEquals("torn snapshot", value, v);
+            }
+            return value;
+        }
+    }
+
+    private static TripleBuffer<Snapshot> newBuffer() {
+        return new TripleBuffer<>(new Snapshot(), new Snapshot(), new Snapshot());
+    }
+
+    @Test
+    public void handsOverTheNewestSnapshot() {
+        TripleBuffer<Snapshot> buffer = newBuffer();
+        assertNull(buffer.getReadSlot());
+        assertFalse(buffer.acquire());
+
+        buffer.getWriteSlot().fill(1);
+        buffer.publish();
+        buffer.getWriteSlot().fill(2);
+        buffer.publish();
+        assertTrue(buffer.acquire());
+        assertEquals(2, buffer.getReadSlot().check());
+        assertFalse(buffer.acquire());
+        assertEquals(2, buffer.getReadSlot().check());
+
+        assertEquals(2, buffer.getPublishedCount());
+        assertEquals(1, buffer.getAcquiredCount());
+        assertEquals(1, buffer.getOverwrittenCount());
+    }
+
+    @Test
+    public void neverHandsTheProducerTheReadSlot() {
+        TripleBuffer<Snapshot> buffer = newBuffer();
+        for (int i = 1; i < 100; i++) {
+            buffer.getWriteSlot().fill(i);
+            buffer.publish();
+            if (i % 3 == 0) {
+                assertTrue(buffer.acquire());
+            }
+            Snapshot read = buffer.getReadSlot();
+            if (read != null) {
+                assertTrue(read != buffer.getWriteSlot());
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void snapshotsAreNeverTornOrOlderUnderContention() throws InterruptedException {
+        final TripleBuffer<Snapshot> buffer = newBuffer();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 1; i <= SNAPSHOTS; i++) {
+                    buffer.getWriteSlot().fill(i);
+                    buffer.publish();
+                    if ((i & 0xFF) == 0) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        long last = 0;
+        while (last < SNAPSHOTS) {
+            if (buffer.acquire()) {
+                long value = buffer.getReadSlot().check();
+                assertTrue(value + " after " + last, value > last);
+                last = value;
+            } else {
+                Thread.yield();
+            }
+            // the held snapshot does not change until the next acquire
+            if (buffer.getReadSlot() != null) {
+                assertEquals(last, buffer.getReadSlot().check());
+            }
+        }
+        producer.join();
+
+        assertEquals(SNAPSHOTS, buffer.getPublishedCount());
+        assertEquals(SNAPSHOTS, buffer.getAcquiredCount() + buffer.getOverwrittenCount());
+    }
+
+    @Test
+    public void rejectsMissingOrSharedSlots() {
+        Snapshot slot = new Snapshot();
+        Snapshot[][] slots = {
+                {null, new Snapshot(), new Snapshot()},
+                {slot, slot, new Snapshot()},
+                {slot, new Snapshot(), slot},
+        };
+        for (Snapshot[] s : slots) {
+            try {
+                new TripleBuffer<>(s[0], s[1], s[2]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        TripleBuffer<Snapshot> buffer = new TripleBuffer<>(slot, new Snapshot(), new Snapshot());
+        assertSame(slot, buffer.getWriteSlot());
+    }
+}
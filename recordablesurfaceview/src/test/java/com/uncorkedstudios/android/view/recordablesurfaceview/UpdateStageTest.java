@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UpdateStageTest {
+
+    private static final long FRAME_NS = 16666667L;
+
+    /**
+     * A state whose fields are written one at a time, so a torn read shows.
+     */
+    private static final class State {
+
+        long mUpdate;
+
+        long mFrameTimeNs;
+
+        long mCheck;
+    }
+
+    /**
+     * Numbers updates and writes each state field by field.
+     */
+    private static final class CountingUpdater implements UpdateStage.Updater<State> {
+
+        long mUpdates = 0;
+
+        @Override
+        public void update(State next, long frameTimeNs) {
+            mUpdates++;
+            next.mUpdate = mUpdates;
+            next.mFrameTimeNs = frameTimeNs;
+            next.mCheck = mUpdates * 31 + frameTimeNs;
+        }
+    }
+
+    private static UpdateStage<State> newStage(UpdateStage.Updater<State> updater) {
+        return new UpdateStage<>(new State(), new State(), new State(), updater);
+    }
+
+    /**
+     * Waits for the worker to finish an update started by the last frame.
+     */
+    private static void awaitUpdates(UpdateStage<State> stage, long updates) {
+        while (stage.getUpdateCount() < updates) {
+            Thread.yield();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void drawsEachFrameFromTheUpdateTheFrameBeforeRequested() {
+        UpdateStage<State> stage = newStage(new CountingUpdater());
+        stage.beginFrame(0);
+        assertNull(stage.getState());
+
+        stage.start();
+        awaitUpdates(stage, 1);
+        long now = 1000 * FRAME_NS;
+        for (int frame = 1; frame <= 20; frame++) {
+            stage.beginFrame(now);
+            assertEquals(frame, stage.getState().mUpdate);
+            awaitUpdates(stage, frame + 1);
+            now += FRAME_NS;
+        }
+        // the last requested update targets the frame after the last one begun
+        stage.beginFrame(now);
+        assertEquals(now, stage.getState().mFrameTimeNs);
+        stage.stop();
+        assertEquals(0, stage.getStaleFrameCount());
+    }
+
+    @Test(timeout = 60000)
+    public void statesAreNeverTornOrOlderUnderContention() {
+        UpdateStage<State> stage = newStage(new CountingUpdater());
+        stage.start();
+        long lastUpdate = 0;
+        long lastFrameTimeNs = 0;
+        long now = System.nanoTime();
+        for (int frame = 0; frame < 20000; frame++) {
+            stage.beginFrame(now);
+            State state = stage.getState();
+            if (state != null) {
+                assertEquals("torn state", state.mUpdate * 31 + state.mFrameTimeNs,
+                        state.mCheck);
+                assertTrue(state.mUpdate >= lastUpdate);
+                assertTrue(state.mFrameTimeNs >= lastFrameTimeNs);
+                lastUpdate = state.mUpdate;
+                lastFrameTimeNs = state.mFrameTimeNs;
+            }
+            now += FRAME_NS;
+            if ((frame & 0xF) == 0) {
+                Thread.yield();
+            }
+        }
+        stage.stop();
+
+        long updates = stage.getUpdateCount();
+        assertTrue(lastUpdate > 0);
+        // one update per frame at most, plus the first
+        assertTrue(updates <= 20000 + 1);
+        assertTrue(stage.getMaxUpdateNs() >= stage.getLastUpdateNs());
+        TripleBuffer<State> buffer = stage.getBuffer();
+        assertEquals(updates, buffer.getPublishedCount());
+    }
+
+    @Test(timeout = 10000)
+    public void predictsFrameTimesFromTheFrameInterval() {
+        CountingUpdater updater = new CountingUpdater();
+        UpdateStage<State> stage = newStage(updater);
+        stage.start();
+        awaitUpdates(stage, 1);
+        // 120 Hz frames pull the estimate down from 60 Hz
+        long interval = FRAME_NS / 2;
+        long now = 1000 * FRAME_NS;
+        for (int frame = 1; frame <= 40; frame++) {
+            stage.beginFrame(now);
+            awaitUpdates(stage, frame + 1);
+            now += interval;
+        }
+        stage.beginFrame(now);
+        State state = stage.getState();
+        long predicted = state.mFrameTimeNs - (now - interval);
+        assertEquals(interval, predicted, interval / 100);
+        stage.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void countsFramesDrawnFromAStaleState() {
+        final AtomicInteger allowed = new AtomicInteger(1);
+        UpdateStage<State> stage = newStage(new UpdateStage.Updater<State>() {
+            @Override
+            public void update(State next, long frameTimeNs) {
+                // blocks all but the first update until released
+                while (allowed.get() <= 0) {
+                    Thread.yield();
+                }
+                allowed.decrementAndGet();
+            }
+        });
+        stage.start();
+        awaitUpdates(stage, 1);
+        stage.beginFrame(FRAME_NS);
+        stage.beginFrame(2 * FRAME_NS);
+        stage.beginFrame(3 * FRAME_NS);
+        assertEquals(2, stage.getStaleFrameCount());
+        allowed.set(1);
+        awaitUpdates(stage, 2);
+        stage.beginFrame(4 * FRAME_NS);
+        assertEquals(2, stage.getStaleFrameCount());
+        // let the update this frame requested finish
+        allowed.set(Integer.MAX_VALUE);
+        stage.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void stopsAfterAFailedUpdateAndKeepsTheLastState() {
+        final AtomicInteger calls = new AtomicInteger();
+        UpdateStage<State> stage = newStage(new UpdateStage.Updater<State>() {
+            @Override
+            public void update(State next, long frameTimeNs) {
+                if (calls.incrementAndGet() == 3) {
+                    throw new IllegalStateException("update failed");
+                }
+                next.mUpdate = calls.get();
+            }
+        });
+        stage.start();
+        awaitUpdates(stage, 1);
+        stage.beginFrame(FRAME_NS);
+        awaitUpdates(stage, 2);
+        stage.beginFrame(2 * FRAME_NS);
+        while (calls.get() < 3) {
+            Thread.yield();
+        }
+        // the worker has ended, so stop does not block
+        stage.stop();
+        for (int frame = 3; frame < 6; frame++) {
+            stage.beginFrame(frame * FRAME_NS);
+            assertEquals(2, stage.getState().mUpdate);
+        }
+        assertEquals(2, stage.getUpdateCount());
+    }
+
+    @Test(timeout = 10000)
+    public void restartsAfterStop() throws InterruptedException {
+        UpdateStage<State> stage = newStage(new CountingUpdater());
+        stage.stop();
+        stage.start();
+        stage.start();
+        awaitUpdates(stage, 1);
+        stage.stop();
+        stage.stop();
+        // a frame begun while stopped does not cause an extra update on restart
+        stage.beginFrame(FRAME_NS);
+        stage.start();
+        awaitUpdates(stage, 2);
+        Thread.sleep(100);
+        stage.stop();
+        assertEquals(2, stage.getUpdateCount());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WindowSurfacePolicyTest {
+
+    private static final long TIMEOUT_NS = 2000000000L;
+
+    private static final long FRAME_NS = 16666667L;
+
+    private final WindowSurfacePolicy mPolicy = new WindowSurfacePolicy(TIMEOUT_NS);
+
+    private long mNowNs = 1000000000L;
+
+    private boolean mHasSurface = false;
+
+    /**
+     * Runs a frame of the render loop, carrying out the action like the render thread does.
+     */
+    private int frame(boolean recording) {
+        mNowNs += FRAME_NS;
+        int action = mPolicy.update(mNowNs, mHasSurface, recording);
+        if (action == WindowSurfacePolicy.ACTION_PARK) {
+            mHasSurface = false;
+        } else if (action == WindowSurfacePolicy.ACTION_CREATE) {
+            mHasSurface = true;
+        }
+        return action;
+    }
+
+    /**
+     * @return the first action other than none within <code>durationNs</code>
+     */
+    private int runFor(long durationNs, boolean recording) {
+        long end = mNowNs + durationNs;
+        while (mNowNs < end) {
+            int action = frame(recording);
+            if (action != WindowSurfacePolicy.ACTION_NONE) {
+                return action;
+            }
+        }
+        return WindowSurfacePolicy.ACTION_NONE;
+    }
+
+    private void attachWithWindow() {
+        assertTrue(mPolicy.onWindowCreated());
+        mHasSurface = true;
+        mPolicy.onAttached(mNowNs);
+    }
+
+    @Test
+    public void keepsTheSurfaceWhileTheWindowStays() {
+        attachWithWindow();
+        assertEquals(WindowSurfacePolicy.ACTION_NONE, runFor(10 * TIMEOUT_NS, false));
+        assertFalse(mPolicy.isExiting());
+    }
+
+    @Test
+    public void parksAndRecreatesAcrossARotation() {
+        attachWithWindow();
+        mPolicy.onWindowDestroyed();
+        assertEquals(WindowSurfacePolicy.ACTION_PARK, frame(false));
+        assertEquals(WindowSurfacePolicy.ACTION_NONE, runFor(TIMEOUT_NS / 2, false));
+
+        assertTrue(mPolicy.onWindowCreated());
+        assertEquals(WindowSurfacePolicy.ACTION_CREATE, frame(false));
+        assertEquals(WindowSurfacePolicy.ACTION_NONE, frame(false));
+        assertFalse(mPolicy.isExiting());
+    }
+
+    @Test
+    public void retriesAFailedWindowSurface() {
+        assertTrue(mPolicy.onWindowCreated());
+        mPolicy.onAttached(mNowNs);
+        // eglCreateWindowSurface failed at attach, and fails once more
+        assertEquals(WindowSurfacePolicy.ACTION_CREATE,
+                mPolicy.update(mNowNs += FRAME_NS, false, false));
+        assertEquals(WindowSurfacePolicy.ACTION_CREATE, frame(false));
+        assertEquals(WindowSurfacePolicy.ACTION_NONE, frame(false));
+    }
+
+    @Test
+    public void exitsWhenTheWindowStaysGone() {
+        attachWithWindow();
+        mPolicy.onWindowDestroyed();
+        assertEquals(WindowSurfacePolicy.ACTION_PARK, frame(false));
+        long parkedAt = mNowNs;
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, runFor(2 * TIMEOUT_NS, false));
+        assertTrue(mNowNs - parkedAt > TIMEOUT_NS);
+        assertTrue(mNowNs - parkedAt <= TIMEOUT_NS + FRAME_NS);
+        assertTrue(mPolicy.isExiting());
+        // the decision sticks
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, frame(false));
+    }
+
+    @Test
+    public void refusesAWindowThatReturnsAfterTheThreadGaveUp() {
+        attachWithWindow();
+        mPolicy.onWindowDestroyed();
+        assertEquals(WindowSurfacePolicy.ACTION_PARK, frame(false));
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, runFor(3 * TIMEOUT_NS, false));
+
+        // the window comes back before the thread has torn down; a new thread must take it
+        assertFalse(mPolicy.onWindowCreated());
+        assertFalse(mPolicy.isWindowAvailable());
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, frame(false));
+    }
+
+    @Test
+    public void timesOutWhenAttachedWithoutAWindow() {
+        mPolicy.onAttached(mNowNs);
+        long attachedAt = mNowNs;
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, runFor(2 * TIMEOUT_NS, false));
+        assertTrue(mNowNs - attachedAt > TIMEOUT_NS);
+    }
+
+    @Test
+    public void staysAliveWithoutAWindowWhileRecording() {
+        attachWithWindow();
+        mPolicy.onWindowDestroyed();
+        assertEquals(WindowSurfacePolicy.ACTION_PARK, frame(true));
+        assertEquals(WindowSurfacePolicy.ACTION_NONE, runFor(5 * TIMEOUT_NS, true));
+        assertFalse(mPolicy.isExiting());
+
+        // once the recording has ended the timeout, counted from the park, has long passed
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, frame(false));
+    }
+
+    @Test
+    public void restartsTheTimeoutOnEveryPark() {
+        attachWithWindow();
+        for (int i = 0; i < 5; i++) {
+            mPolicy.onWindowDestroyed();
+            assertEquals(WindowSurfacePolicy.ACTION_PARK, frame(false));
+            assertEquals(WindowSurfacePolicy.ACTION_NONE, runFor(TIMEOUT_NS * 3 / 4, false));
+            assertTrue(mPolicy.onWindowCreated());
+            assertEquals(WindowSurfacePolicy.ACTION_CREATE, frame(false));
+            assertEquals(WindowSurfacePolicy.ACTION_NONE, runFor(TIMEOUT_NS, false));
+        }
+        assertFalse(mPolicy.isExiting());
+    }
+
+    @Test
+    public void exitsWhenAskedEvenWithAWindow() {
+        attachWithWindow();
+        mPolicy.exit();
+        assertEquals(WindowSurfacePolicy.ACTION_EXIT, frame(true));
+        assertFalse(mPolicy.onWindowCreated());
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Uncorked Studios Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uncorkedstudios.android.view.recordablesurfaceview;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class YuvPackerTest {
+
+    private static final int WIDTH = 6;
+
+    private static final int HEIGHT = 4;
+
+    private static byte luma(int x, int y) {
+        return (byte) (y * 16 + x);
+    }
+
+    private static byte u(int x, int y) {
+        return (byte) (100 + y * 8 + x);
+    }
+
+    private static byte v(int x, int y) {
+        return (byte) (-100 + y * 8 + x);
+    }
+
+    /**
+     * @return a tightly packed frame in the given layout
+     */
+    private static ByteBuffer source(int layout) {
+        ByteBuffer frame = ByteBuffer.allocate(YuvPacker.frameSize(WIDTH, HEIGHT));
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame.put(luma(x, y));
+            }
+        }
+        if (layout == YuvPacker.LAYOUT_NV12) {
+            for (int y = 0; y < HEIGHT / 2; y++) {
+                for (int x = 0; x < WIDTH / 2; x++) {
+                    frame.put(u(x, y)).put(v(x, y));
+                }
+            }
+        } else {
+            for (int y = 0; y < HEIGHT / 2; y++) {
+                for (int x = 0; x < WIDTH / 2; x++) {
+                    frame.put(u(x, y));
+                }
+            }
+            for (int y = 0; y < HEIGHT / 2; y++) {
+                for (int x = 0; x < WIDTH / 2; x++) {
+                    frame.put(v(x, y));
+                }
+            }
+        }
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Checks every sample of a packed frame against the MediaCodec layout.
+     */
+    private static void assertPacked(ByteBuffer dst, int layout, int stride, int sliceHeight) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals("Y " + x + "," + y, luma(x, y), dst.get(y * stride + x));
+            }
+        }
+        int chroma = stride * sliceHeight;
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                if (layout == YuvPacker.LAYOUT_NV12) {
+                    assertEquals("U " + x + "," + y, u(x, y), dst.get(chroma + y * stride + x * 2));
+                    assertEquals("V " + x + "," + y, v(x, y),
+                            dst.get(chroma + y * stride + x * 2 + 1));
+                } else {
+                    int at = y * (stride / 2) + x;
+                    int plane = (stride / 2) * (sliceHeight / 2);
+                    assertEquals("U " + x + "," + y, u(x, y), dst.get(chroma + at));
+                    assertEquals("V " + x + "," + y, v(x, y), dst.get(chroma + plane + at));
+                }
+            }
+        }
+    }
+
+    private static void assertPacks(int from, int to, int stride, int sliceHeight) {
+        YuvPacker packer = new YuvPacker(WIDTH, HEIGHT, from);
+        ByteBuffer dst = ByteBuffer.allocate(YuvPacker.destinationSize(stride, sliceHeight));
+        ByteBuffer src = source(from);
+        assertEquals(dst.capacity(), packer.pack(src, dst, to, stride, sliceHeight));
+        assertPacked(dst, to, stride, sliceHeight);
+
+        // packing again into the same buffers gives the same frame
+        packer.pack(src, dst, to, stride, sliceHeight);
+        assertPacked(dst, to, stride, sliceHeight);
+    }
+
+    @Test
+    public void copiesMatchingLayouts() {
+        assertPacks(YuvPacker.LAYOUT_I420, YuvPacker.LAYOUT_I420, WIDTH, HEIGHT);
+        assertPacks(YuvPacker.LAYOUT_NV12, YuvPacker.LAYOUT_NV12, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void padsRowsAndSlices() {
+        assertPacks(YuvPacker.LAYOUT_I420, YuvPacker.LAYOUT_I420, 16, 8);
+        assertPacks(YuvPacker.LAYOUT_NV12, YuvPacker.LAYOUT_NV12, 16, 8);
+        assertPacks(YuvPacker.LAYOUT_NV12, YuvPacker.LAYOUT_NV12, WIDTH, 6);
+    }
+
+    @Test
+    public void convertsBetweenPlanarAndSemiPlanar() {
+        assertPacks(YuvPacker.LAYOUT_I420, YuvPacker.LAYOUT_NV12, WIDTH, HEIGHT);
+        assertPacks(YuvPacker.LAYOUT_NV12, YuvPacker.LAYOUT_I420, WIDTH, HEIGHT);
+        assertPacks(YuvPacker.LAYOUT_I420, YuvPacker.LAYOUT_NV12, 16, 8);
+        assertPacks(YuvPacker.LAYOUT_NV12, YuvPacker.LAYOUT_I420, 16, 8);
+    }
+
+    @Test
+    public void leavesPaddingUntouched() {
+        YuvPacker packer = new YuvPacker(WIDTH, HEIGHT, YuvPacker.LAYOUT_I420);
+        ByteBuffer dst = ByteBuffer.allocate(YuvPacker.destinationSize(8, 4));
+        for (int i = 0; i < dst.capacity(); i++) {
+            dst.put(i, (byte) 0x55);
+        }
+        packer.pack(source(YuvPacker.LAYOUT_I420), dst, YuvPacker.LAYOUT_I420, 8, 4);
+        for (int y = 0; y < HEIGHT; y++) {
+            assertEquals(0x55, dst.get(y * 8 + WIDTH));
+            assertEquals(0x55, dst.get(y * 8 + WIDTH + 1));
+        }
+    }
+
+    @Test
+    public void rejectsBuffersThatDoNotFit() {
+        YuvPacker packer = new YuvPacker(WIDTH, HEIGHT, YuvPacker.LAYOUT_I420);
+        ByteBuffer src = source(YuvPacker.LAYOUT_I420);
+        int[][] layouts = {{WIDTH - 2, HEIGHT}, {WIDTH, HEIGHT - 2}};
+        for (int[] layout : layouts) {
+            try {
+                packer.pack(src, ByteBuffer.allocate(1024), YuvPacker.LAYOUT_I420, layout[0],
+                        layout[1]);
+                fail();
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            packer.pack(src, ByteBuffer.allocate(YuvPacker.destinationSize(16, 8) - 1),
+                    YuvPacker.LAYOUT_I420, 16, 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            packer.pack(ByteBuffer.allocate(packer.getFrameSize() - 1), ByteBuffer.allocate(1024),
+                    YuvPacker.LAYOUT_I420, WIDTH, HEIGHT);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddDimensions() {
+        new YuvPacker(5, 4, YuvPacker.LAYOUT_I420);
+    }
+}